@@ -0,0 +1,81 @@
+package wwcs2022.socialmemcon;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to write the outputs for N locations with a base matrix and eight years: the workbook of
+ * {@link SpreadsheetWriter}, the CSV pairs of {@link PairCsvWriter} and the {@link MatrixFile}.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ExportBenchmark {
+
+    private static final List<Integer> YEARS = List.of(1995, 2000, 2003, 2007, 2009, 2011, 2012, 2020);
+
+    @Param({"50", "200", "500"})
+    public int locationCount;
+
+    private Path dir;
+    private DistanceMatrix base;
+    private DistanceStack distances;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("export-benchmark");
+        Random random = new Random(42);
+        List<LocationEntry> locations = SyntheticData.locations(locationCount, 1000, random);
+        base = new DistanceMatrix(locations);
+        distances = new DistanceStack(locations, YEARS);
+        for (int from=0; from < locationCount; from++) {
+            for (int to=0; to < locationCount; to++) {
+                if (from != to) {
+                    double d = 1000 + random.nextDouble() * 300_000;
+                    base.set(from, to, d);
+                    for (DistanceMatrix m : distances.matrices()) {
+                        m.set(from, to, d * (1 + random.nextDouble() * 0.1));
+                    }
+                }
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        SyntheticData.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public long workbook() {
+        File output = dir.resolve("output.xlsx").toFile();
+        SpreadsheetWriter.writeBigSpreadsheet(base, distances, output);
+        return output.length();
+    }
+
+    @Benchmark
+    public long csvPairs() {
+        File output = dir.resolve("pairs.csv.gz").toFile();
+        PairCsvWriter.writePairs(base, distances, output);
+        return output.length();
+    }
+
+    @Benchmark
+    public long matrixFile() throws IOException {
+        File output = dir.resolve("matrices.bin").toFile();
+        MatrixFile.write(output, "car_shortest", base, "", distances, Map.of());
+        return output.length();
+    }
+
+}
@@ -0,0 +1,109 @@
+package wwcs2022.socialmemcon;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hot loops of {@link FilterBridgesMain} on synthetic streams: classifying node coordinates against the restriction
+ * polygons, and checking the node references of ways against the removal set. Scores are per node or reference.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FilterBenchmark {
+
+    private static final int NODES = 1 << 20;
+    private static final int GRID_SIZE = 1000;
+    private static final long MAX_NODE_ID = 10_000_000_000L;
+    private static final int WAY_LENGTH = 12;
+
+    @State(Scope.Benchmark)
+    public static class Nodes {
+        @Param({"10", "100"})
+        public int polygons;
+
+        private RestrictionIndex.Locator locator;
+        private double [] lats;
+        private double [] lngs;
+
+        @Setup
+        public void setup() {
+            Random random = new Random(42);
+            List<RestrictionEntry> restrictions = SyntheticData.restrictions(polygons, GRID_SIZE, random);
+            locator = new RestrictionIndex(restrictions).locator();
+            // Half of the nodes fall outside the area of the polygons, as most of a country's nodes do
+            lats = new double[NODES];
+            lngs = new double[NODES];
+            for (int i=0; i < NODES; i++) {
+                lats[i] = SyntheticData.MIN_LAT + random.nextDouble() * 2 * GRID_SIZE * SyntheticData.SPACING;
+                lngs[i] = SyntheticData.MIN_LNG + random.nextDouble() * GRID_SIZE * SyntheticData.SPACING;
+            }
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Ways {
+        @Param({"false", "true"})
+        public boolean offHeap;
+
+        private NodeIdSet removeUntil;
+        private long [] refs;
+
+        @Setup
+        public void setup() {
+            Random random = new Random(42);
+            NodeIdSet.Builder builder = NodeIdSet.builder(offHeap ? 0 : Integer.MAX_VALUE);
+            long [] removed = new long[NODES / 10];
+            for (int i=0; i < removed.length; i++) {
+                removed[i] = (long) (random.nextDouble() * MAX_NODE_ID);
+                builder.add(removed[i], 1990 + random.nextInt(31));
+            }
+            removeUntil = builder.build();
+            refs = new long[NODES];
+            for (int i=0; i < NODES; i++) {
+                refs[i] = random.nextInt(100) == 0
+                        ? removed[random.nextInt(removed.length)]
+                        : (long) (random.nextDouble() * MAX_NODE_ID);
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NODES)
+    public void classifyNodes(Nodes nodes, Blackhole bh) {
+        int found = 0;
+        for (int i=0; i < NODES; i++) {
+            if (nodes.locator.latestYear(nodes.lats[i], nodes.lngs[i]) != RestrictionIndex.NO_YEAR) {
+                found++;
+            }
+        }
+        bh.consume(found);
+    }
+
+    /**
+     * Counts the ways kept in the dataset of 2005, where a way is dropped if one of its nodes has a tag at or after
+     * that year.
+     */
+    @Benchmark
+    @OperationsPerInvocation(NODES)
+    public void filterWays(Ways ways, Blackhole bh) {
+        int kept = 0;
+        for (int start=0; start < NODES; start += WAY_LENGTH) {
+            int max = NodeIdSet.ABSENT;
+            for (int i=start; i < start + WAY_LENGTH && i < NODES; i++) {
+                max = Math.max(max, ways.removeUntil.get(ways.refs[i]));
+            }
+            if (max < 2005) {
+                kept++;
+            }
+        }
+        bh.consume(kept);
+    }
+
+}
@@ -0,0 +1,116 @@
+package wwcs2022.socialmemcon;
+
+import de.topobyte.osm4j.core.access.OsmIterator;
+import de.topobyte.osm4j.core.model.iface.EntityContainer;
+import de.topobyte.osm4j.core.model.iface.OsmNode;
+import de.topobyte.osm4j.core.model.iface.OsmRelation;
+import de.topobyte.osm4j.core.model.iface.OsmWay;
+import de.topobyte.osm4j.pbf.seq.PbfIterator;
+import de.topobyte.osm4j.pbf.seq.PbfWriter;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding and encoding throughput on a synthetic grid extract of about 250,000 nodes: the partial decoding of
+ * {@link PbfBlock}, a full decode and a re-encode with osm4j, and the complete filtering of
+ * {@link FilterBridgesMain#processYears} for the datasets of all restriction years.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PbfBenchmark {
+
+    private static final int GRID_SIZE = 500;
+    private static final int RESTRICTIONS = 20;
+
+    private Path dir;
+    private File extract;
+    private List<EntityContainer> entities;
+    private List<RestrictionEntry> restrictions;
+    private Map<Integer,File> outputs;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("pbf-benchmark");
+        extract = dir.resolve("grid.osm.pbf").toFile();
+        SyntheticData.writeGrid(extract, GRID_SIZE);
+        entities = new ArrayList<>();
+        try (InputStream is = new FileInputStream(extract)) {
+            OsmIterator iterator = new PbfIterator(is, true);
+            iterator.forEachRemaining(entities::add);
+        }
+        restrictions = SyntheticData.restrictions(RESTRICTIONS, GRID_SIZE, new Random(42));
+        outputs = new TreeMap<>();
+        for (int year : FilterBridgesMain.getSubLists(restrictions).keySet()) {
+            outputs.put(year, dir.resolve("network-" + year + ".osm.pbf").toFile());
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        SyntheticData.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public long decodeBlocks() throws IOException {
+        long count = 0;
+        try (InputStream is = new BufferedInputStream(new FileInputStream(extract), 1 << 20)) {
+            long [] sum = new long[1];
+            PbfBlock block;
+            while ((block = PbfBlock.read(is)) != null) {
+                if (block.isData()) {
+                    count += block.forEachNode((id, lat, lon) -> sum[0] += id);
+                    count += block.forEachWayNode(ref -> sum[0] += ref);
+                }
+            }
+            count += sum[0] & 1;
+        }
+        return count;
+    }
+
+    @Benchmark
+    public void decodeEntities(Blackhole bh) throws IOException {
+        try (InputStream is = new BufferedInputStream(new FileInputStream(extract), 1 << 20)) {
+            OsmIterator iterator = new PbfIterator(is, true);
+            while (iterator.hasNext()) {
+                bh.consume(iterator.next().getEntity());
+            }
+        }
+    }
+
+    @Benchmark
+    public int encodeEntities() throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream(1 << 24);
+        PbfWriter writer = new PbfWriter(os, true);
+        for (EntityContainer container : entities) {
+            switch (container.getType()) {
+                case Node:
+                    writer.write((OsmNode) container.getEntity());
+                    break;
+                case Way:
+                    writer.write((OsmWay) container.getEntity());
+                    break;
+                case Relation:
+                    writer.write((OsmRelation) container.getEntity());
+                    break;
+            }
+        }
+        writer.complete();
+        return os.size();
+    }
+
+    @Benchmark
+    public void filterAllYears() throws IOException {
+        FilterBridgesMain.processYears(extract.getPath(), outputs, restrictions);
+    }
+
+}
@@ -0,0 +1,75 @@
+package wwcs2022.socialmemcon;
+
+import com.graphhopper.GHRequest;
+import com.graphhopper.GHResponse;
+import com.graphhopper.GraphHopper;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Routing latency on a synthetic grid of 200 x 200 nodes (about 20 x 20 km), imported and CH-prepared once per
+ * fork: a single route between random locations, and the full distance matrix between N locations with
+ * {@link MatrixCalculator} on one thread and on all processors.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RoutingBenchmark {
+
+    private static final int GRID_SIZE = 200;
+    private static final String VEHICLE = "car";
+
+    @Param({"10", "100", "500"})
+    public int locationCount;
+
+    private Path dir;
+    private GraphHopper hopper;
+    private String profile;
+    private List<LocationEntry> locations;
+    private int next;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("routing-benchmark");
+        File extract = dir.resolve("grid.osm.pbf").toFile();
+        SyntheticData.writeGrid(extract, GRID_SIZE);
+        hopper = RoutingMain.createGraphHopperInstance(extract.getPath(), dir.resolve("graph").toString(), VEHICLE);
+        profile = RoutingMain.Weighting.SHORTEST.getProfileForVehicle(VEHICLE);
+        locations = SyntheticData.locations(locationCount, GRID_SIZE, new Random(42));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        hopper.close();
+        SyntheticData.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public GHResponse singleRoute() {
+        LocationEntry from = locations.get(next++ % locations.size());
+        LocationEntry to = locations.get(next % locations.size());
+        return hopper.route(new GHRequest(from.getLat(), from.getLng(), to.getLat(), to.getLng())
+                .setProfile(profile));
+    }
+
+    @Benchmark
+    public double [][] matrixSingleThread() {
+        return new MatrixCalculator(hopper, profile, 1).calcDistances(locations, locations);
+    }
+
+    @Benchmark
+    public double [][] matrixAllThreads() {
+        return new MatrixCalculator(hopper, profile).calcDistances(locations, locations);
+    }
+
+}
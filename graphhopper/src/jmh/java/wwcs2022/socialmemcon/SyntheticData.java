@@ -0,0 +1,103 @@
+package wwcs2022.socialmemcon;
+
+import de.topobyte.osm4j.core.model.impl.Node;
+import de.topobyte.osm4j.core.model.impl.Tag;
+import de.topobyte.osm4j.core.model.impl.Way;
+import de.topobyte.osm4j.pbf.seq.PbfWriter;
+import gnu.trove.list.array.TLongArrayList;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Deterministic test data for the benchmarks, so they run offline and give the same input on every machine: a
+ * square grid road network around Budapest written as PBF, square restriction polygons on that grid, and random
+ * locations inside it.
+ */
+final class SyntheticData {
+
+    static final double MIN_LAT = 47.40;
+    static final double MIN_LNG = 18.95;
+    // About 100 meters between neighbouring grid nodes
+    static final double SPACING = 0.001;
+    // Number of grid nodes in a way
+    private static final int WAY_LENGTH = 10;
+
+    private SyntheticData() {
+    }
+
+    /**
+     * Writes a grid of size x size nodes, connected by residential ways along the rows and columns.
+     */
+    static void writeGrid(File output, int size) throws IOException {
+        try (OutputStream os = new BufferedOutputStream(new FileOutputStream(output))) {
+            PbfWriter writer = new PbfWriter(os, true);
+            for (int row=0; row < size; row++) {
+                for (int col=0; col < size; col++) {
+                    writer.write(new Node(nodeId(size, row, col), MIN_LNG + col * SPACING, MIN_LAT + row * SPACING));
+                }
+            }
+            List<Tag> tags = List.of(new Tag("highway", "residential"));
+            long wayId = 1;
+            for (int line=0; line < size; line++) {
+                for (int start=0; start < size - 1; start += WAY_LENGTH - 1) {
+                    int end = Math.min(size - 1, start + WAY_LENGTH - 1);
+                    TLongArrayList rowNodes = new TLongArrayList();
+                    TLongArrayList colNodes = new TLongArrayList();
+                    for (int i=start; i <= end; i++) {
+                        rowNodes.add(nodeId(size, line, i));
+                        colNodes.add(nodeId(size, i, line));
+                    }
+                    writer.write(new Way(wayId++, rowNodes, tags));
+                    writer.write(new Way(wayId++, colNodes, tags));
+                }
+            }
+            writer.complete();
+        }
+    }
+
+    private static long nodeId(int size, int row, int col) {
+        return 1 + (long) row * size + col;
+    }
+
+    /**
+     * Returns square restriction polygons of a few grid cells at random places on a grid of the given size, with
+     * years between 1990 and 2020.
+     */
+    static List<RestrictionEntry> restrictions(int count, int gridSize, Random random) {
+        List<RestrictionEntry> result = new ArrayList<>();
+        for (int i=0; i < count; i++) {
+            double lat = MIN_LAT + random.nextDouble() * gridSize * SPACING;
+            double lng = MIN_LNG + random.nextDouble() * gridSize * SPACING;
+            double d = (1 + random.nextInt(3)) * SPACING;
+            String polygon = lat + "," + lng + "::" + lat + "," + (lng + d) + "::" + (lat + d) + "," + (lng + d)
+                    + "::" + (lat + d) + "," + lng + "::" + lat + "," + lng;
+            result.add(new RestrictionEntry("R" + i + ";" + (1990 + random.nextInt(31)) + ";0;" + polygon));
+        }
+        return result;
+    }
+
+    static List<LocationEntry> locations(int count, int gridSize, Random random) {
+        List<LocationEntry> result = new ArrayList<>();
+        for (int i=0; i < count; i++) {
+            result.add(new LocationEntry("L" + i, MIN_LAT + random.nextDouble() * (gridSize - 1) * SPACING,
+                    MIN_LNG + random.nextDouble() * (gridSize - 1) * SPACING));
+        }
+        return result;
+    }
+
+    static void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(path)) {
+            for (Path p : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(p);
+            }
+        }
+    }
+
+}
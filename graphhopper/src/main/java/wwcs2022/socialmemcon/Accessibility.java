@@ -0,0 +1,371 @@
+package wwcs2022.socialmemcon;
+
+import com.graphhopper.GraphHopper;
+import com.graphhopper.coll.MinHeapWithUpdate;
+import com.graphhopper.routing.querygraph.QueryGraph;
+import com.graphhopper.routing.util.AccessFilter;
+import com.graphhopper.routing.weighting.Weighting;
+import com.graphhopper.storage.Graph;
+import com.graphhopper.util.EdgeExplorer;
+import com.graphhopper.util.EdgeIterator;
+import com.graphhopper.util.PMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * Computes the population that can be reached from every city within thresholds of road distance or travel time,
+ * on the graph of one year. The population of a city is 10^PopLog from cities_final.csv, and a city reaches itself.
+ *
+ * Instead of routing all pairs of cities, a single one-to-all Dijkstra runs from every city on the graph without
+ * the contraction hierarchy, and the cities at the nodes it settles are added to the bin of the first threshold
+ * they are within. The search does not expand nodes beyond the largest threshold. It is ordered by the weight of
+ * the profile of the measure, shortest for distance and fastest for time, so the distance or time of a city is
+ * that of the route the profile would take. The searches run in parallel over the cities.
+ */
+public class Accessibility {
+
+    private static final Logger log = LoggerFactory.getLogger(Accessibility.class);
+
+    public static final double [] DEFAULT_DISTANCES_KM = {10, 25, 50, 100, 200};
+    public static final double [] DEFAULT_TIMES_MIN = {15, 30, 60, 120};
+
+    public enum Measure {
+        DISTANCE(RoutingMain.Weighting.SHORTEST, "km", 1_000),
+        TIME(RoutingMain.Weighting.FASTEST, "min", 60_000);
+
+        private final RoutingMain.Weighting weighting;
+        private final String unit;
+        // Meters or milliseconds per unit
+        private final double scale;
+
+        Measure(RoutingMain.Weighting weighting, String unit, double scale) {
+            this.weighting = weighting;
+            this.unit = unit;
+            this.scale = scale;
+        }
+
+        public RoutingMain.Weighting getWeighting() {
+            return weighting;
+        }
+
+        public String getUnit() {
+            return unit;
+        }
+    }
+
+    private final Cities cities;
+    private final Measure measure;
+    private final double [] thresholds;
+    private final int threads;
+    private final double [] populations;
+
+    /**
+     * @param thresholds the ascending thresholds in the unit of the measure
+     */
+    public Accessibility(Cities cities, Measure measure, double [] thresholds, int threads) {
+        for (int i=1; i < thresholds.length; i++) {
+            if (thresholds[i] <= thresholds[i - 1]) {
+                throw new IllegalArgumentException("Thresholds must be ascending: " + Arrays.toString(thresholds));
+            }
+        }
+        this.cities = cities;
+        this.measure = measure;
+        this.thresholds = thresholds.clone();
+        this.threads = threads;
+        this.populations = new double[cities.size()];
+        for (int i=0; i < populations.length; i++) {
+            populations[i] = Math.pow(10, cities.getPopLog(i));
+        }
+    }
+
+    /**
+     * Returns the accessibility of every city on the graph.
+     */
+    public Result compute(GraphHopper hopper, String vehicle) {
+        String profile = measure.weighting.getProfileForVehicle(vehicle);
+        SnapIndex snaps = SnapIndex.create(hopper, profile, cities.toLocations());
+        return compute(hopper, profile, snaps, new BitSet());
+    }
+
+    /**
+     * Returns the accessibility of every city on the scenario graph with the given restrictions blocked.
+     */
+    public Result compute(ScenarioGraph graph, String vehicle, BitSet scenario) {
+        String profile = measure.weighting.getProfileForVehicle(vehicle);
+        List<LocationEntry> locations = cities.toLocations();
+        SnapIndex snaps = graph.snapIndex(profile, locations, locations);
+        return compute(graph.getHopper(), profile, snaps, graph.blockedEdges(scenario));
+    }
+
+    private Result compute(GraphHopper hopper, String profile, SnapIndex snaps, BitSet blockedEdges) {
+        long start = System.nanoTime();
+        Weighting weighting = hopper.createWeighting(hopper.getProfile(profile), new PMap());
+        QueryGraph queryGraph = snaps.getQueryGraph();
+        // The cities at every node as linked lists, most nodes have none
+        int [] nodes = snaps.nodes(cities.toLocations());
+        int [] firstCity = new int[queryGraph.getNodes()];
+        int [] nextCity = new int[cities.size()];
+        Arrays.fill(firstCity, -1);
+        for (int c=0; c < nodes.length; c++) {
+            if (nodes[c] >= 0) {
+                nextCity[c] = firstCity[nodes[c]];
+                firstCity[nodes[c]] = c;
+            }
+        }
+        double limit = thresholds[thresholds.length - 1] * measure.scale;
+        Result result = new Result(cities, measure, thresholds);
+        ThreadLocal<Search> searches = ThreadLocal.withInitial(
+                () -> new Search(snaps, weighting, blockedEdges, measure, limit));
+        Progress progress = new Progress("Accessibility searches for " + profile, cities.size());
+        Metrics.Histogram latencies = Metrics.histogram("accessibility.search");
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            runParallel(pool, cities.size(), c -> {
+                if (nodes[c] >= 0) {
+                    long searchStart = System.nanoTime();
+                    double [] reachable = result.populations[c];
+                    int [] counts = result.counts[c];
+                    searches.get().run(nodes[c], (node, value) -> {
+                        int bin = Arrays.binarySearch(thresholds, value / measure.scale);
+                        if (bin < 0) {
+                            bin = -bin - 1;
+                        }
+                        for (int k=firstCity[node]; k >= 0; k = nextCity[k]) {
+                            reachable[bin] += populations[k];
+                            counts[bin]++;
+                        }
+                    });
+                    // Each bin holds everything within its threshold
+                    for (int b=1; b < thresholds.length; b++) {
+                        reachable[b] += reachable[b - 1];
+                        counts[b] += counts[b - 1];
+                    }
+                    latencies.record(System.nanoTime() - searchStart);
+                }
+                else {
+                    Arrays.fill(result.populations[c], Double.NaN);
+                }
+                progress.increment();
+            });
+        }
+        finally {
+            pool.shutdown();
+        }
+        progress.finish();
+        log.info("Computed accessibility of {} cities for {} in {} ms", cities.size(), profile,
+                (System.nanoTime() - start) / 1_000_000);
+        return result;
+    }
+
+    /**
+     * Returns the accessibility of every city on every graph of the pool, by graph name.
+     */
+    public Map<String,Result> computeAll(GraphPool<String> graphs, String vehicle) {
+        Map<String,Result> result = new TreeMap<>();
+        for (String name : graphs.keys()) {
+            try (GraphPool<String>.Lease lease = graphs.acquire(name)) {
+                log.info("Computing accessibility by {} for {}", measure.name().toLowerCase(Locale.ROOT), name);
+                result.put(name, compute(lease.getHopper(), vehicle));
+            }
+        }
+        return result;
+    }
+
+    private static void runParallel(ForkJoinPool pool, int count, IntConsumer task) {
+        try {
+            pool.submit(() -> IntStream.range(0, count).parallel().forEach(task)).get();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while computing accessibility", ex);
+        }
+        catch (ExecutionException ex) {
+            throw new IllegalStateException("Error while computing accessibility", ex.getCause());
+        }
+    }
+
+    /**
+     * Writes the results of several graphs, by graph name, as one row per graph, city and threshold. The reachable
+     * population of a city that could not be snapped is left empty.
+     */
+    public static void write(Map<String,Result> results, File file) throws IOException {
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file),
+                StandardCharsets.UTF_8)))) {
+            boolean header = true;
+            for (var entry : results.entrySet()) {
+                Result result = entry.getValue();
+                if (header) {
+                    out.println("Graph,CityId,CityName,Population,Threshold " + result.measure.unit
+                            + ",Reachable Cities,Reachable Population");
+                    header = false;
+                }
+                for (int c=0; c < result.cities.size(); c++) {
+                    for (int b=0; b < result.thresholds.length; b++) {
+                        out.println(entry.getKey() + "," + result.cities.getId(c) + ","
+                                + result.cities.getName(c).replace(",", " ") + ","
+                                + Math.round(Math.pow(10, result.cities.getPopLog(c))) + ","
+                                + result.thresholds[b] + "," + result.counts[c][b] + ","
+                                + population(result.populations[c][b]));
+                    }
+                }
+            }
+        }
+        log.info("Written accessibility to {}", file);
+    }
+
+    /**
+     * Formats a reachable population, as an empty field for cities that could not be snapped.
+     */
+    private static String population(double population) {
+        return Double.isNaN(population) ? "" : Long.toString(Math.round(population));
+    }
+
+    /**
+     * The population and the number of cities each city reaches within every threshold. Cities that could not be
+     * snapped reach nothing and have a NaN population.
+     */
+    public static final class Result {
+        private final Cities cities;
+        private final Measure measure;
+        private final double [] thresholds;
+        private final double [][] populations;
+        private final int [][] counts;
+
+        private Result(Cities cities, Measure measure, double [] thresholds) {
+            this.cities = cities;
+            this.measure = measure;
+            this.thresholds = thresholds;
+            this.populations = new double[cities.size()][thresholds.length];
+            this.counts = new int[cities.size()][thresholds.length];
+        }
+
+        public Measure getMeasure() {
+            return measure;
+        }
+
+        public double [] getThresholds() {
+            return thresholds.clone();
+        }
+
+        /**
+         * Returns the population reachable from the city within the threshold with the given index.
+         */
+        public double getPopulation(int city, int threshold) {
+            return populations[city][threshold];
+        }
+
+        public int getCount(int city, int threshold) {
+            return counts[city][threshold];
+        }
+    }
+
+    private interface Visitor {
+        void visit(int node, double value);
+    }
+
+    /**
+     * One-to-all Dijkstra on the query graph that skips blocked edges and does not expand nodes whose distance or
+     * time exceeds the limit. Reuses its arrays between runs like the search of {@link ScenarioGraph}.
+     */
+    private static final class Search {
+        private final Weighting weighting;
+        private final BitSet blockedEdges;
+        private final SnapIndex snaps;
+        private final Measure measure;
+        private final double limit;
+        private final EdgeExplorer explorer;
+        private final double [] weights;
+        private final double [] values;
+        private final boolean [] settled;
+        private final MinHeapWithUpdate heap;
+        private int [] touched = new int[1024];
+        private int touchedCount;
+
+        private Search(SnapIndex snaps, Weighting weighting, BitSet blockedEdges, Measure measure, double limit) {
+            Graph graph = snaps.getQueryGraph();
+            this.weighting = weighting;
+            this.blockedEdges = blockedEdges;
+            this.snaps = snaps;
+            this.measure = measure;
+            this.limit = limit;
+            this.explorer = graph.createEdgeExplorer(AccessFilter.outEdges(weighting.getFlagEncoder().getAccessEnc()));
+            this.weights = new double[graph.getNodes()];
+            this.values = new double[graph.getNodes()];
+            this.settled = new boolean[graph.getNodes()];
+            this.heap = new MinHeapWithUpdate(graph.getNodes());
+            Arrays.fill(weights, Double.POSITIVE_INFINITY);
+        }
+
+        /**
+         * Visits every node within the limit with its distance in meters or time in milliseconds.
+         */
+        private void run(int start, Visitor visitor) {
+            for (int i=0; i < touchedCount; i++) {
+                weights[touched[i]] = Double.POSITIVE_INFINITY;
+                settled[touched[i]] = false;
+            }
+            touchedCount = 0;
+            heap.clear();
+
+            touch(start, 0, 0);
+            heap.push(start, 0);
+            while (!heap.isEmpty()) {
+                int node = heap.poll();
+                settled[node] = true;
+                double value = values[node];
+                if (value > limit) {
+                    continue;
+                }
+                visitor.visit(node, value);
+                double weight = weights[node];
+                EdgeIterator iter = explorer.setBaseNode(node);
+                while (iter.next()) {
+                    if (blockedEdges.get(snaps.getOriginalEdge(iter.getEdge()))) {
+                        continue;
+                    }
+                    int adj = iter.getAdjNode();
+                    if (settled[adj]) {
+                        continue;
+                    }
+                    double edgeWeight = weighting.calcEdgeWeight(iter, false);
+                    if (Double.isInfinite(edgeWeight)) {
+                        continue;
+                    }
+                    double newWeight = weight + edgeWeight;
+                    if (newWeight < weights[adj]) {
+                        boolean queued = !Double.isInfinite(weights[adj]);
+                        double edgeValue = measure == Measure.DISTANCE ? iter.getDistance()
+                                : weighting.calcEdgeMillis(iter, false);
+                        touch(adj, newWeight, value + edgeValue);
+                        if (queued) {
+                            heap.update(adj, (float) newWeight);
+                        }
+                        else {
+                            heap.push(adj, (float) newWeight);
+                        }
+                    }
+                }
+            }
+        }
+
+        private void touch(int node, double weight, double value) {
+            if (Double.isInfinite(weights[node])) {
+                if (touchedCount == touched.length) {
+                    touched = Arrays.copyOf(touched, touchedCount * 2);
+                }
+                touched[touchedCount++] = node;
+            }
+            weights[node] = weight;
+            values[node] = value;
+        }
+    }
+
+}
@@ -0,0 +1,331 @@
+package wwcs2022.socialmemcon;
+
+import com.graphhopper.GraphHopper;
+import com.graphhopper.util.DistanceCalcEarth;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.stream.IntStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A distance matrix in which only some pairs are routed exactly and the others are bounded by landmarks, for quick
+ * exploratory runs on many locations. The distances from and to a set of landmarks, spread over the locations by
+ * farthest-point selection, are computed exactly. By the triangle inequality the distance of every other pair lies
+ * between
+ * <pre>
+ *     lower = max over landmarks L of max(d(L,j) - d(L,i), d(i,L) - d(j,L))
+ *     upper = min over landmarks L of d(i,L) + d(L,j)
+ * </pre>
+ * A pair keeps the upper bound, the length of an actual route through a landmark, if the gap between its bounds is
+ * at most the tolerance relative to the upper bound and the upper bound is not below the cutoff. All other pairs are
+ * refined exactly. Each location belongs to the cluster of its nearest landmark, and the pairs are refined with one
+ * matrix per cluster from its locations to the targets they need, so a refinement only reaches as far as the
+ * cluster's targets.
+ *
+ * Every pair carries its bounds, which are equal for exact pairs, so the error of a distance is at most the gap.
+ */
+public class ApproximateMatrix {
+
+    private static final Logger log = LoggerFactory.getLogger(ApproximateMatrix.class);
+
+    public static final int DEFAULT_LANDMARKS = 32;
+    public static final double DEFAULT_TOLERANCE = 0.01;
+    // Pairs closer than this are always routed, their relative error would matter most
+    public static final double DEFAULT_CUTOFF_M = 20_000;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final DistanceMatrix distances;
+    private final DistanceMatrix lower;
+    private final DistanceMatrix upper;
+    private final int [] landmarks;
+    private final long exactPairs;
+
+    private ApproximateMatrix(DistanceMatrix distances, DistanceMatrix lower, DistanceMatrix upper, int [] landmarks,
+                              long exactPairs) {
+        this.distances = distances;
+        this.lower = lower;
+        this.upper = upper;
+        this.landmarks = landmarks;
+        this.exactPairs = exactPairs;
+    }
+
+    /**
+     * Computes the approximate matrix of the locations with the given function for the exact distances.
+     *
+     * @param landmarkCount the number of landmarks
+     * @param tolerance the largest gap between the bounds of a pair that is not refined, relative to its upper bound
+     * @param cutoff the distance in meters below which pairs are always refined
+     */
+    public static ApproximateMatrix compute(List<LocationEntry> locations, RoutingMain.MatrixFunction function,
+                                            int landmarkCount, double tolerance, double cutoff) {
+        long start = System.currentTimeMillis();
+        int n = locations.size();
+        int [] landmarks = selectLandmarks(locations, landmarkCount);
+        List<LocationEntry> landmarkLocations = new ArrayList<>();
+        for (int l : landmarks) {
+            landmarkLocations.add(locations.get(l));
+        }
+        double [][] from = function.compute(landmarkLocations, locations);
+        double [][] to = function.compute(locations, landmarkLocations);
+
+        DistanceMatrix distances = new DistanceMatrix(locations);
+        DistanceMatrix lower = new DistanceMatrix(locations);
+        DistanceMatrix upper = new DistanceMatrix(locations);
+        boolean [] isLandmark = new boolean[n];
+        for (int k=0; k < landmarks.length; k++) {
+            isLandmark[landmarks[k]] = true;
+            for (int j=0; j < n; j++) {
+                if (j != landmarks[k]) {
+                    setExact(distances, lower, upper, landmarks[k], j, from[k][j]);
+                    setExact(distances, lower, upper, j, landmarks[k], to[j][k]);
+                }
+            }
+        }
+
+        // The targets each location needs refined, filled in parallel by rows
+        BitSet [] refine = new BitSet[n];
+        IntStream.range(0, n).parallel().forEach(i -> {
+            refine[i] = new BitSet();
+            if (isLandmark[i]) {
+                return;
+            }
+            for (int j=0; j < n; j++) {
+                if (i == j || isLandmark[j]) {
+                    continue;
+                }
+                double low = 0;
+                double up = Double.POSITIVE_INFINITY;
+                for (int k=0; k < landmarks.length; k++) {
+                    double il = to[i][k];
+                    double jl = to[j][k];
+                    double li = from[k][i];
+                    double lj = from[k][j];
+                    // A NaN sum fails the comparison, so pairs without a route through a landmark stay infinite
+                    if (il + lj < up) {
+                        up = il + lj;
+                    }
+                    if (!Double.isNaN(lj) && !Double.isNaN(li)) {
+                        low = Math.max(low, lj - li);
+                    }
+                    if (!Double.isNaN(il) && !Double.isNaN(jl)) {
+                        low = Math.max(low, il - jl);
+                    }
+                }
+                if (Double.isInfinite(up) || up < cutoff || up - low > tolerance * up) {
+                    refine[i].set(j);
+                }
+                else {
+                    distances.set(i, j, up);
+                    lower.set(i, j, low);
+                    upper.set(i, j, up);
+                }
+            }
+        });
+
+        int [] clusters = clusters(to, n);
+        long refined = 0;
+        for (int k=0; k < landmarks.length; k++) {
+            List<Integer> sourceIndices = new ArrayList<>();
+            BitSet targetIndices = new BitSet();
+            for (int i=0; i < n; i++) {
+                if (clusters[i] == k && !refine[i].isEmpty()) {
+                    sourceIndices.add(i);
+                    targetIndices.or(refine[i]);
+                }
+            }
+            if (sourceIndices.isEmpty()) {
+                continue;
+            }
+            List<LocationEntry> sources = new ArrayList<>();
+            List<LocationEntry> targets = new ArrayList<>();
+            sourceIndices.forEach(i -> sources.add(locations.get(i)));
+            int [] targetArray = targetIndices.stream().toArray();
+            for (int j : targetArray) {
+                targets.add(locations.get(j));
+            }
+            double [][] computed = function.compute(sources, targets);
+            for (int s=0; s < sources.size(); s++) {
+                int i = sourceIndices.get(s);
+                // All computed pairs are exact, also those that did not need to be refined
+                for (int t=0; t < targetArray.length; t++) {
+                    if (targetArray[t] != i && !isLandmark[targetArray[t]]) {
+                        setExact(distances, lower, upper, i, targetArray[t], computed[s][t]);
+                    }
+                }
+                refined += refine[i].cardinality();
+            }
+        }
+        long pairs = (long) n * (n - 1);
+        long exact = 0;
+        for (int i=0; i < n; i++) {
+            for (int j=0; j < n; j++) {
+                if (i != j && isExact(lower, upper, i, j)) {
+                    exact++;
+                }
+            }
+        }
+        log.info("Approximated {} pairs with {} landmarks in {} ms: {} refined, {} exact, {} bounded", pairs,
+                landmarks.length, System.currentTimeMillis() - start, refined, exact, pairs - exact);
+        Metrics.count("approximate.pairs", pairs);
+        Metrics.count("approximate.exactPairs", exact);
+        return new ApproximateMatrix(distances, lower, upper, landmarks, exact);
+    }
+
+    private static void setExact(DistanceMatrix distances, DistanceMatrix lower, DistanceMatrix upper, int i, int j,
+                                 double distance) {
+        distances.set(i, j, distance);
+        lower.set(i, j, distance);
+        upper.set(i, j, distance);
+    }
+
+    private static boolean isExact(DistanceMatrix lower, DistanceMatrix upper, int i, int j) {
+        double low = lower.get(i, j);
+        return Double.isNaN(low) || low == upper.get(i, j);
+    }
+
+    /**
+     * Returns the indices of up to count locations spread over the area: the location farthest from the centre
+     * first, then repeatedly the location farthest from all selected ones, by great-circle distance.
+     */
+    static int [] selectLandmarks(List<LocationEntry> locations, int count) {
+        int n = locations.size();
+        count = Math.min(count, n);
+        if (count == 0) {
+            return new int[0];
+        }
+        double lat = 0;
+        double lng = 0;
+        for (LocationEntry loc : locations) {
+            lat += loc.getLat() / n;
+            lng += loc.getLng() / n;
+        }
+        double [] nearest = new double[n];
+        for (int i=0; i < n; i++) {
+            nearest[i] = DistanceCalcEarth.DIST_EARTH.calcDist(lat, lng, locations.get(i).getLat(),
+                    locations.get(i).getLng());
+        }
+        int [] result = new int[count];
+        for (int k=0; k < count; k++) {
+            int best = 0;
+            for (int i=1; i < n; i++) {
+                if (nearest[i] > nearest[best]) {
+                    best = i;
+                }
+            }
+            result[k] = best;
+            LocationEntry selected = locations.get(best);
+            for (int i=0; i < n; i++) {
+                nearest[i] = Math.min(nearest[i], DistanceCalcEarth.DIST_EARTH.calcDist(selected.getLat(),
+                        selected.getLng(), locations.get(i).getLat(), locations.get(i).getLng()));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the landmark with the shortest route from every location, 0 for locations without one.
+     */
+    private static int [] clusters(double [][] toLandmarks, int n) {
+        int [] result = new int[n];
+        for (int i=0; i < n; i++) {
+            double best = Double.POSITIVE_INFINITY;
+            for (int k=0; k < toLandmarks[i].length; k++) {
+                if (toLandmarks[i][k] < best) {
+                    best = toLandmarks[i][k];
+                    result[i] = k;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the distances, exact or the upper bound of the pair.
+     */
+    public DistanceMatrix getDistances() {
+        return distances;
+    }
+
+    public DistanceMatrix getLowerBounds() {
+        return lower;
+    }
+
+    public DistanceMatrix getUpperBounds() {
+        return upper;
+    }
+
+    /**
+     * Returns the indices of the landmarks in the locations.
+     */
+    public int [] getLandmarks() {
+        return landmarks.clone();
+    }
+
+    public long getExactPairs() {
+        return exactPairs;
+    }
+
+    public boolean isExact(int from, int to) {
+        return isExact(lower, upper, from, to);
+    }
+
+    /**
+     * Writes every pair with its distance, its bounds and whether it is exact. Files whose name ends in {@code .gz}
+     * are gzip compressed, pairs without a distance have empty fields.
+     */
+    public void write(File output) throws IOException {
+        OutputStream os = new FileOutputStream(output);
+        if (output.getName().endsWith(".gz")) {
+            os = new GZIPOutputStream(os, BUFFER_SIZE);
+        }
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8), BUFFER_SIZE)) {
+            out.write("From,To,Distance,Lower Bound,Upper Bound,Exact\n");
+            for (int i=0; i < distances.size(); i++) {
+                String name = quote(distances.getName(i));
+                for (int j=0; j < distances.size(); j++) {
+                    if (i == j) {
+                        continue;
+                    }
+                    out.write(name + "," + quote(distances.getName(j)) + "," + format(distances.get(i, j)) + ","
+                            + format(lower.get(i, j)) + "," + format(upper.get(i, j)) + ","
+                            + (isExact(i, j) ? 1 : 0) + "\n");
+                }
+            }
+        }
+        log.info("Written approximate matrix to {}", output);
+    }
+
+    private static String quote(String name) {
+        return name.indexOf(',') >= 0 || name.indexOf('"') >= 0 ? '"' + name.replace("\"", "\"\"") + '"' : name;
+    }
+
+    private static String format(double distance) {
+        return Double.isNaN(distance) ? "" : Float.toString((float) distance);
+    }
+
+    /**
+     * Writes the approximate base matrix of all cities of cities_final.csv, as arguments the cities file, the output
+     * file and optionally the tolerance, the cutoff in meters and the number of landmarks.
+     */
+    public static void main(String [] args) throws IOException {
+        Cities cities = Cities.read(new File(args[0]));
+        double tolerance = args.length > 2 ? Double.parseDouble(args[2]) : DEFAULT_TOLERANCE;
+        double cutoff = args.length > 3 ? Double.parseDouble(args[3]) : DEFAULT_CUTOFF_M;
+        int landmarks = args.length > 4 ? Integer.parseInt(args[4]) : DEFAULT_LANDMARKS;
+        GraphHopper hopper = RoutingMain.createGraphHopperInstance(
+                "data/hungary-latest.osm.pbf", "cache/now", "car");
+        try {
+            RoutingMain.computeApproximateMatrix(cities.toLocations(), hopper, "car", RoutingMain.Weighting.SHORTEST,
+                    MatrixCalculator.DEFAULT_THREADS, landmarks, tolerance, cutoff).write(new File(args[1]));
+        }
+        finally {
+            hopper.close();
+        }
+    }
+
+}
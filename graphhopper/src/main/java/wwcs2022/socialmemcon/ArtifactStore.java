@@ -0,0 +1,132 @@
+package wwcs2022.socialmemcon;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+/**
+ * Manifest of the artifacts the pipeline builds (filtered PBF files, GraphHopper cache directories, distance
+ * matrices), each recorded with a key that is a hash of everything it was built from. An artifact is only reused if
+ * it exists and its recorded key matches the key of its current inputs, so a changed input rebuilds exactly the
+ * artifacts that depend on it.
+ *
+ * Artifacts are built under a temporary name next to their final location and renamed into place by
+ * {@link #commit}. The manifest entry is removed before an artifact is replaced and only written once the new
+ * artifact is in place, so an interrupted build never leaves an artifact that looks complete.
+ */
+public class ArtifactStore {
+
+    private static final Logger log = LoggerFactory.getLogger(ArtifactStore.class);
+
+    private static final String TEMP_POSTFIX = ".tmp";
+
+    private final File manifestFile;
+    private final Properties manifest = new Properties();
+
+    private ArtifactStore(File manifestFile) {
+        this.manifestFile = manifestFile;
+    }
+
+    public static ArtifactStore open(File manifestFile) {
+        ArtifactStore store = new ArtifactStore(manifestFile);
+        if (manifestFile.exists()) {
+            try (Reader in = Files.newBufferedReader(manifestFile.toPath(), StandardCharsets.UTF_8)) {
+                store.manifest.load(in);
+            }
+            catch (IOException ex) {
+                log.warn("Unable to read manifest {}, rebuilding all artifacts", manifestFile, ex);
+                store.manifest.clear();
+            }
+        }
+        return store;
+    }
+
+    /**
+     * Returns whether the artifact exists and was built from inputs with the given key.
+     */
+    public synchronized boolean isCurrent(File artifact, String key) {
+        return artifact.exists() && key.equals(manifest.getProperty(name(artifact)));
+    }
+
+    /**
+     * Returns the key of an input: the recorded key if the input is an artifact of this store, otherwise the
+     * fingerprint of the file itself. The file is hashed outside the lock, so other threads can use the store
+     * meanwhile.
+     */
+    public String inputKey(File input) throws IOException {
+        String key;
+        synchronized (this) {
+            key = manifest.getProperty(name(input));
+        }
+        if (key != null && input.exists()) {
+            return key;
+        }
+        return Fingerprints.file(input);
+    }
+
+    /**
+     * Returns the temporary location to build the artifact at, removing what an interrupted build left there.
+     */
+    public File tempFor(File artifact) throws IOException {
+        File temp = new File(artifact.getPath() + TEMP_POSTFIX);
+        delete(temp);
+        File dir = temp.getAbsoluteFile().getParentFile();
+        if (dir != null) {
+            dir.mkdirs();
+        }
+        return temp;
+    }
+
+    /**
+     * Replaces the artifact with the one built at the temporary location and records its key. Only the manifest
+     * updates hold the lock, the old artifact is deleted and the new one moved into place outside of it.
+     */
+    public void commit(File temp, File artifact, String key) throws IOException {
+        synchronized (this) {
+            manifest.remove(name(artifact));
+            save();
+        }
+        delete(artifact);
+        Files.move(temp.toPath(), artifact.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        synchronized (this) {
+            manifest.setProperty(name(artifact), key);
+            save();
+        }
+        log.info("Built {}", artifact);
+    }
+
+    private void save() throws IOException {
+        File dir = manifestFile.getAbsoluteFile().getParentFile();
+        dir.mkdirs();
+        File temp = new File(manifestFile.getPath() + TEMP_POSTFIX);
+        try (Writer out = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8)) {
+            manifest.store(out, "Artifacts and the keys of their inputs");
+        }
+        Files.move(temp.toPath(), manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String name(File artifact) {
+        return artifact.toPath().normalize().toString();
+    }
+
+    private static void delete(File file) throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(file.toPath())) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+
+}
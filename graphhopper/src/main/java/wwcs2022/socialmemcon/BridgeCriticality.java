@@ -0,0 +1,241 @@
+package wwcs2022.socialmemcon;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Ranks the restrictions by how much the social network would miss each of them alone: for every restriction, the
+ * distances between the locations on the current network without only that bridge, and the added distance weighted
+ * by the invitations between the locations.
+ *
+ * All counterfactuals share one {@link ScenarioGraph} and one routing of the current network by
+ * {@link ScenarioGraph#calcRouteMasks}. A pair can only get longer without a bridge its route passes through, so
+ * each scenario only reroutes the pairs whose route passes through its bridge, and the searches of all scenarios run
+ * in one pool. The route masks hold one bit per restriction and pair, which bounds the number of restrictions by
+ * memory rather than by time.
+ *
+ * As in {@link SocialAnalytics}, the weight of a pair is the number of invitations in both directions over all years,
+ * and its added distance the mean of both directions. Pairs that a bridge disconnects are counted separately.
+ */
+public class BridgeCriticality {
+
+    private static final Logger log = LoggerFactory.getLogger(BridgeCriticality.class);
+
+    private final ScenarioGraph graph;
+    private final List<LocationEntry> locations;
+    private final int size;
+    // The unordered pairs with invitations as sorted keys and their invitations
+    private final long [] pairKeys;
+    private final long [] pairWeights;
+
+    public BridgeCriticality(ScenarioGraph graph, List<LocationEntry> locations, InvitationCounts invitations,
+                             Cities cities) {
+        this.graph = graph;
+        this.locations = List.copyOf(locations);
+        this.size = locations.size();
+        int [] cityLocations = SocialAnalytics.cityLocations(cities, locations);
+        long [] keys = new long[invitations.size()];
+        int keyCount = 0;
+        for (int r=0; r < invitations.size(); r++) {
+            int a = SocialAnalytics.location(cities, cityLocations, invitations.getCityId(r));
+            int b = SocialAnalytics.location(cities, cityLocations, invitations.getInvitorId(r));
+            if (a >= 0 && b >= 0 && a != b) {
+                keys[keyCount++] = pairKey(a, b);
+            }
+        }
+        this.pairKeys = Arrays.stream(keys, 0, keyCount).sorted().distinct().toArray();
+        this.pairWeights = new long[pairKeys.length];
+        for (int r=0; r < invitations.size(); r++) {
+            int a = SocialAnalytics.location(cities, cityLocations, invitations.getCityId(r));
+            int b = SocialAnalytics.location(cities, cityLocations, invitations.getInvitorId(r));
+            if (a >= 0 && b >= 0 && a != b) {
+                pairWeights[Arrays.binarySearch(pairKeys, pairKey(a, b))] += invitations.getWeight(r);
+            }
+        }
+        log.info("Weighting bridges by the invitations of {} location pairs", pairKeys.length);
+    }
+
+    private long pairKey(int a, int b) {
+        return (long) Math.min(a, b) * size + Math.max(a, b);
+    }
+
+    private long weight(int a, int b) {
+        int p = Arrays.binarySearch(pairKeys, pairKey(a, b));
+        return p < 0 ? 0 : pairWeights[p];
+    }
+
+    /**
+     * Computes the counterfactual of every restriction of the graph and returns them ranked by weighted added
+     * distance, largest first.
+     */
+    public List<Entry> rank(String profile, int threads) {
+        long start = System.currentTimeMillis();
+        List<RestrictionEntry> restrictions = graph.getRestrictions();
+        RouteMasks masks = graph.calcRouteMasks(locations, profile, threads);
+        DistanceMatrix base = masks.getDistances();
+
+        // The affected pairs of every scenario in the order of their sources, from two passes over the pairs and
+        // the restrictions they cross
+        int count = restrictions.size();
+        int [] pairCounts = new int[count];
+        forEachCrossing(masks, (i, j, k) -> pairCounts[k]++);
+        int [][] pairSources = new int[count][];
+        int [][] pairTargets = new int[count][];
+        for (int k=0; k < count; k++) {
+            pairSources[k] = new int[pairCounts[k]];
+            pairTargets[k] = new int[pairCounts[k]];
+        }
+        int [] filled = new int[count];
+        forEachCrossing(masks, (i, j, k) -> {
+            pairSources[k][filled[k]] = i;
+            pairTargets[k][filled[k]++] = j;
+        });
+        // Every affected source is only routed to its own affected targets
+        List<BitSet> blockedEdges = new ArrayList<>();
+        List<int []> sources = new ArrayList<>();
+        List<int [][]> targets = new ArrayList<>();
+        for (int k=0; k < count; k++) {
+            BitSet scenario = new BitSet();
+            scenario.set(k);
+            blockedEdges.add(graph.blockedEdges(scenario));
+            int [] scenarioSources = Arrays.stream(pairSources[k]).distinct().toArray();
+            int [][] scenarioTargets = new int[scenarioSources.length][];
+            for (int s=0, p=0; s < scenarioSources.length; s++) {
+                int from = p;
+                while (p < pairSources[k].length && pairSources[k][p] == scenarioSources[s]) {
+                    p++;
+                }
+                scenarioTargets[s] = Arrays.copyOfRange(pairTargets[k], from, p);
+            }
+            sources.add(scenarioSources);
+            targets.add(scenarioTargets);
+        }
+        List<double [][]> distances = graph.calcDistances(locations, blockedEdges, sources, targets, profile, threads);
+
+        List<Entry> result = new ArrayList<>();
+        for (int k=0; k < count; k++) {
+            Entry entry = new Entry(k, restrictions.get(k));
+            result.add(entry);
+            int p = 0;
+            for (double [] row : distances.get(k)) {
+                for (double distance : row) {
+                    add(entry, pairSources[k][p], pairTargets[k][p++], distance, base);
+                }
+            }
+        }
+        result.sort(Comparator.comparingDouble((Entry e) -> e.weightedAddedKm).reversed());
+        log.info("Ranked {} restrictions in {} ms", restrictions.size(), System.currentTimeMillis() - start);
+        return result;
+    }
+
+    private interface CrossingVisitor {
+        void visit(int from, int to, int restriction);
+    }
+
+    /**
+     * Visits every pair with every restriction its route passes through.
+     */
+    private void forEachCrossing(RouteMasks masks, CrossingVisitor visitor) {
+        for (int i=0; i < size; i++) {
+            for (int j=0; j < size; j++) {
+                if (i == j) {
+                    continue;
+                }
+                for (int w=0; w < masks.getWords(); w++) {
+                    long word = masks.getWord(i, j, w);
+                    while (word != 0) {
+                        visitor.visit(i, j, w * 64 + Long.numberOfTrailingZeros(word));
+                        word &= word - 1;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the distance of one affected pair without the restriction to its counterfactual.
+     */
+    private void add(Entry entry, int from, int to, double distance, DistanceMatrix base) {
+        entry.affectedPairs++;
+        long weight = weight(from, to);
+        if (Double.isNaN(distance)) {
+            entry.disconnectedPairs++;
+            entry.disconnectedWeight += weight / 2.0;
+            return;
+        }
+        double addedKm = (distance - base.get(from, to)) / 1000;
+        entry.addedKm += addedKm;
+        // Half of the pair's weight per direction, the mean of both directions
+        entry.weightedAddedKm += weight * addedKm / 2;
+    }
+
+    public static void write(List<Entry> ranking, File file) throws IOException {
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file),
+                StandardCharsets.UTF_8)))) {
+            out.println("Rank,Restriction,Name,Year,Affected Pairs,Disconnected Pairs,Added km,"
+                    + "Weighted Added km,Disconnected Weight");
+            int rank = 1;
+            for (Entry entry : ranking) {
+                out.println(rank++ + "," + entry.index + "," + entry.restriction.getName().replace(",", " ") + ","
+                        + entry.restriction.getYear() + "," + entry.affectedPairs + "," + entry.disconnectedPairs
+                        + "," + entry.addedKm + "," + entry.weightedAddedKm + "," + entry.disconnectedWeight);
+            }
+        }
+        log.info("Written bridge criticality to {}", file);
+    }
+
+    /**
+     * The counterfactual of one restriction: the pairs whose route passes through it, and over those the added
+     * distance in both directions and the added distance weighted by invitations.
+     */
+    public static final class Entry {
+        private final int index;
+        private final RestrictionEntry restriction;
+        private long affectedPairs;
+        private long disconnectedPairs;
+        private double disconnectedWeight;
+        private double addedKm;
+        private double weightedAddedKm;
+
+        private Entry(int index, RestrictionEntry restriction) {
+            this.index = index;
+            this.restriction = restriction;
+        }
+
+        /**
+         * Returns the index of the restriction in the restrictions of the graph.
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        public RestrictionEntry getRestriction() {
+            return restriction;
+        }
+
+        public long getAffectedPairs() {
+            return affectedPairs;
+        }
+
+        public long getDisconnectedPairs() {
+            return disconnectedPairs;
+        }
+
+        public double getDisconnectedWeight() {
+            return disconnectedWeight;
+        }
+
+        public double getAddedKm() {
+            return addedKm;
+        }
+
+        public double getWeightedAddedKm() {
+            return weightedAddedKm;
+        }
+    }
+
+}
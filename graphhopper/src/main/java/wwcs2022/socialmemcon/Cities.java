@@ -0,0 +1,171 @@
+package wwcs2022.socialmemcon;
+
+import com.graphhopper.util.DistanceCalcEarth;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.Normalizer;
+import java.util.*;
+
+/**
+ * The cities of the social network data (cities_final.csv) with their id, name, coordinates and logarithm of the
+ * population, as columns indexed in file order. The columns are found by their header names.
+ */
+public class Cities {
+
+    private static final Logger log = LoggerFactory.getLogger(Cities.class);
+
+    // A location whose name matches no city is matched to the nearest city within this radius
+    private static final double MATCH_RADIUS_M = 2_000;
+
+    private final int [] ids;
+    private final String [] names;
+    private final double [] lats;
+    private final double [] lngs;
+    private final double [] popLogs;
+    private final Map<Integer,Integer> index = new HashMap<>();
+
+    private Cities(int [] ids, String [] names, double [] lats, double [] lngs, double [] popLogs) {
+        this.ids = ids;
+        this.names = names;
+        this.lats = lats;
+        this.lngs = lngs;
+        this.popLogs = popLogs;
+        for (int i=0; i < ids.length; i++) {
+            if (index.put(ids[i], i) != null) {
+                log.warn("City id {} appears more than once, using its last row", ids[i]);
+            }
+        }
+    }
+
+    public static Cities read(File file) throws IOException {
+        try (BufferedReader in = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String header = in.readLine();
+            if (header == null) {
+                throw new IOException("Cities file " + file + " is empty");
+            }
+            List<String> columns = Arrays.asList(header.split(","));
+            int idColumn = column(columns, "CityId", file);
+            int nameColumn = column(columns, "CityName", file);
+            int latColumn = column(columns, "Latitude", file);
+            int lngColumn = column(columns, "Longitude", file);
+            int popColumn = column(columns, "PopLog", file);
+            List<String []> rows = new ArrayList<>();
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (!line.isBlank()) {
+                    rows.add(line.split(","));
+                }
+            }
+            int [] ids = new int[rows.size()];
+            String [] names = new String[rows.size()];
+            double [] lats = new double[rows.size()];
+            double [] lngs = new double[rows.size()];
+            double [] popLogs = new double[rows.size()];
+            for (int i=0; i < rows.size(); i++) {
+                String [] row = rows.get(i);
+                ids[i] = Integer.parseInt(row[idColumn].strip());
+                names[i] = row[nameColumn].strip();
+                lats[i] = Double.parseDouble(row[latColumn].strip());
+                lngs[i] = Double.parseDouble(row[lngColumn].strip());
+                popLogs[i] = Double.parseDouble(row[popColumn].strip());
+            }
+            log.info("Read {} cities from {}", ids.length, file);
+            return new Cities(ids, names, lats, lngs, popLogs);
+        }
+    }
+
+    private static int column(List<String> columns, String name, File file) throws IOException {
+        int result = columns.indexOf(name);
+        if (result < 0) {
+            throw new IOException("Column " + name + " not found in " + file);
+        }
+        return result;
+    }
+
+    public int size() {
+        return ids.length;
+    }
+
+    public int getId(int i) {
+        return ids[i];
+    }
+
+    public String getName(int i) {
+        return names[i];
+    }
+
+    public double getLat(int i) {
+        return lats[i];
+    }
+
+    public double getLng(int i) {
+        return lngs[i];
+    }
+
+    public double getPopLog(int i) {
+        return popLogs[i];
+    }
+
+    /**
+     * Returns the index of the city with the given id, or -1 if there is none.
+     */
+    public int indexOf(int id) {
+        return index.getOrDefault(id, -1);
+    }
+
+    public List<LocationEntry> toLocations() {
+        List<LocationEntry> result = new ArrayList<>(ids.length);
+        for (int i=0; i < ids.length; i++) {
+            result.add(new LocationEntry(names[i], lats[i], lngs[i]));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the index of the city of every location, or -1 for a location without one. Names are compared
+     * without accents and case, since the locations of the coordinates file are spelled with accents and the
+     * cities are not. A location whose name matches no city is matched by its coordinates.
+     */
+    public int [] match(List<LocationEntry> locations) {
+        Map<String,Integer> byName = new HashMap<>();
+        for (int i=0; i < names.length; i++) {
+            byName.put(normalize(names[i]), i);
+        }
+        int [] result = new int[locations.size()];
+        for (int l=0; l < locations.size(); l++) {
+            LocationEntry loc = locations.get(l);
+            Integer city = byName.get(normalize(loc.getName()));
+            result[l] = city != null ? city : nearest(loc.getLat(), loc.getLng());
+            if (result[l] < 0) {
+                log.warn("Location {} does not match any city", loc.getName());
+            }
+        }
+        return result;
+    }
+
+    private int nearest(double lat, double lng) {
+        int result = -1;
+        double best = MATCH_RADIUS_M;
+        for (int i=0; i < ids.length; i++) {
+            double distance = DistanceCalcEarth.DIST_EARTH.calcDist(lat, lng, lats[i], lngs[i]);
+            if (distance <= best) {
+                best = distance;
+                result = i;
+            }
+        }
+        return result;
+    }
+
+    static String normalize(String name) {
+        return Normalizer.normalize(name.strip(), Normalizer.Form.NFKD)
+                .replaceAll("\\p{M}", "")
+                .toLowerCase(Locale.ROOT);
+    }
+
+}
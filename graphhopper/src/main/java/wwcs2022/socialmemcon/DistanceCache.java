@@ -0,0 +1,190 @@
+package wwcs2022.socialmemcon;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Persistent store of computed distances for one routing profile on one graph, identified by a graph fingerprint
+ * (see {@link Fingerprints#graph}). Every location gets an integer id, where a location that moved counts as a new
+ * one, and the distances are kept as one float row per origin.
+ *
+ * The file starts with a magic number, the format version, the profile and the fingerprint, followed by the
+ * locations (name, latitude, longitude) in id order and the rows (origin id, row length, distances). Pairs that have
+ * not been computed are NaN, pairs without a route are stored as positive infinity so they are not computed again.
+ */
+public class DistanceCache {
+
+    private static final Logger log = LoggerFactory.getLogger(DistanceCache.class);
+
+    private static final int MAGIC = 0x57444331;
+    private static final int VERSION = 1;
+
+    private final File file;
+    private final String profile;
+    private final String fingerprint;
+    private final List<LocationEntry> locations = new ArrayList<>();
+    private final Map<String,Integer> ids = new HashMap<>();
+    private float [][] rows = new float[0][];
+    private boolean dirty;
+
+    private DistanceCache(File file, String profile, String fingerprint) {
+        this.file = file;
+        this.profile = profile;
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * Opens the cache for the profile and graph in the given directory. If no valid cache file exists, the cache
+     * starts out empty.
+     */
+    public static DistanceCache open(File dir, String profile, String fingerprint) {
+        File file = new File(dir, "distances-" + profile + "-" + fingerprint.substring(0, 16) + ".bin");
+        DistanceCache cache = new DistanceCache(file, profile, fingerprint);
+        if (file.exists()) {
+            try {
+                cache.read();
+                log.info("Read {} locations from distance cache {}", cache.locations.size(), file);
+            }
+            catch (IOException ex) {
+                log.warn("Unable to read distance cache {}, starting with an empty cache", file, ex);
+                cache.locations.clear();
+                cache.ids.clear();
+                cache.rows = new float[0][];
+            }
+        }
+        return cache;
+    }
+
+    public String getProfile() {
+        return profile;
+    }
+
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * Returns the id of the location, assigning a new id if the location has not been seen before.
+     */
+    public int id(LocationEntry loc) {
+        Integer id = ids.get(key(loc));
+        if (id != null) {
+            return id;
+        }
+        int newId = locations.size();
+        locations.add(loc);
+        ids.put(key(loc), newId);
+        return newId;
+    }
+
+    /**
+     * Returns the stored distance, NaN if it has not been computed, or positive infinity if there is no route.
+     */
+    public double get(int from, int to) {
+        if (from >= rows.length || rows[from] == null || to >= rows[from].length) {
+            return Double.NaN;
+        }
+        return rows[from][to];
+    }
+
+    /**
+     * Stores a distance. A NaN distance means there is no route.
+     */
+    public void put(int from, int to, double distance) {
+        if (from >= rows.length) {
+            rows = Arrays.copyOf(rows, Math.max(from + 1, rows.length * 2));
+        }
+        float [] row = rows[from];
+        if (row == null || to >= row.length) {
+            int length = Math.max(to + 1, locations.size());
+            float [] newRow = new float[length];
+            Arrays.fill(newRow, Float.NaN);
+            if (row != null) {
+                System.arraycopy(row, 0, newRow, 0, row.length);
+            }
+            rows[from] = row = newRow;
+        }
+        row[to] = Double.isNaN(distance) ? Float.POSITIVE_INFINITY : (float) distance;
+        dirty = true;
+    }
+
+    /**
+     * Writes the cache to a temporary file that then replaces the cache file, so an interrupted write never leaves
+     * a truncated cache behind.
+     */
+    public void save() throws IOException {
+        if (!dirty) {
+            return;
+        }
+        File dir = file.getAbsoluteFile().getParentFile();
+        dir.mkdirs();
+        File temp = File.createTempFile("distances", ".part", dir);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(profile);
+            out.writeUTF(fingerprint);
+            out.writeInt(locations.size());
+            for (LocationEntry loc : locations) {
+                out.writeUTF(loc.getName());
+                out.writeDouble(loc.getLat());
+                out.writeDouble(loc.getLng());
+            }
+            int count = 0;
+            for (float [] row : rows) {
+                if (row != null) {
+                    count++;
+                }
+            }
+            out.writeInt(count);
+            for (int from=0; from < rows.length; from++) {
+                float [] row = rows[from];
+                if (row != null) {
+                    out.writeInt(from);
+                    out.writeInt(row.length);
+                    for (float distance : row) {
+                        out.writeFloat(distance);
+                    }
+                }
+            }
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        dirty = false;
+        log.info("Written distance cache {}", file);
+    }
+
+    private void read() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a distance cache of version " + VERSION);
+            }
+            if (!profile.equals(in.readUTF()) || !fingerprint.equals(in.readUTF())) {
+                throw new IOException("Distance cache belongs to another profile or graph");
+            }
+            int count = in.readInt();
+            for (int i=0; i < count; i++) {
+                id(new LocationEntry(in.readUTF(), in.readDouble(), in.readDouble()));
+            }
+            rows = new float[count][];
+            int rowCount = in.readInt();
+            for (int i=0; i < rowCount; i++) {
+                int from = in.readInt();
+                float [] row = new float[in.readInt()];
+                for (int j=0; j < row.length; j++) {
+                    row[j] = in.readFloat();
+                }
+                rows[from] = row;
+            }
+        }
+    }
+
+    private static String key(LocationEntry loc) {
+        return loc.getName() + "|" + loc.getLat() + "|" + loc.getLng();
+    }
+
+}
@@ -0,0 +1,144 @@
+package wwcs2022.socialmemcon;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.FloatBuffer;
+import java.util.*;
+
+/**
+ * Distances in meters between all pairs of a list of locations, stored row by row in a flat float array. Locations
+ * are addressed by their position in the list, or by name through an index built once per list. Pairs without a
+ * distance (no route, a location that could not be snapped, or the diagonal) are NaN; {@link #isReachable} tells
+ * them apart from real distances.
+ *
+ * A matrix can be a view on a part of a larger array, see {@link DistanceStack}. Float precision is well below a
+ * meter for any distance within a country, and the distance cache stores floats as well.
+ */
+public class DistanceMatrix {
+
+    private static final Logger log = LoggerFactory.getLogger(DistanceMatrix.class);
+
+    private final List<LocationEntry> locations;
+    private final Map<String,Integer> index;
+    private final float [] data;
+    private final int offset;
+    private final int size;
+
+    /**
+     * Creates a matrix for the given locations in which all pairs are NaN.
+     */
+    public DistanceMatrix(List<LocationEntry> locations) {
+        this(List.copyOf(locations), index(locations), newData(locations.size(), 1), 0);
+    }
+
+    DistanceMatrix(List<LocationEntry> locations, Map<String,Integer> index, float [] data, int offset) {
+        this.locations = locations;
+        this.index = index;
+        this.data = data;
+        this.offset = offset;
+        this.size = locations.size();
+    }
+
+    public static DistanceMatrix of(List<LocationEntry> locations, double [][] distances) {
+        DistanceMatrix result = new DistanceMatrix(locations);
+        for (int from=0; from < result.size; from++) {
+            for (int to=0; to < result.size; to++) {
+                result.set(from, to, distances[from][to]);
+            }
+        }
+        return result;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public List<LocationEntry> getLocations() {
+        return locations;
+    }
+
+    public String getName(int i) {
+        return locations.get(i).getName();
+    }
+
+    /**
+     * Returns the position of the location with the given name, or -1 if there is none. If several locations share
+     * a name, this is the first of them.
+     */
+    public int indexOf(String name) {
+        Integer i = index.get(name);
+        return i == null ? -1 : i;
+    }
+
+    public double get(int from, int to) {
+        return data[pos(from, to)];
+    }
+
+    /**
+     * Returns the distance between two locations by name, NaN if either location is unknown or there is no distance.
+     */
+    public double get(String from, String to) {
+        int i = indexOf(from);
+        int j = indexOf(to);
+        return i < 0 || j < 0 ? Double.NaN : get(i, j);
+    }
+
+    public boolean isReachable(int from, int to) {
+        return from != to && !Float.isNaN(data[pos(from, to)]);
+    }
+
+    public void set(int from, int to, double distance) {
+        data[pos(from, to)] = (float) distance;
+    }
+
+    /**
+     * Returns a read-only view on the distances from one location, indexed by the target location.
+     */
+    public FloatBuffer row(int from) {
+        checkIndex(from);
+        return FloatBuffer.wrap(data, offset + from * size, size).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Copies the distances from one location into the given array and returns it.
+     */
+    public float [] copyRow(int from, float [] dest) {
+        checkIndex(from);
+        System.arraycopy(data, offset + from * size, dest, 0, size);
+        return dest;
+    }
+
+    private int pos(int from, int to) {
+        checkIndex(from);
+        checkIndex(to);
+        return offset + from * size + to;
+    }
+
+    private void checkIndex(int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("Location " + i + " out of " + size);
+        }
+    }
+
+    static Map<String,Integer> index(List<LocationEntry> locations) {
+        Map<String,Integer> result = new HashMap<>();
+        for (int i=0; i < locations.size(); i++) {
+            if (result.putIfAbsent(locations.get(i).getName(), i) != null) {
+                log.warn("Location name {} is used more than once", locations.get(i).getName());
+            }
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    static float [] newData(int size, int layers) {
+        long length = (long) size * size * layers;
+        if (length > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException(layers + " matrices of " + size + " locations do not fit in an array");
+        }
+        float [] data = new float[(int) length];
+        Arrays.fill(data, Float.NaN);
+        return data;
+    }
+
+}
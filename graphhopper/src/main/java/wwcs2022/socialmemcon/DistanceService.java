@@ -0,0 +1,428 @@
+package wwcs2022.socialmemcon;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A resident HTTP service that keeps the graphs of the base network and of every year loaded and answers distance
+ * queries on them, so a question about the distances costs a request instead of a run of {@link Main}. The graphs
+ * are memory-mapped through a {@link GraphPool}, which keeps the most recently queried ones loaded, and the service
+ * only listens on the loopback interface.
+ *
+ * <ul>
+ *     <li>{@code GET /graphs} lists the loaded graphs and the weightings.</li>
+ *     <li>{@code GET /distance?graph=2005&weighting=shortest&from=lat,lng&to=lat,lng} returns the distance in meters
+ *     between two points.</li>
+ *     <li>{@code POST /matrix} with {@code {"graph": "now", "weighting": "fastest", "sources": [[lat, lng], ...],
+ *     "targets": [[lat, lng], ...]}} returns the distances from every source to every target.</li>
+ * </ul>
+ *
+ * Distances that cannot be routed are null. Requests are handled on virtual threads where the JVM has them and on
+ * a cached thread pool otherwise. Small requests for the same graph and weighting that arrive within a few
+ * milliseconds of each other are answered by one matrix computation over all their sources and targets, which
+ * costs one search per location instead of one per request. Every loaded graph and weighting keeps one
+ * {@link MatrixCalculator}, so the search arrays and the edge distances of the hierarchy are allocated once and not
+ * per request.
+ */
+public class DistanceService {
+
+    private static final Logger log = LoggerFactory.getLogger(DistanceService.class);
+
+    public static final String BASE = "now";
+    public static final int DEFAULT_PORT = 8989;
+    // How long a small request waits for others to share its matrix computation
+    private static final long BATCH_WINDOW_MS = 5;
+    // Requests with at least this many pairs are computed on their own
+    private static final int BATCH_PAIRS = 10_000;
+
+    private static final String DATA_FILE = "data/hungary-latest.osm.pbf";
+    private static final String GH_CACHE_DIR = "cache";
+    private static final String VEHICLE = "car";
+
+    private final GraphPool<String> graphs;
+    private final String vehicle;
+    private final int threads;
+    private final Map<String,Batcher> batchers = new ConcurrentHashMap<>();
+    private final Map<String,MatrixCalculator> calculators = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService dispatcher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "batch-dispatcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ExecutorService computations;
+    private final ObjectMapper mapper = new ObjectMapper();
+    private HttpServer server;
+    private ExecutorService requests;
+
+    /**
+     * @param graphs the graphs by name, such as {@link #BASE} or a year
+     * @param threads the threads of a matrix computation, several computations may run at once
+     */
+    public DistanceService(GraphPool<String> graphs, String vehicle, int threads) {
+        this.graphs = graphs;
+        this.vehicle = vehicle;
+        this.threads = threads;
+        this.computations = Executors.newFixedThreadPool(2, r -> {
+            Thread thread = new Thread(r, "batch-computation");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static void main(String [] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        DistanceService service = new DistanceService(
+                openGraphs(DATA_FILE, GH_CACHE_DIR, VEHICLE, GraphPool.DEFAULT_RESIDENT), VEHICLE,
+                MatrixCalculator.DEFAULT_THREADS);
+        Runtime.getRuntime().addShutdownHook(new Thread(service::stop, "service-shutdown"));
+        service.start(port);
+    }
+
+    /**
+     * Returns a pool of the imported graphs of the cache directory: the base network from the directory
+     * {@link #BASE} and every year from the directory named after it. Nothing is imported, graphs are prepared by a
+     * run of {@link Main}. The base network and the first years are loaded right away.
+     */
+    public static GraphPool<String> openGraphs(String baseFile, String cacheDir, String vehicle, int maxResident) {
+        GraphPool<String> result = new GraphPool<>(maxResident);
+        File [] dirs = new File(cacheDir).listFiles(File::isDirectory);
+        if (dirs == null) {
+            throw new IllegalArgumentException("Cache directory " + cacheDir + " not found");
+        }
+        for (File dir : dirs) {
+            String name = dir.getName();
+            if (!name.equals(BASE) && !name.matches("\\d{4}")) {
+                continue;
+            }
+            if (!new File(dir, "properties").exists()) {
+                log.warn("Skipping {}, it does not contain an imported graph", dir);
+                continue;
+            }
+            String osmFile = name.equals(BASE) ? baseFile : "data/network-" + name + ".osm.pbf";
+            result.register(name, osmFile, dir.getPath(), vehicle);
+        }
+        List<String> names = new ArrayList<>(result.keys());
+        if (names.isEmpty()) {
+            throw new IllegalArgumentException("No imported graphs found in " + cacheDir);
+        }
+        // Sorted, the years come before the base network, which is loaded first
+        Collections.sort(names);
+        Collections.rotate(names, names.contains(BASE) ? 1 : 0);
+        for (String name : names.subList(0, Math.min(maxResident, names.size()))) {
+            result.acquire(name).close();
+        }
+        log.info("Opened graphs {}, loaded {}", names, result.residentKeys());
+        return result;
+    }
+
+    public void start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/graphs", exchange -> handle(exchange, "GET", this::graphs));
+        server.createContext("/distance", exchange -> handle(exchange, "GET", this::distance));
+        server.createContext("/matrix", exchange -> handle(exchange, "POST", this::matrix));
+        requests = requestExecutor();
+        server.setExecutor(requests);
+        server.start();
+        log.info("Distance service listening on {}", server.getAddress());
+    }
+
+    public void stop() {
+        if (server != null) {
+            server.stop(1);
+            requests.shutdown();
+            server = null;
+        }
+        dispatcher.shutdown();
+        computations.shutdown();
+        calculators.clear();
+        graphs.close();
+        log.info("Distance service stopped");
+    }
+
+    /**
+     * Returns an executor with a virtual thread per request if the JVM has virtual threads (Java 21), or else a
+     * cached thread pool. Looked up by reflection, as the code is compiled for Java 11.
+     */
+    static ExecutorService requestExecutor() {
+        try {
+            ExecutorService result = (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            log.info("Handling requests on virtual threads");
+            return result;
+        }
+        catch (ReflectiveOperationException | RuntimeException ex) {
+            log.info("Virtual threads are not available, handling requests on a thread pool");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    private Object graphs(HttpExchange exchange) {
+        Map<String,Object> result = new LinkedHashMap<>();
+        result.put("graphs", graphs.keys());
+        result.put("loaded", graphs.residentKeys());
+        List<String> weightings = new ArrayList<>();
+        for (RoutingMain.Weighting w : RoutingMain.Weighting.values()) {
+            weightings.add(w.getWeighting());
+        }
+        result.put("weightings", weightings);
+        return result;
+    }
+
+    private Object distance(HttpExchange exchange) throws ExecutionException, InterruptedException {
+        Map<String,String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+        LocationEntry from = location(parsePoint(params.get("from")));
+        LocationEntry to = location(parsePoint(params.get("to")));
+        double [][] distances = compute(params.get("graph"), params.get("weighting"), List.of(from), List.of(to));
+        return Collections.singletonMap("distance", toJson(distances[0][0]));
+    }
+
+    private Object matrix(HttpExchange exchange) throws IOException, ExecutionException, InterruptedException {
+        JsonNode body = mapper.readTree(exchange.getRequestBody());
+        List<LocationEntry> sources = locations(body.get("sources"), "sources");
+        List<LocationEntry> targets = locations(body.get("targets"), "targets");
+        double [][] distances = compute(text(body, "graph"), text(body, "weighting"), sources, targets);
+        List<List<Double>> rows = new ArrayList<>(distances.length);
+        for (double [] row : distances) {
+            List<Double> values = new ArrayList<>(row.length);
+            for (double d : row) {
+                values.add(toJson(d));
+            }
+            rows.add(values);
+        }
+        return Collections.singletonMap("distances", rows);
+    }
+
+    private double [][] compute(String graph, String weighting, List<LocationEntry> sources,
+                                List<LocationEntry> targets) throws ExecutionException, InterruptedException {
+        if (graph == null) {
+            graph = BASE;
+        }
+        if (!graphs.contains(graph)) {
+            throw new IllegalArgumentException("Unknown graph " + graph + ", available are " + graphs.keys());
+        }
+        RoutingMain.Weighting w;
+        try {
+            w = weighting == null ? RoutingMain.Weighting.SHORTEST
+                    : RoutingMain.Weighting.valueOf(weighting.toUpperCase(Locale.ROOT));
+        }
+        catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException("Unknown weighting " + weighting);
+        }
+        String profile = w.getProfileForVehicle(vehicle);
+        if ((long) sources.size() * targets.size() >= BATCH_PAIRS) {
+            try (GraphPool<String>.Lease lease = graphs.acquire(graph)) {
+                return calculator(lease, graph, profile).calcDistances(sources, targets);
+            }
+        }
+        String name = graph;
+        Batcher batcher = batchers.computeIfAbsent(graph + "/" + profile, key -> new Batcher(name, profile));
+        return batcher.submit(sources, targets).get();
+    }
+
+    /**
+     * Returns the calculator of the leased graph and the profile, created on first use. A graph that was evicted
+     * and loaded again gets a new calculator, and the calculators of evicted graphs are dropped with their arrays.
+     */
+    private MatrixCalculator calculator(GraphPool<String>.Lease lease, String graph, String profile) {
+        List<String> resident = graphs.residentKeys();
+        calculators.keySet().removeIf(key -> !resident.contains(key.substring(0, key.indexOf('/'))));
+        return calculators.compute(graph + "/" + profile, (key, calculator) ->
+                calculator != null && calculator.getHopper() == lease.getHopper() ? calculator
+                        : new MatrixCalculator(lease.getHopper(), profile, threads));
+    }
+
+    private interface Handler {
+        Object handle(HttpExchange exchange) throws Exception;
+    }
+
+    private void handle(HttpExchange exchange, String method, Handler handler) throws IOException {
+        long start = System.nanoTime();
+        int status = 200;
+        Object response;
+        try {
+            if (!exchange.getRequestMethod().equals(method)) {
+                status = 405;
+                response = error("Use " + method);
+            }
+            else {
+                response = handler.handle(exchange);
+            }
+        }
+        catch (IllegalArgumentException | IOException ex) {
+            status = 400;
+            response = error(ex.getMessage());
+        }
+        catch (Exception ex) {
+            Throwable cause = ex instanceof ExecutionException ? ex.getCause() : ex;
+            if (cause instanceof IllegalArgumentException) {
+                status = 400;
+            }
+            else {
+                log.error("Error while handling {}", exchange.getRequestURI(), cause);
+                status = 500;
+            }
+            response = error(String.valueOf(cause.getMessage()));
+        }
+        byte [] bytes = mapper.writeValueAsBytes(response);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+        Metrics.count("service.requests", 1);
+        Metrics.histogram("service.latency").record(System.nanoTime() - start);
+    }
+
+    private static Map<String,String> error(String message) {
+        return Collections.singletonMap("error", message);
+    }
+
+    static Map<String,String> parseQuery(String query) {
+        Map<String,String> result = new HashMap<>();
+        if (query == null) {
+            return result;
+        }
+        for (String param : query.split("&")) {
+            int eq = param.indexOf('=');
+            if (eq > 0) {
+                result.put(URLDecoder.decode(param.substring(0, eq), StandardCharsets.UTF_8),
+                        URLDecoder.decode(param.substring(eq + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return result;
+    }
+
+    private static double [] parsePoint(String value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Missing point, expected lat,lng");
+        }
+        String [] parts = value.split(",");
+        try {
+            if (parts.length == 2) {
+                return new double[] { Double.parseDouble(parts[0].trim()), Double.parseDouble(parts[1].trim()) };
+            }
+        }
+        catch (NumberFormatException ex) {
+            // reported below
+        }
+        throw new IllegalArgumentException("Invalid point " + value + ", expected lat,lng");
+    }
+
+    private static List<LocationEntry> locations(JsonNode points, String field) {
+        if (points == null || !points.isArray() || points.size() == 0) {
+            throw new IllegalArgumentException("Field " + field + " must be a non-empty array of [lat, lng]");
+        }
+        List<LocationEntry> result = new ArrayList<>(points.size());
+        for (JsonNode point : points) {
+            if (!point.isArray() || point.size() != 2 || !point.get(0).isNumber() || !point.get(1).isNumber()) {
+                throw new IllegalArgumentException("Invalid point " + point + " in " + field + ", expected [lat, lng]");
+            }
+            result.add(location(new double[] { point.get(0).asDouble(), point.get(1).asDouble() }));
+        }
+        return result;
+    }
+
+    private static String text(JsonNode body, String field) {
+        JsonNode node = body.get(field);
+        return node == null || node.isNull() ? null : node.asText();
+    }
+
+    /**
+     * Returns a location named after its coordinates, so the same point in several requests of a batch is snapped
+     * and routed once.
+     */
+    private static LocationEntry location(double [] point) {
+        return new LocationEntry(point[0] + "," + point[1], point[0], point[1]);
+    }
+
+    private static Double toJson(double distance) {
+        return Double.isNaN(distance) ? null : distance;
+    }
+
+    /**
+     * Collects the requests for one graph and profile that arrive within the batch window, and computes them as one
+     * matrix from all their sources to all their targets.
+     */
+    private final class Batcher {
+        private final String graph;
+        private final String profile;
+        private List<Request> pending = new ArrayList<>();
+
+        private Batcher(String graph, String profile) {
+            this.graph = graph;
+            this.profile = profile;
+        }
+
+        private CompletableFuture<double [][]> submit(List<LocationEntry> sources, List<LocationEntry> targets) {
+            Request request = new Request(sources, targets);
+            synchronized (this) {
+                pending.add(request);
+                if (pending.size() == 1) {
+                    dispatcher.schedule(() -> computations.execute(this::flush), BATCH_WINDOW_MS,
+                            TimeUnit.MILLISECONDS);
+                }
+            }
+            return request.result;
+        }
+
+        private void flush() {
+            List<Request> batch;
+            synchronized (this) {
+                batch = pending;
+                pending = new ArrayList<>();
+            }
+            try (GraphPool<String>.Lease lease = graphs.acquire(graph)) {
+                List<LocationEntry> sources = new ArrayList<>();
+                List<LocationEntry> targets = new ArrayList<>();
+                for (Request request : batch) {
+                    sources = SnapIndex.union(sources, request.sources);
+                    targets = SnapIndex.union(targets, request.targets);
+                }
+                double [][] distances = calculator(lease, graph, profile).calcDistances(sources, targets);
+                Map<String,Integer> sourceIndex = DistanceMatrix.index(sources);
+                Map<String,Integer> targetIndex = DistanceMatrix.index(targets);
+                for (Request request : batch) {
+                    double [][] result = new double[request.sources.size()][request.targets.size()];
+                    for (int s=0; s < result.length; s++) {
+                        double [] row = distances[sourceIndex.get(request.sources.get(s).getName())];
+                        for (int t=0; t < result[s].length; t++) {
+                            result[s][t] = row[targetIndex.get(request.targets.get(t).getName())];
+                        }
+                    }
+                    request.result.complete(result);
+                }
+                Metrics.count("service.batches", 1);
+                Metrics.count("service.batchedRequests", batch.size());
+            }
+            catch (RuntimeException ex) {
+                batch.forEach(request -> request.result.completeExceptionally(ex));
+            }
+        }
+    }
+
+    private static final class Request {
+        private final List<LocationEntry> sources;
+        private final List<LocationEntry> targets;
+        private final CompletableFuture<double [][]> result = new CompletableFuture<>();
+
+        private Request(List<LocationEntry> sources, List<LocationEntry> targets) {
+            this.sources = sources;
+            this.targets = targets;
+        }
+    }
+
+}
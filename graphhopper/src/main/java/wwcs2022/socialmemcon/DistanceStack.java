@@ -0,0 +1,71 @@
+package wwcs2022.socialmemcon;
+
+import java.util.*;
+
+/**
+ * Distance matrices of the same locations for a number of years, stacked in one float array indexed as
+ * [year][from][to]. The matrix of a year is a view on its layer, so all years share the location index and writing
+ * to a year's matrix writes to the stack. Years are kept in ascending order.
+ */
+public class DistanceStack {
+
+    private final List<LocationEntry> locations;
+    private final int [] years;
+    private final float [] data;
+    private final Map<Integer,DistanceMatrix> matrices = new LinkedHashMap<>();
+
+    /**
+     * Creates a stack for the given locations and years in which all pairs are NaN.
+     */
+    public DistanceStack(List<LocationEntry> locations, Collection<Integer> years) {
+        this.locations = List.copyOf(locations);
+        this.years = new TreeSet<>(years).stream().mapToInt(Integer::intValue).toArray();
+        this.data = DistanceMatrix.newData(locations.size(), this.years.length);
+        Map<String,Integer> index = DistanceMatrix.index(locations);
+        int layer = locations.size() * locations.size();
+        for (int y=0; y < this.years.length; y++) {
+            matrices.put(this.years[y], new DistanceMatrix(this.locations, index, data, y * layer));
+        }
+    }
+
+    public List<LocationEntry> getLocations() {
+        return locations;
+    }
+
+    public int size() {
+        return locations.size();
+    }
+
+    public Set<Integer> getYears() {
+        return Collections.unmodifiableSet(matrices.keySet());
+    }
+
+    public boolean isEmpty() {
+        return years.length == 0;
+    }
+
+    /**
+     * Returns the matrix of the given year.
+     *
+     * @throws IllegalArgumentException if the stack has no such year
+     */
+    public DistanceMatrix get(int year) {
+        DistanceMatrix result = matrices.get(year);
+        if (result == null) {
+            throw new IllegalArgumentException("No distances for year " + year);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the matrices in ascending order of their year.
+     */
+    public Collection<DistanceMatrix> matrices() {
+        return Collections.unmodifiableCollection(matrices.values());
+    }
+
+    public double get(int year, int from, int to) {
+        return get(year).get(from, to);
+    }
+
+}
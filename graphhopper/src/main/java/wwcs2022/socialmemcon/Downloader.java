@@ -3,59 +3,582 @@ package wwcs2022.socialmemcon;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedInputStream;
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
+import java.io.*;
+import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Downloads a file over HTTP into a {@code .part} file next to the target, which is moved into place once the
+ * download is complete and its checksum matches. The state of the download is kept in a {@code .part.meta} file, so
+ * a download that was interrupted, or failed after all retries, continues where it stopped on the next run as long
+ * as the server supports range requests and the remote file has not changed.
+ *
+ * Large files can be fetched in several ranged segments in parallel. The ETag and Last-Modified headers of a
+ * completed download are stored in a {@code .meta} file next to the target; with refreshing enabled they are used
+ * for a conditional request that only downloads the file again when it changed. If the server publishes an MD5
+ * checksum next to the file (as Geofabrik does), the download is verified against it.
+ */
 public class Downloader {
 
     private static final Logger log = LoggerFactory.getLogger(Downloader.class);
-    private static final int REPORT_INTERVAL_MS = 5000;
 
+    private static final int BUFFER_SIZE = 1 << 20;
+    // Files are not split into segments smaller than this
+    private static final long MIN_SEGMENT_SIZE = 16L << 20;
+    private static final int SAVE_INTERVAL_MS = 5000;
+    private static final int MAX_BACKOFF_MS = 30000;
+    private static final String PART_POSTFIX = ".part";
+    private static final String META_POSTFIX = ".meta";
+    private static final String MD5_POSTFIX = ".md5";
+
+    private int segments = 1;
+    private boolean refresh;
+    private boolean verifyChecksum = true;
+    private int retries = 5;
+    private int connectTimeoutMs = 30000;
+    private int readTimeoutMs = 60000;
+
+    /**
+     * Downloads the file unless the target already exists.
+     */
     public static boolean downloadFile(String sourceUrl, String targetFile) {
+        return new Downloader().download(sourceUrl, targetFile);
+    }
+
+    public Downloader setSegments(int segments) {
+        this.segments = Math.max(1, segments);
+        return this;
+    }
+
+    /**
+     * If set, an existing target is downloaded again when the remote file changed since it was downloaded.
+     */
+    public Downloader setRefresh(boolean refresh) {
+        this.refresh = refresh;
+        return this;
+    }
+
+    public Downloader setVerifyChecksum(boolean verifyChecksum) {
+        this.verifyChecksum = verifyChecksum;
+        return this;
+    }
+
+    /**
+     * Sets how often a failed request is repeated before the download is given up.
+     */
+    public Downloader setRetries(int retries) {
+        this.retries = Math.max(0, retries);
+        return this;
+    }
+
+    public Downloader setTimeouts(int connectTimeoutMs, int readTimeoutMs) {
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.readTimeoutMs = readTimeoutMs;
+        return this;
+    }
+
+    public boolean download(String sourceUrl, String targetFile) {
         File output = new File(targetFile);
-        if (output.exists()) {
-            log.info("File {} found. Skipping download.", targetFile);
-            return true;
-        }
-        File dir = output.getParentFile();
+        File dir = output.getAbsoluteFile().getParentFile();
         if (!dir.exists()) {
             log.info("Creating directory {}", dir);
             dir.mkdirs();
         }
-
         try {
-            File temp = File.createTempFile("data_download_tmp", ".part", dir);
-            temp.deleteOnExit();
-            log.info("Downloading PBF data file from {} to temporary file {}", sourceUrl, dir);
-            performDownload(sourceUrl, temp);
-            Files.move(temp.toPath(), output.toPath());
+            Remote remote;
+            if (output.exists()) {
+                if (!refresh) {
+                    log.info("File {} found. Skipping download.", targetFile);
+                    return true;
+                }
+                Properties meta = readMeta(metaFile(output));
+                try {
+                    remote = head(sourceUrl, meta, output);
+                }
+                catch (IOException ex) {
+                    log.warn("Unable to check whether {} is up to date, using the existing file", targetFile, ex);
+                    return true;
+                }
+                if (remote.notModified || remote.matches(meta)) {
+                    log.info("File {} is up to date", targetFile);
+                    return true;
+                }
+                log.info("A newer version of {} is available", targetFile);
+            }
+            else {
+                remote = head(sourceUrl, null, null);
+            }
+            File part = new File(output.getPath() + PART_POSTFIX);
+            try {
+                fetch(sourceUrl, part, remote);
+            }
+            catch (RemoteChangedException ex) {
+                log.warn("{}, starting the download again", ex.getMessage());
+                deletePart(part);
+                remote = head(sourceUrl, null, null);
+                fetch(sourceUrl, part, remote);
+            }
+            if (verifyChecksum && !verify(sourceUrl, part)) {
+                deletePart(part);
+                return false;
+            }
+            Files.move(part.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            writeMeta(metaFile(output), remote.toMeta());
+            Files.deleteIfExists(metaFile(part).toPath());
             log.info("Download finished");
             return true;
-        } catch (IOException e) {
+        }
+        catch (IOException e) {
             log.error("An error occurred while downloading the file", e);
             return false;
         }
     }
 
-    private static void performDownload(String sourceUrl, File target) throws IOException {
-        try (BufferedInputStream in = new BufferedInputStream(new URL(sourceUrl).openStream());
-             FileOutputStream fileOutputStream = new FileOutputStream(target)) {
-            byte[] dataBuffer = new byte[1024];
-            int bytesRead;
-            long totalBytes = 0;
-            long lastReport = 0;
-            while ((bytesRead = in.read(dataBuffer, 0, 1024)) != -1) {
-                fileOutputStream.write(dataBuffer, 0, bytesRead);
-                totalBytes += bytesRead;
-                if (REPORT_INTERVAL_MS > 0 && System.currentTimeMillis() - lastReport >= REPORT_INTERVAL_MS) {
-                    log.info("{} bytes downloaded", totalBytes);
-                    lastReport = System.currentTimeMillis();
+    /**
+     * Requests the headers of the remote file. If the metadata of an earlier download is given, the request is
+     * conditional on the file having changed since.
+     */
+    private Remote head(String sourceUrl, Properties meta, File existing) throws IOException {
+        HttpURLConnection conn = open(sourceUrl);
+        try {
+            conn.setRequestMethod("HEAD");
+            if (meta != null && meta.getProperty("etag") != null) {
+                conn.setRequestProperty("If-None-Match", meta.getProperty("etag"));
+            }
+            if (meta != null && meta.getProperty("last-modified") != null) {
+                conn.setRequestProperty("If-Modified-Since", meta.getProperty("last-modified"));
+            }
+            else if (existing != null) {
+                conn.setIfModifiedSince(existing.lastModified());
+            }
+            int code = conn.getResponseCode();
+            Remote remote = new Remote();
+            if (code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                remote.notModified = true;
+            }
+            else if (code == HttpURLConnection.HTTP_BAD_METHOD || code == HttpURLConnection.HTTP_NOT_IMPLEMENTED) {
+                log.info("Server does not support HEAD requests, downloading without resume support");
+            }
+            else if (code >= 400) {
+                throw new IOException("HTTP " + code + " for " + sourceUrl);
+            }
+            else {
+                remote.length = conn.getContentLengthLong();
+                remote.etag = conn.getHeaderField("ETag");
+                remote.lastModified = conn.getHeaderField("Last-Modified");
+                remote.acceptRanges = "bytes".equalsIgnoreCase(conn.getHeaderField("Accept-Ranges"));
+            }
+            return remote;
+        }
+        finally {
+            conn.disconnect();
+        }
+    }
+
+    private void fetch(String sourceUrl, File part, Remote remote) throws IOException {
+        File stateFile = metaFile(part);
+        boolean resumable = remote.length > 0 && remote.acceptRanges;
+        List<Segment> parts = null;
+        if (resumable && part.exists()) {
+            Properties state = readMeta(stateFile);
+            if (remote.matches(state)) {
+                parts = Segment.read(state);
+            }
+        }
+        if (parts != null) {
+            long done = parts.stream().mapToLong(s -> s.done.get()).sum();
+            log.info("Resuming download of {} at {} of {} bytes", sourceUrl, done, remote.length);
+        }
+        else {
+            deletePart(part);
+            parts = Segment.plan(resumable ? remote.length : -1,
+                    resumable ? (int) Math.min(segments, Math.max(1, remote.length / MIN_SEGMENT_SIZE)) : 1);
+            log.info("Downloading {} to {} in {} segments", sourceUrl, part, parts.size());
+        }
+        List<Segment> segmentList = parts;
+        Progress progress = new Progress("Download of " + part.getName(), remote.length);
+        segmentList.forEach(s -> progress.add(s.done.get()));
+        long resumedAt = segmentList.stream().mapToLong(s -> s.done.get()).sum();
+        PipelineEvents.DownloadEvent event = new PipelineEvents.DownloadEvent();
+        event.begin();
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(segmentList.size(), r -> {
+            Thread t = new Thread(r, "download");
+            t.setDaemon(true);
+            return t;
+        });
+        try (FileChannel channel = FileChannel.open(part.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE)) {
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (Segment segment : segmentList) {
+                futures.add(CompletableFuture.runAsync(() -> {
+                    try {
+                        transferWithRetries(sourceUrl, remote, segment, channel, progress);
+                    }
+                    catch (IOException ex) {
+                        throw new CompletionException(ex);
+                    }
+                }, executor));
+            }
+            CompletableFuture<Void> all = CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]));
+            while (true) {
+                try {
+                    all.get(SAVE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                    break;
                 }
+                catch (TimeoutException ex) {
+                    saveState(resumable, channel, stateFile, remote, segmentList);
+                }
+                catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    saveState(resumable, channel, stateFile, remote, segmentList);
+                    throw new InterruptedIOException("Interrupted while downloading " + sourceUrl);
+                }
+                catch (ExecutionException ex) {
+                    executor.shutdownNow();
+                    saveState(resumable, channel, stateFile, remote, segmentList);
+                    Throwable cause = ex.getCause() instanceof CompletionException ? ex.getCause().getCause()
+                            : ex.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    }
+                    throw new IOException("Error while downloading " + sourceUrl, cause);
+                }
+            }
+            channel.force(false);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        progress.finish();
+        recordTransfer(sourceUrl, event, segmentList.size(),
+                segmentList.stream().mapToLong(s -> s.done.get()).sum() - resumedAt, System.nanoTime() - start);
+    }
+
+    private static void recordTransfer(String sourceUrl, PipelineEvents.DownloadEvent event, int segments, long bytes,
+                                       long nanos) {
+        long bytesPerSecond = (long) (bytes / Math.max(1e-9, nanos / 1e9));
+        Metrics.count("download.bytes", bytes);
+        Metrics.count("download.timeMs", nanos / 1_000_000);
+        Metrics.set("download.bytesPerSecond", bytesPerSecond);
+        log.info("Transferred {} MB at {} MB/s", bytes >> 20, String.format("%.1f", bytesPerSecond / 1e6));
+        event.end();
+        if (event.shouldCommit()) {
+            event.url = sourceUrl;
+            event.bytes = bytes;
+            event.bytesPerSecond = bytesPerSecond;
+            event.segments = segments;
+            event.commit();
+        }
+    }
+
+    private void transferWithRetries(String sourceUrl, Remote remote, Segment segment, FileChannel channel,
+                                     Progress progress) throws IOException {
+        for (int attempt=0; ; attempt++) {
+            try {
+                transfer(sourceUrl, remote, segment, channel, progress);
+                return;
+            }
+            catch (RemoteChangedException ex) {
+                throw ex;
+            }
+            catch (IOException ex) {
+                if (attempt >= retries) {
+                    throw ex;
+                }
+                long backoff = Math.min(MAX_BACKOFF_MS, 1000L << attempt);
+                log.warn("Download of bytes {}-{} failed ({}), retrying in {} ms", segment.start + segment.done.get(),
+                        segment.end, ex.getMessage(), backoff);
+                if (segment.end < 0) {
+                    // Without range support the download can only start over
+                    progress.add(-segment.done.getAndSet(0));
+                    channel.truncate(0);
+                }
+                try {
+                    Thread.sleep(backoff);
+                }
+                catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while downloading " + sourceUrl);
+                }
+            }
+        }
+    }
+
+    /**
+     * Downloads the rest of a segment, writing through a large buffer at the segment's position in the file.
+     */
+    private void transfer(String sourceUrl, Remote remote, Segment segment, FileChannel channel, Progress progress)
+            throws IOException {
+        long from = segment.start + segment.done.get();
+        if (segment.end >= 0 && from >= segment.end) {
+            return;
+        }
+        HttpURLConnection conn = open(sourceUrl);
+        try {
+            boolean ranged = segment.end >= 0;
+            if (ranged) {
+                conn.setRequestProperty("Range", "bytes=" + from + "-" + (segment.end - 1));
+                if (remote.validator() != null) {
+                    conn.setRequestProperty("If-Range", remote.validator());
+                }
+            }
+            int code = conn.getResponseCode();
+            if (ranged && code == HttpURLConnection.HTTP_OK) {
+                throw new RemoteChangedException("Remote file " + sourceUrl + " changed during the download");
+            }
+            if (code != (ranged ? HttpURLConnection.HTTP_PARTIAL : HttpURLConnection.HTTP_OK)) {
+                throw new IOException("HTTP " + code + " for " + sourceUrl);
             }
+            try (ReadableByteChannel in = Channels.newChannel(conn.getInputStream())) {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+                long position = from;
+                boolean eof = false;
+                while (!eof) {
+                    eof = in.read(buffer) < 0;
+                    if (eof || !buffer.hasRemaining()) {
+                        buffer.flip();
+                        int count = buffer.remaining();
+                        while (buffer.hasRemaining()) {
+                            position += channel.write(buffer, position);
+                        }
+                        buffer.clear();
+                        segment.done.addAndGet(count);
+                        progress.add(count);
+                    }
+                }
+            }
+            if (ranged && segment.start + segment.done.get() < segment.end) {
+                throw new IOException("Connection closed after " + (segment.start + segment.done.get()) + " of "
+                        + segment.end + " bytes");
+            }
+        }
+        finally {
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * Verifies the downloaded file against the MD5 checksum published next to it. Returns true if there is no
+     * checksum to verify against.
+     */
+    private boolean verify(String sourceUrl, File part) throws IOException {
+        String expected;
+        HttpURLConnection conn = open(sourceUrl + MD5_POSTFIX);
+        try {
+            if (conn.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                log.info("No checksum found for {}, skipping verification", sourceUrl);
+                return true;
+            }
+            try (InputStream in = conn.getInputStream()) {
+                String text = new String(in.readAllBytes(), StandardCharsets.US_ASCII).trim();
+                expected = text.split("\\s+")[0].toLowerCase();
+            }
+        }
+        catch (IOException ex) {
+            log.warn("Unable to fetch checksum for {}, skipping verification", sourceUrl, ex);
+            return true;
+        }
+        finally {
+            conn.disconnect();
+        }
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("MD5 is not available", ex);
+        }
+        try (FileChannel in = FileChannel.open(part.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            while (in.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        StringBuilder actual = new StringBuilder();
+        for (byte b : digest.digest()) {
+            actual.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        if (!actual.toString().equals(expected)) {
+            log.error("Checksum mismatch for {}: expected {}, got {}", sourceUrl, expected, actual);
+            return false;
+        }
+        log.info("Checksum of {} verified", part);
+        return true;
+    }
+
+    private HttpURLConnection open(String sourceUrl) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(sourceUrl).openConnection();
+        conn.setConnectTimeout(connectTimeoutMs);
+        conn.setReadTimeout(readTimeoutMs);
+        return conn;
+    }
+
+    /**
+     * Flushes the part file and records how far every segment got, so the download can be resumed.
+     */
+    private static void saveState(boolean resumable, FileChannel channel, File stateFile, Remote remote,
+                                  List<Segment> parts) throws IOException {
+        if (!resumable) {
+            return;
+        }
+        channel.force(false);
+        Properties state = remote.toMeta();
+        Segment.write(parts, state);
+        writeMeta(stateFile, state);
+    }
+
+    private static void deletePart(File part) throws IOException {
+        Files.deleteIfExists(part.toPath());
+        Files.deleteIfExists(metaFile(part).toPath());
+    }
+
+    private static File metaFile(File file) {
+        return new File(file.getPath() + META_POSTFIX);
+    }
+
+    private static Properties readMeta(File file) {
+        Properties meta = new Properties();
+        if (file.exists()) {
+            try (Reader in = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                meta.load(in);
+            }
+            catch (IOException ex) {
+                log.warn("Unable to read {}", file, ex);
+            }
+        }
+        return meta;
+    }
+
+    private static void writeMeta(File file, Properties meta) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (Writer out = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8)) {
+            meta.store(out, null);
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * What the server told about the remote file.
+     */
+    private static final class Remote {
+        private long length = -1;
+        private String etag;
+        private String lastModified;
+        private boolean acceptRanges;
+        private boolean notModified;
+
+        /**
+         * Returns the value for an If-Range header, which must be a strong ETag or a date.
+         */
+        private String validator() {
+            if (etag != null && !etag.startsWith("W/")) {
+                return etag;
+            }
+            return lastModified;
+        }
+
+        /**
+         * Returns whether the metadata describes the same version of the remote file.
+         */
+        private boolean matches(Properties meta) {
+            if (etag != null) {
+                return etag.equals(meta.getProperty("etag"));
+            }
+            return lastModified != null && lastModified.equals(meta.getProperty("last-modified"))
+                    && String.valueOf(length).equals(meta.getProperty("length"));
+        }
+
+        private Properties toMeta() {
+            Properties meta = new Properties();
+            if (etag != null) {
+                meta.setProperty("etag", etag);
+            }
+            if (lastModified != null) {
+                meta.setProperty("last-modified", lastModified);
+            }
+            meta.setProperty("length", String.valueOf(length));
+            return meta;
+        }
+    }
+
+    /**
+     * A byte range [start, end) of the file and the number of bytes of it downloaded so far. The end is -1 if the
+     * length of the file is unknown.
+     */
+    private static final class Segment {
+        private final long start;
+        private final long end;
+        private final AtomicLong done;
+
+        private Segment(long start, long end, long done) {
+            this.start = start;
+            this.end = end;
+            this.done = new AtomicLong(done);
+        }
+
+        private static List<Segment> plan(long length, int count) {
+            List<Segment> result = new ArrayList<>();
+            if (length < 0) {
+                result.add(new Segment(0, -1, 0));
+                return result;
+            }
+            for (int i=0; i < count; i++) {
+                result.add(new Segment(length * i / count, length * (i + 1) / count, 0));
+            }
+            return result;
+        }
+
+        private static List<Segment> read(Properties state) {
+            int count = Integer.parseInt(state.getProperty("segments", "0"));
+            if (count == 0) {
+                return null;
+            }
+            List<Segment> result = new ArrayList<>();
+            for (int i=0; i < count; i++) {
+                String [] values = state.getProperty("segment." + i, "").split(",");
+                if (values.length != 3) {
+                    return null;
+                }
+                result.add(new Segment(Long.parseLong(values[0]), Long.parseLong(values[1]),
+                        Long.parseLong(values[2])));
+            }
+            return result;
+        }
+
+        private static void write(List<Segment> parts, Properties state) {
+            state.setProperty("segments", String.valueOf(parts.size()));
+            for (int i=0; i < parts.size(); i++) {
+                Segment s = parts.get(i);
+                state.setProperty("segment." + i, s.start + "," + s.end + "," + s.done.get());
+            }
+        }
+    }
+
+    /**
+     * Thrown when the server no longer serves the version of the file a partial download belongs to.
+     */
+    private static final class RemoteChangedException extends IOException {
+        private RemoteChangedException(String message) {
+            super(message);
         }
     }
 
@@ -5,14 +5,12 @@ import de.topobyte.osm4j.core.access.OsmIterator;
 import de.topobyte.osm4j.core.model.iface.*;
 import de.topobyte.osm4j.pbf.seq.PbfIterator;
 import de.topobyte.osm4j.pbf.seq.PbfWriter;
-import org.locationtech.jts.geom.Coordinate;
-import org.locationtech.jts.geom.Geometry;
-import org.locationtech.jts.geom.GeometryFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 
 public class FilterBridgesMain {
@@ -20,6 +18,11 @@ public class FilterBridgesMain {
     private static final Logger log = LoggerFactory.getLogger(FilterBridgesMain.class);
 
     private static final String RESTRICTIONS_FILE = "restrictions.txt";
+    // Removal sets with more entries than this are kept in direct memory instead of on the heap
+    private static final int OFF_HEAP_THRESHOLD = 1 << 24;
+    private static final String SORTED_FEATURE = "Sort.Type_then_ID";
+    // The key of the reduced dataset of the current network, which keeps every restriction
+    public static final int CURRENT = Integer.MAX_VALUE;
 
     public static void main(String [] args) throws IOException {
         List<RestrictionEntry> restrictions = RestrictionEntry.readEntries(new File(RESTRICTIONS_FILE));
@@ -28,29 +31,66 @@ public class FilterBridgesMain {
     }
 
     public static Map<Integer,File> processAll(List<RestrictionEntry> restrictions, String input,
-        // TODO: If interrupted this method will skip over the output files the next time you run this
                                                String outputPrefix, String outputPostfix) throws IOException {
+        ArtifactStore store = ArtifactStore.open(new File(outputPrefix + "manifest.properties"));
+        return processAll(restrictions, input, outputPrefix, outputPostfix, store);
+    }
+
+    /**
+     * Writes the filtered dataset of every year that is missing or was built from another input file or another set
+     * of restrictions. The datasets are written to temporary files and only renamed into place once all of them are
+     * complete, so an interrupted run leaves no output behind that would be taken for a finished one.
+     */
+    public static Map<Integer,File> processAll(List<RestrictionEntry> restrictions, String input,
+                                               String outputPrefix, String outputPostfix, ArtifactStore store)
+            throws IOException {
+        return processAll(restrictions, input, outputPrefix, outputPostfix, store, null);
+    }
+
+    /**
+     * Like {@link #processAll(List, String, String, String, ArtifactStore)}, but reduces the datasets to the road
+     * network of the given reduction, unless it is null. With a reduction, the result also holds the reduced current
+     * network under the key {@link #CURRENT}, written in the same passes, so the base graph is built from the same
+     * road network as the graphs of the years.
+     */
+    public static Map<Integer,File> processAll(List<RestrictionEntry> restrictions, String input,
+                                               String outputPrefix, String outputPostfix, ArtifactStore store,
+                                               NetworkReduction reduction) throws IOException {
         Map<Integer,File> result = new TreeMap<>();
+        Map<Integer,File> missing = new TreeMap<>();
+        Map<Integer,String> keys = new TreeMap<>();
         var map = getSubLists(restrictions);
+        if (reduction != null) {
+            map.put(CURRENT, List.of());
+        }
         for (var entry : map.entrySet()) {
             int year = entry.getKey();
-            var data = entry.getValue();
-            String output = outputPrefix+year+outputPostfix;
-            File file = new File(output);
-            if (file.exists()) {
-                log.info("File {} already exists, skipping processing", file);
-                result.put(year, file);
-                continue;
-            }
-            log.info("Processing {} restricted until year {}", input, year);
-            process(input, output, data);
-            log.info("Written processed output to {}", output);
+            File file = new File(outputPrefix + (year == CURRENT ? "now" : year) + outputPostfix);
+            String key = Fingerprints.graph(new File(input), entry.getValue());
+            if (reduction != null) {
+                key = Fingerprints.of(key + '\n' + reduction.describe());
+            }
+            if (store.isCurrent(file, key)) {
+                log.info("File {} is up to date, skipping processing", file);
+            }
+            else {
+                missing.put(year, store.tempFor(file));
+                keys.put(year, key);
+            }
             result.put(year, file);
         }
+        if (!missing.isEmpty()) {
+            log.info("Processing {} restricted until years {}", input, missing.keySet());
+            processYears(input, missing, restrictions, PbfPipeline.DEFAULT_THREADS, reduction);
+            for (var entry : missing.entrySet()) {
+                store.commit(entry.getValue(), result.get(entry.getKey()), keys.get(entry.getKey()));
+            }
+            log.info("Written processed output for {}", missing.keySet());
+        }
         return result;
     }
 
-    private static Map<Integer, List<RestrictionEntry>> getSubLists(List<RestrictionEntry> restrictions) {
+    public static Map<Integer, List<RestrictionEntry>> getSubLists(List<RestrictionEntry> restrictions) {
         Set<Integer> years = new TreeSet<>();
         for (RestrictionEntry restriction : restrictions) {
             years.add(restriction.getYear());
@@ -71,78 +111,458 @@ public class FilterBridgesMain {
 
     public static void process(String inputFile, String outputFile, List<RestrictionEntry> restrictions)
             throws IOException {
-        Set<Long> remove;
-        try (InputStream is = new FileInputStream(inputFile)) {
-            OsmIterator iterator = new PbfIterator(is, true);
-            log.info("Searching for node coordinates to remove");
-            remove = readNodeIds(iterator, restrictions);
-            log.info("Found {} nodes to remove", remove.size());
-        }
-        try (InputStream is = new FileInputStream(inputFile);
-             OutputStream os = new FileOutputStream(outputFile)) {
-            log.info("Processing dataset");
-            OsmIterator iterator = new PbfIterator(is, true);
-            PbfWriter writer = new PbfWriter(os, true);
-            long skipWays = 0;
-            long skipNodes = 0;
-            outerLoop:
-            while (iterator.hasNext()) {
-                EntityContainer container = iterator.next();
-                OsmEntity entity = container.getEntity();
-                if (entity instanceof OsmWay) {
-                    OsmWay way = (OsmWay) entity;
-                    for (int t=0; t < way.getNumberOfNodes(); t++) {
-                        long id = way.getNodeId(t);
-                        if (remove.contains(id)) {
-                            skipWays++;
-                            continue outerLoop;
-                        }
+        // The dataset for the earliest year leaves out every restriction
+        int year = restrictions.stream().mapToInt(RestrictionEntry::getYear).min().orElse(0);
+        processYears(inputFile, Map.of(year, new File(outputFile)), restrictions);
+    }
+
+    public static void processYears(String inputFile, Map<Integer,File> outputs, List<RestrictionEntry> restrictions)
+            throws IOException {
+        processYears(inputFile, outputs, restrictions, PbfPipeline.DEFAULT_THREADS);
+    }
+
+    /**
+     * Writes one filtered dataset per year while decoding the input at most twice in total, independent of the
+     * number of years. Each node is tagged with the latest restriction year of the polygons containing it. Since the
+     * dataset for a year drops every restriction with a year at or after that year, a node (and every way that
+     * references it) is removed from all outputs with a year less than or equal to its tag.
+     *
+     * A file sorted by type and id has all nodes before the ways, so the years of the nodes a way references are
+     * known by the time the way is read, and the datasets are written in a single pass. Other files take a first
+     * pass over the nodes to tag them and a second pass to write. Both run on a {@link PbfPipeline}. Blocks that do
+     * not contain a removed node for a year are copied to that year's output as raw bytes; only the others are
+     * decoded and encoded again.
+     */
+    public static void processYears(String inputFile, Map<Integer,File> outputs, List<RestrictionEntry> restrictions,
+                                    int threads) throws IOException {
+        processYears(inputFile, outputs, restrictions, threads, null);
+    }
+
+    /**
+     * Like {@link #processYears(String, Map, List, int)}, but if a reduction is given, the first pass also collects
+     * the ways it keeps and the nodes they reference, and the second pass writes only those to every output.
+     * Every block is decoded and encoded again then. A reduction always takes two passes, because whether a node is
+     * kept depends on the ways, which come after it.
+     */
+    public static void processYears(String inputFile, Map<Integer,File> outputs, List<RestrictionEntry> restrictions,
+                                    int threads, NetworkReduction reduction) throws IOException {
+        File input = new File(inputFile);
+        if (reduction == null && isSorted(input)) {
+            processSorted(input, outputs, restrictions, threads);
+            return;
+        }
+        log.info("Searching for node coordinates to remove");
+        NodeIdSet removeUntil;
+        KeptEntities kept = null;
+        try (Metrics.Stage stage = Metrics.stage("filter.classify")) {
+            NodeIdSet.Builder keptWays = reduction == null ? null : NodeIdSet.builder(OFF_HEAP_THRESHOLD);
+            NodeIdSet.Builder keptNodes = reduction == null ? null : NodeIdSet.builder(OFF_HEAP_THRESHOLD);
+            removeUntil = readNodeYears(input, new RestrictionIndex(restrictions), threads, reduction, keptWays,
+                    keptNodes);
+            if (reduction != null) {
+                kept = new KeptEntities(reduction, keptWays.build(), keptNodes.build());
+                log.info("Keeping {} ways and {} nodes of the road network", kept.ways.size(), kept.nodes.size());
+                Metrics.set("filter.reduction.ways", kept.ways.size());
+                Metrics.set("filter.reduction.nodes", kept.nodes.size());
+            }
+            Metrics.set("filter.nodes.perSecond",
+                    Metrics.getCount("filter.nodes.scanned") * 1000 / Math.max(1, stage.elapsedMillis()));
+        }
+        log.info("Found {} nodes to remove", removeUntil.size());
+
+        try (Metrics.Stage stage = Metrics.stage("filter.write"); YearOutputs out = new YearOutputs(outputs)) {
+            log.info("Processing dataset for {} years", out.years.length);
+            KeptEntities keep = kept;
+            PbfPipeline.run(input, threads, block -> filterBlock(block, out.years, removeUntil, keep),
+                    (block, filtered) -> {
+                        out.write(block, filtered);
+                        return true;
+                    });
+            Metrics.set("filter.ways.perSecond",
+                    Metrics.getCount("filter.ways.scanned") * 1000 / Math.max(1, stage.elapsedMillis()));
+            out.report();
+        }
+    }
+
+    /**
+     * Returns whether the header of the file declares it sorted by type and id.
+     */
+    private static boolean isSorted(File input) throws IOException {
+        try (InputStream is = new BufferedInputStream(new FileInputStream(input))) {
+            PbfBlock header = PbfBlock.read(is);
+            return header != null && header.isHeader() && header.hasOptionalFeature(SORTED_FEATURE);
+        }
+    }
+
+    /**
+     * Writes the datasets of a sorted file in one pass. The workers tag the nodes of every block and filter blocks
+     * with nodes only, since a node is removed by its own coordinates. The tags are collected in file order, and at
+     * the first block with ways they are complete and form the set the ways are filtered with. The ways of the
+     * blocks that were already decoded by then are filtered on the calling thread, all later ones by the workers.
+     */
+    private static void processSorted(File input, Map<Integer,File> outputs, List<RestrictionEntry> restrictions,
+                                      int threads) throws IOException {
+        log.info("Processing sorted {} in a single pass", input);
+        ThreadLocal<RestrictionIndex.Locator> locators =
+                ThreadLocal.withInitial(new RestrictionIndex(restrictions)::locator);
+        NodeIdSet.Builder removed = NodeIdSet.builder(OFF_HEAP_THRESHOLD);
+        AtomicReference<NodeIdSet> removeUntil = new AtomicReference<>();
+        try (Metrics.Stage stage = Metrics.stage("filter.write"); YearOutputs out = new YearOutputs(outputs)) {
+            log.info("Processing dataset for {} years", out.years.length);
+            PbfPipeline.run(input, threads, block -> {
+                SortedBlock result = new SortedBlock();
+                if (!block.isData()) {
+                    return result;
+                }
+                RestrictionIndex.Locator locator = locators.get();
+                NodeHits hits = result.hits;
+                hits.nodes = block.forEachNode((id, lat, lon) -> {
+                    int year = locator.latestYear(lat, lon);
+                    if (year != RestrictionIndex.NO_YEAR) {
+                        hits.add(id, year);
+                    }
+                });
+                NodeIdSet complete = removeUntil.get();
+                if (complete != null) {
+                    result.filtered = filterBlock(block, out.years, complete, null);
+                }
+                else if (block.forEachWayNode(id -> { }) == 0) {
+                    result.filtered = filterBlock(block, out.years, hits.toSet(), null);
+                }
+                else {
+                    result.pending = true;
+                }
+                return result;
+            }, (block, result) -> {
+                NodeHits hits = result.hits;
+                if (hits.nodes > 0 && removeUntil.get() != null) {
+                    throw new IOException(input + " is declared sorted, but has nodes after ways");
+                }
+                for (int i=0; i < hits.count; i++) {
+                    removed.add(hits.ids[i], hits.years[i]);
+                }
+                Metrics.count("filter.nodes.scanned", hits.nodes);
+                FilteredBlock filtered = result.filtered;
+                if (result.pending) {
+                    if (removeUntil.get() == null) {
+                        removeUntil.set(removed.build());
+                        log.info("Found {} nodes to remove", removeUntil.get().size());
                     }
-                    writer.write(way);
+                    filtered = filterBlock(block, out.years, removeUntil.get(), null);
+                }
+                out.write(block, filtered);
+                return true;
+            });
+            Metrics.set("filter.nodes.perSecond",
+                    Metrics.getCount("filter.nodes.scanned") * 1000 / Math.max(1, stage.elapsedMillis()));
+            Metrics.set("filter.ways.perSecond",
+                    Metrics.getCount("filter.ways.scanned") * 1000 / Math.max(1, stage.elapsedMillis()));
+            out.report();
+        }
+    }
+
+    /**
+     * Returns null if the block can be copied to all outputs unchanged, otherwise the encoded block for every year
+     * that loses some of its entities. With a reduction, every data block is reduced and encoded for all years.
+     */
+    private static FilteredBlock filterBlock(PbfBlock block, int [] years, NodeIdSet removeUntil, KeptEntities kept)
+            throws IOException {
+        if (!block.isData() || (removeUntil.isEmpty() && kept == null)) {
+            return null;
+        }
+        int [] until = { NodeIdSet.ABSENT };
+        block.forEachNode((id, lat, lon) -> until[0] = Math.max(until[0], removeUntil.get(id)));
+        Metrics.count("filter.ways.scanned",
+                block.forEachWayNode(id -> until[0] = Math.max(until[0], removeUntil.get(id))));
+        if (years[0] > until[0] && kept == null) {
+            return null;
+        }
+        // Decode the entities once and encode them again for every year that loses some of them
+        List<EntityContainer> entities = new ArrayList<>();
+        OsmIterator iterator = new PbfIterator(new ByteArrayInputStream(block.getFrame()), true);
+        while (iterator.hasNext()) {
+            EntityContainer container = iterator.next();
+            if (kept == null) {
+                entities.add(container);
+            }
+            else {
+                EntityContainer reduced = kept.reduce(container);
+                if (reduced != null) {
+                    entities.add(reduced);
+                }
+            }
+        }
+        FilteredBlock result = new FilteredBlock(years.length);
+        byte [] unchanged = null;
+        for (int i=0; i < years.length; i++) {
+            if (years[i] <= until[0]) {
+                result.data[i] = rewrite(entities, years[i], removeUntil, result, i, kept == null);
+            }
+            else if (kept != null) {
+                // No node of the block is removed in this year, so the reduced block is the same for all of them
+                if (unchanged == null) {
+                    unchanged = rewrite(entities, Integer.MAX_VALUE, removeUntil, result, i, false);
                 }
-                else if (entity instanceof OsmNode) {
-                    OsmNode node = (OsmNode) entity;
-                    if (remove.contains(node.getId())) {
-                        skipNodes++;
-                        continue;
+                result.data[i] = unchanged;
+            }
+        }
+        return result;
+    }
+
+    private static byte [] rewrite(List<EntityContainer> entities, int year, NodeIdSet removeUntil,
+                                   FilteredBlock counts, int index, boolean metadata) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        PbfWriter writer = new PbfWriter(os, metadata);
+        outerLoop:
+        for (EntityContainer container : entities) {
+            OsmEntity entity = container.getEntity();
+            if (entity instanceof OsmWay) {
+                OsmWay way = (OsmWay) entity;
+                for (int t=0; t < way.getNumberOfNodes(); t++) {
+                    if (removeUntil.get(way.getNodeId(t)) >= year) {
+                        counts.skipWays[index]++;
+                        continue outerLoop;
                     }
-                    writer.write(node);
                 }
-                else if (entity instanceof OsmBounds) {
-                    OsmBounds bounds = (OsmBounds) entity;
-                    writer.write(bounds);
+                writer.write(way);
+            }
+            else if (entity instanceof OsmNode) {
+                OsmNode node = (OsmNode) entity;
+                if (removeUntil.get(node.getId()) >= year) {
+                    counts.skipNodes[index]++;
+                    continue;
+                }
+                writer.write(node);
+            }
+            else if (entity instanceof OsmRelation) {
+                OsmRelation relation = (OsmRelation) entity;
+                writer.write(relation);
+            }
+            else {
+                log.warn("Entity of type {} was not recognized. Contents: {}",
+                        entity.getClass().getCanonicalName(), entity);
+            }
+        }
+        writer.complete();
+        // The writer starts with a header block of its own, the header of the input is copied instead
+        return PbfBlock.dataFrames(os.toByteArray());
+    }
+
+    /**
+     * Returns the latest restriction year of every node inside a restriction. With a reduction, also adds the ways
+     * it keeps and the nodes referenced by them to the given builders.
+     */
+    private static NodeIdSet readNodeYears(File input, RestrictionIndex index, int threads,
+                                           NetworkReduction reduction, NodeIdSet.Builder keptWays,
+                                           NodeIdSet.Builder keptNodes) throws IOException {
+        ThreadLocal<RestrictionIndex.Locator> locators = ThreadLocal.withInitial(index::locator);
+        NodeIdSet.Builder result = NodeIdSet.builder(OFF_HEAP_THRESHOLD);
+        PbfPipeline.run(input, threads, block -> {
+            NodeHits hits = new NodeHits();
+            if (!block.isData()) {
+                return hits;
+            }
+            RestrictionIndex.Locator locator = locators.get();
+            hits.nodes = block.forEachNode((id, lat, lon) -> {
+                int year = locator.latestYear(lat, lon);
+                if (year != RestrictionIndex.NO_YEAR) {
+                    hits.add(id, year);
                 }
-                else if (entity instanceof OsmRelation) {
+            });
+            if (reduction != null) {
+                block.forEachWay((id, tags, nodes) -> {
+                    if (reduction.keepWay(tags)) {
+                        hits.addWay(id, nodes);
+                    }
+                });
+            }
+            return hits;
+        }, (block, hits) -> {
+            for (int i=0; i < hits.count; i++) {
+                result.add(hits.ids[i], hits.years[i]);
+            }
+            for (int i=0; i < hits.wayCount; i++) {
+                keptWays.add(hits.wayIds[i]);
+            }
+            for (int i=0; i < hits.wayNodeCount; i++) {
+                keptNodes.add(hits.wayNodes[i]);
+            }
+            Metrics.count("filter.nodes.scanned", hits.nodes);
+            return true;
+        });
+        return result.build();
+    }
+
+    private static final class NodeHits {
+        private int nodes;
+        private int count;
+        private long [] ids = new long[0];
+        private int [] years = new int[0];
+        private int wayCount;
+        private long [] wayIds = new long[0];
+        private int wayNodeCount;
+        private long [] wayNodes = new long[0];
+
+        private void add(long id, int year) {
+            if (count == ids.length) {
+                ids = Arrays.copyOf(ids, Math.max(16, count * 2));
+                years = Arrays.copyOf(years, ids.length);
+            }
+            ids[count] = id;
+            years[count] = year;
+            count++;
+        }
+
+        private NodeIdSet toSet() {
+            NodeIdSet.Builder builder = NodeIdSet.builder();
+            for (int i=0; i < count; i++) {
+                builder.add(ids[i], years[i]);
+            }
+            return builder.build();
+        }
+
+        private void addWay(long id, long [] nodes) {
+            if (wayCount == wayIds.length) {
+                wayIds = Arrays.copyOf(wayIds, Math.max(16, wayCount * 2));
+            }
+            wayIds[wayCount++] = id;
+            if (wayNodeCount + nodes.length > wayNodes.length) {
+                wayNodes = Arrays.copyOf(wayNodes, Math.max(wayNodeCount + nodes.length, wayNodes.length * 2));
+            }
+            System.arraycopy(nodes, 0, wayNodes, wayNodeCount, nodes.length);
+            wayNodeCount += nodes.length;
+        }
+    }
+
+    /**
+     * The ways a reduction keeps and the nodes they reference.
+     */
+    private static final class KeptEntities {
+        private final NetworkReduction reduction;
+        private final NodeIdSet ways;
+        private final NodeIdSet nodes;
+
+        private KeptEntities(NetworkReduction reduction, NodeIdSet ways, NodeIdSet nodes) {
+            this.reduction = reduction;
+            this.ways = ways;
+            this.nodes = nodes;
+        }
+
+        /**
+         * Returns the entity without the tags the reduction drops, or null if it drops the entity.
+         */
+        private EntityContainer reduce(EntityContainer container) {
+            OsmEntity entity = container.getEntity();
+            switch (container.getType()) {
+                case Node:
+                    return nodes.contains(entity.getId())
+                            ? new EntityContainer(EntityType.Node, reduction.reduce((OsmNode) entity)) : null;
+                case Way:
+                    return ways.contains(entity.getId())
+                            ? new EntityContainer(EntityType.Way, reduction.reduce((OsmWay) entity)) : null;
+                case Relation:
                     OsmRelation relation = (OsmRelation) entity;
-                    writer.write(relation);
+                    return reduction.keepRelation(relation, ways)
+                            ? new EntityContainer(EntityType.Relation, reduction.reduce(relation)) : null;
+                default:
+                    return null;
+            }
+        }
+    }
+
+    /**
+     * A block of a sorted file: the tagged nodes, and the filtered block unless its ways are still to be filtered.
+     */
+    private static final class SortedBlock {
+        private final NodeHits hits = new NodeHits();
+        private FilteredBlock filtered;
+        private boolean pending;
+    }
+
+    /**
+     * The output stream of every year, in order of the years, and the counts of what was left out of each.
+     */
+    private static final class YearOutputs implements Closeable {
+        private final int [] years;
+        private final OutputStream [] streams;
+        private final long [] skipWays;
+        private final long [] skipNodes;
+        private final long [] rewritten;
+
+        private YearOutputs(Map<Integer,File> outputs) throws IOException {
+            this.years = outputs.keySet().stream().mapToInt(Integer::intValue).sorted().toArray();
+            this.streams = new OutputStream[years.length];
+            this.skipWays = new long[years.length];
+            this.skipNodes = new long[years.length];
+            this.rewritten = new long[years.length];
+            try {
+                for (int i=0; i < years.length; i++) {
+                    streams[i] = new BufferedOutputStream(new FileOutputStream(outputs.get(years[i])), 1 << 20);
+                }
+            }
+            catch (IOException ex) {
+                close();
+                throw ex;
+            }
+        }
+
+        /**
+         * Writes a block to every output, filtered for the years that lose some of its entities.
+         */
+        private void write(PbfBlock block, FilteredBlock filtered) throws IOException {
+            Metrics.count("filter.blocks", 1);
+            for (int i=0; i < years.length; i++) {
+                if (filtered == null || filtered.data[i] == null) {
+                    streams[i].write(block.getFrame());
                 }
                 else {
-                    log.warn("Entity of type {} was not recognized. Contents: {}",
-                            entity.getClass().getCanonicalName(), entity);
+                    streams[i].write(filtered.data[i]);
+                    skipNodes[i] += filtered.skipNodes[i];
+                    skipWays[i] += filtered.skipWays[i];
+                    rewritten[i]++;
                 }
             }
-            log.info("Done processing data. Skipped {} nodes and {} ways", skipNodes, skipWays);
         }
-    }
 
-    private static Set<Long> readNodeIds(OsmIterator iterator, List<RestrictionEntry> restrictions) {
-        GeometryFactory fac = new GeometryFactory();
-        List<Geometry> geometries = restrictions.stream()
-                .map(re -> re.asFeature().getGeometry())
-                .collect(Collectors.toList());
-        Set<Long> result = new HashSet<>();
-        while (iterator.hasNext()) {
-            OsmEntity entity = iterator.next().getEntity();
-            if (entity instanceof OsmNode) {
-                OsmNode node = (OsmNode) entity;
-                Coordinate c = new Coordinate(node.getLatitude(), node.getLongitude());
-                if (geometries.stream().anyMatch(geom -> geom.contains(fac.createPoint(c)))) {
-                    result.add(node.getId());
-                    log.trace("Found node {}", node);
+        private void report() {
+            for (int i=0; i < years.length; i++) {
+                String label = years[i] == CURRENT ? "now" : String.valueOf(years[i]);
+                log.info("Done processing data for {}. Skipped {} nodes and {} ways in {} rewritten blocks",
+                        label, skipNodes[i], skipWays[i], rewritten[i]);
+                Metrics.count("filter." + label + ".nodes.skipped", skipNodes[i]);
+                Metrics.count("filter." + label + ".ways.skipped", skipWays[i]);
+                Metrics.count("filter." + label + ".blocks.rewritten", rewritten[i]);
+                PipelineEvents.FilterYearEvent event = new PipelineEvents.FilterYearEvent();
+                if (event.shouldCommit()) {
+                    event.year = years[i];
+                    event.nodesSkipped = skipNodes[i];
+                    event.waysSkipped = skipWays[i];
+                    event.blocksRewritten = rewritten[i];
+                    event.commit();
                 }
             }
         }
-        return result;
+
+        @Override
+        public void close() throws IOException {
+            for (OutputStream os : streams) {
+                if (os != null) {
+                    os.close();
+                }
+            }
+        }
+    }
+
+    private static final class FilteredBlock {
+        private final byte [][] data;
+        private final long [] skipNodes;
+        private final long [] skipWays;
+
+        private FilteredBlock(int years) {
+            this.data = new byte[years][];
+            this.skipNodes = new long[years];
+            this.skipWays = new long[years];
+        }
     }
 
 }
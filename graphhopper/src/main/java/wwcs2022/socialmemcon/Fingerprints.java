@@ -0,0 +1,111 @@
+package wwcs2022.socialmemcon;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+/**
+ * SHA-256 fingerprints of the inputs of a computation, used to tell whether a stored result is still valid. The hash
+ * of a file is stored next to it in a {@code .sha256} file together with its size and modification time, so large
+ * files are only hashed again when they change.
+ */
+public class Fingerprints {
+
+    private static final Logger log = LoggerFactory.getLogger(Fingerprints.class);
+
+    private static final String SIDECAR_POSTFIX = ".sha256";
+
+    public static String file(File file) throws IOException {
+        File sidecar = new File(file.getPath() + SIDECAR_POSTFIX);
+        String stamp = file.length() + " " + file.lastModified();
+        if (sidecar.exists()) {
+            List<String> lines = Files.readAllLines(sidecar.toPath());
+            if (lines.size() == 2 && lines.get(0).equals(stamp)) {
+                return lines.get(1);
+            }
+        }
+        log.info("Computing fingerprint of {}", file);
+        MessageDigest digest = newDigest();
+        try (InputStream is = new FileInputStream(file)) {
+            byte [] buffer = new byte[1 << 16];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        String hash = toHex(digest.digest());
+        try {
+            Files.write(sidecar.toPath(), List.of(stamp, hash));
+        }
+        catch (IOException ex) {
+            log.warn("Unable to store fingerprint of {}", file, ex);
+        }
+        return hash;
+    }
+
+    /**
+     * Fingerprint of the graph built from a PBF file with the given restrictions removed.
+     */
+    public static String graph(File pbf, List<RestrictionEntry> restrictions) throws IOException {
+        StringBuilder sb = new StringBuilder(file(pbf));
+        for (RestrictionEntry res : restrictions) {
+            sb.append('\n').append(res.getName())
+                    .append(';').append(res.getYear())
+                    .append(';').append(res.getSpeedLimit())
+                    .append(';').append(res.asFeature().getGeometry().toText());
+        }
+        return of(sb.toString());
+    }
+
+    /**
+     * Fingerprint of the graph built from a PBF file with the given restrictions removed, by the given configuration
+     * of the datasets and the routing engine.
+     */
+    public static String graph(File pbf, List<RestrictionEntry> restrictions, String config) throws IOException {
+        return of(graph(pbf, restrictions) + '\n' + config);
+    }
+
+    /**
+     * Fingerprint of the distance matrices between the locations on the graphs with the given fingerprints.
+     */
+    public static String matrices(String profile, List<LocationEntry> locations, List<String> graphs) {
+        StringBuilder sb = new StringBuilder(profile);
+        for (String graph : graphs) {
+            sb.append('\n').append(graph);
+        }
+        for (LocationEntry loc : locations) {
+            sb.append('\n').append(loc.getName())
+                    .append(';').append(loc.getLat())
+                    .append(';').append(loc.getLng());
+        }
+        return of(sb.toString());
+    }
+
+    public static String of(String text) {
+        return toHex(newDigest().digest(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not available", ex);
+        }
+    }
+
+    private static String toHex(byte [] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,245 @@
+package wwcs2022.socialmemcon;
+
+import com.graphhopper.GraphHopper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.*;
+
+/**
+ * A pool of the imported graphs of several networks, such as the years of the filtered datasets, that keeps the
+ * most recently used ones loaded. A graph is loaded on the first {@link #acquire} and stays loaded until the pool
+ * holds more than the configured number of graphs or bytes, when the least recently used graphs without a lease
+ * are closed. Graphs with a lease are never closed, so the limits can be exceeded while all of them are in use.
+ *
+ * The graphs are opened with memory-mapped data access by default: their storage stays in the files of the cache
+ * directory and is paged in by the operating system, so a loaded graph costs little heap and all graphs share the
+ * page cache. The size of a graph is the size of its cache directory.
+ */
+public class GraphPool<K> implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(GraphPool.class);
+
+    public static final int DEFAULT_RESIDENT = 8;
+    public static final String MMAP = "MMAP";
+
+    private final int maxResident;
+    private final long maxBytes;
+    private final String dataAccess;
+    private final Map<K,Source> sources = new LinkedHashMap<>();
+    // In access order, the eldest entry is the least recently used
+    private final LinkedHashMap<K,Entry> resident = new LinkedHashMap<>(16, 0.75f, true);
+    private long residentBytes;
+    private boolean closed;
+
+    public GraphPool(int maxResident) {
+        this(maxResident, Long.MAX_VALUE, MMAP);
+    }
+
+    /**
+     * @param maxResident the number of graphs to keep loaded
+     * @param maxBytes the total size of the graphs to keep loaded
+     * @param dataAccess the GraphHopper data access type, such as MMAP or RAM_STORE
+     */
+    public GraphPool(int maxResident, long maxBytes, String dataAccess) {
+        if (maxResident < 1) {
+            throw new IllegalArgumentException("A pool must keep at least one graph, not " + maxResident);
+        }
+        this.maxResident = maxResident;
+        this.maxBytes = maxBytes;
+        this.dataAccess = dataAccess;
+    }
+
+    /**
+     * Adds the graph imported from the OSM file into the cache directory, see
+     * {@link RoutingMain#createGraphHopperInstance}. The graph is not loaded until it is acquired.
+     */
+    public synchronized void register(K key, String osmFile, String cacheDir, String vehicle) {
+        sources.put(key, new Source(osmFile, cacheDir, vehicle));
+    }
+
+    public synchronized Set<K> keys() {
+        return new LinkedHashSet<>(sources.keySet());
+    }
+
+    public synchronized boolean contains(K key) {
+        return sources.containsKey(key);
+    }
+
+    /**
+     * Returns the keys of the graphs that are loaded, the least recently used first.
+     */
+    public synchronized List<K> residentKeys() {
+        return new ArrayList<>(resident.keySet());
+    }
+
+    /**
+     * Returns a lease on the graph, loading it if it is not loaded. The graph stays loaded until the lease is closed.
+     *
+     * @throws IllegalArgumentException if no graph was registered under the key
+     */
+    public Lease acquire(K key) {
+        Entry entry;
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("Graph pool is closed");
+            }
+            Source source = sources.get(key);
+            if (source == null) {
+                throw new IllegalArgumentException("No graph registered for " + key);
+            }
+            entry = resident.get(key);
+            if (entry == null) {
+                entry = new Entry(source);
+                resident.put(key, entry);
+            }
+            else {
+                Metrics.count("pool.hits", 1);
+            }
+            entry.leases++;
+        }
+        // Loaded outside of the pool lock, so graphs of other keys can be acquired meanwhile
+        try {
+            if (entry.load()) {
+                synchronized (this) {
+                    residentBytes += entry.bytes;
+                }
+            }
+        }
+        catch (RuntimeException ex) {
+            synchronized (this) {
+                entry.leases--;
+                resident.remove(key, entry);
+            }
+            throw ex;
+        }
+        synchronized (this) {
+            evict();
+        }
+        return new Lease(entry);
+    }
+
+    private synchronized void release(Entry entry) {
+        entry.leases--;
+        if (closed) {
+            close();
+        }
+        else {
+            evict();
+        }
+    }
+
+    /**
+     * Closes the least recently used graphs without a lease until the pool is within its limits.
+     */
+    private void evict() {
+        Iterator<Map.Entry<K,Entry>> iter = resident.entrySet().iterator();
+        while ((resident.size() > maxResident || residentBytes > maxBytes) && iter.hasNext()) {
+            Map.Entry<K,Entry> eldest = iter.next();
+            Entry entry = eldest.getValue();
+            if (entry.leases > 0) {
+                continue;
+            }
+            iter.remove();
+            residentBytes -= entry.bytes;
+            log.info("Closing graph {} of the pool", eldest.getKey());
+            entry.hopper.close();
+            Metrics.count("pool.evictions", 1);
+        }
+    }
+
+    /**
+     * Closes all graphs. Leases that are still open keep their graph until they are closed.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        Iterator<Entry> iter = resident.values().iterator();
+        while (iter.hasNext()) {
+            Entry entry = iter.next();
+            if (entry.leases == 0) {
+                entry.hopper.close();
+                residentBytes -= entry.bytes;
+                iter.remove();
+            }
+        }
+    }
+
+    static long directorySize(File dir) {
+        File [] files = dir.listFiles();
+        long result = 0;
+        if (files != null) {
+            for (File file : files) {
+                result += file.isDirectory() ? directorySize(file) : file.length();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * A loaded graph that stays loaded until the lease is closed.
+     */
+    public final class Lease implements AutoCloseable {
+        private final Entry entry;
+        private boolean released;
+
+        private Lease(Entry entry) {
+            this.entry = entry;
+        }
+
+        public GraphHopper getHopper() {
+            return entry.hopper;
+        }
+
+        @Override
+        public void close() {
+            if (!released) {
+                released = true;
+                release(entry);
+            }
+        }
+    }
+
+    private static final class Source {
+        private final String osmFile;
+        private final String cacheDir;
+        private final String vehicle;
+
+        private Source(String osmFile, String cacheDir, String vehicle) {
+            this.osmFile = osmFile;
+            this.cacheDir = cacheDir;
+            this.vehicle = vehicle;
+        }
+    }
+
+    private final class Entry {
+        private final Source source;
+        private volatile GraphHopper hopper;
+        private long bytes;
+        // Guarded by the pool
+        private int leases;
+
+        private Entry(Source source) {
+            this.source = source;
+        }
+
+        /**
+         * Loads the graph unless it is loaded and returns whether it was loaded by this call.
+         */
+        private synchronized boolean load() {
+            if (hopper != null) {
+                return false;
+            }
+            long start = System.nanoTime();
+            hopper = RoutingMain.createGraphHopperInstance(source.osmFile, source.cacheDir, source.vehicle,
+                    dataAccess);
+            bytes = directorySize(new File(source.cacheDir));
+            Metrics.count("pool.loads", 1);
+            Metrics.count("pool.loadMs", (System.nanoTime() - start) / 1_000_000);
+            return true;
+        }
+    }
+
+}
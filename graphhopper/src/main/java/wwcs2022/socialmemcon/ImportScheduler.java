@@ -0,0 +1,163 @@
+package wwcs2022.socialmemcon;
+
+import com.graphhopper.GraphHopper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.*;
+
+/**
+ * Runs GraphHopper imports and CH preparations concurrently under a memory budget. The memory an import needs is
+ * estimated from the size of its PBF file, and an import only starts once the budget has room for it. An import that
+ * needs more than the whole budget runs on its own. Instances whose cache directory already exists only need to be
+ * loaded, which takes memory in proportion to the size of the directory and depends on the data access type: with
+ * RAM_STORE the graph is copied onto the heap, with MMAP it stays in the mapped files.
+ *
+ * The factors were measured with the heap's peak usage while importing and loading a synthetic PBF of a 300 by 300
+ * street grid (390 KB, a 29 MB cache directory) for the car profiles, each in a fresh JVM.
+ */
+public class ImportScheduler {
+
+    private static final Logger log = LoggerFactory.getLogger(ImportScheduler.class);
+
+    // Heap needed to import and CH-prepare a graph, per byte of the PBF input. The grid peaked at about 250 bytes per
+    // PBF byte with either data access type, as the maps of the OSM reader dominate. The grid holds nothing but
+    // roads; assuming that about one in twenty bytes of a country extract describes the road network gives 12.
+    public static final double IMPORT_BYTES_PER_PBF_BYTE = 12;
+    // Heap needed to load an imported graph, per byte of its cache directory, measured 1.9 with RAM_STORE and 0.6
+    // with MMAP
+    public static final double LOAD_BYTES_PER_GRAPH_BYTE = 2;
+    public static final double MMAP_LOAD_BYTES_PER_GRAPH_BYTE = 0.6;
+
+    private static final long MB = 1024 * 1024;
+
+    private final int budgetMb;
+    private final Semaphore budget;
+    private final ExecutorService executor;
+    private final String dataAccess;
+
+    public ImportScheduler(long memoryBudget, int maxParallel) {
+        this(memoryBudget, maxParallel, "RAM_STORE");
+    }
+
+    /**
+     * @param dataAccess the GraphHopper data access type the graphs are imported and loaded with, such as MMAP or
+     *                   RAM_STORE
+     */
+    public ImportScheduler(long memoryBudget, int maxParallel, String dataAccess) {
+        this.budgetMb = (int) Math.max(1, memoryBudget / MB);
+        this.budget = new Semaphore(budgetMb, true);
+        this.executor = Executors.newFixedThreadPool(maxParallel, r -> {
+            Thread t = new Thread(r, "graphhopper-import");
+            t.setDaemon(true);
+            return t;
+        });
+        this.dataAccess = dataAccess;
+    }
+
+    /**
+     * Creates a scheduler that may use 80% of the maximum heap and runs at most one import per processor.
+     */
+    public static ImportScheduler withDefaultBudget() {
+        return withDefaultBudget("RAM_STORE");
+    }
+
+    public static ImportScheduler withDefaultBudget(String dataAccess) {
+        return new ImportScheduler((long) (Runtime.getRuntime().maxMemory() * 0.8),
+                Runtime.getRuntime().availableProcessors(), dataAccess);
+    }
+
+    /**
+     * Returns the heap needed to import the graph, or to load it with the given data access type if its cache
+     * directory already exists.
+     */
+    public static long estimateFootprint(String osmFile, String cacheDir, String dataAccess) {
+        File dir = new File(cacheDir);
+        if (dir.isDirectory()) {
+            double factor = dataAccess.startsWith(GraphPool.MMAP) ? MMAP_LOAD_BYTES_PER_GRAPH_BYTE
+                    : LOAD_BYTES_PER_GRAPH_BYTE;
+            return (long) (GraphPool.directorySize(dir) * factor);
+        }
+        return (long) (new File(osmFile).length() * IMPORT_BYTES_PER_PBF_BYTE);
+    }
+
+    /**
+     * Schedules the import of a graph into the given cache directory. The instance is closed again once it is
+     * imported, so it can be loaded from the cache directory later on.
+     */
+    public Future<?> submit(String osmFile, String cacheDir, String vehicle) {
+        return submit(osmFile, cacheDir, vehicle, null);
+    }
+
+    /**
+     * Schedules the import of a graph into the given cache directory through the store, which skips the import if
+     * the directory is up to date and otherwise replaces it atomically. Without a store, an existing cache
+     * directory is loaded as it is.
+     */
+    public Future<?> submit(String osmFile, String cacheDir, String vehicle, ArtifactStore store) {
+        if (store != null) {
+            try {
+                if (store.isCurrent(new File(cacheDir), RoutingMain.graphKey(osmFile, vehicle, store))) {
+                    log.info("GraphHopper cache {} is up to date", cacheDir);
+                    return CompletableFuture.completedFuture(null);
+                }
+            }
+            catch (IOException ex) {
+                return CompletableFuture.failedFuture(ex);
+            }
+        }
+        long footprint = store == null ? estimateFootprint(osmFile, cacheDir, dataAccess)
+                : (long) (new File(osmFile).length() * IMPORT_BYTES_PER_PBF_BYTE);
+        int permits = (int) Math.min(budgetMb, Math.max(1, footprint / MB));
+        return executor.submit(() -> {
+            budget.acquire(permits);
+            try {
+                log.info("Importing {} into {} with an estimated {} MB", osmFile, cacheDir, permits);
+                PipelineEvents.ImportEvent event = new PipelineEvents.ImportEvent();
+                event.begin();
+                long start = System.currentTimeMillis();
+                if (store != null) {
+                    RoutingMain.ensureImported(osmFile, cacheDir, vehicle, store, dataAccess);
+                }
+                else {
+                    GraphHopper hopper = RoutingMain.createGraphHopperInstance(osmFile, cacheDir, vehicle,
+                            dataAccess);
+                    hopper.close();
+                }
+                long elapsed = System.currentTimeMillis() - start;
+                log.info("Imported {} in {} ms", cacheDir, elapsed);
+                Metrics.set("import." + new File(cacheDir).getName() + ".ms", elapsed);
+                event.end();
+                if (event.shouldCommit()) {
+                    event.osmFile = osmFile;
+                    event.cacheDir = cacheDir;
+                    event.commit();
+                }
+            }
+            finally {
+                budget.release(permits);
+            }
+            return null;
+        });
+    }
+
+    public static void await(Future<?> future) {
+        try {
+            future.get();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while importing graphs", ex);
+        }
+        catch (ExecutionException ex) {
+            throw new IllegalStateException("Error while importing graph", ex.getCause());
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+}
@@ -0,0 +1,183 @@
+package wwcs2022.socialmemcon;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The invitation counts of the social network (invitation_counts.csv.gz): the number of users w who registered in a
+ * city in a year after an invitation from a user of another (or the same) city. The rows are streamed into one
+ * primitive array per column and grouped by year, so the rows of a year are the range
+ * [{@link #start}, {@link #end}). Files whose name ends in {@code .gz} are read through gzip.
+ */
+public class InvitationCounts {
+
+    private static final Logger log = LoggerFactory.getLogger(InvitationCounts.class);
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final int [] years;
+    private final int [] starts;
+    private final int [] cityIds;
+    private final int [] invitorIds;
+    private final int [] weights;
+
+    private InvitationCounts(int [] years, int [] starts, int [] cityIds, int [] invitorIds, int [] weights) {
+        this.years = years;
+        this.starts = starts;
+        this.cityIds = cityIds;
+        this.invitorIds = invitorIds;
+        this.weights = weights;
+    }
+
+    public static InvitationCounts read(File file) throws IOException {
+        InputStream is = new FileInputStream(file);
+        if (file.getName().endsWith(".gz")) {
+            is = new GZIPInputStream(is, BUFFER_SIZE);
+        }
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8), BUFFER_SIZE)) {
+            String header = in.readLine();
+            if (header == null) {
+                throw new IOException("Invitation file " + file + " is empty");
+            }
+            List<String> columns = Arrays.asList(header.strip().split(","));
+            int [] order = {
+                    column(columns, "RegYear", file),
+                    column(columns, "CityId", file),
+                    column(columns, "InvitorCityId", file),
+                    column(columns, "w", file)
+            };
+            int [][] data = new int[4][1 << 16];
+            int [] fields = new int[columns.size()];
+            int count = 0;
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                parseFields(line, fields, file);
+                if (count == data[0].length) {
+                    for (int c=0; c < data.length; c++) {
+                        data[c] = Arrays.copyOf(data[c], count * 2);
+                    }
+                }
+                for (int c=0; c < data.length; c++) {
+                    data[c][count] = fields[order[c]];
+                }
+                count++;
+            }
+            log.info("Read {} invitation counts from {}", count, file);
+            return groupByYear(data, count);
+        }
+    }
+
+    private static int column(List<String> columns, String name, File file) throws IOException {
+        int result = columns.indexOf(name);
+        if (result < 0) {
+            throw new IOException("Column " + name + " not found in " + file);
+        }
+        return result;
+    }
+
+    /**
+     * Parses the comma separated integers of a line without splitting it into strings.
+     */
+    private static void parseFields(String line, int [] fields, File file) throws IOException {
+        int field = 0;
+        int value = 0;
+        boolean negative = false;
+        boolean digits = false;
+        for (int i=0; i <= line.length(); i++) {
+            char c = i < line.length() ? line.charAt(i) : ',';
+            if (c >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+                digits = true;
+            }
+            else if (c == ',') {
+                if (!digits || field == fields.length) {
+                    throw new IOException("Invalid row '" + line + "' in " + file);
+                }
+                fields[field++] = negative ? -value : value;
+                value = 0;
+                negative = false;
+                digits = false;
+            }
+            else if (c == '-' && !digits) {
+                negative = true;
+            }
+            else if (c != ' ' && c != '\r') {
+                throw new IOException("Invalid row '" + line + "' in " + file);
+            }
+        }
+        if (field != fields.length) {
+            throw new IOException("Invalid row '" + line + "' in " + file);
+        }
+    }
+
+    private static InvitationCounts groupByYear(int [][] data, int count) {
+        int [] rowYears = data[0];
+        int [] years = Arrays.stream(rowYears, 0, count).distinct().sorted().toArray();
+        int [] starts = new int[years.length + 1];
+        for (int r=0; r < count; r++) {
+            starts[Arrays.binarySearch(years, rowYears[r]) + 1]++;
+        }
+        for (int y=0; y < years.length; y++) {
+            starts[y + 1] += starts[y];
+        }
+        // A stable counting sort, the rows of a year keep their order in the file
+        int [] next = Arrays.copyOf(starts, years.length);
+        int [] cityIds = new int[count];
+        int [] invitorIds = new int[count];
+        int [] weights = new int[count];
+        for (int r=0; r < count; r++) {
+            int k = next[Arrays.binarySearch(years, rowYears[r])]++;
+            cityIds[k] = data[1][r];
+            invitorIds[k] = data[2][r];
+            weights[k] = data[3][r];
+        }
+        return new InvitationCounts(years, starts, cityIds, invitorIds, weights);
+    }
+
+    public int size() {
+        return cityIds.length;
+    }
+
+    /**
+     * Returns the registration years in ascending order.
+     */
+    public int [] getYears() {
+        return years.clone();
+    }
+
+    /**
+     * Returns the first row of the year with the given index in {@link #getYears()}.
+     */
+    public int start(int yearIndex) {
+        return starts[yearIndex];
+    }
+
+    /**
+     * Returns the row after the last row of the year with the given index in {@link #getYears()}.
+     */
+    public int end(int yearIndex) {
+        return starts[yearIndex + 1];
+    }
+
+    public int getCityId(int row) {
+        return cityIds[row];
+    }
+
+    public int getInvitorId(int row) {
+        return invitorIds[row];
+    }
+
+    public int getWeight(int row) {
+        return weights[row];
+    }
+
+}
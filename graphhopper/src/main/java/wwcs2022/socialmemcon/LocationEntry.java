@@ -25,6 +25,12 @@ public class LocationEntry {
         this.lng = Double.parseDouble(split[2].strip());
     }
 
+    public LocationEntry(String name, double lat, double lng) {
+        this.name = name;
+        this.lat = lat;
+        this.lng = lng;
+    }
+
     public String getName() {
         return name;
     }
@@ -1,11 +1,13 @@
 package wwcs2022.socialmemcon;
 
+import com.graphhopper.GraphHopper;
 import org.slf4j.LoggerFactory;
 import org.slf4j.Logger;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Future;
 
 public class Main {
 
@@ -16,13 +18,42 @@ public class Main {
     private static final String COORDINATES_FILE = "coordinates.txt";
     private static final String RESTRICTIONS_FILE = "restrictions.txt";
     private static final String OUTPUT_PREFIX = "output_";
+    private static final String INVITATIONS_FILE = "../data/invitation_counts.csv.gz";
+    private static final String CITIES_FILE = "../data/cities_final.csv";
     private static final String VEHICLE = "car";
     private static final String PROFILE = "car";
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+    // Download the extract again when Geofabrik published a newer one, which invalidates all imports and caches
+    private static final boolean REFRESH_DATA = false;
+    private static final int DOWNLOAD_SEGMENTS = 4;
+    // Route all years on the graph of the current network by blocking restricted edges, instead of importing a
+    // filtered network per year
+    private static final boolean SINGLE_GRAPH = false;
+    // Keep only the car road network in the filtered datasets, which makes their imports much faster
+    private static final boolean REDUCE_NETWORK = true;
+    // Graphs of the years that stay loaded, memory-mapped, while the matrices are computed
+    private static final int RESIDENT_GRAPHS = GraphPool.DEFAULT_RESIDENT;
+    // Compute the population every city reaches within distance and time thresholds on every imported graph
+    private static final boolean ACCESSIBILITY = false;
+    // Rank the restrictions by the invitation-weighted distance their removal alone adds to the current network
+    private static final boolean CRITICALITY = false;
 
     private static final Logger log = LoggerFactory.getLogger(Main.class);
 
     public static void main(String [] args) throws IOException {
+        try {
+            run();
+        }
+        finally {
+            long routingMs = Metrics.getCount("routing.timeMs");
+            if (routingMs > 0) {
+                Metrics.set("routing.pairsPerSecond", Metrics.getCount("routing.pairs") * 1000 / routingMs);
+            }
+            Metrics.writeSummary(new File(OUTPUT_PREFIX+"-run.json"));
+        }
+    }
 
+    private static void run() throws IOException {
         File coorFile = new File(COORDINATES_FILE);
         File resFile = new File(RESTRICTIONS_FILE);
 
@@ -51,23 +82,264 @@ public class Main {
         log.info("{} restriction entries read from input file", restrictions.size());
 
 
-        if (!Downloader.downloadFile(PBF_LOCATION, DATA_FILE)) {
-            log.info("Unable to obtain data file. Exiting");
-            return;
+        try (Metrics.Stage stage = Metrics.stage("download")) {
+            Downloader downloader = new Downloader().setRefresh(REFRESH_DATA).setSegments(DOWNLOAD_SEGMENTS);
+            if (!downloader.download(PBF_LOCATION, DATA_FILE)) {
+                log.info("Unable to obtain data file. Exiting");
+                return;
+            }
+        }
+        log.info("Opening distance caches");
+        File distanceCacheDir = new File(GH_CACHE_DIR, "distances");
+        String profile = RoutingMain.Weighting.SHORTEST.getProfileForVehicle(VEHICLE);
+        String graphConfig = graphConfig();
+        DistanceCache baseCache = DistanceCache.open(distanceCacheDir, profile,
+                Fingerprints.graph(new File(DATA_FILE), List.of(), graphConfig));
+        Map<Integer,DistanceCache> caches = new TreeMap<>();
+        for (var entry : FilterBridgesMain.getSubLists(restrictions).entrySet()) {
+            caches.put(entry.getKey(), DistanceCache.open(distanceCacheDir, profile,
+                    Fingerprints.graph(new File(DATA_FILE), entry.getValue(), graphConfig)));
+        }
+
+        ArtifactStore store = ArtifactStore.open(new File(GH_CACHE_DIR, "manifest.properties"));
+        File matrixFile = new File(OUTPUT_PREFIX+"-all.bin");
+        List<String> graphs = new ArrayList<>();
+        graphs.add(baseCache.getFingerprint());
+        caches.values().forEach(cache -> graphs.add(cache.getFingerprint()));
+        String matrixKey = Fingerprints.matrices(profile, locations, graphs);
+        if (store.isCurrent(matrixFile, matrixKey)) {
+            log.info("Distance matrices in {} are up to date", matrixFile);
+        }
+        else {
+            computeMatrices(locations, restrictions, store, baseCache, caches, matrixFile, matrixKey);
+        }
+
+        DistanceMatrix baseDistances;
+        DistanceStack distances;
+        try (MatrixFile file = MatrixFile.open(matrixFile)) {
+            baseDistances = file.toMatrix(MatrixFile.BASE);
+            distances = file.toStack();
+        }
+        try (Metrics.Stage stage = Metrics.stage("export.pairs")) {
+            log.info("Writing pairs");
+            PairCsvWriter.writePairs(baseDistances, distances, new File(OUTPUT_PREFIX+"-pairs.csv.gz"));
+        }
+        try (Metrics.Stage stage = Metrics.stage("export.spreadsheet")) {
+            log.info("Writing spreadsheets");
+            SpreadsheetWriter.writeBigSpreadsheet(baseDistances, distances, new File(OUTPUT_PREFIX+"-all.xlsx"));
+        }
+        if (new File(INVITATIONS_FILE).exists() && new File(CITIES_FILE).exists()) {
+            InvitationCounts invitations = InvitationCounts.read(new File(INVITATIONS_FILE));
+            Cities cities = Cities.read(new File(CITIES_FILE));
+            try (Metrics.Stage stage = Metrics.stage("analytics")) {
+                log.info("Analysing invitations");
+                new SocialAnalytics(invitations, cities, baseDistances, distances).analyse()
+                        .write(OUTPUT_PREFIX+"-analytics-");
+            }
+            if (CRITICALITY) {
+                try (Metrics.Stage stage = Metrics.stage("criticality")) {
+                    log.info("Ranking bridge criticality");
+                    String baseCacheDir = GH_CACHE_DIR+"/now";
+                    RoutingMain.ensureImported(baseDataFile(), baseCacheDir, VEHICLE, store);
+                    GraphHopper hopper = RoutingMain.createGraphHopperInstance(baseDataFile(), baseCacheDir, VEHICLE);
+                    try {
+                        ScenarioGraph graph = new ScenarioGraph(hopper, restrictions);
+                        BridgeCriticality.write(new BridgeCriticality(graph, locations, invitations, cities)
+                                .rank(profile, THREADS), new File(OUTPUT_PREFIX+"-criticality.csv"));
+                    }
+                    finally {
+                        hopper.close();
+                    }
+                }
+            }
+        }
+        if (ACCESSIBILITY && new File(CITIES_FILE).exists()) {
+            try (Metrics.Stage stage = Metrics.stage("accessibility")) {
+                log.info("Computing accessibility");
+                computeAccessibility(Cities.read(new File(CITIES_FILE)), restrictions, store);
+            }
         }
-        log.info("Processing datasets");
-        var datasets = FilterBridgesMain.processAll(restrictions, DATA_FILE, "data/network-", ".osm.pbf");
-        log.info("Datasets: {}", datasets);
-        log.info("Setting up routing engines");
-        var hoppers = RoutingMain.createInstances(datasets, GH_CACHE_DIR, VEHICLE);
-        log.info("Hoppers: {}", hoppers);
-        var baseHopper = RoutingMain.createGraphHopperInstance(DATA_FILE, GH_CACHE_DIR+"/now", VEHICLE);
-        log.info("Computing distances");
-        var baseDistances = RoutingMain.computeDistances(locations, baseHopper, VEHICLE, RoutingMain.Weighting.SHORTEST);
-        var distances = RoutingMain.computeDistances(locations, hoppers, VEHICLE, RoutingMain.Weighting.SHORTEST);
-        log.info("Writing spreadsheets");
-        SpreadsheetWriter.writeBigSpreadsheet(baseDistances, distances, new File(OUTPUT_PREFIX+"-all.xlsx"));
         log.info("Finished processing");
     }
 
+    /**
+     * Returns the dataset the graph of the current network is imported from, the reduced current network written
+     * with the filtered datasets if those are reduced.
+     */
+    private static String baseDataFile() {
+        return SINGLE_GRAPH || !REDUCE_NETWORK ? DATA_FILE : "data/network-now.osm.pbf";
+    }
+
+    /**
+     * Returns a description of everything besides the input and the restrictions that changes the graphs the
+     * distances are computed on: the mode, the reduction of the filtered datasets and the routing engine.
+     */
+    private static String graphConfig() {
+        return "singleGraph=" + SINGLE_GRAPH
+                + "\nreduction=" + (REDUCE_NETWORK ? NetworkReduction.CAR.describe() : "none")
+                + "\n" + RoutingMain.graphConfig(VEHICLE);
+    }
+
+    /**
+     * Computes the accessibility of the cities on the current network and in every year of the restrictions, on the
+     * scenario graph in single graph mode and on the graphs of the filtered datasets otherwise.
+     */
+    private static void computeAccessibility(Cities cities, List<RestrictionEntry> restrictions, ArtifactStore store)
+            throws IOException {
+        Set<Integer> years = FilterBridgesMain.getSubLists(restrictions).keySet();
+        Map<Accessibility.Measure,Map<String,Accessibility.Result>> results =
+                new EnumMap<>(Accessibility.Measure.class);
+        for (Accessibility.Measure measure : Accessibility.Measure.values()) {
+            results.put(measure, new TreeMap<>());
+        }
+        if (SINGLE_GRAPH) {
+            String baseCacheDir = GH_CACHE_DIR+"/now";
+            RoutingMain.ensureImported(DATA_FILE, baseCacheDir, VEHICLE, store);
+            GraphHopper hopper = RoutingMain.createGraphHopperInstance(DATA_FILE, baseCacheDir, VEHICLE);
+            try {
+                ScenarioGraph graph = new ScenarioGraph(hopper, restrictions);
+                for (Accessibility.Measure measure : Accessibility.Measure.values()) {
+                    Accessibility accessibility = accessibility(cities, measure);
+                    results.get(measure).put(DistanceService.BASE, accessibility.compute(graph, VEHICLE, new BitSet()));
+                    for (int year : years) {
+                        results.get(measure).put(""+year,
+                                accessibility.compute(graph, VEHICLE, graph.restrictionsForYear(year)));
+                    }
+                }
+            }
+            finally {
+                hopper.close();
+            }
+        }
+        else {
+            Map<Integer,File> datasets = filterDatasets(restrictions, store);
+            String baseData = datasets.containsKey(FilterBridgesMain.CURRENT)
+                    ? datasets.remove(FilterBridgesMain.CURRENT).getPath() : DATA_FILE;
+            GraphPool<String> graphs = new GraphPool<>(RESIDENT_GRAPHS);
+            ImportScheduler scheduler = ImportScheduler.withDefaultBudget(GraphPool.MMAP);
+            try {
+                List<Future<?>> imports = new ArrayList<>();
+                String baseCacheDir = GH_CACHE_DIR+"/now";
+                imports.add(scheduler.submit(baseData, baseCacheDir, VEHICLE, store));
+                graphs.register(DistanceService.BASE, baseData, baseCacheDir, VEHICLE);
+                for (var entry : datasets.entrySet()) {
+                    String cacheDir = GH_CACHE_DIR+"/"+entry.getKey();
+                    imports.add(scheduler.submit(entry.getValue().getPath(), cacheDir, VEHICLE, store));
+                    graphs.register(""+entry.getKey(), entry.getValue().getPath(), cacheDir, VEHICLE);
+                }
+                imports.forEach(ImportScheduler::await);
+            }
+            finally {
+                scheduler.shutdown();
+            }
+            try (graphs) {
+                for (Accessibility.Measure measure : Accessibility.Measure.values()) {
+                    results.put(measure, accessibility(cities, measure).computeAll(graphs, VEHICLE));
+                }
+            }
+        }
+        Accessibility.write(results.get(Accessibility.Measure.DISTANCE),
+                new File(OUTPUT_PREFIX+"-accessibility-distance.csv"));
+        Accessibility.write(results.get(Accessibility.Measure.TIME),
+                new File(OUTPUT_PREFIX+"-accessibility-time.csv"));
+    }
+
+    private static Accessibility accessibility(Cities cities, Accessibility.Measure measure) {
+        return new Accessibility(cities, measure, measure == Accessibility.Measure.DISTANCE
+                ? Accessibility.DEFAULT_DISTANCES_KM : Accessibility.DEFAULT_TIMES_MIN, THREADS);
+    }
+
+    /**
+     * Writes the filtered dataset of every year, and of the reduced current network under
+     * {@link FilterBridgesMain#CURRENT} if the datasets are reduced, unless they are up to date.
+     */
+    private static Map<Integer,File> filterDatasets(List<RestrictionEntry> restrictions, ArtifactStore store)
+            throws IOException {
+        try (Metrics.Stage stage = Metrics.stage("filter")) {
+            log.info("Processing datasets");
+            Map<Integer,File> datasets = FilterBridgesMain.processAll(restrictions, DATA_FILE, "data/network-",
+                    ".osm.pbf", store, REDUCE_NETWORK ? NetworkReduction.CAR : null);
+            log.info("Datasets: {}", datasets);
+            return datasets;
+        }
+    }
+
+    /**
+     * Computes the base matrix and the matrix of every year, building the filtered datasets and graphs that are not
+     * up to date, and writes them to the matrix file.
+     */
+    private static void computeMatrices(List<LocationEntry> locations, List<RestrictionEntry> restrictions,
+                                        ArtifactStore store, DistanceCache baseCache,
+                                        Map<Integer,DistanceCache> caches, File matrixFile, String matrixKey)
+            throws IOException {
+        String baseCacheDir = GH_CACHE_DIR+"/now";
+        DistanceMatrix baseDistances;
+        DistanceStack distances;
+        if (SINGLE_GRAPH) {
+            log.info("Setting up routing engine");
+            GraphHopper baseHopper;
+            ScenarioGraph graph;
+            try (Metrics.Stage stage = Metrics.stage("import")) {
+                RoutingMain.ensureImported(DATA_FILE, baseCacheDir, VEHICLE, store);
+                baseHopper = RoutingMain.createGraphHopperInstance(DATA_FILE, baseCacheDir, VEHICLE);
+                graph = new ScenarioGraph(baseHopper, restrictions);
+            }
+            try (Metrics.Stage stage = Metrics.stage("routing")) {
+                log.info("Computing distances");
+                baseDistances = RoutingMain.computeMatrix(locations, baseHopper, VEHICLE,
+                        RoutingMain.Weighting.SHORTEST, THREADS, baseCache);
+                distances = RoutingMain.computeScenarioMatrices(locations, graph, caches.keySet(), VEHICLE,
+                        RoutingMain.Weighting.SHORTEST, THREADS, caches);
+            }
+            finally {
+                baseHopper.close();
+            }
+        }
+        else {
+            Map<Integer,File> datasets = filterDatasets(restrictions, store);
+            // The base graph is built from the reduced current network when the years are reduced
+            String baseData = datasets.containsKey(FilterBridgesMain.CURRENT)
+                    ? datasets.remove(FilterBridgesMain.CURRENT).getPath() : DATA_FILE;
+            GraphHopper baseHopper;
+            GraphPool<Integer> hoppers;
+            // The graphs of the years keep importing in the background while the first matrices are computed
+            try (Metrics.Stage stage = Metrics.stage("import")) {
+                log.info("Setting up routing engines");
+                ImportScheduler scheduler = ImportScheduler.withDefaultBudget(GraphPool.MMAP);
+                var baseImport = scheduler.submit(baseData, baseCacheDir, VEHICLE, store);
+                hoppers = RoutingMain.createPool(datasets, GH_CACHE_DIR, VEHICLE, scheduler, store,
+                        RESIDENT_GRAPHS);
+                ImportScheduler.await(baseImport);
+                scheduler.shutdown();
+                log.info("Hoppers: {}", hoppers.keys());
+                baseHopper = RoutingMain.createGraphHopperInstance(baseData, baseCacheDir, VEHICLE);
+            }
+            try (Metrics.Stage stage = Metrics.stage("routing")) {
+                log.info("Computing distances");
+                try {
+                    baseDistances = RoutingMain.computeMatrix(locations, baseHopper, VEHICLE,
+                            RoutingMain.Weighting.SHORTEST, THREADS, baseCache);
+                }
+                finally {
+                    // Frees the base graph before the years are routed
+                    baseHopper.close();
+                }
+                distances = RoutingMain.computeMatrices(locations, hoppers, VEHICLE, RoutingMain.Weighting.SHORTEST,
+                        THREADS, caches);
+            }
+            finally {
+                hoppers.close();
+            }
+        }
+        try (Metrics.Stage stage = Metrics.stage("export.matrices")) {
+            log.info("Writing distance matrices");
+            Map<Integer,String> fingerprints = new TreeMap<>();
+            caches.forEach((year, cache) -> fingerprints.put(year, cache.getFingerprint()));
+            File temp = store.tempFor(matrixFile);
+            MatrixFile.write(temp, baseCache.getProfile(), baseDistances, baseCache.getFingerprint(), distances,
+                    fingerprints);
+            store.commit(temp, matrixFile, matrixKey);
+        }
+    }
+
 }
@@ -0,0 +1,425 @@
+package wwcs2022.socialmemcon;
+
+import com.graphhopper.GraphHopper;
+import com.graphhopper.coll.MinHeapWithUpdate;
+import com.graphhopper.routing.ch.ShortcutUnpacker;
+import com.graphhopper.routing.querygraph.QueryRoutingCHGraph;
+import com.graphhopper.storage.RoutingCHEdgeExplorer;
+import com.graphhopper.storage.RoutingCHEdgeIterator;
+import com.graphhopper.storage.RoutingCHEdgeIteratorState;
+import com.graphhopper.storage.RoutingCHGraph;
+import com.graphhopper.util.EdgeIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * Computes many-to-many distance matrices on the contraction hierarchy of a GraphHopper instance. A backward upward
+ * search is run from every target and its search space is stored in buckets at the nodes it reaches. A forward
+ * upward search from every source then scans the buckets of the nodes it settles, so a matrix of S sources and
+ * T targets costs S + T small searches instead of S * T point-to-point queries.
+ *
+ * Only distances are computed, paths are never unpacked. The distance of each edge of the hierarchy is summed along
+ * with its weight, where the distance of a shortcut is computed from its original edges the first time it is
+ * reached and then remembered.
+ *
+ * The searches are spread over a work-stealing pool with the configured number of threads. Each search is
+ * independent and the buckets are assembled in target order, so the result does not depend on the number of
+ * threads. Every search keeps two arrays of doubles with one entry per graph node. The calculator keeps its searches
+ * and the distances of the edges of the hierarchy between matrices, so a calculator that computes many small
+ * matrices on one graph allocates them once.
+ *
+ * Each location is snapped once per matrix through a {@link SnapIndex}, or not at all when an index of the graph is
+ * passed in.
+ */
+public class MatrixCalculator {
+
+    private static final Logger log = LoggerFactory.getLogger(MatrixCalculator.class);
+
+    public static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+
+    private final GraphHopper hopper;
+    private final String profile;
+    private final int threads;
+    // The distances of the edges and shortcuts of the hierarchy, NaN until computed. Virtual edges differ between
+    // matrices and are not remembered.
+    private final float [] edgeDistances;
+    // Idle searches, bound to the query graph of the next matrix that takes them
+    private final Queue<Search> forwardSearches = new ConcurrentLinkedQueue<>();
+    private final Queue<Search> backwardSearches = new ConcurrentLinkedQueue<>();
+
+    public MatrixCalculator(GraphHopper hopper, String profile) {
+        this(hopper, profile, DEFAULT_THREADS);
+    }
+
+    public MatrixCalculator(GraphHopper hopper, String profile, int threads) {
+        this.hopper = hopper;
+        this.profile = profile;
+        this.threads = threads;
+        this.edgeDistances = new float[hopper.getGraphHopperStorage().getRoutingCHGraph(profile).getEdges()];
+        Arrays.fill(edgeDistances, Float.NaN);
+    }
+
+    public GraphHopper getHopper() {
+        return hopper;
+    }
+
+    /**
+     * Returns the distances in meters from every source to every target, indexed as [source][target]. Pairs that
+     * cannot be routed, because a location could not be snapped to the road network or no connection exists, are
+     * NaN.
+     */
+    public double [][] calcDistances(List<LocationEntry> sources, List<LocationEntry> targets) {
+        return calcDistances(SnapIndex.create(hopper, profile, SnapIndex.union(sources, targets)), sources, targets);
+    }
+
+    /**
+     * Returns the distances like {@link #calcDistances(List, List)} between locations that were already snapped to
+     * the graph of this calculator.
+     */
+    public double [][] calcDistances(SnapIndex snaps, List<LocationEntry> sources, List<LocationEntry> targets) {
+        PipelineEvents.MatrixEvent event = new PipelineEvents.MatrixEvent();
+        event.begin();
+        long start = System.nanoTime();
+        if (!snaps.getProfile().equals(profile)) {
+            throw new IllegalArgumentException("Locations were snapped for " + snaps.getProfile() + ", not " + profile);
+        }
+        int [] sourceNodes = snaps.nodes(sources);
+        int [] targetNodes = snaps.nodes(targets);
+        RoutingCHGraph chGraph = new QueryRoutingCHGraph(
+                hopper.getGraphHopperStorage().getRoutingCHGraph(profile), snaps.getQueryGraph());
+        Context context = new Context(chGraph, snaps.getBaseNodes(), edgeDistances);
+
+        double [][] result = new double[sources.size()][targets.size()];
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            Buckets buckets = collectBuckets(pool, context, targetNodes);
+            ThreadLocal<double []> weightRows = ThreadLocal.withInitial(() -> new double[targets.size()]);
+            Progress progress = new Progress("Forward searches for " + profile, sources.size());
+            Metrics.Histogram latencies = Metrics.histogram("routing.forwardSearch");
+            runParallel(pool, sources.size(), s -> {
+                Arrays.fill(result[s], Double.NaN);
+                if (sourceNodes[s] >= 0) {
+                    long searchStart = System.nanoTime();
+                    double [] distances = result[s];
+                    double [] weights = weightRows.get();
+                    Arrays.fill(weights, Double.POSITIVE_INFINITY);
+                    Search search = take(forwardSearches, context, false);
+                    try {
+                        search.run(sourceNodes[s], (node, weight, distance) -> {
+                            for (int k=buckets.start[node]; k < buckets.start[node + 1]; k++) {
+                                int t = buckets.targets[k];
+                                double w = weight + buckets.weights[k];
+                                if (w < weights[t]) {
+                                    weights[t] = w;
+                                    distances[t] = distance + buckets.distances[k];
+                                }
+                            }
+                        });
+                    }
+                    finally {
+                        forwardSearches.add(search);
+                    }
+                    latencies.record(System.nanoTime() - searchStart);
+                }
+                progress.increment();
+            });
+            progress.finish();
+        }
+        finally {
+            pool.shutdown();
+        }
+        report(event, profile, sources, targets, sourceNodes, targetNodes, result, System.nanoTime() - start);
+        return result;
+    }
+
+    /**
+     * Logs the pairs between snapped locations without a route and records the size, the failures and the
+     * throughput of a matrix in the run {@link Metrics} and as a JFR event.
+     */
+    static void report(PipelineEvents.MatrixEvent event, String profile, List<LocationEntry> sources,
+                       List<LocationEntry> targets, int [] sourceNodes, int [] targetNodes, double [][] result,
+                       long nanos) {
+        long failed = 0;
+        for (int s=0; s < sources.size(); s++) {
+            for (int t=0; t < targets.size(); t++) {
+                if (sourceNodes[s] >= 0 && targetNodes[t] >= 0 && Double.isNaN(result[s][t])) {
+                    log.error("No route found from {} to {}", sources.get(s).getName(), targets.get(t).getName());
+                    failed++;
+                }
+            }
+        }
+        int unsnapped = (int) (Arrays.stream(sourceNodes).filter(node -> node < 0).count()
+                + Arrays.stream(targetNodes).filter(node -> node < 0).count());
+        long pairs = (long) sources.size() * targets.size();
+        Metrics.count("routing.pairs", pairs);
+        Metrics.count("routing.failedPairs", failed);
+        Metrics.count("routing.unsnapped", unsnapped);
+        Metrics.count("routing.timeMs", nanos / 1_000_000);
+        Metrics.histogram("routing.matrix").record(nanos);
+        log.info("Computed {} pairs for {} in {} ms ({} pairs/s), {} without a route", pairs, profile,
+                nanos / 1_000_000, (long) (pairs / Math.max(1e-9, nanos / 1e9)), failed);
+        event.end();
+        if (event.shouldCommit()) {
+            event.profile = profile;
+            event.sources = sources.size();
+            event.targets = targets.size();
+            event.failedPairs = failed;
+            event.unsnapped = unsnapped;
+            event.commit();
+        }
+    }
+
+    private Buckets collectBuckets(ForkJoinPool pool, Context context, int [] targetNodes) {
+        // Run the backward searches first and keep their search spaces, then sort them by node in target order
+        Entries [] spaces = new Entries[targetNodes.length];
+        Progress progress = new Progress("Backward searches for " + profile, targetNodes.length);
+        runParallel(pool, targetNodes.length, t -> {
+            Entries entries = new Entries();
+            if (targetNodes[t] >= 0) {
+                Search search = take(backwardSearches, context, true);
+                try {
+                    search.run(targetNodes[t], entries::add);
+                }
+                finally {
+                    backwardSearches.add(search);
+                }
+            }
+            spaces[t] = entries;
+            progress.increment();
+        });
+        progress.finish();
+
+        int size = 0;
+        for (Entries entries : spaces) {
+            size += entries.size;
+        }
+        Buckets buckets = new Buckets(context.graph.getNodes(), size);
+        for (Entries entries : spaces) {
+            for (int i=0; i < entries.size; i++) {
+                buckets.start[entries.nodes[i] + 1]++;
+            }
+        }
+        for (int n=0; n < context.graph.getNodes(); n++) {
+            buckets.start[n + 1] += buckets.start[n];
+        }
+        int [] next = Arrays.copyOf(buckets.start, buckets.start.length);
+        for (int t=0; t < spaces.length; t++) {
+            Entries entries = spaces[t];
+            for (int i=0; i < entries.size; i++) {
+                int k = next[entries.nodes[i]]++;
+                buckets.targets[k] = t;
+                buckets.weights[k] = entries.weights[i];
+                buckets.distances[k] = entries.distances[i];
+            }
+        }
+        return buckets;
+    }
+
+    /**
+     * Returns an idle search of the queue, or a new one, bound to the context. The caller returns it to the queue.
+     */
+    private static Search take(Queue<Search> searches, Context context, boolean reverse) {
+        Search search = searches.poll();
+        return (search == null ? new Search(reverse) : search).bind(context);
+    }
+
+    private static void runParallel(ForkJoinPool pool, int count, IntConsumer task) {
+        try {
+            pool.submit(() -> IntStream.range(0, count).parallel().forEach(task)).get();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while computing distances", ex);
+        }
+        catch (ExecutionException ex) {
+            throw new IllegalStateException("Error while computing distances", ex.getCause());
+        }
+    }
+
+    /**
+     * State shared between all searches of one matrix computation.
+     */
+    private static final class Context {
+        private final RoutingCHGraph graph;
+        private final int baseNodes;
+        private final float [] edgeDistances;
+
+        private Context(RoutingCHGraph graph, int baseNodes, float [] edgeDistances) {
+            this.graph = graph;
+            this.baseNodes = baseNodes;
+            this.edgeDistances = edgeDistances;
+        }
+    }
+
+    /**
+     * An upward search in the contraction hierarchy that settles every node it can reach. Reuses its arrays between
+     * runs, so only the nodes touched by the previous run are reset, and between matrices, where it is bound to the
+     * query graph of each. The arrays only grow when a query graph has more virtual nodes than any before.
+     */
+    private static final class Search {
+        // Room for the virtual nodes of later query graphs
+        private static final int SPARE_NODES = 1024;
+
+        private final boolean reverse;
+        private Context context;
+        private RoutingCHEdgeExplorer explorer;
+        private ShortcutUnpacker unpacker;
+        private double [] weights = new double[0];
+        private double [] distances;
+        private MinHeapWithUpdate heap;
+        private int [] touched = new int[1024];
+        private int touchedCount;
+        private double unpacked;
+
+        private Search(boolean reverse) {
+            this.reverse = reverse;
+        }
+
+        private Search bind(Context context) {
+            if (this.context == context) {
+                return this;
+            }
+            this.context = context;
+            RoutingCHGraph graph = context.graph;
+            this.explorer = reverse ? graph.createInEdgeExplorer() : graph.createOutEdgeExplorer();
+            this.unpacker = new ShortcutUnpacker(graph, (edge, r, prev) -> unpacked += edge.getDistance(), false);
+            if (graph.getNodes() > weights.length) {
+                int nodes = graph.getNodes() + SPARE_NODES;
+                this.weights = new double[nodes];
+                this.distances = new double[nodes];
+                this.heap = new MinHeapWithUpdate(nodes);
+                this.touchedCount = 0;
+                Arrays.fill(weights, Double.POSITIVE_INFINITY);
+            }
+            return this;
+        }
+
+        private void run(int start, SettledVisitor visitor) {
+            for (int i=0; i < touchedCount; i++) {
+                weights[touched[i]] = Double.POSITIVE_INFINITY;
+            }
+            touchedCount = 0;
+            heap.clear();
+            touch(start, 0, 0);
+            heap.push(start, 0);
+            while (!heap.isEmpty()) {
+                int node = heap.poll();
+                double weight = weights[node];
+                double distance = distances[node];
+                visitor.settled(node, weight, distance);
+                RoutingCHEdgeIterator iter = explorer.setBaseNode(node);
+                while (iter.next()) {
+                    if (!accept(iter)) {
+                        continue;
+                    }
+                    double edgeWeight = iter.getWeight(reverse);
+                    if (Double.isInfinite(edgeWeight)) {
+                        continue;
+                    }
+                    int adj = iter.getAdjNode();
+                    double newWeight = weight + edgeWeight;
+                    if (newWeight < weights[adj]) {
+                        boolean queued = !Double.isInfinite(weights[adj]);
+                        touch(adj, newWeight, distance + edgeDistance(iter));
+                        if (queued) {
+                            heap.update(adj, (float) newWeight);
+                        }
+                        else {
+                            heap.push(adj, (float) newWeight);
+                        }
+                    }
+                }
+            }
+        }
+
+        private void touch(int node, double weight, double distance) {
+            if (Double.isInfinite(weights[node])) {
+                if (touchedCount == touched.length) {
+                    touched = Arrays.copyOf(touched, touchedCount * 2);
+                }
+                touched[touchedCount++] = node;
+            }
+            weights[node] = weight;
+            distances[node] = distance;
+        }
+
+        private boolean accept(RoutingCHEdgeIteratorState edge) {
+            int base = edge.getBaseNode();
+            int adj = edge.getAdjNode();
+            // Edges of virtual nodes are always accepted, shortcuts in the wrong direction are not stored
+            if (base >= context.baseNodes || adj >= context.baseNodes || edge.isShortcut()) {
+                return true;
+            }
+            return context.graph.getLevel(base) <= context.graph.getLevel(adj);
+        }
+
+        private double edgeDistance(RoutingCHEdgeIteratorState edge) {
+            int id = edge.getEdge();
+            float [] memo = context.edgeDistances;
+            if (id < memo.length && !Float.isNaN(memo[id])) {
+                return memo[id];
+            }
+            double distance;
+            if (edge.isShortcut()) {
+                unpacked = 0;
+                unpacker.visitOriginalEdgesFwd(id, edge.getAdjNode(), false, EdgeIterator.NO_EDGE);
+                distance = unpacked;
+            }
+            else {
+                distance = context.graph.getBaseGraph()
+                        .getEdgeIteratorState(edge.getOrigEdge(), edge.getAdjNode()).getDistance();
+            }
+            if (id < memo.length) {
+                memo[id] = (float) distance;
+            }
+            return distance;
+        }
+    }
+
+    private interface SettledVisitor {
+        void settled(int node, double weight, double distance);
+    }
+
+    private static final class Entries {
+        private int size;
+        private int [] nodes = new int[256];
+        private double [] weights = new double[256];
+        private double [] distances = new double[256];
+
+        private void add(int node, double weight, double distance) {
+            if (size == nodes.length) {
+                nodes = Arrays.copyOf(nodes, size * 2);
+                weights = Arrays.copyOf(weights, size * 2);
+                distances = Arrays.copyOf(distances, size * 2);
+            }
+            nodes[size] = node;
+            weights[size] = weight;
+            distances[size] = distance;
+            size++;
+        }
+    }
+
+    private static final class Buckets {
+        private final int [] start;
+        private final int [] targets;
+        private final double [] weights;
+        private final double [] distances;
+
+        private Buckets(int nodes, int entries) {
+            this.start = new int[nodes + 1];
+            this.targets = new int[entries];
+            this.weights = new double[entries];
+            this.distances = new double[entries];
+        }
+    }
+
+}
@@ -0,0 +1,288 @@
+package wwcs2022.socialmemcon;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Binary file holding the base distance matrix and the matrix of every year for one profile, read through memory
+ * mapping so any pair can be looked up without loading the matrices onto the heap. This is the hand-off to the
+ * analysis; {@link #main} converts a file to the spreadsheet layout of {@link SpreadsheetWriter}.
+ *
+ * All numbers are little endian, strings are an int byte length followed by UTF-8 bytes. The header consists of
+ * the magic number, the format version, the offset of the distances, the profile, the number of locations, the
+ * locations (id, name, latitude, longitude) in id order, the number of layers and per layer the year
+ * ({@link #BASE} for the base matrix) and the fingerprint of its graph. It is padded to a multiple of 64 bytes and
+ * followed by one float block per layer, row-major and indexed by location id. Pairs without a distance are NaN.
+ * In numpy the distances are {@code np.memmap(file, '<f4', 'r', offset, (layers, n, n))}.
+ */
+public class MatrixFile implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(MatrixFile.class);
+
+    public static final int BASE = -1;
+
+    private static final int MAGIC = 0x57444d31;
+    private static final int VERSION = 1;
+    private static final int ALIGNMENT = 64;
+
+    private final FileChannel channel;
+    private final String profile;
+    private final List<LocationEntry> locations;
+    private final Map<String,Integer> index;
+    private final Map<Integer,Integer> layerIndex = new LinkedHashMap<>();
+    private final List<String> fingerprints = new ArrayList<>();
+    private final FloatBuffer [] layers;
+
+    private MatrixFile(FileChannel channel) throws IOException {
+        this.channel = channel;
+        ByteBuffer start = map(0, 12);
+        if (start.getInt() != MAGIC || start.getInt() != VERSION) {
+            throw new IOException("Not a distance matrix file of version " + VERSION);
+        }
+        int dataOffset = start.getInt();
+        ByteBuffer header = map(12, dataOffset - 12);
+        this.profile = getString(header);
+        int n = header.getInt();
+        List<LocationEntry> locs = new ArrayList<>(n);
+        for (int i=0; i < n; i++) {
+            if (header.getInt() != i) {
+                throw new IOException("Locations are not stored in id order");
+            }
+            locs.add(new LocationEntry(getString(header), header.getDouble(), header.getDouble()));
+        }
+        this.locations = Collections.unmodifiableList(locs);
+        this.index = DistanceMatrix.index(locations);
+        int layerCount = header.getInt();
+        this.layers = new FloatBuffer[layerCount];
+        long layerBytes = (long) n * n * Float.BYTES;
+        for (int l=0; l < layerCount; l++) {
+            layerIndex.put(header.getInt(), l);
+            fingerprints.add(getString(header));
+            layers[l] = map(dataOffset + l * layerBytes, layerBytes).asFloatBuffer();
+        }
+    }
+
+    public static MatrixFile open(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            return new MatrixFile(channel);
+        }
+        catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Writes the base matrix and the matrices of every year, each with the fingerprint of the graph it was computed
+     * on. The file is written to a temporary file first that then replaces the output.
+     */
+    public static void write(File output, String profile, DistanceMatrix baseDistances, String baseFingerprint,
+                             DistanceStack distances, Map<Integer,String> fingerprints) throws IOException {
+        List<LocationEntry> locations = baseDistances.getLocations();
+        int n = locations.size();
+        if (!distances.getLocations().equals(locations)) {
+            throw new IllegalArgumentException("The base and year matrices have different locations");
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(bos);
+        writeString(header, profile);
+        header.writeInt(Integer.reverseBytes(n));
+        for (int i=0; i < n; i++) {
+            LocationEntry loc = locations.get(i);
+            header.writeInt(Integer.reverseBytes(i));
+            writeString(header, loc.getName());
+            header.writeLong(Long.reverseBytes(Double.doubleToLongBits(loc.getLat())));
+            header.writeLong(Long.reverseBytes(Double.doubleToLongBits(loc.getLng())));
+        }
+        header.writeInt(Integer.reverseBytes(distances.getYears().size() + 1));
+        header.writeInt(Integer.reverseBytes(BASE));
+        writeString(header, baseFingerprint == null ? "" : baseFingerprint);
+        for (int year : distances.getYears()) {
+            String fingerprint = fingerprints.get(year);
+            header.writeInt(Integer.reverseBytes(year));
+            writeString(header, fingerprint == null ? "" : fingerprint);
+        }
+        header.flush();
+        int dataOffset = (12 + bos.size() + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+
+        File dir = output.getAbsoluteFile().getParentFile();
+        dir.mkdirs();
+        File temp = File.createTempFile("matrix", ".part", dir);
+        try (FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE)) {
+            ByteBuffer start = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+            start.putInt(MAGIC).putInt(VERSION).putInt(dataOffset).flip();
+            writeFully(out, start);
+            writeFully(out, ByteBuffer.wrap(bos.toByteArray()));
+            writeFully(out, ByteBuffer.allocate(dataOffset - 12 - bos.size()));
+            ByteBuffer row = ByteBuffer.allocate(n * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            float [] values = new float[n];
+            List<DistanceMatrix> matrices = new ArrayList<>();
+            matrices.add(baseDistances);
+            matrices.addAll(distances.matrices());
+            for (DistanceMatrix matrix : matrices) {
+                for (int from=0; from < n; from++) {
+                    row.clear();
+                    row.asFloatBuffer().put(matrix.copyRow(from, values));
+                    writeFully(out, row);
+                }
+            }
+        }
+        catch (IOException | RuntimeException ex) {
+            Files.deleteIfExists(temp.toPath());
+            throw ex;
+        }
+        Files.move(temp.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log.info("Written {} distance matrices of {} locations to {}", distances.getYears().size() + 1, n, output);
+    }
+
+    public String getProfile() {
+        return profile;
+    }
+
+    public List<LocationEntry> getLocations() {
+        return locations;
+    }
+
+    public int size() {
+        return locations.size();
+    }
+
+    /**
+     * Returns the years in the file in the order they are stored, excluding the base matrix.
+     */
+    public Set<Integer> getYears() {
+        Set<Integer> result = new LinkedHashSet<>(layerIndex.keySet());
+        result.remove(BASE);
+        return result;
+    }
+
+    public String getFingerprint(int year) {
+        return fingerprints.get(layer(year));
+    }
+
+    /**
+     * Returns the id of the location with the given name, or -1 if there is none.
+     */
+    public int indexOf(String name) {
+        Integer i = index.get(name);
+        return i == null ? -1 : i;
+    }
+
+    /**
+     * Returns the distance between two locations in the given year, or in the base matrix for {@link #BASE}. The
+     * distance is NaN if there is none.
+     */
+    public double get(int year, int from, int to) {
+        int n = locations.size();
+        if (from < 0 || from >= n || to < 0 || to >= n) {
+            throw new IndexOutOfBoundsException("Pair " + from + "," + to + " out of " + n + " locations");
+        }
+        return layers[layer(year)].get(from * n + to);
+    }
+
+    public double get(int year, String from, String to) {
+        int i = indexOf(from);
+        int j = indexOf(to);
+        return i < 0 || j < 0 ? Double.NaN : get(year, i, j);
+    }
+
+    /**
+     * Copies the matrix of the given year onto the heap.
+     */
+    public DistanceMatrix toMatrix(int year) {
+        DistanceMatrix result = new DistanceMatrix(locations);
+        copy(layers[layer(year)], result);
+        return result;
+    }
+
+    public DistanceStack toStack() {
+        DistanceStack result = new DistanceStack(locations, getYears());
+        for (int year : getYears()) {
+            copy(layers[layer(year)], result.get(year));
+        }
+        return result;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private int layer(int year) {
+        Integer l = layerIndex.get(year);
+        if (l == null) {
+            throw new IllegalArgumentException("No distances for year " + year);
+        }
+        return l;
+    }
+
+    private void copy(FloatBuffer layer, DistanceMatrix dest) {
+        int n = locations.size();
+        FloatBuffer buffer = layer.duplicate();
+        for (int from=0; from < n; from++) {
+            for (int to=0; to < n; to++) {
+                dest.set(from, to, buffer.get());
+            }
+        }
+    }
+
+    private ByteBuffer map(long position, long size) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte [] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes a string in the little endian layout of the file, which {@link DataOutputStream#writeUTF} does not use.
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte [] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(Integer.reverseBytes(bytes.length));
+        out.write(bytes);
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    /**
+     * Converts a matrix file to the spreadsheet layout, or to the CSV pair layout if the output name contains
+     * {@code .csv} or {@code .tsv}.
+     */
+    public static void main(String [] args) throws IOException {
+        if (args.length != 2) {
+            log.info("Usage: MatrixFile <matrix file> <output.xlsx|output.csv[.gz]>");
+            return;
+        }
+        File output = new File(args[1]);
+        try (MatrixFile file = MatrixFile.open(new File(args[0]))) {
+            DistanceMatrix base = file.toMatrix(BASE);
+            DistanceStack distances = file.toStack();
+            if (output.getName().contains(".csv") || output.getName().contains(".tsv")) {
+                PairCsvWriter.writePairs(base, distances, output);
+            }
+            else {
+                SpreadsheetWriter.writeBigSpreadsheet(base, distances, output);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,259 @@
+package wwcs2022.socialmemcon;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide run metrics: stages with their wall time and peak heap, counters, values and latency histograms.
+ * Everything can be written as a JSON run summary with {@link #writeSummary}, and stages are also recorded as JFR
+ * events (see {@link PipelineEvents}), so a recording shows them next to GC and allocation data.
+ *
+ * The peak heap of a stage is the highest used heap seen by a sampler thread that runs while any stage is open.
+ * All methods are thread-safe.
+ */
+public final class Metrics {
+
+    private static final Logger log = LoggerFactory.getLogger(Metrics.class);
+
+    private static final int HEAP_SAMPLE_INTERVAL_MS = 100;
+    private static final long START_NANOS = System.nanoTime();
+    private static final Instant START = Instant.now();
+
+    private static final List<Stage> stages = new CopyOnWriteArrayList<>();
+    private static final List<Stage> openStages = new CopyOnWriteArrayList<>();
+    private static final ConcurrentMap<String,LongAdder> counters = new ConcurrentSkipListMap<>();
+    private static final ConcurrentMap<String,Object> values = new ConcurrentSkipListMap<>();
+    private static final ConcurrentMap<String,Histogram> histograms = new ConcurrentSkipListMap<>();
+    private static final AtomicLong peakHeap = new AtomicLong();
+    private static final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private static ScheduledExecutorService sampler;
+
+    private Metrics() {
+    }
+
+    /**
+     * Starts a stage that ends when the returned stage is closed.
+     */
+    public static Stage stage(String name) {
+        Stage stage = new Stage(name);
+        stages.add(stage);
+        openStages.add(stage);
+        startSampler();
+        stage.sampleHeap(usedHeap());
+        return stage;
+    }
+
+    public static void count(String name, long delta) {
+        counters.computeIfAbsent(name, k -> new LongAdder()).add(delta);
+    }
+
+    public static long getCount(String name) {
+        LongAdder adder = counters.get(name);
+        return adder == null ? 0 : adder.sum();
+    }
+
+    public static void set(String name, Object value) {
+        values.put(name, value);
+    }
+
+    public static Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, k -> new Histogram());
+    }
+
+    /**
+     * Returns the run summary as nested maps, in the layout of the JSON summary.
+     */
+    public static Map<String,Object> summary() {
+        Map<String,Object> result = new LinkedHashMap<>();
+        result.put("start", START.toString());
+        result.put("wallTimeMs", (System.nanoTime() - START_NANOS) / 1_000_000);
+        result.put("peakHeapBytes", Math.max(peakHeap.get(), usedHeap()));
+        result.put("maxHeapBytes", Runtime.getRuntime().maxMemory());
+        result.put("processors", Runtime.getRuntime().availableProcessors());
+        List<Map<String,Object>> stageList = new ArrayList<>();
+        for (Stage stage : stages) {
+            stageList.add(stage.toMap());
+        }
+        result.put("stages", stageList);
+        Map<String,Object> counterMap = new LinkedHashMap<>();
+        counters.forEach((name, adder) -> counterMap.put(name, adder.sum()));
+        result.put("counters", counterMap);
+        result.put("values", new LinkedHashMap<>(values));
+        Map<String,Object> histogramMap = new LinkedHashMap<>();
+        histograms.forEach((name, histogram) -> histogramMap.put(name, histogram.toMap()));
+        result.put("histograms", histogramMap);
+        return result;
+    }
+
+    public static void writeSummary(File output) {
+        try {
+            new ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(output, summary());
+            log.info("Written run summary to {}", output);
+        }
+        catch (IOException ex) {
+            log.error("Unable to write run summary to {}", output, ex);
+        }
+    }
+
+    private static long usedHeap() {
+        long used = memory.getHeapMemoryUsage().getUsed();
+        peakHeap.accumulateAndGet(used, Math::max);
+        return used;
+    }
+
+    private static synchronized void startSampler() {
+        if (sampler != null) {
+            return;
+        }
+        sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "heap-sampler");
+            t.setDaemon(true);
+            return t;
+        });
+        sampler.scheduleAtFixedRate(() -> {
+            if (!openStages.isEmpty()) {
+                long used = usedHeap();
+                openStages.forEach(stage -> stage.sampleHeap(used));
+            }
+        }, HEAP_SAMPLE_INTERVAL_MS, HEAP_SAMPLE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * A timed part of the run. Closing a stage more than once has no effect.
+     */
+    public static final class Stage implements AutoCloseable {
+        private final String name;
+        private final long startNanos = System.nanoTime();
+        private final AtomicLong peakHeap = new AtomicLong();
+        private final PipelineEvents.StageEvent event = new PipelineEvents.StageEvent();
+        private volatile long endNanos = -1;
+
+        private Stage(String name) {
+            this.name = name;
+            event.begin();
+        }
+
+        private void sampleHeap(long used) {
+            peakHeap.accumulateAndGet(used, Math::max);
+        }
+
+        public long elapsedMillis() {
+            long end = endNanos < 0 ? System.nanoTime() : endNanos;
+            return (end - startNanos) / 1_000_000;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (endNanos >= 0) {
+                return;
+            }
+            sampleHeap(usedHeap());
+            endNanos = System.nanoTime();
+            openStages.remove(this);
+            event.end();
+            if (event.shouldCommit()) {
+                event.name = name;
+                event.peakHeap = peakHeap.get();
+                event.commit();
+            }
+            log.info("Stage {} took {} ms, peak heap {} MB", name, elapsedMillis(), peakHeap.get() >> 20);
+        }
+
+        private Map<String,Object> toMap() {
+            Map<String,Object> result = new LinkedHashMap<>();
+            result.put("name", name);
+            result.put("startOffsetMs", (startNanos - START_NANOS) / 1_000_000);
+            result.put("wallTimeMs", elapsedMillis());
+            result.put("peakHeapBytes", peakHeap.get());
+            result.put("finished", endNanos >= 0);
+            return result;
+        }
+    }
+
+    /**
+     * Latency histogram with four buckets per power of two, so a percentile is at most 25% above the exact value.
+     * Values are recorded in nanoseconds and reported in milliseconds.
+     */
+    public static final class Histogram {
+        private static final int SUB_BUCKETS = 4;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(64 * SUB_BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+        private final AtomicLong max = new AtomicLong();
+
+        public void record(long nanos) {
+            long value = Math.max(1, nanos);
+            buckets.incrementAndGet(bucket(value));
+            count.increment();
+            sum.add(value);
+            min.accumulateAndGet(value, Math::min);
+            max.accumulateAndGet(value, Math::max);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        /**
+         * Returns the upper bound of the bucket holding the given percentile, in nanoseconds.
+         */
+        public long percentile(double p) {
+            long total = count.sum();
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(p / 100 * total);
+            long seen = 0;
+            for (int i=0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= Math.max(1, rank)) {
+                    return Math.min(max.get(), upperBound(i));
+                }
+            }
+            return max.get();
+        }
+
+        private static int bucket(long value) {
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int fraction = exponent < 2 ? 0 : (int) ((value >>> (exponent - 2)) & (SUB_BUCKETS - 1));
+            return exponent * SUB_BUCKETS + fraction;
+        }
+
+        private static long upperBound(int bucket) {
+            int exponent = bucket / SUB_BUCKETS;
+            int fraction = bucket % SUB_BUCKETS;
+            if (exponent < 2) {
+                return (1L << (exponent + 1)) - 1;
+            }
+            return (1L << exponent) + ((long) (fraction + 1) << (exponent - 2)) - 1;
+        }
+
+        private Map<String,Object> toMap() {
+            Map<String,Object> result = new LinkedHashMap<>();
+            long total = count.sum();
+            result.put("count", total);
+            result.put("meanMs", total == 0 ? 0 : sum.sum() / (double) total / 1e6);
+            result.put("minMs", total == 0 ? 0 : min.get() / 1e6);
+            result.put("p50Ms", percentile(50) / 1e6);
+            result.put("p90Ms", percentile(90) / 1e6);
+            result.put("p99Ms", percentile(99) / 1e6);
+            result.put("maxMs", max.get() / 1e6);
+            return result;
+        }
+    }
+
+}
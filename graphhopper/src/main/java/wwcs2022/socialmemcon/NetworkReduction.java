@@ -0,0 +1,136 @@
+package wwcs2022.socialmemcon;
+
+import de.topobyte.osm4j.core.model.iface.*;
+import de.topobyte.osm4j.core.model.impl.Node;
+import de.topobyte.osm4j.core.model.impl.Relation;
+import de.topobyte.osm4j.core.model.impl.RelationMember;
+import de.topobyte.osm4j.core.model.impl.Tag;
+import de.topobyte.osm4j.core.model.impl.Way;
+import gnu.trove.list.array.TLongArrayList;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Decides which parts of an OSM extract a car-only routing graph needs, so the filtered datasets only carry those
+ * into the GraphHopper import: ways with a highway tag a car can use and ferry routes, the nodes they reference,
+ * and turn restrictions between kept ways. Everything else (footpaths, buildings, land use, boundaries) is dropped,
+ * and the kept entities lose their metadata and all tags the car encoder does not read.
+ *
+ * Dropping only what a car cannot use leaves the car graph and so the distances unchanged. Degree-2 chains of nodes
+ * are not collapsed: GraphHopper already stores them as the geometry of a single edge, and replacing them with a
+ * straight line would shorten the distances.
+ */
+public class NetworkReduction {
+
+    public static final NetworkReduction CAR = new NetworkReduction(
+            Set.of("motorway", "motorway_link", "trunk", "trunk_link", "primary", "primary_link", "secondary",
+                    "secondary_link", "tertiary", "tertiary_link", "unclassified", "residential", "living_street",
+                    "service", "road", "track"),
+            Set.of("ferry", "shuttle_train"),
+            Set.of("highway", "junction", "oneway", "maxspeed", "access", "vehicle", "motor_vehicle", "motorcar",
+                    "motorroad", "route", "ferry", "duration", "estimated_distance", "surface", "tracktype",
+                    "smoothness", "service", "toll", "bridge", "tunnel", "ford", "barrier", "area", "lanes",
+                    "maxweight", "maxheight", "maxwidth", "type", "restriction", "except"));
+
+    private final Set<String> highways;
+    private final Set<String> routes;
+    private final Set<String> keys;
+
+    /**
+     * @param highways values of the highway tag of the ways to keep
+     * @param routes values of the route tag of the ways to keep, such as ferries
+     * @param keys tag keys to keep, a key also keeps its suffixed variants like maxspeed:forward
+     */
+    public NetworkReduction(Set<String> highways, Set<String> routes, Set<String> keys) {
+        this.highways = Set.copyOf(highways);
+        this.routes = Set.copyOf(routes);
+        this.keys = Set.copyOf(keys);
+    }
+
+    /**
+     * Returns whether a way with the given tags, as alternating keys and values, is kept.
+     */
+    public boolean keepWay(String [] tags) {
+        for (int i=0; i < tags.length; i += 2) {
+            if ("highway".equals(tags[i]) && highways.contains(tags[i + 1])) {
+                return true;
+            }
+            if ("route".equals(tags[i]) && routes.contains(tags[i + 1])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether a relation is kept: turn restrictions whose ways are all kept.
+     */
+    public boolean keepRelation(OsmRelation relation, NodeIdSet keptWays) {
+        boolean restriction = false;
+        for (int i=0; i < relation.getNumberOfTags(); i++) {
+            OsmTag tag = relation.getTag(i);
+            if ("type".equals(tag.getKey()) && tag.getValue().startsWith("restriction")) {
+                restriction = true;
+            }
+        }
+        if (!restriction) {
+            return false;
+        }
+        for (int i=0; i < relation.getNumberOfMembers(); i++) {
+            OsmRelationMember member = relation.getMember(i);
+            if (member.getType() == EntityType.Way && !keptWays.contains(member.getId())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean keepTag(String key) {
+        int colon = key.indexOf(':');
+        return keys.contains(colon < 0 ? key : key.substring(0, colon));
+    }
+
+    public OsmNode reduce(OsmNode node) {
+        return new Node(node.getId(), node.getLongitude(), node.getLatitude(), tags(node));
+    }
+
+    public OsmWay reduce(OsmWay way) {
+        TLongArrayList nodes = new TLongArrayList(way.getNumberOfNodes());
+        for (int i=0; i < way.getNumberOfNodes(); i++) {
+            nodes.add(way.getNodeId(i));
+        }
+        return new Way(way.getId(), nodes, tags(way));
+    }
+
+    public OsmRelation reduce(OsmRelation relation) {
+        List<RelationMember> members = new ArrayList<>(relation.getNumberOfMembers());
+        for (int i=0; i < relation.getNumberOfMembers(); i++) {
+            OsmRelationMember member = relation.getMember(i);
+            members.add(new RelationMember(member.getId(), member.getType(), member.getRole()));
+        }
+        return new Relation(relation.getId(), members, tags(relation));
+    }
+
+    private List<Tag> tags(OsmEntity entity) {
+        List<Tag> result = new ArrayList<>();
+        for (int i=0; i < entity.getNumberOfTags(); i++) {
+            OsmTag tag = entity.getTag(i);
+            if (keepTag(tag.getKey())) {
+                result.add(new Tag(tag.getKey(), tag.getValue()));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns a description of everything this reduction keeps, to tell datasets of different reductions apart.
+     */
+    public String describe() {
+        return "highways=" + new TreeSet<>(highways) + ";routes=" + new TreeSet<>(routes)
+                + ";keys=" + new TreeSet<>(keys);
+    }
+
+}
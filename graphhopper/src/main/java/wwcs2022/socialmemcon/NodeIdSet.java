@@ -0,0 +1,273 @@
+package wwcs2022.socialmemcon;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+
+/**
+ * Immutable set of OSM ids without boxing, where every id carries an int tag (such as the restriction year that
+ * removes a node). The ids are stored in an open-addressing hash table with linear probing, so a membership test
+ * neither boxes nor allocates, and an entry takes 24 to 48 bytes depending on the fill of the table, instead of the
+ * roughly 60 bytes of a {@code HashSet<Long>} entry. The table can be backed by direct buffers to keep very large
+ * sets off the heap.
+ */
+public final class NodeIdSet {
+
+    public static final int ABSENT = Integer.MIN_VALUE;
+
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private final Table table;
+    private final int mask;
+    private final int size;
+
+    private NodeIdSet(Table table, int size) {
+        this.table = table;
+        this.mask = table.capacity - 1;
+        this.size = size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean isOffHeap() {
+        return table.isDirect();
+    }
+
+    /**
+     * Returns the number of buffers the hash table is split into.
+     */
+    int segments() {
+        return table.segmentCount();
+    }
+
+    public boolean contains(long id) {
+        return indexOf(id) >= 0;
+    }
+
+    /**
+     * Returns the tag stored with the id, or {@link #ABSENT} if the id is not in the set.
+     */
+    public int get(long id) {
+        int index = indexOf(id);
+        return index >= 0 ? table.tag(index) : ABSENT;
+    }
+
+    private int indexOf(long id) {
+        int slot = hash(id) & mask;
+        while (true) {
+            long key = table.key(slot);
+            if (key == id) {
+                return slot;
+            }
+            if (key == EMPTY) {
+                return -1;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private static int hash(long id) {
+        // Finalization step of MurmurHash3, OSM ids are dense so the low bits need mixing
+        id ^= id >>> 33;
+        id *= 0xff51afd7ed558ccdL;
+        id ^= id >>> 33;
+        id *= 0xc4ceb9fe1a85ec53L;
+        id ^= id >>> 33;
+        return (int) id;
+    }
+
+    public static Builder builder() {
+        return new Builder(Integer.MAX_VALUE, Table.SEGMENT_BITS);
+    }
+
+    /**
+     * Returns a builder whose table moves into direct buffers once it holds more than the given number of ids.
+     */
+    public static Builder builder(int offHeapThreshold) {
+        return new Builder(offHeapThreshold, Table.SEGMENT_BITS);
+    }
+
+    /**
+     * Returns a builder whose table is split into segments of 2^segmentBits slots, so the tests can cover tables of
+     * several segments without allocating gigabytes.
+     */
+    static Builder builder(int offHeapThreshold, int segmentBits) {
+        return new Builder(offHeapThreshold, Math.min(segmentBits, Table.SEGMENT_BITS));
+    }
+
+    @Override
+    public String toString() {
+        return "NodeIdSet{size=" + size + ", offHeap=" + isOffHeap() + '}';
+    }
+
+    /**
+     * Inserts the ids straight into the hash table of the set, which doubles when it gets more than half full, so
+     * no copy of the ids is staged on the heap. The table can grow to 2^30 slots both on and off the heap. The
+     * builder cannot be used after {@link #build}.
+     */
+    public static final class Builder {
+
+        private static final long MAX_CAPACITY = 1L << 30;
+
+        private final int offHeapThreshold;
+        private final int segmentBits;
+        private Table table;
+        private int size;
+
+        private Builder(int offHeapThreshold, int segmentBits) {
+            this.offHeapThreshold = offHeapThreshold;
+            this.segmentBits = segmentBits;
+            table = new Table(16, segmentBits, offHeapThreshold <= 0);
+        }
+
+        public Builder add(long id) {
+            return add(id, 0);
+        }
+
+        /**
+         * Adds an id with a tag. If the same id is added more than once, the largest tag is kept.
+         */
+        public Builder add(long id, int tag) {
+            if (table == null) {
+                throw new IllegalStateException("The set was already built");
+            }
+            if (id == EMPTY) {
+                throw new IllegalArgumentException("Id " + id + " is reserved");
+            }
+            // Keep the load factor at or below one half
+            if ((long) size * 2 >= table.capacity) {
+                grow();
+            }
+            if (insert(table, id, tag)) {
+                size++;
+            }
+            return this;
+        }
+
+        /**
+         * Returns the number of distinct ids added so far.
+         */
+        public int size() {
+            return size;
+        }
+
+        public NodeIdSet build() {
+            if (table == null) {
+                throw new IllegalStateException("The set was already built");
+            }
+            NodeIdSet result = new NodeIdSet(table, size);
+            table = null;
+            return result;
+        }
+
+        private void grow() {
+            long capacity = (long) table.capacity * 2;
+            if (capacity > MAX_CAPACITY) {
+                throw new IllegalStateException("A set holds at most " + MAX_CAPACITY / 2 + " ids");
+            }
+            boolean offHeap = table.isDirect() || size >= offHeapThreshold;
+            Table old = table;
+            table = new Table((int) capacity, segmentBits, offHeap);
+            for (int i=0; i < old.capacity; i++) {
+                long key = old.key(i);
+                if (key != EMPTY) {
+                    insert(table, key, old.tag(i));
+                }
+            }
+        }
+
+        /**
+         * Inserts the id into the table, or raises its tag if it is already there. Returns whether it was new.
+         */
+        private static boolean insert(Table table, long id, int tag) {
+            int mask = table.capacity - 1;
+            int slot = hash(id) & mask;
+            while (true) {
+                long key = table.key(slot);
+                if (key == EMPTY) {
+                    table.put(slot, id, tag);
+                    return true;
+                }
+                if (key == id) {
+                    table.setTag(slot, Math.max(table.tag(slot), tag));
+                    return false;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+    }
+
+    /**
+     * The slots of the hash table, split into segments of at most 2^27 slots, as a direct buffer of longs is
+     * addressed in bytes by an int and cannot hold more. The heap uses the same segments, so moving off the heap
+     * never lowers the capacity.
+     */
+    private static final class Table {
+
+        private static final int SEGMENT_BITS = 27;
+
+        private final int capacity;
+        private final int shift;
+        private final int segmentMask;
+        private final LongBuffer [] keys;
+        private final IntBuffer [] tags;
+
+        private Table(int capacity, int segmentBits, boolean offHeap) {
+            this.capacity = capacity;
+            int segmentSize = Math.min(capacity, 1 << segmentBits);
+            this.shift = Integer.numberOfTrailingZeros(segmentSize);
+            this.segmentMask = segmentSize - 1;
+            int segments = capacity / segmentSize;
+            keys = new LongBuffer[segments];
+            tags = new IntBuffer[segments];
+            for (int i=0; i < segments; i++) {
+                if (offHeap) {
+                    keys[i] = ByteBuffer.allocateDirect(segmentSize * Long.BYTES)
+                            .order(ByteOrder.nativeOrder()).asLongBuffer();
+                    tags[i] = ByteBuffer.allocateDirect(segmentSize * Integer.BYTES)
+                            .order(ByteOrder.nativeOrder()).asIntBuffer();
+                }
+                else {
+                    keys[i] = LongBuffer.allocate(segmentSize);
+                    tags[i] = IntBuffer.allocate(segmentSize);
+                }
+                for (int j=0; j < segmentSize; j++) {
+                    keys[i].put(j, EMPTY);
+                }
+            }
+        }
+
+        private boolean isDirect() {
+            return keys[0].isDirect();
+        }
+
+        private int segmentCount() {
+            return keys.length;
+        }
+
+        private long key(int slot) {
+            return keys[slot >>> shift].get(slot & segmentMask);
+        }
+
+        private int tag(int slot) {
+            return tags[slot >>> shift].get(slot & segmentMask);
+        }
+
+        private void put(int slot, long key, int tag) {
+            keys[slot >>> shift].put(slot & segmentMask, key);
+            tags[slot >>> shift].put(slot & segmentMask, tag);
+        }
+
+        private void setTag(int slot, int tag) {
+            tags[slot >>> shift].put(slot & segmentMask, tag);
+        }
+    }
+
+}
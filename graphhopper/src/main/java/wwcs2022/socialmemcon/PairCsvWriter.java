@@ -0,0 +1,90 @@
+package wwcs2022.socialmemcon;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes the pair layout of {@link SpreadsheetWriter} (from, to, base distance and the distance of every year) as
+ * comma or tab separated text, one row at a time straight from the distance matrices. Unlike a workbook this has no
+ * row limit and needs no memory beyond the matrices. Files whose name ends in {@code .gz} are gzip compressed.
+ * Pairs without a distance have an empty field.
+ */
+public class PairCsvWriter {
+
+    private static final Logger log = LoggerFactory.getLogger(PairCsvWriter.class);
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    public static void writePairs(DistanceMatrix baseDistances, DistanceStack distances, File output) {
+        char separator = output.getName().contains(".tsv") ? '\t' : ',';
+        try (Writer out = open(output)) {
+            out.write("From");
+            out.write(separator);
+            out.write("To");
+            out.write(separator);
+            out.write("Base Distance");
+            for (Integer year : distances.getYears()) {
+                out.write(separator);
+                out.write("Distance " + year);
+            }
+            out.write('\n');
+            String [] names = new String[baseDistances.size()];
+            for (int i=0; i < names.length; i++) {
+                names[i] = quote(baseDistances.getName(i), separator);
+            }
+            DistanceMatrix [] years = distances.matrices().toArray(new DistanceMatrix[0]);
+            float [] baseRow = new float[names.length];
+            float [][] rows = new float[years.length][names.length];
+            for (int from=0; from < names.length; from++) {
+                baseDistances.copyRow(from, baseRow);
+                for (int y=0; y < years.length; y++) {
+                    years[y].copyRow(from, rows[y]);
+                }
+                for (int to=0; to < names.length; to++) {
+                    if (from == to) {
+                        continue;
+                    }
+                    out.write(names[from]);
+                    out.write(separator);
+                    out.write(names[to]);
+                    out.write(separator);
+                    writeDistance(out, baseRow[to]);
+                    for (float [] row : rows) {
+                        out.write(separator);
+                        writeDistance(out, row[to]);
+                    }
+                    out.write('\n');
+                }
+            }
+        }
+        catch (IOException ex) {
+            log.error("An exception occurred while writing {}", output, ex);
+        }
+    }
+
+    private static Writer open(File output) throws IOException {
+        OutputStream os = new FileOutputStream(output);
+        if (output.getName().endsWith(".gz")) {
+            os = new GZIPOutputStream(os, BUFFER_SIZE);
+        }
+        return new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8), BUFFER_SIZE);
+    }
+
+    private static void writeDistance(Writer out, float distance) throws IOException {
+        if (!Float.isNaN(distance)) {
+            out.write(Float.toString(distance));
+        }
+    }
+
+    private static String quote(String value, char separator) {
+        if (value.indexOf(separator) < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+}
@@ -0,0 +1,549 @@
+package wwcs2022.socialmemcon;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.WireFormat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.LongConsumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * A single raw block of a PBF file, consisting of the length prefix, the blob header and the (compressed) blob. The
+ * raw frame can be copied to another PBF file unchanged. The decoding methods read the protobuf wire format directly,
+ * so they can skip the groups and fields (way and relation groups, string tables, metadata) a pass does not need
+ * without materializing them.
+ */
+public final class PbfBlock {
+
+    public static final String TYPE_HEADER = "OSMHeader";
+    public static final String TYPE_DATA = "OSMData";
+
+    // Field numbers from fileformat.proto and osmformat.proto
+    private static final int BLOB_HEADER_TYPE = 1;
+    private static final int BLOB_HEADER_DATASIZE = 3;
+    private static final int BLOB_RAW = 1;
+    private static final int BLOB_RAW_SIZE = 2;
+    private static final int BLOB_ZLIB_DATA = 3;
+    private static final int HEADER_OPTIONAL_FEATURES = 5;
+    private static final int BLOCK_STRING_TABLE = 1;
+    private static final int BLOCK_PRIMITIVE_GROUP = 2;
+    private static final int BLOCK_GRANULARITY = 17;
+    private static final int BLOCK_LAT_OFFSET = 19;
+    private static final int BLOCK_LON_OFFSET = 20;
+    private static final int GROUP_NODES = 1;
+    private static final int GROUP_DENSE = 2;
+    private static final int GROUP_WAYS = 3;
+    private static final int NODE_ID = 1;
+    private static final int NODE_LAT = 8;
+    private static final int NODE_LON = 9;
+    private static final int DENSE_ID = 1;
+    private static final int DENSE_LAT = 8;
+    private static final int DENSE_LON = 9;
+    private static final int STRING_TABLE_STRING = 1;
+    private static final int WAY_ID = 1;
+    private static final int WAY_KEYS = 2;
+    private static final int WAY_VALUES = 3;
+    private static final int WAY_REFS = 8;
+
+    private final String type;
+    private final byte [] frame;
+    private final int blobOffset;
+
+    private byte [] data;
+    private int granularity;
+    private long latOffset;
+    private long lonOffset;
+    private int [] groups;
+    private int stringTableOffset = -1;
+    private int stringTableLength;
+    private String [] strings;
+
+    private PbfBlock(String type, byte [] frame, int blobOffset) {
+        this.type = type;
+        this.frame = frame;
+        this.blobOffset = blobOffset;
+    }
+
+    /**
+     * Reads the next block from the stream, or returns null at the end of the stream.
+     */
+    public static PbfBlock read(InputStream is) throws IOException {
+        DataInputStream in = is instanceof DataInputStream ? (DataInputStream) is : new DataInputStream(is);
+        int first = in.read();
+        if (first < 0) {
+            return null;
+        }
+        int headerSize = (first << 24) | (in.readUnsignedByte() << 16) | (in.readUnsignedByte() << 8)
+                | in.readUnsignedByte();
+        byte [] header = new byte[headerSize];
+        in.readFully(header);
+
+        String type = null;
+        int dataSize = -1;
+        CodedInputStream cis = CodedInputStream.newInstance(header);
+        int tag;
+        while ((tag = cis.readTag()) != 0) {
+            switch (WireFormat.getTagFieldNumber(tag)) {
+                case BLOB_HEADER_TYPE:
+                    type = cis.readString();
+                    break;
+                case BLOB_HEADER_DATASIZE:
+                    dataSize = cis.readInt32();
+                    break;
+                default:
+                    cis.skipField(tag);
+            }
+        }
+        if (type == null || dataSize < 0) {
+            throw new IOException("Invalid blob header");
+        }
+        byte [] frame = new byte[4 + headerSize + dataSize];
+        frame[0] = (byte) (headerSize >>> 24);
+        frame[1] = (byte) (headerSize >>> 16);
+        frame[2] = (byte) (headerSize >>> 8);
+        frame[3] = (byte) headerSize;
+        System.arraycopy(header, 0, frame, 4, headerSize);
+        try {
+            in.readFully(frame, 4 + headerSize, dataSize);
+        }
+        catch (EOFException ex) {
+            throw new IOException("Truncated PBF block of type " + type, ex);
+        }
+        return new PbfBlock(type, frame, 4 + headerSize);
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public boolean isHeader() {
+        return TYPE_HEADER.equals(type);
+    }
+
+    public boolean isData() {
+        return TYPE_DATA.equals(type);
+    }
+
+    /**
+     * Returns the raw bytes of this block as they appear in the file.
+     */
+    public byte [] getFrame() {
+        return frame;
+    }
+
+    /**
+     * Returns the uncompressed contents of the blob. The result is cached, so this is done only once per block.
+     */
+    public byte [] getData() throws IOException {
+        if (data == null) {
+            data = inflate();
+        }
+        return data;
+    }
+
+    private byte [] inflate() throws IOException {
+        CodedInputStream cis = CodedInputStream.newInstance(frame, blobOffset, frame.length - blobOffset);
+        byte [] raw = null;
+        byte [] zlib = null;
+        int rawSize = -1;
+        int tag;
+        while ((tag = cis.readTag()) != 0) {
+            switch (WireFormat.getTagFieldNumber(tag)) {
+                case BLOB_RAW:
+                    raw = cis.readByteArray();
+                    break;
+                case BLOB_RAW_SIZE:
+                    rawSize = cis.readInt32();
+                    break;
+                case BLOB_ZLIB_DATA:
+                    zlib = cis.readByteArray();
+                    break;
+                default:
+                    cis.skipField(tag);
+            }
+        }
+        if (raw != null) {
+            return raw;
+        }
+        if (zlib == null || rawSize < 0) {
+            throw new IOException("Unsupported compression in PBF block of type " + type);
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(zlib);
+            byte [] result = new byte[rawSize];
+            int length = inflater.inflate(result);
+            if (length != rawSize || !inflater.finished()) {
+                throw new IOException("Inflated PBF block has " + length + " bytes, expected " + rawSize);
+            }
+            return result;
+        }
+        catch (DataFormatException ex) {
+            throw new IOException("Corrupt PBF block", ex);
+        }
+        finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * For a header block, returns whether the given optional feature (such as "Sort.Type_then_ID") is declared.
+     */
+    public boolean hasOptionalFeature(String feature) throws IOException {
+        if (!isHeader()) {
+            return false;
+        }
+        CodedInputStream cis = CodedInputStream.newInstance(getData());
+        int tag;
+        while ((tag = cis.readTag()) != 0) {
+            if (WireFormat.getTagFieldNumber(tag) == HEADER_OPTIONAL_FEATURES) {
+                if (feature.equals(cis.readString())) {
+                    return true;
+                }
+            }
+            else {
+                cis.skipField(tag);
+            }
+        }
+        return false;
+    }
+
+    private void parseGroups() throws IOException {
+        if (groups != null) {
+            return;
+        }
+        byte [] bytes = getData();
+        granularity = 100;
+        latOffset = 0;
+        lonOffset = 0;
+        int [] ranges = new int[16];
+        int count = 0;
+        CodedInputStream cis = CodedInputStream.newInstance(bytes);
+        int tag;
+        while ((tag = cis.readTag()) != 0) {
+            switch (WireFormat.getTagFieldNumber(tag)) {
+                case BLOCK_STRING_TABLE:
+                    stringTableLength = cis.readRawVarint32();
+                    stringTableOffset = cis.getTotalBytesRead();
+                    cis.skipRawBytes(stringTableLength);
+                    break;
+                case BLOCK_PRIMITIVE_GROUP:
+                    int length = cis.readRawVarint32();
+                    if (count + 2 > ranges.length) {
+                        ranges = Arrays.copyOf(ranges, ranges.length * 2);
+                    }
+                    ranges[count++] = cis.getTotalBytesRead();
+                    ranges[count++] = length;
+                    cis.skipRawBytes(length);
+                    break;
+                case BLOCK_GRANULARITY:
+                    granularity = cis.readInt32();
+                    break;
+                case BLOCK_LAT_OFFSET:
+                    latOffset = cis.readInt64();
+                    break;
+                case BLOCK_LON_OFFSET:
+                    lonOffset = cis.readInt64();
+                    break;
+                default:
+                    cis.skipField(tag);
+            }
+        }
+        groups = Arrays.copyOf(ranges, count);
+    }
+
+    /**
+     * Calls the visitor for every node of a data block with its id and coordinates, skipping all other entities,
+     * tags and metadata. Returns the number of nodes visited.
+     */
+    public int forEachNode(NodeVisitor visitor) throws IOException {
+        if (!isData()) {
+            return 0;
+        }
+        parseGroups();
+        int visited = 0;
+        for (int g=0; g < groups.length; g += 2) {
+            CodedInputStream cis = CodedInputStream.newInstance(data, groups[g], groups[g + 1]);
+            int tag;
+            while ((tag = cis.readTag()) != 0) {
+                switch (WireFormat.getTagFieldNumber(tag)) {
+                    case GROUP_NODES:
+                        int limit = cis.pushLimit(cis.readRawVarint32());
+                        visitNode(cis, visitor);
+                        cis.popLimit(limit);
+                        visited++;
+                        break;
+                    case GROUP_DENSE:
+                        limit = cis.pushLimit(cis.readRawVarint32());
+                        visited += visitDense(cis, visitor);
+                        cis.popLimit(limit);
+                        break;
+                    default:
+                        // Ways, relations and change sets come in their own groups, so the rest can be skipped
+                        cis.skipField(tag);
+                }
+            }
+        }
+        return visited;
+    }
+
+    /**
+     * Calls the consumer for every node reference of every way in a data block. Returns the number of ways visited.
+     */
+    public int forEachWayNode(LongConsumer consumer) throws IOException {
+        if (!isData()) {
+            return 0;
+        }
+        parseGroups();
+        int visited = 0;
+        for (int g=0; g < groups.length; g += 2) {
+            CodedInputStream cis = CodedInputStream.newInstance(data, groups[g], groups[g + 1]);
+            int tag;
+            while ((tag = cis.readTag()) != 0) {
+                if (WireFormat.getTagFieldNumber(tag) != GROUP_WAYS) {
+                    cis.skipField(tag);
+                    continue;
+                }
+                int limit = cis.pushLimit(cis.readRawVarint32());
+                int wayTag;
+                while ((wayTag = cis.readTag()) != 0) {
+                    if (WireFormat.getTagFieldNumber(wayTag) == WAY_REFS) {
+                        long [] refs = readPackedSInt64(cis, wayTag);
+                        long id = 0;
+                        for (long delta : refs) {
+                            id += delta;
+                            consumer.accept(id);
+                        }
+                    }
+                    else {
+                        cis.skipField(wayTag);
+                    }
+                }
+                cis.popLimit(limit);
+                visited++;
+            }
+        }
+        return visited;
+    }
+
+    /**
+     * Calls the visitor for every way of a data block with its id, its tags and its node references, skipping all
+     * other entities and metadata. Returns the number of ways visited.
+     */
+    public int forEachWay(WayVisitor visitor) throws IOException {
+        if (!isData()) {
+            return 0;
+        }
+        parseGroups();
+        int visited = 0;
+        for (int g=0; g < groups.length; g += 2) {
+            CodedInputStream cis = CodedInputStream.newInstance(data, groups[g], groups[g + 1]);
+            int tag;
+            while ((tag = cis.readTag()) != 0) {
+                if (WireFormat.getTagFieldNumber(tag) != GROUP_WAYS) {
+                    cis.skipField(tag);
+                    continue;
+                }
+                int limit = cis.pushLimit(cis.readRawVarint32());
+                long id = 0;
+                long [] keys = new long[0];
+                long [] values = new long[0];
+                long [] refs = new long[0];
+                int wayTag;
+                while ((wayTag = cis.readTag()) != 0) {
+                    switch (WireFormat.getTagFieldNumber(wayTag)) {
+                        case WAY_ID:
+                            id = cis.readInt64();
+                            break;
+                        case WAY_KEYS:
+                            keys = readPackedUInt32(cis, wayTag);
+                            break;
+                        case WAY_VALUES:
+                            values = readPackedUInt32(cis, wayTag);
+                            break;
+                        case WAY_REFS:
+                            refs = readPackedSInt64(cis, wayTag);
+                            break;
+                        default:
+                            cis.skipField(wayTag);
+                    }
+                }
+                cis.popLimit(limit);
+                if (keys.length != values.length) {
+                    throw new IOException("Inconsistent tags of way " + id + " in PBF block");
+                }
+                String [] table = strings();
+                String [] tags = new String[keys.length * 2];
+                for (int i=0; i < keys.length; i++) {
+                    tags[2 * i] = table[(int) keys[i]];
+                    tags[2 * i + 1] = table[(int) values[i]];
+                }
+                long ref = 0;
+                for (int i=0; i < refs.length; i++) {
+                    ref += refs[i];
+                    refs[i] = ref;
+                }
+                visitor.visit(id, tags, refs);
+                visited++;
+            }
+        }
+        return visited;
+    }
+
+    private String [] strings() throws IOException {
+        if (strings == null) {
+            List<String> result = new ArrayList<>();
+            if (stringTableOffset >= 0) {
+                CodedInputStream cis = CodedInputStream.newInstance(data, stringTableOffset, stringTableLength);
+                int tag;
+                while ((tag = cis.readTag()) != 0) {
+                    if (WireFormat.getTagFieldNumber(tag) == STRING_TABLE_STRING) {
+                        result.add(cis.readBytes().toStringUtf8());
+                    }
+                    else {
+                        cis.skipField(tag);
+                    }
+                }
+            }
+            strings = result.toArray(new String[0]);
+        }
+        return strings;
+    }
+
+    private void visitNode(CodedInputStream cis, NodeVisitor visitor) throws IOException {
+        long id = 0;
+        long lat = 0;
+        long lon = 0;
+        int tag;
+        while ((tag = cis.readTag()) != 0) {
+            switch (WireFormat.getTagFieldNumber(tag)) {
+                case NODE_ID:
+                    id = cis.readSInt64();
+                    break;
+                case NODE_LAT:
+                    lat = cis.readSInt64();
+                    break;
+                case NODE_LON:
+                    lon = cis.readSInt64();
+                    break;
+                default:
+                    cis.skipField(tag);
+            }
+        }
+        visitor.visit(id, toDegrees(latOffset, lat), toDegrees(lonOffset, lon));
+    }
+
+    private int visitDense(CodedInputStream cis, NodeVisitor visitor) throws IOException {
+        long [] ids = null;
+        long [] lats = null;
+        long [] lons = null;
+        int tag;
+        while ((tag = cis.readTag()) != 0) {
+            switch (WireFormat.getTagFieldNumber(tag)) {
+                case DENSE_ID:
+                    ids = readPackedSInt64(cis, tag);
+                    break;
+                case DENSE_LAT:
+                    lats = readPackedSInt64(cis, tag);
+                    break;
+                case DENSE_LON:
+                    lons = readPackedSInt64(cis, tag);
+                    break;
+                default:
+                    // Dense info (metadata) and tags
+                    cis.skipField(tag);
+            }
+        }
+        if (ids == null) {
+            return 0;
+        }
+        if (lats == null || lons == null || lats.length != ids.length || lons.length != ids.length) {
+            throw new IOException("Inconsistent dense nodes in PBF block");
+        }
+        long id = 0;
+        long lat = 0;
+        long lon = 0;
+        for (int i=0; i < ids.length; i++) {
+            id += ids[i];
+            lat += lats[i];
+            lon += lons[i];
+            visitor.visit(id, toDegrees(latOffset, lat), toDegrees(lonOffset, lon));
+        }
+        return ids.length;
+    }
+
+    private double toDegrees(long offset, long value) {
+        return 1e-9 * (offset + (long) granularity * value);
+    }
+
+    private static long [] readPackedSInt64(CodedInputStream cis, int tag) throws IOException {
+        if (WireFormat.getTagWireType(tag) != WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+            return new long[] { cis.readSInt64() };
+        }
+        int limit = cis.pushLimit(cis.readRawVarint32());
+        // Every value takes at least one byte, so this is an upper bound on the number of values
+        long [] values = new long[cis.getBytesUntilLimit()];
+        int count = 0;
+        while (cis.getBytesUntilLimit() > 0) {
+            values[count++] = cis.readSInt64();
+        }
+        cis.popLimit(limit);
+        return count == values.length ? values : Arrays.copyOf(values, count);
+    }
+
+    private static long [] readPackedUInt32(CodedInputStream cis, int tag) throws IOException {
+        if (WireFormat.getTagWireType(tag) != WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+            return new long[] { cis.readUInt32() & 0xffffffffL };
+        }
+        int limit = cis.pushLimit(cis.readRawVarint32());
+        long [] values = new long[cis.getBytesUntilLimit()];
+        int count = 0;
+        while (cis.getBytesUntilLimit() > 0) {
+            values[count++] = cis.readUInt32() & 0xffffffffL;
+        }
+        cis.popLimit(limit);
+        return count == values.length ? values : Arrays.copyOf(values, count);
+    }
+
+    /**
+     * Returns the concatenated frames of the given PBF bytes, leaving out the header blocks. Used to splice blocks
+     * written by a separate writer into an existing output.
+     */
+    public static byte [] dataFrames(byte [] pbf) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream(pbf.length);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(pbf));
+        PbfBlock block;
+        while ((block = read(in)) != null) {
+            if (block.isData()) {
+                result.write(block.getFrame());
+            }
+        }
+        return result.toByteArray();
+    }
+
+    @Override
+    public String toString() {
+        return "PbfBlock{type=" + type + ", bytes=" + frame.length + '}';
+    }
+
+    public interface NodeVisitor {
+        void visit(long id, double lat, double lon);
+    }
+
+    public interface WayVisitor {
+        /**
+         * Visits a way with its tags as alternating keys and values and its node ids.
+         */
+        void visit(long id, String [] tags, long [] nodes);
+    }
+
+}
@@ -0,0 +1,129 @@
+package wwcs2022.socialmemcon;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Reads the raw blocks of a PBF file on a reader thread, decodes them in parallel on a pool of worker threads and
+ * hands the results to a consumer on the calling thread in the order of the blocks in the file. The number of blocks
+ * in flight is bounded, so memory use does not depend on the size of the file.
+ */
+public class PbfPipeline {
+
+    private static final Logger log = LoggerFactory.getLogger(PbfPipeline.class);
+
+    public static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+
+    private static final int BLOCKS_PER_THREAD = 4;
+
+    public static <T> void run(File input, Decoder<T> decoder, Consumer<T> consumer) throws IOException {
+        run(input, DEFAULT_THREADS, decoder, consumer);
+    }
+
+    public static <T> void run(File input, int threads, Decoder<T> decoder, Consumer<T> consumer)
+            throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "pbf-decoder");
+            t.setDaemon(true);
+            return t;
+        });
+        BlockingQueue<Future<Decoded<T>>> queue = new ArrayBlockingQueue<>(threads * BLOCKS_PER_THREAD);
+        CompletableFuture<Decoded<T>> end = CompletableFuture.completedFuture(null);
+        AtomicBoolean stopped = new AtomicBoolean(false);
+
+        Thread reader = new Thread(() -> {
+            Future<Decoded<T>> last = end;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(input),
+                    1 << 20))) {
+                PbfBlock block;
+                while (!stopped.get() && (block = PbfBlock.read(in)) != null) {
+                    PbfBlock current = block;
+                    queue.put(pool.submit(() -> new Decoded<>(current, decoder.decode(current))));
+                }
+            }
+            catch (Throwable ex) {
+                last = CompletableFuture.failedFuture(ex);
+            }
+            finally {
+                // The consumer waits for the end or a failure, so one of them has to be queued unless it stopped
+                try {
+                    if (!stopped.get()) {
+                        queue.put(last);
+                    }
+                }
+                catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, "pbf-reader");
+        reader.setDaemon(true);
+        reader.start();
+
+        long blocks = 0;
+        try {
+            while (true) {
+                Future<Decoded<T>> future = queue.take();
+                if (future == end) {
+                    break;
+                }
+                Decoded<T> decoded = future.get();
+                blocks++;
+                if (!consumer.accept(decoded.block, decoded.result)) {
+                    log.debug("Consumer stopped reading {} after {} blocks", input, blocks);
+                    break;
+                }
+            }
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading " + input, ex);
+        }
+        catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Error while decoding " + input, cause);
+        }
+        finally {
+            stopped.set(true);
+            // Unblock the reader if it is waiting for room in the queue
+            queue.clear();
+            reader.interrupt();
+            pool.shutdownNow();
+        }
+    }
+
+    private static final class Decoded<T> {
+        private final PbfBlock block;
+        private final T result;
+
+        private Decoded(PbfBlock block, T result) {
+            this.block = block;
+            this.result = result;
+        }
+    }
+
+    /**
+     * Decodes a block on a worker thread. Must be thread-safe.
+     */
+    public interface Decoder<T> {
+        T decode(PbfBlock block) throws IOException;
+    }
+
+    /**
+     * Receives the decoded blocks in file order on the calling thread. Returns false to stop reading.
+     */
+    public interface Consumer<T> {
+        boolean accept(PbfBlock block, T result) throws IOException;
+    }
+
+}
@@ -0,0 +1,99 @@
+package wwcs2022.socialmemcon;
+
+import jdk.jfr.*;
+
+/**
+ * JFR events of the pipeline. They cost nothing unless a recording is running, e.g. with
+ * {@code -XX:StartFlightRecording=filename=run.jfr}, and show up under the "WWCS2022" category in JDK Mission
+ * Control. The fields are set right before committing, so building an event that is not recorded stays cheap.
+ */
+public final class PipelineEvents {
+
+    private static final String CATEGORY = "WWCS2022";
+
+    private PipelineEvents() {
+    }
+
+    @Name("wwcs2022.Stage")
+    @Label("Pipeline Stage")
+    @Category(CATEGORY)
+    public static final class StageEvent extends Event {
+        @Label("Name")
+        public String name;
+
+        @Label("Peak Heap")
+        @DataAmount
+        public long peakHeap;
+    }
+
+    @Name("wwcs2022.Download")
+    @Label("Download")
+    @Category(CATEGORY)
+    public static final class DownloadEvent extends Event {
+        @Label("URL")
+        public String url;
+
+        @Label("Bytes Transferred")
+        @DataAmount
+        public long bytes;
+
+        @Label("Throughput")
+        @DataAmount
+        @Frequency
+        public long bytesPerSecond;
+
+        @Label("Segments")
+        public int segments;
+    }
+
+    @Name("wwcs2022.FilterYear")
+    @Label("Filtered Dataset")
+    @Category(CATEGORY)
+    public static final class FilterYearEvent extends Event {
+        @Label("Year")
+        public int year;
+
+        @Label("Nodes Skipped")
+        public long nodesSkipped;
+
+        @Label("Ways Skipped")
+        public long waysSkipped;
+
+        @Label("Blocks Rewritten")
+        public long blocksRewritten;
+    }
+
+    @Name("wwcs2022.Import")
+    @Label("Graph Import")
+    @Description("Import and CH preparation of one graph")
+    @Category(CATEGORY)
+    public static final class ImportEvent extends Event {
+        @Label("OSM File")
+        public String osmFile;
+
+        @Label("Cache Directory")
+        public String cacheDir;
+    }
+
+    @Name("wwcs2022.Matrix")
+    @Label("Distance Matrix")
+    @Category(CATEGORY)
+    public static final class MatrixEvent extends Event {
+        @Label("Profile")
+        public String profile;
+
+        @Label("Sources")
+        public int sources;
+
+        @Label("Targets")
+        public int targets;
+
+        @Label("Failed Pairs")
+        @Description("Pairs between snapped locations without a route")
+        public long failedPairs;
+
+        @Label("Unsnapped Locations")
+        public int unsnapped;
+    }
+
+}
@@ -0,0 +1,51 @@
+package wwcs2022.socialmemcon;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread-safe progress counter that logs the number of completed items and the throughput at a fixed interval.
+ */
+public class Progress {
+
+    private static final Logger log = LoggerFactory.getLogger(Progress.class);
+    private static final int REPORT_INTERVAL_MS = 5000;
+
+    private final String label;
+    private final long total;
+    private final long start;
+    private final AtomicLong done = new AtomicLong();
+    private final AtomicLong lastReport;
+
+    public Progress(String label, long total) {
+        this.label = label;
+        this.total = total;
+        this.start = System.currentTimeMillis();
+        this.lastReport = new AtomicLong(start);
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    public void add(long count) {
+        long current = done.addAndGet(count);
+        long now = System.currentTimeMillis();
+        long last = lastReport.get();
+        if (now - last >= REPORT_INTERVAL_MS && lastReport.compareAndSet(last, now)) {
+            log.info("{}: {}/{} done, {} per second", label, current, total, rate(current, now));
+        }
+    }
+
+    public void finish() {
+        long now = System.currentTimeMillis();
+        log.info("{}: {} done in {} ms, {} per second", label, done.get(), now - start, rate(done.get(), now));
+    }
+
+    private String rate(long count, long now) {
+        return String.format("%.1f", count * 1000.0 / Math.max(1, now - start));
+    }
+
+}
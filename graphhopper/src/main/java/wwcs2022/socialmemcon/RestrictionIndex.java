@@ -0,0 +1,121 @@
+package wwcs2022.socialmemcon;
+
+import org.locationtech.jts.algorithm.locate.IndexedPointInAreaLocator;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.Location;
+import org.locationtech.jts.index.ItemVisitor;
+import org.locationtech.jts.index.strtree.STRtree;
+
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Point-in-polygon lookup for the polygons of a list of restriction entries. Points are first rejected against the
+ * envelope of all polygons, then candidate polygons are found through an STR-tree over the polygon envelopes, and
+ * only those are tested exactly with an indexed locator (the same structure JTS prepared polygons use). Coordinates
+ * follow {@link RestrictionEntry#asFeature()}, so x is the latitude and y the longitude.
+ *
+ * The index itself is immutable and can be shared between threads. The per-query state lives in a {@link Locator},
+ * which is reused for every point and therefore does not allocate; each thread needs its own locator.
+ */
+public class RestrictionIndex {
+
+    public static final int NO_YEAR = Integer.MIN_VALUE;
+
+    private final List<RestrictionEntry> restrictions;
+    private final int [] years;
+    private final IndexedPointInAreaLocator [] locators;
+    private final STRtree tree;
+    private final Envelope bounds;
+
+    public RestrictionIndex(List<RestrictionEntry> restrictions) {
+        this.restrictions = List.copyOf(restrictions);
+        this.years = new int[restrictions.size()];
+        this.locators = new IndexedPointInAreaLocator[restrictions.size()];
+        this.tree = new STRtree();
+        this.bounds = new Envelope();
+        for (int i=0; i < restrictions.size(); i++) {
+            RestrictionEntry entry = restrictions.get(i);
+            Geometry geom = entry.asFeature().getGeometry();
+            years[i] = entry.getYear();
+            locators[i] = new IndexedPointInAreaLocator(geom);
+            tree.insert(geom.getEnvelopeInternal(), i);
+            bounds.expandToInclude(geom.getEnvelopeInternal());
+        }
+        tree.build();
+    }
+
+    public List<RestrictionEntry> getRestrictions() {
+        return restrictions;
+    }
+
+    public int size() {
+        return restrictions.size();
+    }
+
+    public Locator locator() {
+        return new Locator();
+    }
+
+    public final class Locator implements ItemVisitor {
+
+        private final Envelope query = new Envelope();
+        private final Coordinate coordinate = new Coordinate();
+        private int latest;
+        private int matches;
+        private BitSet found;
+
+        /**
+         * Returns the latest year of the restrictions whose polygon contains the point, or {@link #NO_YEAR} if the
+         * point lies outside all of them.
+         */
+        public int latestYear(double lat, double lng) {
+            return locate(lat, lng) > 0 ? latest : NO_YEAR;
+        }
+
+        public boolean contains(double lat, double lng) {
+            return locate(lat, lng) > 0;
+        }
+
+        /**
+         * Adds the indices of the restrictions whose polygon contains the point to the given set.
+         */
+        public void collect(double lat, double lng, BitSet result) {
+            found = result;
+            try {
+                locate(lat, lng);
+            }
+            finally {
+                found = null;
+            }
+        }
+
+        private int locate(double lat, double lng) {
+            latest = NO_YEAR;
+            matches = 0;
+            if (!bounds.contains(lat, lng)) {
+                return 0;
+            }
+            coordinate.x = lat;
+            coordinate.y = lng;
+            query.init(lat, lat, lng, lng);
+            tree.query(query, this);
+            return matches;
+        }
+
+        @Override
+        public void visitItem(Object item) {
+            int index = (Integer) item;
+            if (locators[index].locate(coordinate) == Location.INTERIOR) {
+                matches++;
+                latest = Math.max(latest, years[index]);
+                if (found != null) {
+                    found.set(index);
+                }
+            }
+        }
+    }
+
+}
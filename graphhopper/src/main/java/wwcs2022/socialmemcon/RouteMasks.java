@@ -0,0 +1,105 @@
+package wwcs2022.socialmemcon;
+
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * The distances between locations on the unrestricted network, together with the restrictions the route of every
+ * pair passes through as a bitmask with one bit per restriction. A scenario that blocks a set of restrictions can
+ * only change the distance of a pair whose route passes through one of them: every other route is still open, and
+ * blocking edges never makes a route shorter. See {@link RoutingMain#fillDelta}.
+ */
+public class RouteMasks {
+
+    private final DistanceMatrix distances;
+    private final int restrictions;
+    private final int words;
+    private final long [] masks;
+
+    public RouteMasks(List<LocationEntry> locations, int restrictions) {
+        this.distances = new DistanceMatrix(locations);
+        this.restrictions = restrictions;
+        this.words = Math.max(1, (restrictions + 63) / 64);
+        long length = (long) locations.size() * locations.size() * words;
+        if (length > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Masks of " + locations.size() + " locations do not fit in an array");
+        }
+        this.masks = new long[(int) length];
+    }
+
+    public DistanceMatrix getDistances() {
+        return distances;
+    }
+
+    public int getRestrictions() {
+        return restrictions;
+    }
+
+    /**
+     * Returns the number of longs of a mask.
+     */
+    public int getWords() {
+        return words;
+    }
+
+    /**
+     * Sets the distance of a pair and the mask of its route, taken from {@code words} longs of the array starting at
+     * the offset.
+     */
+    public void set(int from, int to, double distance, long [] mask, int offset) {
+        distances.set(from, to, distance);
+        System.arraycopy(mask, offset, masks, index(from, to), words);
+    }
+
+    /**
+     * Returns the restrictions the route between the pair passes through.
+     */
+    public BitSet get(int from, int to) {
+        int index = index(from, to);
+        long [] mask = new long[words];
+        System.arraycopy(masks, index, mask, 0, words);
+        return BitSet.valueOf(mask);
+    }
+
+    /**
+     * Returns the word with the given index of the mask of the pair, the restrictions 64 * word to 64 * word + 63.
+     */
+    public long getWord(int from, int to, int word) {
+        return masks[index(from, to) + word];
+    }
+
+    /**
+     * Returns whether the route between the pair passes through one of the given restrictions, as returned by
+     * {@link BitSet#toLongArray}. Convert a scenario once and not for every pair.
+     */
+    public boolean crosses(int from, int to, long [] scenario) {
+        int index = index(from, to);
+        for (int w=0; w < Math.min(words, scenario.length); w++) {
+            if ((masks[index + w] & scenario[w]) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of pairs whose route passes through one of the given restrictions.
+     */
+    public long countCrossing(BitSet scenario) {
+        long [] words = scenario.toLongArray();
+        long result = 0;
+        for (int from=0; from < distances.size(); from++) {
+            for (int to=0; to < distances.size(); to++) {
+                if (from != to && crosses(from, to, words)) {
+                    result++;
+                }
+            }
+        }
+        return result;
+    }
+
+    private int index(int from, int to) {
+        return (from * distances.size() + to) * words;
+    }
+
+}
@@ -1,81 +1,439 @@
 package wwcs2022.socialmemcon;
 
-import com.graphhopper.GHRequest;
-import com.graphhopper.GHResponse;
 import com.graphhopper.GraphHopper;
+import com.graphhopper.GraphHopperConfig;
 import com.graphhopper.config.CHProfile;
 import com.graphhopper.config.Profile;
+import com.graphhopper.util.Constants;
 import org.codehaus.commons.compiler.util.Producer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
 
 public class RoutingMain {
 
     private static final Logger log = LoggerFactory.getLogger(RoutingMain.class);
 
-    public static Map<Integer, Map<String, Map<String,Double>>> computeDistances(
+    public static DistanceStack computeDistances(
             List<LocationEntry> locations, Map<Integer,Producer<GraphHopper>> hoppers, String vehicle, Weighting w) {
-        Map<Integer, Map<String, Map<String,Double>>> result = new TreeMap<>();
+        return computeMatrices(locations, hoppers, vehicle, w, MatrixCalculator.DEFAULT_THREADS, null);
+    }
+
+    public static DistanceMatrix computeDistances(
+            List<LocationEntry> locations, GraphHopper hopper, String vehicle, Weighting w) {
+        return computeMatrix(locations, hopper, vehicle, w, MatrixCalculator.DEFAULT_THREADS, null);
+    }
+
+    /**
+     * Computes the distances between all locations for every year. If caches are given, a year's graph is only
+     * loaded when its cache is missing some of the pairs.
+     */
+    public static DistanceStack computeMatrices(
+            List<LocationEntry> locations, Map<Integer,Producer<GraphHopper>> hoppers, String vehicle, Weighting w,
+            int threads, Map<Integer,DistanceCache> caches) {
+        String profile = w.getProfileForVehicle(vehicle);
+        DistanceStack result = new DistanceStack(locations, hoppers.keySet());
         for (var entry : hoppers.entrySet()) {
-            result.put(entry.getKey(), computeDistances(locations, entry.getValue(), vehicle, w));
+            DistanceCache cache = caches == null ? null : caches.get(entry.getKey());
+            Producer<GraphHopper> prod = entry.getValue();
+            fill(result.get(entry.getKey()), cache, (sources, targets) -> {
+                GraphHopper hopper = prod.produce();
+                try {
+                    return new MatrixCalculator(hopper, profile, threads).calcDistances(sources, targets);
+                }
+                finally {
+                    hopper.close();
+                }
+            });
         }
         return result;
     }
 
-    public static Map<String, Map<String,Double>> computeDistances(
-            List<LocationEntry> locations, Producer<GraphHopper> prod, String vehicle, Weighting w) {
-        GraphHopper hopper = prod.produce();
-        var result = computeDistances(locations, hopper, vehicle, w);
-        hopper.close();
+    /**
+     * Computes the distances between all locations for every graph of the pool, keyed by year. A year's graph is
+     * only acquired when its cache is missing some of the pairs, and stays in the pool for later use.
+     */
+    public static DistanceStack computeMatrices(
+            List<LocationEntry> locations, GraphPool<Integer> pool, String vehicle, Weighting w, int threads,
+            Map<Integer,DistanceCache> caches) {
+        String profile = w.getProfileForVehicle(vehicle);
+        DistanceStack result = new DistanceStack(locations, pool.keys());
+        for (int year : result.getYears()) {
+            DistanceCache cache = caches == null ? null : caches.get(year);
+            fill(result.get(year), cache, (sources, targets) -> {
+                try (GraphPool<Integer>.Lease lease = pool.acquire(year)) {
+                    return new MatrixCalculator(lease.getHopper(), profile, threads).calcDistances(sources, targets);
+                }
+            });
+        }
         return result;
     }
 
-    public static Map<String, Map<String,Double>> computeDistances(
-            List<LocationEntry> locations, GraphHopper hopper, String vehicle, Weighting w) {
-        Map<String,Map<String,Double>> result = new TreeMap<>();
-        for (LocationEntry from : locations) {
-            Map<String,Double> innerMap = new TreeMap<>();
-            for (LocationEntry to : locations) {
-                if (from != to) {
-                    String profile = w.getProfileForVehicle(vehicle);
-                    GHRequest req = new GHRequest(from.toPoint(), to.toPoint()).setProfile(profile);
-                    GHResponse resp = hopper.route(req);
-                    if (resp.hasErrors()) {
-                        log.error("Errors in route computation: {}", resp.getErrors());
+    /**
+     * Computes the distances between all locations with the given number of threads. The result is the same for
+     * every number of threads.
+     */
+    public static DistanceMatrix computeMatrix(
+            List<LocationEntry> locations, GraphHopper hopper, String vehicle, Weighting w, int threads,
+            DistanceCache cache) {
+        String profile = w.getProfileForVehicle(vehicle);
+        DistanceMatrix result = new DistanceMatrix(locations);
+        fill(result, cache,
+                (sources, targets) -> new MatrixCalculator(hopper, profile, threads).calcDistances(sources, targets));
+        return result;
+    }
+
+    /**
+     * Computes the distances between all locations approximately: exactly from and to landmarks, and for the other
+     * pairs only where the landmark bounds are not within the tolerance or the pair is closer than the cutoff. See
+     * {@link ApproximateMatrix}.
+     */
+    public static ApproximateMatrix computeApproximateMatrix(
+            List<LocationEntry> locations, GraphHopper hopper, String vehicle, Weighting w, int threads,
+            int landmarks, double tolerance, double cutoff) {
+        String profile = w.getProfileForVehicle(vehicle);
+        SnapIndex snaps = SnapIndex.create(hopper, profile, locations);
+        MatrixCalculator calculator = new MatrixCalculator(hopper, profile, threads);
+        return ApproximateMatrix.compute(locations, (sources, targets) -> calculator.calcDistances(snaps, sources,
+                targets), landmarks, tolerance, cutoff);
+    }
+
+    /**
+     * Computes the distances between all locations for every year on a single graph, blocking the restrictions that
+     * are not built yet in that year. The unrestricted network is routed once with {@link ScenarioGraph#calcRouteMasks}
+     * and a year only reroutes the pairs whose route passes through one of its restrictions.
+     */
+    public static DistanceStack computeScenarioMatrices(
+            List<LocationEntry> locations, ScenarioGraph graph, Set<Integer> years, String vehicle, Weighting w,
+            int threads, Map<Integer,DistanceCache> caches) {
+        String profile = w.getProfileForVehicle(vehicle);
+        DistanceStack result = new DistanceStack(locations, years);
+        // Only routed when a year misses pairs in its cache
+        RouteMasks [] masks = new RouteMasks[1];
+        Supplier<RouteMasks> baseRoutes = () -> {
+            if (masks[0] == null) {
+                masks[0] = graph.calcRouteMasks(locations, profile, threads);
+            }
+            return masks[0];
+        };
+        for (int year : result.getYears()) {
+            log.info("Computing distances for {} on the scenario graph", year);
+            DistanceCache cache = caches == null ? null : caches.get(year);
+            BitSet scenario = graph.restrictionsForYear(year);
+            fillDelta(result.get(year), baseRoutes, scenario, cache, (sources, targets) ->
+                    graph.calcDistances(sources, targets, profile, graph.blockedEdges(scenario), threads));
+        }
+        return result;
+    }
+
+    /**
+     * Fills the matrix with the distances between its locations, only routing the pairs that are not in the cache
+     * yet: locations without any cached distance are routed to all locations, the others only to the locations they
+     * are missing. Without a cache all pairs are routed.
+     */
+    public static void fill(DistanceMatrix result, DistanceCache cache, MatrixFunction function) {
+        List<LocationEntry> locations = result.getLocations();
+        int n = locations.size();
+        if (cache == null) {
+            double [][] computed = function.compute(locations, locations);
+            for (int i=0; i < n; i++) {
+                for (int j=0; j < n; j++) {
+                    if (i != j) {
+                        result.set(i, j, computed[i][j]);
                     }
-                    innerMap.put(to.getName(), resp.getBest().getDistance());
                 }
             }
-            result.put(from.getName(), innerMap);
+            return;
+        }
+        int [] ids = new int[n];
+        for (int i=0; i < n; i++) {
+            ids[i] = cache.id(locations.get(i));
+        }
+        // New locations get their whole row routed, the others only the targets that they are missing
+        List<Integer> newSources = new ArrayList<>();
+        List<Integer> oldSources = new ArrayList<>();
+        Set<Integer> oldTargets = new TreeSet<>();
+        List<Integer> all = new ArrayList<>();
+        long missing = 0;
+        for (int i=0; i < n; i++) {
+            all.add(i);
+            int rowMissing = 0;
+            for (int j=0; j < n; j++) {
+                if (i != j && Double.isNaN(cache.get(ids[i], ids[j]))) {
+                    rowMissing++;
+                }
+            }
+            if (rowMissing == n - 1 && n > 1) {
+                newSources.add(i);
+            }
+            else if (rowMissing > 0) {
+                oldSources.add(i);
+                for (int j=0; j < n; j++) {
+                    if (i != j && Double.isNaN(cache.get(ids[i], ids[j]))) {
+                        oldTargets.add(j);
+                    }
+                }
+            }
+            missing += rowMissing;
+        }
+        log.info("{} of {} pairs found in distance cache", (long) n * (n - 1) - missing, (long) n * (n - 1));
+        if (missing > 0) {
+            if (!newSources.isEmpty()) {
+                route(locations, ids, newSources, all, cache, function);
+            }
+            if (!oldSources.isEmpty()) {
+                route(locations, ids, oldSources, oldTargets, cache, function);
+            }
+            try {
+                cache.save();
+            }
+            catch (IOException ex) {
+                log.error("Unable to write distance cache", ex);
+            }
+        }
+        for (int i=0; i < n; i++) {
+            for (int j=0; j < n; j++) {
+                double d = cache.get(ids[i], ids[j]);
+                if (i != j && !Double.isInfinite(d)) {
+                    result.set(i, j, d);
+                }
+            }
         }
-        return result;
     }
 
+    /**
+     * Routes the given sources to the given targets and stores the pairs that are missing in the cache.
+     */
+    private static void route(List<LocationEntry> locations, int [] ids, Collection<Integer> sourceIndices,
+                              Collection<Integer> targetIndices, DistanceCache cache, MatrixFunction function) {
+        List<LocationEntry> sources = new ArrayList<>();
+        List<LocationEntry> targets = new ArrayList<>();
+        sourceIndices.forEach(i -> sources.add(locations.get(i)));
+        targetIndices.forEach(j -> targets.add(locations.get(j)));
+        double [][] computed = function.compute(sources, targets);
+        int s = 0;
+        for (int i : sourceIndices) {
+            int t = 0;
+            for (int j : targetIndices) {
+                if (i != j && Double.isNaN(cache.get(ids[i], ids[j]))) {
+                    cache.put(ids[i], ids[j], computed[s][t]);
+                }
+                t++;
+            }
+            s++;
+        }
+    }
+
+    /**
+     * Fills the matrix of a scenario like {@link #fill}, but copies the pairs whose base route does not pass through
+     * any of the scenario's restrictions from the base matrix, and only routes the others. Only pairs that are not in
+     * the cache yet are considered, and the base routes are only requested if there are such pairs.
+     */
+    public static void fillDelta(DistanceMatrix result, Supplier<RouteMasks> masks, BitSet scenario,
+                                 DistanceCache cache, MatrixFunction function) {
+        List<LocationEntry> locations = result.getLocations();
+        int n = locations.size();
+        int [] ids = new int[n];
+        if (cache != null) {
+            for (int i=0; i < n; i++) {
+                ids[i] = cache.id(locations.get(i));
+            }
+        }
+        RouteMasks base = null;
+        long [] blocked = scenario.toLongArray();
+        BitSet affected = new BitSet();
+        Set<Integer> sourceIndices = new TreeSet<>();
+        Set<Integer> targetIndices = new TreeSet<>();
+        long cached = 0;
+        long copied = 0;
+        for (int i=0; i < n; i++) {
+            for (int j=0; j < n; j++) {
+                if (i == j) {
+                    continue;
+                }
+                if (cache != null) {
+                    double d = cache.get(ids[i], ids[j]);
+                    if (!Double.isNaN(d)) {
+                        if (!Double.isInfinite(d)) {
+                            result.set(i, j, d);
+                        }
+                        cached++;
+                        continue;
+                    }
+                }
+                if (base == null) {
+                    base = masks.get();
+                }
+                if (base.crosses(i, j, blocked)) {
+                    affected.set(i * n + j);
+                    sourceIndices.add(i);
+                    targetIndices.add(j);
+                }
+                else {
+                    double d = base.getDistances().get(i, j);
+                    result.set(i, j, d);
+                    if (cache != null) {
+                        cache.put(ids[i], ids[j], d);
+                    }
+                    copied++;
+                }
+            }
+        }
+        log.info("{} of {} pairs found in distance cache, {} copied from the base routes, {} rerouted", cached,
+                (long) n * (n - 1), copied, affected.cardinality());
+        Metrics.count("routing.delta.copied", copied);
+        Metrics.count("routing.delta.rerouted", affected.cardinality());
+        if (!affected.isEmpty()) {
+            List<LocationEntry> sources = new ArrayList<>();
+            List<LocationEntry> targets = new ArrayList<>();
+            sourceIndices.forEach(i -> sources.add(locations.get(i)));
+            targetIndices.forEach(j -> targets.add(locations.get(j)));
+            double [][] computed = function.compute(sources, targets);
+            int s = 0;
+            for (int i : sourceIndices) {
+                int t = 0;
+                for (int j : targetIndices) {
+                    double d = computed[s][t++];
+                    if (affected.get(i * n + j)) {
+                        result.set(i, j, d);
+                        if (cache != null) {
+                            cache.put(ids[i], ids[j], d);
+                        }
+                    }
+                }
+                s++;
+            }
+        }
+        if (cache != null && cached < (long) n * (n - 1)) {
+            try {
+                cache.save();
+            }
+            catch (IOException ex) {
+                log.error("Unable to write distance cache", ex);
+            }
+        }
+    }
 
     public static Map<Integer, Producer<GraphHopper>> createInstances(Map<Integer, File> files, String cacheDirPrefix,
                                                                       String vehicle) {
+        ImportScheduler scheduler = ImportScheduler.withDefaultBudget();
+        try {
+            return createInstances(files, cacheDirPrefix, vehicle, scheduler, null);
+        }
+        finally {
+            scheduler.shutdown();
+        }
+    }
+
+    /**
+     * Imports the graphs of all years through the scheduler, so they are imported concurrently as far as its memory
+     * budget allows, and returns producers that load the imported graphs. With a store, only the graphs whose cache
+     * directory is missing or stale are imported.
+     */
+    public static Map<Integer, Producer<GraphHopper>> createInstances(Map<Integer, File> files, String cacheDirPrefix,
+                                                                      String vehicle, ImportScheduler scheduler,
+                                                                      ArtifactStore store) {
         Map<Integer,Producer<GraphHopper>> result = new TreeMap<>();
+        List<Future<?>> imports = new ArrayList<>();
         File cacheDir = new File(cacheDirPrefix);
         for (var entry : files.entrySet()) {
             String osmFile = entry.getValue().toString();
             int year = entry.getKey();
             String dir = new File(cacheDir, ""+year).toString();
-            GraphHopper hopper = createGraphHopperInstance(osmFile, dir, vehicle);
-            hopper.close();
+            imports.add(scheduler.submit(osmFile, dir, vehicle, store));
             result.put(year, () -> createGraphHopperInstance(osmFile, dir, vehicle));
         }
+        imports.forEach(ImportScheduler::await);
         return result;
     }
 
+    /**
+     * Imports the graphs of all years like {@link #createInstances} and returns a pool that loads them memory-mapped,
+     * keeping up to the given number loaded.
+     */
+    public static GraphPool<Integer> createPool(Map<Integer, File> files, String cacheDirPrefix, String vehicle,
+                                                ImportScheduler scheduler, ArtifactStore store, int maxResident) {
+        GraphPool<Integer> result = new GraphPool<>(maxResident);
+        List<Future<?>> imports = new ArrayList<>();
+        File cacheDir = new File(cacheDirPrefix);
+        for (var entry : files.entrySet()) {
+            String osmFile = entry.getValue().toString();
+            String dir = new File(cacheDir, ""+entry.getKey()).toString();
+            imports.add(scheduler.submit(osmFile, dir, vehicle, store));
+            result.register(entry.getKey(), osmFile, dir, vehicle);
+        }
+        imports.forEach(ImportScheduler::await);
+        return result;
+    }
+
+    /**
+     * Returns the key of the GraphHopper cache directory built from the OSM file, which covers the input, the
+     * profiles and the GraphHopper version.
+     */
+    public static String graphKey(String osmFile, String vehicle, ArtifactStore store) throws IOException {
+        return Fingerprints.of(store.inputKey(new File(osmFile)) + '\n' + graphConfig(vehicle));
+    }
+
+    /**
+     * Returns a description of how {@link #createGraphHopperInstance} builds a graph: the GraphHopper version and the
+     * profiles of the vehicle.
+     */
+    public static String graphConfig(String vehicle) {
+        StringBuilder sb = new StringBuilder(Constants.VERSION);
+        for (Weighting w : Weighting.values()) {
+            sb.append('\n').append(w.getProfileForVehicle(vehicle))
+                    .append(';').append(vehicle)
+                    .append(';').append(w.getWeighting())
+                    .append(";ch");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Imports the OSM file into the cache directory unless the directory is up to date. The graph is imported into
+     * a temporary directory that replaces the cache directory once the import and CH preparation are complete.
+     * Returns whether an import was necessary.
+     */
+    public static boolean ensureImported(String osmFile, String cacheDir, String vehicle, ArtifactStore store)
+            throws IOException {
+        return ensureImported(osmFile, cacheDir, vehicle, store, "RAM_STORE");
+    }
+
+    /**
+     * Imports the graph like {@link #ensureImported(String, String, String, ArtifactStore)} with the given GraphHopper
+     * data access type.
+     */
+    public static boolean ensureImported(String osmFile, String cacheDir, String vehicle, ArtifactStore store,
+                                         String dataAccess) throws IOException {
+        File dir = new File(cacheDir);
+        String key = graphKey(osmFile, vehicle, store);
+        if (store.isCurrent(dir, key)) {
+            log.info("GraphHopper cache {} is up to date", dir);
+            return false;
+        }
+        File temp = store.tempFor(dir);
+        GraphHopper hopper = createGraphHopperInstance(osmFile, temp.getPath(), vehicle, dataAccess);
+        hopper.close();
+        store.commit(temp, dir, key);
+        return true;
+    }
+
     public static GraphHopper createGraphHopperInstance(String osmFile, String cacheDir, String vehicle) {
-        GraphHopper hopper = new GraphHopper();
-        hopper.setOSMFile(osmFile);
-        // specify where to store graphhopper files
-        hopper.setGraphHopperLocation(cacheDir);
+        return createGraphHopperInstance(osmFile, cacheDir, vehicle, "RAM_STORE");
+    }
 
+    /**
+     * Creates the instance like {@link #createGraphHopperInstance(String, String, String)} with the given GraphHopper
+     * data access type. With MMAP a loaded graph is memory-mapped instead of copied onto the heap, so many graphs can
+     * stay loaded at once and the operating system pages in the parts that are used.
+     */
+    public static GraphHopper createGraphHopperInstance(String osmFile, String cacheDir, String vehicle,
+                                                        String dataAccess) {
         // see docs/core/profiles.md to learn more about profiles
         List<Profile> profiles = new ArrayList<>();
         List<CHProfile> chProfiles = new ArrayList<>();
@@ -86,9 +444,16 @@ public class RoutingMain {
             profiles.add(profile);
             chProfiles.add(chProfile);
         }
-        hopper.setProfiles(profiles);
-        // this enables speed mode for the profile we called car
-        hopper.getCHPreparationHandler().setCHProfiles(chProfiles);
+        // init builds the encoding manager from the profiles, and needs the OSM file or the graph location
+        GraphHopperConfig config = new GraphHopperConfig()
+                .putObject("datareader.file", osmFile)
+                // specify where to store graphhopper files
+                .putObject("graph.location", cacheDir)
+                .putObject("graph.dataaccess", dataAccess)
+                .setProfiles(profiles)
+                // this enables speed mode for the profile we called car
+                .setCHProfiles(chProfiles);
+        GraphHopper hopper = new GraphHopper().init(config);
 
         // now this can take minutes if it imports or a few seconds for loading of course this is dependent on the area you import
         log.info("Creating GraphHopper instance");
@@ -97,6 +462,13 @@ public class RoutingMain {
         return hopper;
     }
 
+    /**
+     * Computes the distances from every source to every target, indexed as [source][target].
+     */
+    public interface MatrixFunction {
+        double [][] compute(List<LocationEntry> sources, List<LocationEntry> targets);
+    }
+
     public enum Weighting {
         FASTEST {
             public String getWeighting() {
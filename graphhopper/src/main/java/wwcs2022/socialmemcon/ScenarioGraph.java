@@ -0,0 +1,444 @@
+package wwcs2022.socialmemcon;
+
+import com.graphhopper.GraphHopper;
+import com.graphhopper.coll.MinHeapWithUpdate;
+import com.graphhopper.routing.util.AccessFilter;
+import com.graphhopper.routing.util.AllEdgesIterator;
+import com.graphhopper.routing.weighting.Weighting;
+import com.graphhopper.storage.Graph;
+import com.graphhopper.util.EdgeExplorer;
+import com.graphhopper.util.EdgeIterator;
+import com.graphhopper.util.FetchMode;
+import com.graphhopper.util.PMap;
+import com.graphhopper.util.PointList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * Routes all restriction scenarios on a single imported graph of the unfiltered network. On construction every edge
+ * with a point inside a restriction polygon is marked with the restrictions it belongs to. A scenario is a set of
+ * restrictions, and routing in a scenario skips the edges of those restrictions at query time. This replaces a
+ * filtered PBF, an import and a CH preparation per year with one graph, so adding a year costs nothing up front.
+ *
+ * The filtered datasets leave out every OSM way with a node inside a polygon, whole, while this blocks only the edges
+ * with a point inside the polygon. The part of a way outside the polygon stays routable here, so locations near a
+ * bridge can be reached over roads the filtered graph does not have, and the distances can differ from those of the
+ * filtered datasets.
+ *
+ * Distances are computed with one one-to-many Dijkstra per source that stops once all targets are settled. An edge
+ * of the query graph that was created to connect a snapped location is blocked with the edge it is part of. The
+ * locations are snapped once per profile and the {@link SnapIndex} is reused for every scenario.
+ *
+ * {@link #calcRouteMasks} routes the unrestricted network once and records for every pair which restrictions its
+ * route passes through, so a scenario only has to reroute the pairs whose route it blocks.
+ */
+public class ScenarioGraph {
+
+    private static final Logger log = LoggerFactory.getLogger(ScenarioGraph.class);
+
+    private final GraphHopper hopper;
+    private final List<RestrictionEntry> restrictions;
+    private final int [] flaggedEdges;
+    private final BitSet [] edgeRestrictions;
+    private final Map<String,SnapIndex> snapIndexes = new HashMap<>();
+
+    public ScenarioGraph(GraphHopper hopper, List<RestrictionEntry> restrictions) {
+        this.hopper = hopper;
+        this.restrictions = List.copyOf(restrictions);
+        RestrictionIndex.Locator locator = new RestrictionIndex(restrictions).locator();
+        List<Integer> edges = new ArrayList<>();
+        List<BitSet> sets = new ArrayList<>();
+        AllEdgesIterator iter = hopper.getGraphHopperStorage().getAllEdges();
+        while (iter.next()) {
+            BitSet found = new BitSet();
+            PointList points = iter.fetchWayGeometry(FetchMode.ALL);
+            for (int i=0; i < points.size(); i++) {
+                locator.collect(points.getLat(i), points.getLon(i), found);
+            }
+            if (!found.isEmpty()) {
+                edges.add(iter.getEdge());
+                sets.add(found);
+            }
+        }
+        this.flaggedEdges = edges.stream().mapToInt(Integer::intValue).toArray();
+        this.edgeRestrictions = sets.toArray(new BitSet[0]);
+        log.info("Marked {} edges inside {} restriction polygons", flaggedEdges.length, restrictions.size());
+    }
+
+    public GraphHopper getHopper() {
+        return hopper;
+    }
+
+    public List<RestrictionEntry> getRestrictions() {
+        return restrictions;
+    }
+
+    /**
+     * Returns the restrictions that are not built yet in the given year, matching the datasets of
+     * {@link FilterBridgesMain#processAll}.
+     */
+    public BitSet restrictionsForYear(int year) {
+        BitSet result = new BitSet();
+        for (int i=0; i < restrictions.size(); i++) {
+            if (restrictions.get(i).getYear() >= year) {
+                result.set(i);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the edges to block for a scenario in which the given restrictions apply.
+     */
+    public BitSet blockedEdges(BitSet scenario) {
+        BitSet result = new BitSet();
+        for (int i=0; i < flaggedEdges.length; i++) {
+            if (edgeRestrictions[i].intersects(scenario)) {
+                result.set(flaggedEdges[i]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the distances in meters from every source to every target, indexed as [source][target], with the given
+     * edges blocked. Pairs that cannot be routed are NaN.
+     */
+    public double [][] calcDistances(List<LocationEntry> sources, List<LocationEntry> targets, String profile,
+                                     BitSet blockedEdges, int threads) {
+        PipelineEvents.MatrixEvent event = new PipelineEvents.MatrixEvent();
+        event.begin();
+        long start = System.nanoTime();
+        Weighting weighting = weighting(profile);
+        SnapIndex snaps = snapIndex(profile, sources, targets);
+        int [] sourceNodes = snaps.nodes(sources);
+        int [] targetNodes = snaps.nodes(targets);
+        double [][] result = new double[sources.size()][];
+        ThreadLocal<Search> searches = ThreadLocal.withInitial(
+                () -> new Search(snaps, weighting, blockedEdges));
+        Progress progress = new Progress("Scenario searches for " + profile, sources.size());
+        Metrics.Histogram latencies = Metrics.histogram("routing.scenarioSearch");
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            runParallel(pool, sources.size(), s -> {
+                double [] row = new double[targets.size()];
+                Arrays.fill(row, Double.NaN);
+                if (sourceNodes[s] >= 0) {
+                    long searchStart = System.nanoTime();
+                    Search search = searches.get();
+                    search.run(sourceNodes[s], targetNodes);
+                    for (int t=0; t < targetNodes.length; t++) {
+                        if (targetNodes[t] >= 0) {
+                            row[t] = search.distanceTo(targetNodes[t]);
+                        }
+                    }
+                    latencies.record(System.nanoTime() - searchStart);
+                }
+                result[s] = row;
+                progress.increment();
+            });
+        }
+        finally {
+            pool.shutdown();
+        }
+        progress.finish();
+        MatrixCalculator.report(event, profile, sources, targets, sourceNodes, targetNodes, result,
+                System.nanoTime() - start);
+        return result;
+    }
+
+    /**
+     * Returns the distances of several scenarios at once, each from its own sources to the own targets of every
+     * source, given as indices into the locations, indexed as [scenario][source][target of the source]. Every search
+     * stops once the targets of its source are settled. The searches of all scenarios run in one pool and every
+     * thread reuses its search arrays across scenarios, so many small scenarios cost no more memory than one. Pairs
+     * that cannot be routed are NaN.
+     */
+    public List<double [][]> calcDistances(List<LocationEntry> locations, List<BitSet> blockedEdges,
+                                           List<int []> sources, List<int [][]> targets, String profile,
+                                           int threads) {
+        long start = System.nanoTime();
+        Weighting weighting = weighting(profile);
+        SnapIndex snaps = snapIndex(profile, locations, locations);
+        int [] nodes = snaps.nodes(locations);
+        // The searches of all scenarios as one range, the searches of scenario k start at offsets[k]
+        int [] offsets = new int[blockedEdges.size() + 1];
+        List<double [][]> result = new ArrayList<>(blockedEdges.size());
+        for (int k=0; k < blockedEdges.size(); k++) {
+            offsets[k + 1] = offsets[k] + sources.get(k).length;
+            result.add(new double[sources.get(k).length][]);
+        }
+        ThreadLocal<Search> searches = ThreadLocal.withInitial(
+                () -> new Search(snaps, weighting, new BitSet()));
+        Progress progress = new Progress("Scenario searches for " + profile, offsets[blockedEdges.size()]);
+        Metrics.Histogram latencies = Metrics.histogram("routing.scenarioSearch");
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            runParallel(pool, offsets[blockedEdges.size()], i -> {
+                int k = Arrays.binarySearch(offsets, i);
+                // Skip scenarios without sources, which share their offset with the next one
+                k = k < 0 ? -k - 2 : k;
+                while (offsets[k + 1] == i) {
+                    k++;
+                }
+                int s = i - offsets[k];
+                int [] sourceTargets = targets.get(k)[s];
+                int [] targetNodes = new int[sourceTargets.length];
+                for (int t=0; t < sourceTargets.length; t++) {
+                    targetNodes[t] = nodes[sourceTargets[t]];
+                }
+                double [] row = new double[sourceTargets.length];
+                Arrays.fill(row, Double.NaN);
+                int source = nodes[sources.get(k)[s]];
+                if (source >= 0) {
+                    long searchStart = System.nanoTime();
+                    Search search = searches.get();
+                    search.blockedEdges = blockedEdges.get(k);
+                    search.run(source, targetNodes);
+                    for (int t=0; t < targetNodes.length; t++) {
+                        if (targetNodes[t] >= 0) {
+                            row[t] = search.distanceTo(targetNodes[t]);
+                        }
+                    }
+                    latencies.record(System.nanoTime() - searchStart);
+                }
+                result.get(k)[s] = row;
+                progress.increment();
+            });
+        }
+        finally {
+            pool.shutdown();
+        }
+        progress.finish();
+        log.info("Computed {} scenarios with {} searches in {} ms", blockedEdges.size(), offsets[blockedEdges.size()],
+                (System.nanoTime() - start) / 1_000_000);
+        return result;
+    }
+
+    /**
+     * Returns the distances in meters between all locations on the unrestricted network, and for every pair the
+     * restrictions the route passes through. A pair whose route passes through none of the restrictions of a
+     * scenario has the same distance in that scenario.
+     */
+    public RouteMasks calcRouteMasks(List<LocationEntry> locations, String profile, int threads) {
+        long start = System.nanoTime();
+        Weighting weighting = weighting(profile);
+        SnapIndex snaps = snapIndex(profile, locations, locations);
+        int [] nodes = snaps.nodes(locations);
+        RouteMasks result = new RouteMasks(locations, restrictions.size());
+        int words = result.getWords();
+        long [][] edgeMasks = new long[flaggedEdges.length][];
+        for (int i=0; i < flaggedEdges.length; i++) {
+            edgeMasks[i] = Arrays.copyOf(edgeRestrictions[i].toLongArray(), words);
+        }
+        ThreadLocal<Search> searches = ThreadLocal.withInitial(
+                () -> new Search(snaps, weighting, new BitSet(), flaggedEdges, edgeMasks, words));
+        Progress progress = new Progress("Route masks for " + profile, locations.size());
+        Metrics.Histogram latencies = Metrics.histogram("routing.maskSearch");
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            runParallel(pool, locations.size(), s -> {
+                if (nodes[s] >= 0) {
+                    long searchStart = System.nanoTime();
+                    Search search = searches.get();
+                    search.run(nodes[s], nodes);
+                    for (int t=0; t < nodes.length; t++) {
+                        // Unreachable pairs stay NaN with an empty mask, no scenario can reach them
+                        double distance = nodes[t] >= 0 ? search.distanceTo(nodes[t]) : Double.NaN;
+                        if (t != s && !Double.isNaN(distance)) {
+                            result.set(s, t, distance, search.masks, nodes[t] * words);
+                        }
+                    }
+                    latencies.record(System.nanoTime() - searchStart);
+                }
+                progress.increment();
+            });
+        }
+        finally {
+            pool.shutdown();
+        }
+        progress.finish();
+        log.info("Computed route masks of {} locations in {} ms", locations.size(),
+                (System.nanoTime() - start) / 1_000_000);
+        return result;
+    }
+
+    private Weighting weighting(String profile) {
+        return hopper.createWeighting(hopper.getProfile(profile), new PMap());
+    }
+
+    /**
+     * Returns the snaps of the locations for the profile, reusing those of the previous call if it covered all of
+     * them, so the locations are snapped once for all years.
+     */
+    synchronized SnapIndex snapIndex(String profile, List<LocationEntry> sources, List<LocationEntry> targets) {
+        SnapIndex index = snapIndexes.get(profile);
+        if (index == null || !index.containsAll(sources) || !index.containsAll(targets)) {
+            index = SnapIndex.create(hopper, profile, SnapIndex.union(sources, targets));
+            snapIndexes.put(profile, index);
+        }
+        return index;
+    }
+
+    private static void runParallel(ForkJoinPool pool, int count, IntConsumer task) {
+        try {
+            pool.submit(() -> IntStream.range(0, count).parallel().forEach(task)).get();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while computing distances", ex);
+        }
+        catch (ExecutionException ex) {
+            throw new IllegalStateException("Error while computing distances", ex.getCause());
+        }
+    }
+
+    /**
+     * One-to-many Dijkstra on the query graph that skips blocked edges. Reuses its arrays between runs, so only the
+     * nodes touched by the previous run are reset. With edge masks it also tracks the restrictions on the shortest
+     * path to every node, as the mask of the parent node combined with the mask of the edge, or for a virtual edge of
+     * the edge it is part of.
+     */
+    private static final class Search {
+        private final Weighting weighting;
+        private BitSet blockedEdges;
+        private final SnapIndex snaps;
+        private final EdgeExplorer explorer;
+        private final double [] weights;
+        private final double [] distances;
+        private final boolean [] settled;
+        // The targets of the current run that are not settled yet
+        private final boolean [] target;
+        private final MinHeapWithUpdate heap;
+        private final int [] flaggedEdges;
+        private final long [][] edgeMasks;
+        private final int words;
+        private final long [] masks;
+        private int [] touched = new int[1024];
+        private int touchedCount;
+
+        private Search(SnapIndex snaps, Weighting weighting, BitSet blockedEdges) {
+            this(snaps, weighting, blockedEdges, new int[0], new long[0][], 0);
+        }
+
+        private Search(SnapIndex snaps, Weighting weighting, BitSet blockedEdges, int [] flaggedEdges,
+                       long [][] edgeMasks, int words) {
+            Graph graph = snaps.getQueryGraph();
+            this.flaggedEdges = flaggedEdges;
+            this.edgeMasks = edgeMasks;
+            this.words = words;
+            this.masks = words == 0 ? null : new long[graph.getNodes() * words];
+            this.weighting = weighting;
+            this.blockedEdges = blockedEdges;
+            this.snaps = snaps;
+            this.explorer = graph.createEdgeExplorer(AccessFilter.outEdges(weighting.getFlagEncoder().getAccessEnc()));
+            this.weights = new double[graph.getNodes()];
+            this.distances = new double[graph.getNodes()];
+            this.settled = new boolean[graph.getNodes()];
+            this.target = new boolean[graph.getNodes()];
+            this.heap = new MinHeapWithUpdate(graph.getNodes());
+            Arrays.fill(weights, Double.POSITIVE_INFINITY);
+        }
+
+        private void run(int start, int [] targets) {
+            for (int i=0; i < touchedCount; i++) {
+                weights[touched[i]] = Double.POSITIVE_INFINITY;
+                settled[touched[i]] = false;
+            }
+            touchedCount = 0;
+            heap.clear();
+
+            int remaining = 0;
+            for (int node : targets) {
+                if (node >= 0 && !target[node]) {
+                    target[node] = true;
+                    remaining++;
+                }
+            }
+            touch(start, 0, 0);
+            if (masks != null) {
+                Arrays.fill(masks, start * words, (start + 1) * words, 0);
+            }
+            heap.push(start, 0);
+            while (!heap.isEmpty() && remaining > 0) {
+                int node = heap.poll();
+                settled[node] = true;
+                if (target[node]) {
+                    target[node] = false;
+                    remaining--;
+                }
+                double weight = weights[node];
+                double distance = distances[node];
+                EdgeIterator iter = explorer.setBaseNode(node);
+                while (iter.next()) {
+                    int edge = iter.getEdge();
+                    if (blockedEdges.get(snaps.getOriginalEdge(edge))) {
+                        continue;
+                    }
+                    int adj = iter.getAdjNode();
+                    if (settled[adj]) {
+                        continue;
+                    }
+                    double edgeWeight = weighting.calcEdgeWeight(iter, false);
+                    if (Double.isInfinite(edgeWeight)) {
+                        continue;
+                    }
+                    double newWeight = weight + edgeWeight;
+                    if (newWeight < weights[adj]) {
+                        boolean queued = !Double.isInfinite(weights[adj]);
+                        touch(adj, newWeight, distance + iter.getDistance());
+                        if (masks != null) {
+                            updateMask(node, adj, snaps.getOriginalEdge(edge));
+                        }
+                        if (queued) {
+                            heap.update(adj, (float) newWeight);
+                        }
+                        else {
+                            heap.push(adj, (float) newWeight);
+                        }
+                    }
+                }
+            }
+            // Targets that cannot be reached are still marked
+            if (remaining > 0) {
+                for (int node : targets) {
+                    if (node >= 0) {
+                        target[node] = false;
+                    }
+                }
+            }
+        }
+
+        private void updateMask(int parent, int node, int edge) {
+            System.arraycopy(masks, parent * words, masks, node * words, words);
+            int k = Arrays.binarySearch(flaggedEdges, edge);
+            if (k >= 0) {
+                for (int w=0; w < words; w++) {
+                    masks[node * words + w] |= edgeMasks[k][w];
+                }
+            }
+        }
+
+        private double distanceTo(int node) {
+            return settled[node] ? distances[node] : Double.NaN;
+        }
+
+        private void touch(int node, double weight, double distance) {
+            if (Double.isInfinite(weights[node])) {
+                if (touchedCount == touched.length) {
+                    touched = Arrays.copyOf(touched, touchedCount * 2);
+                }
+                touched[touchedCount++] = node;
+            }
+            weights[node] = weight;
+            distances[node] = distance;
+        }
+    }
+
+}
@@ -0,0 +1,223 @@
+package wwcs2022.socialmemcon;
+
+import com.graphhopper.GraphHopper;
+import com.graphhopper.routing.ev.Subnetwork;
+import com.graphhopper.routing.querygraph.QueryGraph;
+import com.graphhopper.routing.querygraph.VirtualEdgeIteratorState;
+import com.graphhopper.routing.util.DefaultSnapFilter;
+import com.graphhopper.routing.util.EdgeFilter;
+import com.graphhopper.routing.weighting.Weighting;
+import com.graphhopper.storage.index.Snap;
+import com.graphhopper.util.GHUtility;
+import com.graphhopper.util.PMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+
+/**
+ * The locations snapped to the road network of one graph and profile, each exactly once, together with the query
+ * graph that connects the snapped points. Snapping only depends on the graph, so one index serves every matrix on
+ * that graph: all sources and targets, and on a {@link ScenarioGraph} every year. Locations are looked up by name,
+ * like in {@link DistanceMatrix}.
+ *
+ * The query graph replaces the closest node of a snap on an edge with a virtual node, so the snaps must not be used
+ * to create another query graph. The virtual edges of a snap are parts of the edge it was snapped to, and
+ * {@link #getOriginalEdge} maps them back to that edge. Locations that cannot be snapped, or that are snapped farther
+ * from the road network than the configured distance, are logged and counted in the run {@link Metrics}.
+ */
+public class SnapIndex {
+
+    private static final Logger log = LoggerFactory.getLogger(SnapIndex.class);
+
+    // A location this far from the road most likely has wrong coordinates or lies outside of the extract
+    public static final double DEFAULT_MAX_SNAP_DISTANCE_M = 1_000;
+
+    private final String profile;
+    private final List<LocationEntry> locations;
+    private final Map<String,Integer> index;
+    private final Snap [] snaps;
+    private final QueryGraph queryGraph;
+    private final int baseNodes;
+    private final int baseEdges;
+    private final int [] originalEdges;
+    private final int unsnapped;
+    private final int farSnaps;
+
+    private SnapIndex(String profile, List<LocationEntry> locations, Snap [] snaps, QueryGraph queryGraph,
+                      int baseNodes, int baseEdges, int [] originalEdges, int unsnapped, int farSnaps) {
+        this.profile = profile;
+        this.locations = locations;
+        this.index = DistanceMatrix.index(locations);
+        this.snaps = snaps;
+        this.queryGraph = queryGraph;
+        this.baseNodes = baseNodes;
+        this.baseEdges = baseEdges;
+        this.originalEdges = originalEdges;
+        this.unsnapped = unsnapped;
+        this.farSnaps = farSnaps;
+    }
+
+    public static SnapIndex create(GraphHopper hopper, String profile, List<LocationEntry> locations) {
+        return create(hopper, profile, locations, DEFAULT_MAX_SNAP_DISTANCE_M);
+    }
+
+    public static SnapIndex create(GraphHopper hopper, String profile, List<LocationEntry> locations,
+                                   double maxSnapDistance) {
+        long start = System.nanoTime();
+        Weighting weighting = hopper.createWeighting(hopper.getProfile(profile), new PMap());
+        EdgeFilter snapFilter = new DefaultSnapFilter(weighting,
+                hopper.getEncodingManager().getBooleanEncodedValue(Subnetwork.key(profile)));
+        Snap [] snaps = new Snap[locations.size()];
+        List<Snap> valid = new ArrayList<>();
+        int unsnapped = 0;
+        int farSnaps = 0;
+        for (int i=0; i < locations.size(); i++) {
+            LocationEntry loc = locations.get(i);
+            Snap snap = hopper.getLocationIndex().findClosest(loc.getLat(), loc.getLng(), snapFilter);
+            if (!snap.isValid()) {
+                log.error("Location {} could not be snapped to the road network", loc.getName());
+                unsnapped++;
+                continue;
+            }
+            if (snap.getQueryDistance() > maxSnapDistance) {
+                log.warn("Location {} was snapped {} m away from its coordinates", loc.getName(),
+                        Math.round(snap.getQueryDistance()));
+                farSnaps++;
+            }
+            snaps[i] = snap;
+            valid.add(snap);
+        }
+        QueryGraph queryGraph = QueryGraph.create(hopper.getGraphHopperStorage(), valid);
+        int baseEdges = hopper.getGraphHopperStorage().getEdges();
+        // Virtual edges are numbered from the base edges on, getEdges counts each of them once per direction
+        int [] originalEdges = new int[(queryGraph.getEdges() - baseEdges) / 2];
+        for (int i=0; i < originalEdges.length; i++) {
+            VirtualEdgeIteratorState edge = (VirtualEdgeIteratorState) queryGraph.getEdgeIteratorState(baseEdges + i,
+                    Integer.MIN_VALUE);
+            originalEdges[i] = GHUtility.getEdgeFromEdgeKey(edge.getOriginalEdgeKey());
+        }
+        long nanos = System.nanoTime() - start;
+        log.info("Snapped {} locations for {} in {} ms, {} not snapped, {} farther than {} m", locations.size(),
+                profile, nanos / 1_000_000, unsnapped, farSnaps, maxSnapDistance);
+        Metrics.count("snap.locations", locations.size());
+        Metrics.count("snap.unsnapped", unsnapped);
+        Metrics.count("snap.far", farSnaps);
+        Metrics.count("snap.timeMs", nanos / 1_000_000);
+        return new SnapIndex(profile, List.copyOf(locations), snaps, queryGraph,
+                hopper.getGraphHopperStorage().getNodes(), baseEdges, originalEdges, unsnapped, farSnaps);
+    }
+
+    /**
+     * Returns the locations of both lists, each once, in order of their first appearance.
+     */
+    public static List<LocationEntry> union(List<LocationEntry> first, List<LocationEntry> second) {
+        if (first == second) {
+            return first;
+        }
+        Map<String,LocationEntry> result = new LinkedHashMap<>();
+        first.forEach(loc -> result.putIfAbsent(loc.getName(), loc));
+        second.forEach(loc -> result.putIfAbsent(loc.getName(), loc));
+        return new ArrayList<>(result.values());
+    }
+
+    public String getProfile() {
+        return profile;
+    }
+
+    public List<LocationEntry> getLocations() {
+        return locations;
+    }
+
+    public int size() {
+        return snaps.length;
+    }
+
+    /**
+     * Returns the index of the location with the name of the given one, or -1 if it is not in this index.
+     */
+    public int indexOf(LocationEntry location) {
+        return index.getOrDefault(location.getName(), -1);
+    }
+
+    public boolean containsAll(Collection<LocationEntry> locations) {
+        return locations.stream().allMatch(loc -> indexOf(loc) >= 0);
+    }
+
+    public boolean isSnapped(int i) {
+        return snaps[i] != null;
+    }
+
+    /**
+     * Returns the node of the query graph at the snapped location, or -1 if the location could not be snapped.
+     */
+    public int getNode(int i) {
+        return snaps[i] == null ? -1 : snaps[i].getClosestNode();
+    }
+
+    /**
+     * Returns the edge of the base graph the location was snapped to, or -1 if it could not be snapped.
+     */
+    public int getEdge(int i) {
+        return snaps[i] == null ? -1 : snaps[i].getClosestEdge().getEdge();
+    }
+
+    /**
+     * Returns the distance in meters between the location and its snapped point, NaN if it could not be snapped.
+     */
+    public double getSnapDistance(int i) {
+        return snaps[i] == null ? Double.NaN : snaps[i].getQueryDistance();
+    }
+
+    /**
+     * Returns the query graph nodes of the given locations, -1 for locations that could not be snapped.
+     *
+     * @throws IllegalArgumentException if a location is not in this index
+     */
+    public int [] nodes(List<LocationEntry> locations) {
+        int [] result = new int[locations.size()];
+        for (int i=0; i < result.length; i++) {
+            int k = indexOf(locations.get(i));
+            if (k < 0) {
+                throw new IllegalArgumentException("Location " + locations.get(i).getName() + " is not indexed");
+            }
+            result[i] = getNode(k);
+        }
+        return result;
+    }
+
+    public QueryGraph getQueryGraph() {
+        return queryGraph;
+    }
+
+    /**
+     * Returns the number of nodes of the base graph; nodes of the query graph from this number on are virtual.
+     */
+    public int getBaseNodes() {
+        return baseNodes;
+    }
+
+    /**
+     * Returns the number of edges of the base graph; edges of the query graph from this number on are virtual.
+     */
+    public int getBaseEdges() {
+        return baseEdges;
+    }
+
+    /**
+     * Returns the edge of the base graph an edge of the query graph is part of: the edge itself for edges of the base
+     * graph, and for a virtual edge the edge that was split to connect the snapped location.
+     */
+    public int getOriginalEdge(int edge) {
+        return edge < baseEdges ? edge : originalEdges[edge - baseEdges];
+    }
+
+    public int getUnsnapped() {
+        return unsnapped;
+    }
+
+    public int getFarSnaps() {
+        return farSnaps;
+    }
+
+}
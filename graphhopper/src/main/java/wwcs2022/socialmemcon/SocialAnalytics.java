@@ -0,0 +1,511 @@
+package wwcs2022.socialmemcon;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.stream.IntStream;
+
+/**
+ * Joins the invitation counts of the social network with the road distances between the locations of the distance
+ * matrices, without a spreadsheet in between. For every registration year it computes
+ * <ul>
+ *     <li>the distance decay: the connections, the possible connections (products of user counts) and their ratio,
+ *     the per-user connection probability, in bins of road distance,</li>
+ *     <li>a gravity model fit ln S = c + a ln(n_i n_j) - g ln d over the connected pairs by least squares,</li>
+ *     <li>for years in which the road network changed, the change of the per-user invitation intensity of the pairs
+ *     whose distance shrank against that of the other pairs, and its correlation with the change of distance.</li>
+ * </ul>
+ * As in the analysis notebook, the connections S of a pair are the invitations in both directions summed over all
+ * years up to the current one, and the users n of a location are its registrations up to the current year, at least
+ * one. The distance of a pair is the mean of both directions.
+ *
+ * The distances of a year come from the network of that year: the matrix of the earliest restriction year after it,
+ * since the matrix of a restriction year excludes the bridges opened in or after that year, or the base matrix for
+ * years after the last restriction. The years are analysed in parallel.
+ */
+public class SocialAnalytics {
+
+    private static final Logger log = LoggerFactory.getLogger(SocialAnalytics.class);
+
+    public static final double DEFAULT_BIN_KM = 50;
+
+    // A pair is affected by a change of the network when its distance shrinks by more than this fraction
+    private static final double CHANGE_THRESHOLD = 0.01;
+
+    private final InvitationCounts invitations;
+    private final DistanceMatrix baseDistances;
+    private final DistanceStack distances;
+    private final int [] years;
+    private final int size;
+    // The locations of both ends of every unordered pair with invitations, and the pair of every row or -1
+    private final int [] pairFrom;
+    private final int [] pairTo;
+    private final int [] rowPairs;
+    private final int [] rowLocations;
+
+    public SocialAnalytics(InvitationCounts invitations, Cities cities, DistanceMatrix baseDistances,
+                           DistanceStack distances) {
+        this.invitations = invitations;
+        this.baseDistances = baseDistances;
+        this.distances = distances;
+        this.years = invitations.getYears();
+        this.size = baseDistances.size();
+
+        int [] cityLocations = cityLocations(cities, baseDistances.getLocations());
+        rowLocations = new int[invitations.size()];
+        int [] rowInvitors = new int[invitations.size()];
+        long [] keys = new long[invitations.size()];
+        int keyCount = 0;
+        long unmatched = 0;
+        for (int r=0; r < invitations.size(); r++) {
+            rowLocations[r] = location(cities, cityLocations, invitations.getCityId(r));
+            rowInvitors[r] = location(cities, cityLocations, invitations.getInvitorId(r));
+            if (rowLocations[r] < 0 || rowInvitors[r] < 0) {
+                unmatched += invitations.getWeight(r);
+            }
+            else if (rowLocations[r] != rowInvitors[r]) {
+                keys[keyCount++] = pairKey(rowLocations[r], rowInvitors[r]);
+            }
+        }
+        long [] pairKeys = Arrays.stream(keys, 0, keyCount).sorted().distinct().toArray();
+        pairFrom = new int[pairKeys.length];
+        pairTo = new int[pairKeys.length];
+        for (int p=0; p < pairKeys.length; p++) {
+            pairFrom[p] = (int) (pairKeys[p] / size);
+            pairTo[p] = (int) (pairKeys[p] % size);
+        }
+        rowPairs = new int[invitations.size()];
+        for (int r=0; r < invitations.size(); r++) {
+            boolean pair = rowLocations[r] >= 0 && rowInvitors[r] >= 0 && rowLocations[r] != rowInvitors[r];
+            rowPairs[r] = pair ? Arrays.binarySearch(pairKeys, pairKey(rowLocations[r], rowInvitors[r])) : -1;
+        }
+        log.info("Joined invitations of {} location pairs, {} invitations involve cities without a location",
+                pairKeys.length, unmatched);
+    }
+
+    /**
+     * Returns the location of every city, or -1 for a city without one.
+     */
+    static int [] cityLocations(Cities cities, List<LocationEntry> locations) {
+        int [] result = new int[cities.size()];
+        Arrays.fill(result, -1);
+        int [] matches = cities.match(locations);
+        for (int l=0; l < matches.length; l++) {
+            if (matches[l] >= 0) {
+                result[matches[l]] = l;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the location of the city with the given id, or -1 if it has none.
+     */
+    static int location(Cities cities, int [] cityLocations, int cityId) {
+        int city = cities.indexOf(cityId);
+        return city < 0 ? -1 : cityLocations[city];
+    }
+
+    private long pairKey(int a, int b) {
+        return (long) Math.min(a, b) * size + Math.max(a, b);
+    }
+
+    public Result analyse() {
+        return analyse(DEFAULT_BIN_KM);
+    }
+
+    public Result analyse(double binKm) {
+        long start = System.currentTimeMillis();
+        // Invitations and registrations of every year, summed over the years afterwards
+        double [][] pairWeights = new double[years.length][];
+        double [][] newUsers = new double[years.length][];
+        IntStream.range(0, years.length).parallel().forEach(y -> {
+            double [] weights = new double[pairFrom.length];
+            double [] users = new double[size];
+            for (int r=invitations.start(y); r < invitations.end(y); r++) {
+                if (rowPairs[r] >= 0) {
+                    weights[rowPairs[r]] += invitations.getWeight(r);
+                }
+                if (rowLocations[r] >= 0) {
+                    users[rowLocations[r]] += invitations.getWeight(r);
+                }
+            }
+            pairWeights[y] = weights;
+            newUsers[y] = users;
+        });
+        double [][] connections = cumulative(pairWeights);
+        double [][] users = cumulative(newUsers);
+        for (double [] row : users) {
+            for (int l=0; l < row.length; l++) {
+                row[l] = Math.max(1, row[l]);
+            }
+        }
+        double maxKm = 0;
+        for (int y=0; y < years.length; y++) {
+            DistanceMatrix m = matrixFor(years[y]);
+            for (int i=0; i < size; i++) {
+                for (int j=i + 1; j < size; j++) {
+                    double d = distanceKm(m, i, j);
+                    if (!Double.isNaN(d)) {
+                        maxKm = Math.max(maxKm, d);
+                    }
+                }
+            }
+        }
+        int bins = Math.max(1, (int) Math.ceil(maxKm / binKm));
+
+        YearResult [] results = new YearResult[years.length];
+        IntStream.range(0, years.length).parallel().forEach(y -> {
+            DistanceMatrix m = matrixFor(years[y]);
+            YearResult result = new YearResult(years[y], bins);
+            binConnections(result, m, connections[y], users[y], binKm);
+            fitGravity(result, m, connections[y], users[y]);
+            if (y > 0 && matrixFor(years[y - 1]) != m) {
+                compareChange(result, matrixFor(years[y - 1]), m, pairWeights[y - 1], pairWeights[y], users[y - 1],
+                        users[y]);
+            }
+            results[y] = result;
+        });
+        log.info("Analysed {} years of {} locations in {} ms", years.length, size,
+                System.currentTimeMillis() - start);
+        return new Result(binKm, Arrays.asList(results));
+    }
+
+    private static double [][] cumulative(double [][] values) {
+        double [][] result = new double[values.length][];
+        for (int y=0; y < values.length; y++) {
+            result[y] = values[y].clone();
+            if (y > 0) {
+                for (int i=0; i < result[y].length; i++) {
+                    result[y][i] += result[y - 1][i];
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the matrix of the road network during the given year.
+     */
+    private DistanceMatrix matrixFor(int year) {
+        for (int layer : distances.getYears()) {
+            if (layer > year) {
+                return distances.get(layer);
+            }
+        }
+        return baseDistances;
+    }
+
+    private static double distanceKm(DistanceMatrix m, int i, int j) {
+        double there = m.get(i, j);
+        double back = m.get(j, i);
+        if (Double.isNaN(there)) {
+            return back / 1000;
+        }
+        if (Double.isNaN(back)) {
+            return there / 1000;
+        }
+        return (there + back) / 2000;
+    }
+
+    private void binConnections(YearResult result, DistanceMatrix m, double [] connections, double [] users,
+                                double binKm) {
+        int last = result.connections.length - 1;
+        for (int i=0; i < size; i++) {
+            for (int j=i + 1; j < size; j++) {
+                double d = distanceKm(m, i, j);
+                if (!Double.isNaN(d)) {
+                    result.possible[Math.min(last, (int) (d / binKm))] += users[i] * users[j];
+                }
+            }
+        }
+        for (int p=0; p < pairFrom.length; p++) {
+            double d = distanceKm(m, pairFrom[p], pairTo[p]);
+            if (!Double.isNaN(d)) {
+                result.connections[Math.min(last, (int) (d / binKm))] += connections[p];
+            }
+        }
+    }
+
+    private void fitGravity(YearResult result, DistanceMatrix m, double [] connections, double [] users) {
+        // Normal equations of the least squares fit of y = c + a * x1 + b * x2
+        double [][] a = new double[3][4];
+        int pairs = 0;
+        for (int p=0; p < pairFrom.length; p++) {
+            double d = distanceKm(m, pairFrom[p], pairTo[p]);
+            if (connections[p] <= 0 || !(d > 0)) {
+                continue;
+            }
+            double [] x = { 1, Math.log(users[pairFrom[p]] * users[pairTo[p]]), Math.log(d) };
+            double y = Math.log(connections[p]);
+            for (int r=0; r < 3; r++) {
+                for (int c=0; c < 3; c++) {
+                    a[r][c] += x[r] * x[c];
+                }
+                a[r][3] += x[r] * y;
+            }
+            pairs++;
+        }
+        result.gravityPairs = pairs;
+        double [] coefficients = solve(a);
+        if (coefficients == null) {
+            return;
+        }
+        result.gravityConstant = coefficients[0];
+        result.populationExponent = coefficients[1];
+        result.distanceExponent = -coefficients[2];
+
+        double sum = 0;
+        double sumSquares = 0;
+        double residuals = 0;
+        for (int p=0; p < pairFrom.length; p++) {
+            double d = distanceKm(m, pairFrom[p], pairTo[p]);
+            if (connections[p] <= 0 || !(d > 0)) {
+                continue;
+            }
+            double y = Math.log(connections[p]);
+            double fitted = coefficients[0] + coefficients[1] * Math.log(users[pairFrom[p]] * users[pairTo[p]])
+                    + coefficients[2] * Math.log(d);
+            sum += y;
+            sumSquares += y * y;
+            residuals += (y - fitted) * (y - fitted);
+        }
+        double total = sumSquares - sum * sum / pairs;
+        result.gravityR2 = total > 0 ? 1 - residuals / total : Double.NaN;
+    }
+
+    /**
+     * Solves the equations of an augmented 3 x 4 matrix by Gaussian elimination, returns null if they are singular.
+     */
+    private static double [] solve(double [][] a) {
+        int n = a.length;
+        for (int col=0; col < n; col++) {
+            int pivot = col;
+            for (int r=col + 1; r < n; r++) {
+                if (Math.abs(a[r][col]) > Math.abs(a[pivot][col])) {
+                    pivot = r;
+                }
+            }
+            if (Math.abs(a[pivot][col]) < 1e-9) {
+                return null;
+            }
+            double [] swap = a[col];
+            a[col] = a[pivot];
+            a[pivot] = swap;
+            for (int r=0; r < n; r++) {
+                if (r != col) {
+                    double factor = a[r][col] / a[col][col];
+                    for (int c=col; c <= n; c++) {
+                        a[r][c] -= factor * a[col][c];
+                    }
+                }
+            }
+        }
+        double [] result = new double[n];
+        for (int r=0; r < n; r++) {
+            result[r] = a[r][n] / a[r][r];
+        }
+        return result;
+    }
+
+    /**
+     * Compares the change of the yearly invitations per user pair between two years with a different network for
+     * the pairs with invitations in both years.
+     */
+    private void compareChange(YearResult result, DistanceMatrix before, DistanceMatrix after, double [] weightsBefore,
+                               double [] weightsAfter, double [] usersBefore, double [] usersAfter) {
+        double affectedSum = 0;
+        double otherSum = 0;
+        double distanceChange = 0;
+        int affected = 0;
+        int other = 0;
+        // Sums for the correlation of the change of log distance and log intensity
+        double sx = 0, sy = 0, sxx = 0, syy = 0, sxy = 0;
+        for (int p=0; p < pairFrom.length; p++) {
+            int i = pairFrom[p];
+            int j = pairTo[p];
+            double dBefore = distanceKm(before, i, j);
+            double dAfter = distanceKm(after, i, j);
+            if (weightsBefore[p] <= 0 || weightsAfter[p] <= 0 || !(dBefore > 0) || !(dAfter > 0)) {
+                continue;
+            }
+            double change = Math.log(weightsAfter[p] / (usersAfter[i] * usersAfter[j]))
+                    - Math.log(weightsBefore[p] / (usersBefore[i] * usersBefore[j]));
+            if (dAfter < dBefore * (1 - CHANGE_THRESHOLD)) {
+                affectedSum += change;
+                distanceChange += dAfter - dBefore;
+                affected++;
+            }
+            else {
+                otherSum += change;
+                other++;
+            }
+            double x = Math.log(dAfter / dBefore);
+            sx += x;
+            sy += change;
+            sxx += x * x;
+            syy += change * change;
+            sxy += x * change;
+        }
+        int n = affected + other;
+        result.changedPairs = affected;
+        result.unchangedPairs = other;
+        result.meanDistanceChangeKm = affected > 0 ? distanceChange / affected : Double.NaN;
+        result.meanIntensityChangeChanged = affected > 0 ? affectedSum / affected : Double.NaN;
+        result.meanIntensityChangeUnchanged = other > 0 ? otherSum / other : Double.NaN;
+        double covariance = n * sxy - sx * sy;
+        double variance = (n * sxx - sx * sx) * (n * syy - sy * sy);
+        result.changeCorrelation = variance > 0 ? covariance / Math.sqrt(variance) : Double.NaN;
+    }
+
+    /**
+     * Writes the analysis of the invitations in one file to the given output files, using the distances of a
+     * {@link MatrixFile}. Arguments: matrix file, invitation counts, cities, output prefix.
+     */
+    public static void main(String [] args) throws IOException {
+        if (args.length != 4) {
+            log.info("Usage: SocialAnalytics <matrix file> <invitation counts> <cities> <output prefix>");
+            return;
+        }
+        DistanceMatrix baseDistances;
+        DistanceStack distances;
+        try (MatrixFile file = MatrixFile.open(new File(args[0]))) {
+            baseDistances = file.toMatrix(MatrixFile.BASE);
+            distances = file.toStack();
+        }
+        InvitationCounts invitations = InvitationCounts.read(new File(args[1]));
+        Cities cities = Cities.read(new File(args[2]));
+        new SocialAnalytics(invitations, cities, baseDistances, distances).analyse().write(args[3]);
+    }
+
+    public static final class Result {
+        private final double binKm;
+        private final List<YearResult> years;
+
+        private Result(double binKm, List<YearResult> years) {
+            this.binKm = binKm;
+            this.years = years;
+        }
+
+        public double getBinKm() {
+            return binKm;
+        }
+
+        public List<YearResult> getYears() {
+            return years;
+        }
+
+        /**
+         * Writes the distance decay, the gravity fits and the network changes to the files prefix + decay.csv,
+         * gravity.csv and changes.csv.
+         */
+        public void write(String prefix) throws IOException {
+            try (PrintWriter out = open(prefix + "decay.csv")) {
+                out.println("Year,From km,To km,Connections,Possible Connections,Probability");
+                for (YearResult year : years) {
+                    for (int b=0; b < year.connections.length; b++) {
+                        out.println(year.year + "," + (b * binKm) + "," + ((b + 1) * binKm) + ","
+                                + year.connections[b] + "," + year.possible[b] + "," + year.getProbability(b));
+                    }
+                }
+            }
+            try (PrintWriter out = open(prefix + "gravity.csv")) {
+                out.println("Year,Pairs,Constant,Population Exponent,Distance Exponent,R2");
+                for (YearResult year : years) {
+                    out.println(year.year + "," + year.gravityPairs + "," + year.gravityConstant + ","
+                            + year.populationExponent + "," + year.distanceExponent + "," + year.gravityR2);
+                }
+            }
+            try (PrintWriter out = open(prefix + "changes.csv")) {
+                out.println("Year,Changed Pairs,Unchanged Pairs,Mean Distance Change km,"
+                        + "Mean Log Intensity Change Changed,Mean Log Intensity Change Unchanged,Difference,"
+                        + "Correlation");
+                for (YearResult year : years) {
+                    if (year.changedPairs + year.unchangedPairs > 0) {
+                        out.println(year.year + "," + year.changedPairs + "," + year.unchangedPairs + ","
+                                + year.meanDistanceChangeKm + "," + year.meanIntensityChangeChanged + ","
+                                + year.meanIntensityChangeUnchanged + "," + year.getIntensityChangeDifference() + ","
+                                + year.changeCorrelation);
+                    }
+                }
+            }
+            log.info("Written analysis to {}*.csv", prefix);
+        }
+
+        private static PrintWriter open(String file) throws IOException {
+            return new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file),
+                    StandardCharsets.UTF_8)));
+        }
+    }
+
+    public static final class YearResult {
+        private final int year;
+        private final double [] connections;
+        private final double [] possible;
+        private int gravityPairs;
+        private double gravityConstant = Double.NaN;
+        private double populationExponent = Double.NaN;
+        private double distanceExponent = Double.NaN;
+        private double gravityR2 = Double.NaN;
+        private int changedPairs;
+        private int unchangedPairs;
+        private double meanDistanceChangeKm = Double.NaN;
+        private double meanIntensityChangeChanged = Double.NaN;
+        private double meanIntensityChangeUnchanged = Double.NaN;
+        private double changeCorrelation = Double.NaN;
+
+        private YearResult(int year, int bins) {
+            this.year = year;
+            this.connections = new double[bins];
+            this.possible = new double[bins];
+        }
+
+        public int getYear() {
+            return year;
+        }
+
+        public double getConnections(int bin) {
+            return connections[bin];
+        }
+
+        public double getPossibleConnections(int bin) {
+            return possible[bin];
+        }
+
+        public double getProbability(int bin) {
+            return possible[bin] > 0 ? connections[bin] / possible[bin] : Double.NaN;
+        }
+
+        public double getPopulationExponent() {
+            return populationExponent;
+        }
+
+        public double getDistanceExponent() {
+            return distanceExponent;
+        }
+
+        public double getGravityR2() {
+            return gravityR2;
+        }
+
+        public int getChangedPairs() {
+            return changedPairs;
+        }
+
+        /**
+         * Returns how much more the log intensity of the pairs with a shorter distance grew than that of the
+         * others, NaN if the network did not change in this year.
+         */
+        public double getIntensityChangeDifference() {
+            return meanIntensityChangeChanged - meanIntensityChangeUnchanged;
+        }
+
+        public double getChangeCorrelation() {
+            return changeCorrelation;
+        }
+    }
+
+}
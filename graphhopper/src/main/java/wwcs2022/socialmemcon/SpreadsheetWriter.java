@@ -1,123 +1,193 @@
 package wwcs2022.socialmemcon;
 
+import org.apache.poi.ss.SpreadsheetVersion;
 import org.apache.poi.ss.usermodel.Row;
 import org.apache.poi.ss.usermodel.Sheet;
 import org.apache.poi.ss.usermodel.Workbook;
-import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.Map;
-import java.util.Set;
-import java.util.TreeSet;
+import java.util.*;
+import java.util.stream.IntStream;
 
+/**
+ * Writes distances to xlsx workbooks. The workbooks are streamed: only a window of rows is kept in memory and the
+ * rest is flushed to compressed temporary files, so the size of the output is not limited by the heap. Pair lists
+ * that do not fit on one sheet continue on further sheets, matrices that are too wide for a sheet are left out.
+ * Locations appear in the order of their names on every sheet. For very large outputs {@link PairCsvWriter} writes
+ * the same pair layout as CSV.
+ */
 public class SpreadsheetWriter {
 
     private static final Logger log = LoggerFactory.getLogger(SpreadsheetWriter.class);
 
-    public static void writeBigSpreadsheet(Map<String, Map<String,Double>> baseDistances,
-                                            Map<Integer,Map<String, Map<String,Double>>> distances, File output) {
-        try (Workbook wb = new XSSFWorkbook(); FileOutputStream fos = new FileOutputStream(output)) {
-            writeDistancePairs(wb.createSheet("pairs"), baseDistances, distances);
-            writeDistanceMatrix(wb.createSheet("matrix-base"), baseDistances);
-            for (var entry : distances.entrySet()) {
-                writeDistanceMatrix(wb.createSheet("matrix-"+entry.getKey()), entry.getValue());
+    // Number of rows kept in memory per sheet before they are flushed to disk
+    private static final int ROW_WINDOW = 100;
+    private static final int MAX_ROWS = SpreadsheetVersion.EXCEL2007.getMaxRows();
+    private static final int MAX_COLUMNS = SpreadsheetVersion.EXCEL2007.getMaxColumns();
+
+    public static void writeBigSpreadsheet(DistanceMatrix baseDistances, DistanceStack distances, File output) {
+        SXSSFWorkbook wb = createWorkbook();
+        try (FileOutputStream fos = new FileOutputStream(output)) {
+            writeDistancePairs(wb, "pairs", baseDistances, distances.getYears(), distances.matrices());
+            writeDistanceMatrix(wb, "matrix-base", baseDistances);
+            for (int year : distances.getYears()) {
+                writeDistanceMatrix(wb, "matrix-"+year, distances.get(year));
             }
             wb.write(fos);
         }
         catch (IOException ex) {
             log.error("An exception occurred while generated the spreadsheet", ex);
         }
+        finally {
+            dispose(wb);
+        }
     }
 
-    public static void writeSpreadsheet(Map<String, Map<String,Double>> distances, File output) {
-        try (Workbook wb = new XSSFWorkbook(); FileOutputStream fos = new FileOutputStream(output)) {
-            writeDistanceMatrix(wb.createSheet("matrix"), distances);
-            writeDistancePairs(wb.createSheet("pairs"), distances);
+    public static void writeSpreadsheet(DistanceMatrix distances, File output) {
+        SXSSFWorkbook wb = createWorkbook();
+        try (FileOutputStream fos = new FileOutputStream(output)) {
+            writeDistanceMatrix(wb, "matrix", distances);
+            writeDistancePairs(wb, "pairs", null, List.of(), List.of(distances));
             wb.write(fos);
         }
         catch (IOException ex) {
             log.error("An exception occurred while generated the spreadsheet", ex);
         }
+        finally {
+            dispose(wb);
+        }
+    }
+
+    private static SXSSFWorkbook createWorkbook() {
+        SXSSFWorkbook wb = new SXSSFWorkbook(ROW_WINDOW);
+        wb.setCompressTempFiles(true);
+        return wb;
+    }
+
+    private static void dispose(SXSSFWorkbook wb) {
+        try {
+            wb.close();
+        }
+        catch (IOException ex) {
+            log.warn("Unable to close workbook", ex);
+        }
+        wb.dispose();
     }
 
-    private static void writeDistancePairs(Sheet sheet, Map<String, Map<String,Double>> baseDistances,
-                                           Map<Integer,Map<String, Map<String,Double>>> distances) {
-        int colIndex = 2;
-        int rowIndex = 0;
-        Row row = sheet.createRow(rowIndex++);
-        row.createCell(0).setCellValue("From");
-        row.createCell(1).setCellValue("To");
-        row.createCell(colIndex++).setCellValue("Base Distance");
-        for (Integer year : distances.keySet()) {
-            row.createCell(colIndex++).setCellValue("Distance "+year);
-        }
-        for (var e1 : baseDistances.entrySet()) {
-            String from = e1.getKey();
-            for (var e2 : e1.getValue().entrySet()) {
-                String to = e2.getKey();
-                double distance = e2.getValue();
-                row = sheet.createRow(rowIndex++);
-                colIndex = 0;
-                row.createCell(colIndex++).setCellValue(from);
-                row.createCell(colIndex++).setCellValue(to);
-                row.createCell(colIndex++).setCellValue(distance);
-                for (Map<String,Map<String,Double>> map : distances.values()) {
-                    double d = map.get(from).get(to);
-                    row.createCell(colIndex++).setCellValue(d);
+    /**
+     * Writes one row per pair, with the base distance followed by the distance of every year. If there are more
+     * pairs than rows on a sheet, the rows continue on sheets named after the first one with a running number.
+     * Without base distances the base column is left out, and a single matrix without years gets a plain
+     * "Distance" column.
+     */
+    private static void writeDistancePairs(Workbook wb, String name, DistanceMatrix baseDistances,
+                                           Collection<Integer> years, Collection<DistanceMatrix> distances) {
+        List<DistanceMatrix> columns = new ArrayList<>();
+        List<String> header = new ArrayList<>(List.of("From", "To"));
+        if (baseDistances != null) {
+            columns.add(baseDistances);
+            header.add("Base Distance");
+        }
+        columns.addAll(distances);
+        if (years.isEmpty()) {
+            distances.forEach(m -> header.add("Distance"));
+        }
+        else {
+            years.forEach(year -> header.add("Distance "+year));
+        }
+        if (columns.isEmpty()) {
+            createPairSheet(wb, name, header);
+            return;
+        }
+        int size = columns.get(0).size();
+        int [] order = sortedByName(columns.get(0));
+        float [][] rows = new float[columns.size()][size];
+        int sheetCount = 1;
+        Sheet sheet = createPairSheet(wb, name, header);
+        int rowIndex = 1;
+        for (int from : order) {
+            for (int c=0; c < columns.size(); c++) {
+                columns.get(c).copyRow(from, rows[c]);
+            }
+            String fromName = columns.get(0).getName(from);
+            for (int to : order) {
+                if (from == to) {
+                    continue;
+                }
+                if (rowIndex == MAX_ROWS) {
+                    sheet = createPairSheet(wb, name + "-" + ++sheetCount, header);
+                    rowIndex = 1;
+                }
+                Row row = sheet.createRow(rowIndex++);
+                row.createCell(0).setCellValue(fromName);
+                row.createCell(1).setCellValue(columns.get(0).getName(to));
+                for (int c=0; c < rows.length; c++) {
+                    setDistance(row, c + 2, rows[c][to]);
                 }
             }
         }
+        if (sheetCount > 1) {
+            log.info("Pairs split over {} sheets", sheetCount);
+        }
     }
 
-    private static void writeDistancePairs(Sheet sheet, Map<String, Map<String,Double>> distances) {
-        int rowIndex = 0;
-        Row row = sheet.createRow(rowIndex++);
-        row.createCell(0).setCellValue("From");
-        row.createCell(1).setCellValue("To");
-        row.createCell(2).setCellValue("Distance");
-        for (var e1 : distances.entrySet()) {
-            String from = e1.getKey();
-            for (var e2 : e1.getValue().entrySet()) {
-                String to = e2.getKey();
-                double distance = e2.getValue();
-                row = sheet.createRow(rowIndex++);
-                row.createCell(0).setCellValue(from);
-                row.createCell(1).setCellValue(to);
-                row.createCell(2).setCellValue(distance);
-            }
+    private static Sheet createPairSheet(Workbook wb, String name, List<String> header) {
+        Sheet sheet = wb.createSheet(name);
+        Row row = sheet.createRow(0);
+        for (int col=0; col < header.size(); col++) {
+            row.createCell(col).setCellValue(header.get(col));
         }
+        return sheet;
+    }
+
+    /**
+     * Returns the positions of the locations of a matrix ordered by name. Locations that share a name keep their
+     * order.
+     */
+    private static int [] sortedByName(DistanceMatrix distances) {
+        return IntStream.range(0, distances.size()).boxed()
+                .sorted(Comparator.comparing(distances::getName))
+                .mapToInt(Integer::intValue)
+                .toArray();
     }
 
-    private static void writeDistanceMatrix(Sheet sheet, Map<String, Map<String,Double>> distances) {
-        // Build a map with all locations
-        Set<String> locations = new TreeSet<>(distances.keySet());
-        distances.values()
-                .forEach(map -> locations.addAll(map.keySet()));
+    /**
+     * Sets the distance of a cell, leaving the cell empty for pairs without a distance. Widening the float directly
+     * would add digits that were never computed, so the cell gets the shortest decimal that identifies the float.
+     */
+    private static void setDistance(Row row, int col, float distance) {
+        if (!Float.isNaN(distance)) {
+            row.createCell(col).setCellValue(Double.parseDouble(Float.toString(distance)));
+        }
+    }
+
+    private static void writeDistanceMatrix(Workbook wb, String name, DistanceMatrix distances) {
+        int size = distances.size();
+        if (size + 1 > MAX_COLUMNS || size + 1 > MAX_ROWS) {
+            log.warn("Skipping sheet {}, {} locations do not fit on a sheet", name, size);
+            return;
+        }
+        int [] order = sortedByName(distances);
+        Sheet sheet = wb.createSheet(name);
         Row row = sheet.createRow(0);
-        int rowIndex = 1;
-        int col = 1;
         // Write the header
-        for (String loc : locations) {
-            row.createCell(col++).setCellValue(loc);
-        }
-        for (String from : locations) {
-            row = sheet.createRow(rowIndex++);
-            col = 0;
-            Map<String,Double> innerMap = distances.get(from);
-            row.createCell(col++).setCellValue(from);
-            for (String to : locations) {
-                Double dist = innerMap.get(to);
-                if (dist != null) {
-                    row.createCell(col).setCellValue(dist);
-                }
-                col++;
+        for (int col=0; col < size; col++) {
+            row.createCell(col + 1).setCellValue(distances.getName(order[col]));
+        }
+        float [] distanceRow = new float[size];
+        for (int r=0; r < size; r++) {
+            row = sheet.createRow(r + 1);
+            row.createCell(0).setCellValue(distances.getName(order[r]));
+            distances.copyRow(order[r], distanceRow);
+            for (int col=0; col < size; col++) {
+                setDistance(row, col + 1, distanceRow[order[col]]);
             }
         }
     }
 
-
 }
@@ -0,0 +1,133 @@
+package wwcs2022.socialmemcon;
+
+import com.graphhopper.GraphHopper;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Computes the accessibility of cities on the river network and checks it against the populations of the cities
+ * within every threshold of the routed distances.
+ */
+public class AccessibilityTest {
+
+    private static final double [] THRESHOLDS_KM = { 1, 2, 3, 5 };
+
+    @TempDir
+    static File dir;
+
+    private static final List<LocationEntry> locations = TestNetworks.locations(8);
+    private static GraphHopper hopper;
+    private static Cities cities;
+
+    @BeforeAll
+    static void importRiver() throws IOException {
+        File osm = new File(dir, "river.osm.pbf");
+        TestNetworks.writeRiver(osm);
+        hopper = TestNetworks.hopper(osm, new File(dir, "river"));
+        File file = new File(dir, "cities.csv");
+        try (PrintWriter out = new PrintWriter(file, StandardCharsets.UTF_8)) {
+            out.println("CityId,CityName,Latitude,Longitude,PopLog");
+            for (int i=0; i < locations.size(); i++) {
+                LocationEntry location = locations.get(i);
+                out.println((100 + i) + "," + location.getName() + "," + location.getLat() + "," + location.getLng()
+                        + "," + (2 + 0.25 * i));
+            }
+        }
+        cities = Cities.read(file);
+    }
+
+    @AfterAll
+    static void close() {
+        hopper.close();
+    }
+
+    @Test
+    public void addsThePopulationWithinEveryDistance() {
+        Accessibility.Result result = new Accessibility(cities, Accessibility.Measure.DISTANCE, THRESHOLDS_KM, 2)
+                .compute(hopper, "car");
+        String profile = RoutingMain.Weighting.SHORTEST.getProfileForVehicle("car");
+        double [][] distances = new MatrixCalculator(hopper, profile, 1).calcDistances(locations, locations);
+        for (int c=0; c < locations.size(); c++) {
+            for (int b=0; b < THRESHOLDS_KM.length; b++) {
+                double population = 0;
+                int count = 0;
+                for (int k=0; k < locations.size(); k++) {
+                    // A city reaches itself
+                    if (k == c || distances[c][k] <= THRESHOLDS_KM[b] * 1000) {
+                        population += Math.pow(10, 2 + 0.25 * k);
+                        count++;
+                    }
+                }
+                assertEquals(count, result.getCount(c, b), c + " within " + THRESHOLDS_KM[b]);
+                assertEquals(population, result.getPopulation(c, b), 1e-6 * population);
+            }
+        }
+        // The thresholds tell the cities apart, the largest reaches all of them
+        assertTrue(result.getCount(0, 0) < result.getCount(0, 2));
+        assertEquals(locations.size(), result.getCount(0, THRESHOLDS_KM.length - 1));
+    }
+
+    @Test
+    public void reachesOnlyTheSameBankWithoutBridges() {
+        ScenarioGraph graph = new ScenarioGraph(hopper, TestNetworks.bridges());
+        BitSet none = new BitSet();
+        none.set(0, 2);
+        Accessibility accessibility = new Accessibility(cities, Accessibility.Measure.DISTANCE, THRESHOLDS_KM, 2);
+        Accessibility.Result open = accessibility.compute(graph, "car", new BitSet());
+        Accessibility.Result closed = accessibility.compute(graph, "car", none);
+        int last = THRESHOLDS_KM.length - 1;
+        for (int c=0; c < locations.size(); c++) {
+            int bank = 0;
+            for (LocationEntry location : locations) {
+                if (TestNetworks.isWest(location) == TestNetworks.isWest(locations.get(c))) {
+                    bank++;
+                }
+            }
+            assertEquals(locations.size(), open.getCount(c, last));
+            assertEquals(bank, closed.getCount(c, last));
+        }
+    }
+
+    @Test
+    public void writesARowPerGraphCityAndThreshold() throws IOException {
+        Accessibility accessibility = new Accessibility(cities, Accessibility.Measure.TIME, new double[] { 2, 10 },
+                2);
+        Accessibility.Result result = accessibility.compute(hopper, "car");
+        assertEquals(Accessibility.Measure.TIME, result.getMeasure());
+        for (int c=0; c < locations.size(); c++) {
+            assertTrue(result.getCount(c, 0) >= 1);
+            assertTrue(result.getPopulation(c, 1) >= result.getPopulation(c, 0));
+        }
+        Map<String,Accessibility.Result> results = new TreeMap<>();
+        results.put("2005", result);
+        results.put("now", result);
+        File file = new File(dir, "accessibility.csv");
+        Accessibility.write(results, file);
+        List<String> lines = Files.readAllLines(file.toPath());
+        assertEquals("Graph,CityId,CityName,Population,Threshold min,Reachable Cities,Reachable Population",
+                lines.get(0));
+        assertEquals(1 + 2 * locations.size() * 2, lines.size());
+        assertTrue(lines.get(1).startsWith("2005,100,loc0,100,2.0,"), lines.get(1));
+    }
+
+    @Test
+    public void rejectsThresholdsOutOfOrder() {
+        assertThrows(IllegalArgumentException.class,
+                () -> new Accessibility(cities, Accessibility.Measure.DISTANCE, new double[] { 10, 5 }, 1));
+    }
+
+}
@@ -0,0 +1,160 @@
+package wwcs2022.socialmemcon;
+
+import com.graphhopper.GraphHopper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Approximates matrices and checks every pair against its exact distance: the bounds contain it, the distance is off
+ * by at most the gap between the bounds, and pairs that were not refined are within the tolerance.
+ */
+public class ApproximateMatrixTest {
+
+    // The bounds are stored as floats
+    private static final double FLOAT_M = 0.5;
+
+    @TempDir
+    File dir;
+
+    // The pairs passed to the matrix function, without the pairs of a location with itself
+    private long routed;
+
+    @Test
+    public void boundsEveryPairByItsExactDistance() {
+        List<LocationEntry> locations = scattered(40);
+        ApproximateMatrix matrix = ApproximateMatrix.compute(locations, this::route, 6, 0.05, 10_000);
+        check(matrix, locations, this::distance, 0.05, 10_000);
+        assertEquals(6, matrix.getLandmarks().length);
+        assertEquals(6, Arrays.stream(matrix.getLandmarks()).distinct().count());
+        // Some pairs were bounded and not routed
+        long pairs = 40 * 39;
+        assertTrue(matrix.getExactPairs() < pairs);
+        assertTrue(routed < pairs);
+    }
+
+    @Test
+    public void routesEveryPairWithoutTolerance() {
+        List<LocationEntry> locations = scattered(15);
+        ApproximateMatrix matrix = ApproximateMatrix.compute(locations, this::route, 3, 0, 0);
+        assertEquals(15 * 14, matrix.getExactPairs());
+        for (int i=0; i < locations.size(); i++) {
+            for (int j=0; j < locations.size(); j++) {
+                if (i != j) {
+                    assertEquals(distance(locations.get(i), locations.get(j)), matrix.getDistances().get(i, j),
+                            FLOAT_M);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void spreadsTheLandmarksOverTheLocations() {
+        List<LocationEntry> locations = new ArrayList<>();
+        for (int i=0; i < 5; i++) {
+            locations.add(new LocationEntry("west" + i, 47.0 + 0.001 * i, 18.0));
+            locations.add(new LocationEntry("east" + i, 47.0 + 0.001 * i, 20.0));
+        }
+        locations.add(new LocationEntry("centre", 47.0, 19.0));
+        int [] landmarks = ApproximateMatrix.selectLandmarks(locations, 2);
+        Set<String> sides = new HashSet<>();
+        for (int l : landmarks) {
+            sides.add(locations.get(l).getName().substring(0, 4));
+        }
+        assertEquals(Set.of("west", "east"), sides);
+        assertEquals(locations.size(), ApproximateMatrix.selectLandmarks(locations, 100).length);
+    }
+
+    @Test
+    public void matchesTheRoadDistancesOfTheRiverNetwork() throws IOException {
+        File osm = new File(dir, "river.osm.pbf");
+        TestNetworks.writeRiver(osm);
+        GraphHopper hopper = TestNetworks.hopper(osm, new File(dir, "river"));
+        try {
+            List<LocationEntry> locations = TestNetworks.locations(12);
+            RoutingMain.Weighting weighting = RoutingMain.Weighting.SHORTEST;
+            ApproximateMatrix matrix = RoutingMain.computeApproximateMatrix(locations, hopper, "car", weighting, 2, 3,
+                    0.1, 0);
+            double [][] exact = new MatrixCalculator(hopper, weighting.getProfileForVehicle("car"), 1)
+                    .calcDistances(locations, locations);
+            Map<String,Integer> index = DistanceMatrix.index(locations);
+            check(matrix, locations, (from, to) -> exact[index.get(from.getName())][index.get(to.getName())], 0.1, 0);
+
+            File output = new File(dir, "approximate.csv");
+            matrix.write(output);
+            List<String> lines = Files.readAllLines(output.toPath());
+            assertEquals("From,To,Distance,Lower Bound,Upper Bound,Exact", lines.get(0));
+            assertEquals(1 + 12 * 11, lines.size());
+        }
+        finally {
+            hopper.close();
+        }
+    }
+
+    private interface Distance {
+        double get(LocationEntry from, LocationEntry to);
+    }
+
+    private static void check(ApproximateMatrix matrix, List<LocationEntry> locations, Distance exact,
+                              double tolerance, double cutoff) {
+        for (int i=0; i < locations.size(); i++) {
+            for (int j=0; j < locations.size(); j++) {
+                if (i == j) {
+                    continue;
+                }
+                String pair = locations.get(i).getName() + "-" + locations.get(j).getName();
+                double d = exact.get(locations.get(i), locations.get(j));
+                double low = matrix.getLowerBounds().get(i, j);
+                double up = matrix.getUpperBounds().get(i, j);
+                double distance = matrix.getDistances().get(i, j);
+                assertTrue(low <= d + FLOAT_M && d <= up + FLOAT_M, pair + ": " + low + " " + d + " " + up);
+                assertEquals(d, distance, up - low + FLOAT_M, pair);
+                if (matrix.isExact(i, j)) {
+                    assertEquals(d, distance, FLOAT_M, pair);
+                }
+                else {
+                    assertTrue(up - low <= tolerance * up + FLOAT_M, pair);
+                    assertTrue(up >= cutoff, pair);
+                }
+            }
+        }
+    }
+
+    private double [][] route(List<LocationEntry> sources, List<LocationEntry> targets) {
+        double [][] result = new double[sources.size()][targets.size()];
+        for (int s=0; s < sources.size(); s++) {
+            for (int t=0; t < targets.size(); t++) {
+                result[s][t] = distance(sources.get(s), targets.get(t));
+                if (sources.get(s) != targets.get(t)) {
+                    routed++;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * A stand-in for routing that satisfies the triangle inequality but is not symmetric: the distance along a grid
+     * of streets, and a climb to the north costs extra.
+     */
+    private double distance(LocationEntry from, LocationEntry to) {
+        double lat = to.getLat() - from.getLat();
+        return 111_000 * (Math.abs(lat) + Math.abs(to.getLng() - from.getLng()) * 0.7) + 20_000 * Math.max(0, lat);
+    }
+
+    private static List<LocationEntry> scattered(int count) {
+        Random random = new Random(7);
+        List<LocationEntry> result = new ArrayList<>();
+        for (int i=0; i < count; i++) {
+            result.add(new LocationEntry("loc" + i, 46 + 2 * random.nextDouble(), 17 + 5 * random.nextDouble()));
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,87 @@
+package wwcs2022.socialmemcon;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ArtifactStoreTest {
+
+    @TempDir
+    File dir;
+
+    @Test
+    public void reusesAnArtifactUntilItsInputChanges() throws IOException {
+        File manifest = new File(dir, "manifest.properties");
+        File input = write(new File(dir, "input.osm.pbf"), "roads");
+        File artifact = new File(dir, "graph");
+        ArtifactStore store = ArtifactStore.open(manifest);
+        String key = store.inputKey(input);
+        assertFalse(store.isCurrent(artifact, key));
+        build(store, artifact, key, "first");
+
+        // The manifest is read back by the next run
+        store = ArtifactStore.open(manifest);
+        assertTrue(store.isCurrent(artifact, store.inputKey(input)));
+
+        write(input, "more roads");
+        String changed = store.inputKey(input);
+        assertNotEquals(key, changed);
+        assertFalse(store.isCurrent(artifact, changed));
+        build(store, artifact, changed, "second");
+        assertTrue(store.isCurrent(artifact, changed));
+        assertEquals(List.of("second"), Files.readAllLines(new File(artifact, "data").toPath()));
+        assertFalse(new File(artifact.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void keysAnArtifactByWhatItWasBuiltFrom() throws IOException {
+        ArtifactStore store = ArtifactStore.open(new File(dir, "manifest.properties"));
+        File filtered = new File(dir, "network-2000.osm.pbf");
+        File temp = write(store.tempFor(filtered), "filtered");
+        store.commit(temp, filtered, "built-from-restrictions");
+        // A later artifact depends on the inputs of the filtered file, not on its bytes
+        assertEquals("built-from-restrictions", store.inputKey(filtered));
+        assertNotEquals(Fingerprints.file(filtered), store.inputKey(filtered));
+    }
+
+    @Test
+    public void forgetsAnArtifactThatIsGone() throws IOException {
+        ArtifactStore store = ArtifactStore.open(new File(dir, "manifest.properties"));
+        File artifact = new File(dir, "graph");
+        build(store, artifact, "key", "data");
+        for (File file : artifact.listFiles()) {
+            assertTrue(file.delete());
+        }
+        assertTrue(artifact.delete());
+        assertFalse(store.isCurrent(artifact, "key"));
+    }
+
+    @Test
+    public void clearsWhatAnInterruptedBuildLeft() throws IOException {
+        ArtifactStore store = ArtifactStore.open(new File(dir, "manifest.properties"));
+        File artifact = new File(dir, "graph");
+        File temp = store.tempFor(artifact);
+        assertTrue(temp.mkdirs());
+        write(new File(temp, "partial"), "half");
+        assertFalse(store.tempFor(artifact).exists());
+    }
+
+    private static void build(ArtifactStore store, File artifact, String key, String data) throws IOException {
+        File temp = store.tempFor(artifact);
+        assertTrue(temp.mkdirs());
+        write(new File(temp, "data"), data);
+        store.commit(temp, artifact, key);
+    }
+
+    private static File write(File file, String text) throws IOException {
+        Files.writeString(file.toPath(), text);
+        return file;
+    }
+
+}
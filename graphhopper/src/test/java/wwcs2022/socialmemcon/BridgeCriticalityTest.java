@@ -0,0 +1,118 @@
+package wwcs2022.socialmemcon;
+
+import com.graphhopper.GraphHopper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Ranks the two bridges of the river network and checks every counterfactual against the distances of a graph
+ * imported without that bridge.
+ */
+public class BridgeCriticalityTest {
+
+    private static final String PROFILE = RoutingMain.Weighting.SHORTEST.getProfileForVehicle("car");
+    // Summed over the affected pairs of the float distances
+    private static final double TOLERANCE_KM = 0.01;
+
+    @TempDir
+    File dir;
+
+    private final List<LocationEntry> locations = TestNetworks.locations(10);
+
+    @Test
+    public void ranksLikeRoutingWithoutEachBridge() throws IOException {
+        File osm = new File(dir, "river.osm.pbf");
+        TestNetworks.writeRiver(osm);
+        GraphHopper hopper = TestNetworks.hopper(osm, new File(dir, "river"));
+        List<BridgeCriticality.Entry> ranking;
+        double [][] base;
+        try {
+            ScenarioGraph graph = new ScenarioGraph(hopper, TestNetworks.bridges());
+            ranking = new BridgeCriticality(graph, locations, invitations(), cities()).rank(PROFILE, 2);
+            base = new MatrixCalculator(hopper, PROFILE, 1).calcDistances(locations, locations);
+        }
+        finally {
+            hopper.close();
+        }
+        assertEquals(2, ranking.size());
+        assertTrue(ranking.get(0).getWeightedAddedKm() >= ranking.get(1).getWeightedAddedKm());
+        for (BridgeCriticality.Entry entry : ranking) {
+            int row = entry.getIndex() == 0 ? TestNetworks.OLD_BRIDGE_ROW : TestNetworks.NEW_BRIDGE_ROW;
+            double [][] without = distancesWithout(row);
+            long affected = 0;
+            double addedKm = 0;
+            double weightedAddedKm = 0;
+            for (int i=0; i < locations.size(); i++) {
+                for (int j=0; j < locations.size(); j++) {
+                    // Pairs whose route does not cross the bridge keep their distance
+                    if (i != j && without[i][j] > base[i][j] + 0.5) {
+                        affected++;
+                        addedKm += (without[i][j] - base[i][j]) / 1000;
+                        weightedAddedKm += weight(i, j) * (without[i][j] - base[i][j]) / 1000 / 2;
+                    }
+                }
+            }
+            String name = entry.getRestriction().getName();
+            assertTrue(affected > 0, name);
+            // Pairs that cross the bridge but have a detour of the same length are affected too
+            assertTrue(entry.getAffectedPairs() >= affected, name);
+            assertEquals(0, entry.getDisconnectedPairs(), name);
+            assertEquals(addedKm, entry.getAddedKm(), TOLERANCE_KM, name);
+            assertEquals(weightedAddedKm, entry.getWeightedAddedKm(), TOLERANCE_KM, name);
+        }
+    }
+
+    private double [][] distancesWithout(int bridgeRow) throws IOException {
+        File osm = new File(dir, "without-" + bridgeRow + ".osm.pbf");
+        TestNetworks.writeRiver(osm, bridgeRow);
+        GraphHopper hopper = TestNetworks.hopper(osm, new File(dir, "without-" + bridgeRow));
+        try {
+            return new MatrixCalculator(hopper, PROFILE, 1).calcDistances(locations, locations);
+        }
+        finally {
+            hopper.close();
+        }
+    }
+
+    // The invitations of a pair in both directions, written as one row per direction
+    private static int weight(int a, int b) {
+        return 2 * (1 + (Math.min(a, b) * 3 + Math.max(a, b)) % 5);
+    }
+
+    private InvitationCounts invitations() throws IOException {
+        File file = new File(dir, "invitation_counts.csv");
+        try (PrintWriter out = new PrintWriter(file, StandardCharsets.UTF_8)) {
+            out.println("RegYear,CityId,InvitorCityId,w");
+            for (int i=0; i < locations.size(); i++) {
+                for (int j=0; j < locations.size(); j++) {
+                    if (i != j) {
+                        out.println((2010 + i) + "," + (100 + i) + "," + (100 + j) + "," + weight(i, j) / 2);
+                    }
+                }
+            }
+        }
+        return InvitationCounts.read(file);
+    }
+
+    private Cities cities() throws IOException {
+        File file = new File(dir, "cities.csv");
+        try (PrintWriter out = new PrintWriter(file, StandardCharsets.UTF_8)) {
+            out.println("CityId,CityName,Latitude,Longitude,PopLog");
+            for (int i=0; i < locations.size(); i++) {
+                LocationEntry location = locations.get(i);
+                out.println((100 + i) + "," + location.getName() + "," + location.getLat() + "," + location.getLng()
+                        + ",3.5");
+            }
+        }
+        return Cities.read(file);
+    }
+
+}
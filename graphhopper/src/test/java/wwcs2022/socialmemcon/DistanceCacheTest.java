@@ -0,0 +1,123 @@
+package wwcs2022.socialmemcon;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Fills matrices through {@link RoutingMain#fill} with a distance cache and counts the pairs that are routed.
+ */
+public class DistanceCacheTest {
+
+    private static final String PROFILE = "car_shortest";
+    private static final String FINGERPRINT = "0123456789abcdef0123456789abcdef";
+
+    @TempDir
+    File dir;
+
+    // The number of pairs passed to the matrix function, without the pairs of a location with itself
+    private long routed;
+
+    @Test
+    public void routesOnlyTheMissingPairs() {
+        List<LocationEntry> locations = locations(5);
+        DistanceCache cache = DistanceCache.open(dir, PROFILE, FINGERPRINT);
+        DistanceMatrix cold = fill(locations.subList(0, 4), cache);
+        assertEquals(12, routed);
+
+        // The cache is read back from its file, the new location is routed to and from the others
+        routed = 0;
+        DistanceMatrix warm = fill(locations, DistanceCache.open(dir, PROFILE, FINGERPRINT));
+        assertEquals(8, routed);
+        for (int i=0; i < 5; i++) {
+            for (int j=0; j < 5; j++) {
+                if (i != j) {
+                    assertEquals(distance(locations.get(i), locations.get(j)), warm.get(i, j), 1e-3);
+                }
+                if (i != j && i < 4 && j < 4) {
+                    assertEquals(cold.get(i, j), warm.get(i, j));
+                }
+            }
+        }
+
+        routed = 0;
+        fill(locations, DistanceCache.open(dir, PROFILE, FINGERPRINT));
+        assertEquals(0, routed);
+    }
+
+    @Test
+    public void keepsPairsWithoutRoute() {
+        List<LocationEntry> locations = new ArrayList<>(locations(3));
+        locations.add(new LocationEntry("island", 47.6, 19.1));
+        DistanceMatrix first = fill(locations, DistanceCache.open(dir, PROFILE, FINGERPRINT));
+        assertFalse(first.isReachable(0, 3));
+        assertFalse(first.isReachable(3, 1));
+
+        routed = 0;
+        DistanceMatrix second = fill(locations, DistanceCache.open(dir, PROFILE, FINGERPRINT));
+        assertEquals(0, routed);
+        assertFalse(second.isReachable(0, 3));
+        assertTrue(second.isReachable(0, 1));
+    }
+
+    @Test
+    public void treatsAMovedLocationAsNew() {
+        List<LocationEntry> locations = new ArrayList<>(locations(4));
+        fill(locations, DistanceCache.open(dir, PROFILE, FINGERPRINT));
+        locations.set(2, new LocationEntry(locations.get(2).getName(), 47.45, 19.05));
+
+        routed = 0;
+        DistanceMatrix matrix = fill(locations, DistanceCache.open(dir, PROFILE, FINGERPRINT));
+        assertEquals(6, routed);
+        assertEquals(distance(locations.get(0), locations.get(2)), matrix.get(0, 2), 1e-3);
+    }
+
+    @Test
+    public void ignoresTheCacheOfAnotherGraph() {
+        List<LocationEntry> locations = locations(3);
+        fill(locations, DistanceCache.open(dir, PROFILE, FINGERPRINT));
+
+        routed = 0;
+        fill(locations, DistanceCache.open(dir, PROFILE, "0123456789abcdef0000000000000000"));
+        assertEquals(6, routed);
+    }
+
+    private DistanceMatrix fill(List<LocationEntry> locations, DistanceCache cache) {
+        DistanceMatrix result = new DistanceMatrix(locations);
+        RoutingMain.fill(result, cache, (sources, targets) -> {
+            double [][] distances = new double[sources.size()][targets.size()];
+            for (int s=0; s < sources.size(); s++) {
+                for (int t=0; t < targets.size(); t++) {
+                    distances[s][t] = distance(sources.get(s), targets.get(t));
+                    if (sources.get(s) != targets.get(t)) {
+                        routed++;
+                    }
+                }
+            }
+            return distances;
+        });
+        return result;
+    }
+
+    // A stand-in for routing, without a route to and from the island
+    private static double distance(LocationEntry from, LocationEntry to) {
+        if (from.getName().equals("island") != to.getName().equals("island")) {
+            return Double.NaN;
+        }
+        return 100000 * (Math.abs(from.getLat() - to.getLat()) + Math.abs(from.getLng() - to.getLng()));
+    }
+
+    private static List<LocationEntry> locations(int count) {
+        List<LocationEntry> result = new ArrayList<>();
+        for (int i=0; i < count; i++) {
+            result.add(new LocationEntry("loc" + i, 47.5 + 0.01 * i, 19.0 + 0.013 * (i % 3)));
+        }
+        return result;
+    }
+
+}
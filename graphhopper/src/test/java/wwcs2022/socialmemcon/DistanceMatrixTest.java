@@ -0,0 +1,93 @@
+package wwcs2022.socialmemcon;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DistanceMatrixTest {
+
+    private static final List<LocationEntry> LOCATIONS = List.of(new LocationEntry("a", 47.0, 19.0),
+            new LocationEntry("b", 47.1, 19.1), new LocationEntry("c", 47.2, 19.2));
+
+    @Test
+    public void storesDistancesByPositionAndName() {
+        DistanceMatrix matrix = DistanceMatrix.of(LOCATIONS, new double[][] {
+                { Double.NaN, 1000.5, 2000 },
+                { 1100, Double.NaN, Double.NaN },
+                { 2100, 900, Double.NaN } });
+        assertEquals(3, matrix.size());
+        assertEquals(1000.5, matrix.get(0, 1));
+        assertEquals(1000.5, matrix.get("a", "b"));
+        assertEquals(900, matrix.get("c", "b"));
+        assertTrue(Double.isNaN(matrix.get("a", "x")));
+        assertEquals(-1, matrix.indexOf("x"));
+        assertEquals("c", matrix.getName(2));
+
+        assertTrue(matrix.isReachable(0, 2));
+        assertFalse(matrix.isReachable(1, 2));
+        assertFalse(matrix.isReachable(0, 0));
+        // A route of length 0 between two locations is a distance, the diagonal is not
+        matrix.set(1, 2, 0);
+        assertTrue(matrix.isReachable(1, 2));
+        matrix.set(1, 1, 0);
+        assertFalse(matrix.isReachable(1, 1));
+
+        assertThrows(IndexOutOfBoundsException.class, () -> matrix.get(0, 3));
+        assertThrows(IndexOutOfBoundsException.class, () -> matrix.set(-1, 0, 1));
+    }
+
+    @Test
+    public void returnsTheRowsOfTheMatrix() {
+        DistanceMatrix matrix = new DistanceMatrix(LOCATIONS);
+        matrix.set(2, 0, 5);
+        matrix.set(2, 1, 6);
+        FloatBuffer row = matrix.row(2);
+        assertEquals(3, row.remaining());
+        assertEquals(5, row.get(0));
+        assertEquals(6, row.get(1));
+        assertTrue(Float.isNaN(row.get(2)));
+        assertTrue(row.isReadOnly());
+        assertArrayEquals(new float[] { 5, 6, Float.NaN }, matrix.copyRow(2, new float[3]));
+        assertThrows(IndexOutOfBoundsException.class, () -> matrix.row(3));
+    }
+
+    @Test
+    public void keepsTheFirstOfLocationsSharingAName() {
+        DistanceMatrix matrix = new DistanceMatrix(List.of(new LocationEntry("a", 47.0, 19.0),
+                new LocationEntry("a", 47.1, 19.1)));
+        assertEquals(0, matrix.indexOf("a"));
+    }
+
+    @Test
+    public void stacksTheMatricesOfTheYears() {
+        DistanceStack stack = new DistanceStack(LOCATIONS, Set.of(2010, 1990, 2000));
+        assertEquals(List.of(1990, 2000, 2010), List.copyOf(stack.getYears()));
+        assertFalse(stack.isEmpty());
+        assertEquals(3, stack.size());
+
+        stack.get(2000).set(0, 1, 700);
+        stack.get(2010).set(0, 1, 600);
+        assertEquals(700, stack.get(2000, 0, 1));
+        assertEquals(600, stack.get(2010).get("a", "b"));
+        // Every year is a layer of its own
+        assertTrue(Double.isNaN(stack.get(1990, 0, 1)));
+        assertEquals(600, stack.get(2010).row(0).get(1));
+        // The last row of a layer ends before the first row of the next one
+        stack.get(2010).set(0, 2, 800);
+        assertEquals(3, stack.get(2000).row(2).remaining());
+        assertArrayEquals(new float[] { Float.NaN, Float.NaN, Float.NaN }, stack.get(2000).copyRow(2, new float[3]));
+        assertThrows(IndexOutOfBoundsException.class, () -> stack.get(1990).get(3, 0));
+
+        List<Double> ascending = new ArrayList<>();
+        stack.matrices().forEach(m -> ascending.add(m.get(0, 1)));
+        assertEquals(List.of(Double.NaN, 700.0, 600.0), ascending);
+        assertThrows(IllegalArgumentException.class, () -> stack.get(2020));
+        assertTrue(new DistanceStack(LOCATIONS, Set.of()).isEmpty());
+    }
+
+}
@@ -0,0 +1,189 @@
+package wwcs2022.socialmemcon;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.graphhopper.GraphHopper;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the service on the river network of today and of a year before the new bridge, and compares its answers with
+ * matrices computed directly on the same graphs.
+ */
+public class DistanceServiceTest {
+
+    private static final String YEAR = "2005";
+    private static final double TOLERANCE_M = 0.5;
+
+    @TempDir
+    static File dir;
+
+    private static final List<LocationEntry> locations = TestNetworks.locations(6);
+    private static final Map<String,double [][]> expected = new HashMap<>();
+    private static DistanceService service;
+    private static String url;
+    private final HttpClient client = HttpClient.newHttpClient();
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @BeforeAll
+    static void startService() throws IOException {
+        File cacheDir = new File(dir, "cache");
+        File now = new File(dir, "river.osm.pbf");
+        TestNetworks.writeRiver(now);
+        expected.put(DistanceService.BASE, distances(now, new File(cacheDir, DistanceService.BASE)));
+        File before = new File(dir, "river-" + YEAR + ".osm.pbf");
+        TestNetworks.writeRiver(before, TestNetworks.NEW_BRIDGE_ROW);
+        expected.put(YEAR, distances(before, new File(cacheDir, YEAR)));
+
+        GraphPool<String> graphs = DistanceService.openGraphs(now.getPath(), cacheDir.getPath(), "car", 2);
+        // Both are loaded right away, the base network first
+        assertEquals(List.of(DistanceService.BASE, YEAR), graphs.residentKeys());
+        service = new DistanceService(graphs, "car", 2);
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        service.start(port);
+        url = "http://127.0.0.1:" + port;
+    }
+
+    @AfterAll
+    static void stopService() {
+        service.stop();
+    }
+
+    private static double [][] distances(File osm, File cacheDir) {
+        GraphHopper hopper = TestNetworks.hopper(osm, cacheDir);
+        try {
+            String profile = RoutingMain.Weighting.SHORTEST.getProfileForVehicle("car");
+            return new MatrixCalculator(hopper, profile, 1).calcDistances(locations, locations);
+        }
+        finally {
+            hopper.close();
+        }
+    }
+
+    @Test
+    public void listsTheGraphs() throws Exception {
+        JsonNode graphs = get("/graphs", 200);
+        assertEquals(Set.of(YEAR, DistanceService.BASE), strings(graphs.get("graphs")));
+        assertEquals(2, graphs.get("loaded").size());
+        assertTrue(strings(graphs.get("weightings")).contains("shortest"));
+    }
+
+    @Test
+    public void answersADistanceOnTheGraphOfAYear() throws Exception {
+        int longer = 0;
+        for (int s=0; s < locations.size(); s++) {
+            for (int t=0; t < locations.size(); t++) {
+                if (s == t) {
+                    continue;
+                }
+                String query = "&from=" + point(s) + "&to=" + point(t);
+                assertEquals(expected.get(DistanceService.BASE)[s][t],
+                        get("/distance?weighting=shortest" + query, 200).get("distance").asDouble(), TOLERANCE_M);
+                assertEquals(expected.get(YEAR)[s][t],
+                        get("/distance?graph=" + YEAR + query, 200).get("distance").asDouble(), TOLERANCE_M);
+                if (expected.get(YEAR)[s][t] > expected.get(DistanceService.BASE)[s][t] + TOLERANCE_M) {
+                    longer++;
+                }
+            }
+        }
+        // Some pairs crossed the river on the new bridge
+        assertTrue(longer > 0);
+    }
+
+    @Test
+    public void answersAMatrix() throws Exception {
+        List<double []> sources = new ArrayList<>();
+        List<double []> targets = new ArrayList<>();
+        for (int i=0; i < locations.size(); i++) {
+            (i < 2 ? sources : targets).add(new double[] { locations.get(i).getLat(), locations.get(i).getLng() });
+        }
+        Map<String,Object> body = new LinkedHashMap<>();
+        body.put("graph", YEAR);
+        body.put("sources", sources);
+        body.put("targets", targets);
+        JsonNode rows = post("/matrix", mapper.writeValueAsString(body), 200).get("distances");
+        assertEquals(2, rows.size());
+        for (int s=0; s < 2; s++) {
+            assertEquals(targets.size(), rows.get(s).size());
+            for (int t=0; t < targets.size(); t++) {
+                assertEquals(expected.get(YEAR)[s][t + 2], rows.get(s).get(t).asDouble(), TOLERANCE_M);
+            }
+        }
+    }
+
+    @Test
+    public void answersConcurrentRequestsInBatches() throws Exception {
+        long batched = Metrics.getCount("service.batchedRequests");
+        ExecutorService executor = Executors.newFixedThreadPool(locations.size());
+        try {
+            List<Future<Double>> answers = new ArrayList<>();
+            for (int s=0; s < locations.size(); s++) {
+                String query = "/distance?from=" + point(s) + "&to=" + point((s + 3) % locations.size());
+                answers.add(executor.submit(() -> get(query, 200).get("distance").asDouble()));
+            }
+            for (int s=0; s < locations.size(); s++) {
+                assertEquals(expected.get(DistanceService.BASE)[s][(s + 3) % locations.size()],
+                        answers.get(s).get(), TOLERANCE_M);
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+        assertEquals(locations.size(), Metrics.getCount("service.batchedRequests") - batched);
+    }
+
+    @Test
+    public void rejectsInvalidRequests() throws Exception {
+        String query = "&from=" + point(0) + "&to=" + point(1);
+        assertTrue(get("/distance?graph=1900" + query, 400).get("error").asText().contains("Unknown graph"));
+        assertTrue(get("/distance?weighting=slowest" + query, 400).get("error").asText()
+                .contains("Unknown weighting"));
+        get("/distance?from=47.5&to=" + point(1), 400);
+        get("/matrix", 405);
+        post("/matrix", "{\"sources\": [], \"targets\": [[47.5, 19.0]]}", 400);
+        post("/matrix", "{\"sources\": [[47.5]], \"targets\": [[47.5, 19.0]]}", 400);
+    }
+
+    private JsonNode get(String path, int status) throws IOException, InterruptedException {
+        return send(HttpRequest.newBuilder(URI.create(url + path)).GET().build(), status);
+    }
+
+    private JsonNode post(String path, String body, int status) throws IOException, InterruptedException {
+        return send(HttpRequest.newBuilder(URI.create(url + path)).POST(HttpRequest.BodyPublishers.ofString(body))
+                .build(), status);
+    }
+
+    private JsonNode send(HttpRequest request, int status) throws IOException, InterruptedException {
+        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        assertEquals(status, response.statusCode(), response.body());
+        return mapper.readTree(response.body());
+    }
+
+    private static String point(int i) {
+        return locations.get(i).getLat() + "," + locations.get(i).getLng();
+    }
+
+    private static Set<String> strings(JsonNode array) {
+        Set<String> result = new HashSet<>();
+        array.forEach(node -> result.add(node.asText()));
+        return result;
+    }
+
+}
@@ -0,0 +1,222 @@
+package wwcs2022.socialmemcon;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs {@link Downloader} against a local HTTP server that supports HEAD, range and conditional requests, and can
+ * drop the connection in the middle of a response.
+ */
+public class DownloaderTest {
+
+    private static final int MB = 1 << 20;
+
+    @TempDir
+    File dir;
+
+    private HttpServer server;
+    private ExecutorService executor;
+    private String url;
+    private File target;
+
+    // What the server serves, and the requests for the file it received as "method range if-range"
+    private volatile byte [] content;
+    private volatile String etag;
+    private volatile String md5;
+    private volatile int dropAfter = -1;
+    private final List<String> requests = new CopyOnWriteArrayList<>();
+
+    @BeforeEach
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", this::handle);
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.start();
+        url = "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/map.osm.pbf";
+        target = new File(dir, "map.osm.pbf");
+    }
+
+    @AfterEach
+    public void stopServer() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void resumesAnInterruptedDownload() throws IOException {
+        serve(3 * MB + 12345, "\"v1\"");
+        int dropAfterFirst = 2 * MB + MB / 2;
+        dropAfter = dropAfterFirst;
+        assertFalse(new Downloader().setRetries(0).download(url, target.getPath()));
+        assertFalse(target.exists());
+
+        requests.clear();
+        assertTrue(new Downloader().download(url, target.getPath()));
+        assertEquals(List.of("HEAD null null",
+                "GET bytes=" + dropAfterFirst + "-" + (content.length - 1) + " \"v1\""), requests);
+        assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+        assertFalse(new File(target.getPath() + ".part").exists());
+        assertFalse(new File(target.getPath() + ".part.meta").exists());
+    }
+
+    @Test
+    public void downloadsLargeFilesInSegments() throws IOException {
+        serve(40 * MB, "\"v1\"");
+        assertTrue(new Downloader().setSegments(4).download(url, target.getPath()));
+        // Segments are at least 16 MB, so the file is split in two
+        assertEquals(List.of("GET bytes=0-" + (20 * MB - 1) + " \"v1\"",
+                "GET bytes=" + 20 * MB + "-" + (40 * MB - 1) + " \"v1\""),
+                requests.stream().filter(r -> r.startsWith("GET")).sorted().collect(Collectors.toList()));
+        assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+    }
+
+    @Test
+    public void refreshesOnlyWhenTheFileChanged() throws IOException {
+        serve(MB, "\"v1\"");
+        assertTrue(new Downloader().download(url, target.getPath()));
+
+        requests.clear();
+        assertTrue(new Downloader().download(url, target.getPath()));
+        assertEquals(List.of(), requests);
+
+        // The server answers the conditional request with 304 Not Modified
+        assertTrue(new Downloader().setRefresh(true).download(url, target.getPath()));
+        assertEquals(List.of("HEAD null null"), requests);
+
+        serve(MB + 1, "\"v2\"");
+        requests.clear();
+        assertTrue(new Downloader().setRefresh(true).download(url, target.getPath()));
+        assertEquals(2, requests.size());
+        assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+    }
+
+    @Test
+    public void restartsWhenTheETagChanged() throws IOException {
+        serve(3 * MB, "\"v1\"");
+        dropAfter = 2 * MB + 1;
+        assertFalse(new Downloader().setRetries(0).download(url, target.getPath()));
+        assertTrue(new File(target.getPath() + ".part").exists());
+
+        serve(3 * MB, "\"v2\"");
+        requests.clear();
+        assertTrue(new Downloader().download(url, target.getPath()));
+        assertEquals(List.of("HEAD null null", "GET bytes=0-" + (3 * MB - 1) + " \"v2\""), requests);
+        assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+    }
+
+    @Test
+    public void rejectsAChecksumMismatch() throws IOException {
+        serve(MB, "\"v1\"");
+        md5 = "0123456789abcdef0123456789abcdef  map.osm.pbf";
+        assertFalse(new Downloader().download(url, target.getPath()));
+        assertFalse(target.exists());
+        assertFalse(new File(target.getPath() + ".part").exists());
+
+        md5 = md5(content) + "  map.osm.pbf";
+        assertTrue(new Downloader().download(url, target.getPath()));
+        assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+    }
+
+    private void serve(int length, String etag) {
+        byte [] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        this.content = bytes;
+        this.etag = etag;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        Headers request = exchange.getRequestHeaders();
+        Headers response = exchange.getResponseHeaders();
+        String method = exchange.getRequestMethod();
+        if (exchange.getRequestURI().getPath().endsWith(".md5")) {
+            if (md5 == null) {
+                exchange.sendResponseHeaders(404, -1);
+            }
+            else {
+                byte [] body = md5.getBytes(StandardCharsets.US_ASCII);
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+            }
+            exchange.close();
+            return;
+        }
+        requests.add(method + " " + request.getFirst("Range") + " " + request.getFirst("If-Range"));
+        byte [] bytes = content;
+        response.set("ETag", etag);
+        response.set("Accept-Ranges", "bytes");
+        if (method.equals("HEAD")) {
+            if (etag.equals(request.getFirst("If-None-Match"))) {
+                exchange.sendResponseHeaders(304, -1);
+            }
+            else {
+                response.set("Content-Length", String.valueOf(bytes.length));
+                exchange.sendResponseHeaders(200, -1);
+            }
+            exchange.close();
+            return;
+        }
+        int from = 0;
+        int to = bytes.length - 1;
+        int code = 200;
+        String range = request.getFirst("Range");
+        String ifRange = request.getFirst("If-Range");
+        if (range != null && (ifRange == null || ifRange.equals(etag))) {
+            String [] bounds = range.substring("bytes=".length()).split("-");
+            from = Integer.parseInt(bounds[0]);
+            to = Integer.parseInt(bounds[1]);
+            code = 206;
+            response.set("Content-Range", "bytes " + from + "-" + to + "/" + bytes.length);
+        }
+        int length = to - from + 1;
+        exchange.sendResponseHeaders(code, length);
+        OutputStream out = exchange.getResponseBody();
+        int drop = dropAfter;
+        dropAfter = -1;
+        if (drop >= 0 && drop < length) {
+            out.write(bytes, from, drop);
+            out.flush();
+            // The server closes the connection when a handler fails
+            throw new IOException("Connection dropped after " + drop + " bytes");
+        }
+        out.write(bytes, from, length);
+        exchange.close();
+    }
+
+    private static String md5(byte [] bytes) {
+        try {
+            StringBuilder result = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("MD5").digest(bytes)) {
+                result.append(String.format("%02x", b));
+            }
+            return result.toString();
+        }
+        catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+}
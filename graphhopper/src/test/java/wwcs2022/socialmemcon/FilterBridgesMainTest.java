@@ -0,0 +1,201 @@
+package wwcs2022.socialmemcon;
+
+import de.topobyte.osm4j.core.access.OsmIterator;
+import de.topobyte.osm4j.core.model.iface.EntityContainer;
+import de.topobyte.osm4j.core.model.iface.OsmEntity;
+import de.topobyte.osm4j.core.model.iface.OsmWay;
+import de.topobyte.osm4j.pbf.seq.PbfIterator;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Filters the river network for the years of its bridges and checks which nodes and ways every dataset keeps.
+ */
+public class FilterBridgesMainTest {
+
+    private static final long OLD_BRIDGE_NODE = 1000 + TestNetworks.OLD_BRIDGE_ROW;
+    private static final long NEW_BRIDGE_NODE = 1000 + TestNetworks.NEW_BRIDGE_ROW;
+
+    @TempDir
+    File dir;
+
+    @Test
+    public void groupsTheRestrictionsByTheYearsTheyAreMissingIn() {
+        Map<Integer,List<RestrictionEntry>> lists = FilterBridgesMain.getSubLists(TestNetworks.bridges());
+        assertEquals(Set.of(TestNetworks.OLD_BRIDGE_YEAR, TestNetworks.NEW_BRIDGE_YEAR), lists.keySet());
+        assertEquals(2, lists.get(TestNetworks.OLD_BRIDGE_YEAR).size());
+        assertEquals(List.of("New bridge"), names(lists.get(TestNetworks.NEW_BRIDGE_YEAR)));
+    }
+
+    @Test
+    public void leavesOutTheBridgesNotBuiltYet() throws IOException {
+        File input = new File(dir, "river.osm.pbf");
+        TestNetworks.writeRiver(input);
+        checkYears(input);
+    }
+
+    @Test
+    public void filtersASortedFileInOnePass() throws IOException {
+        File unsorted = new File(dir, "unsorted.osm.pbf");
+        TestNetworks.writeRiver(unsorted);
+        File input = new File(dir, "river.osm.pbf");
+        try (OutputStream os = new FileOutputStream(input)) {
+            os.write(sortedHeader());
+            os.write(PbfBlock.dataFrames(Files.readAllBytes(unsorted.toPath())));
+        }
+        checkYears(input);
+    }
+
+    private void checkYears(File input) throws IOException {
+        Map<Integer,File> outputs = new TreeMap<>();
+        for (int year : new int[] { 1990, TestNetworks.OLD_BRIDGE_YEAR, TestNetworks.NEW_BRIDGE_YEAR, 2020 }) {
+            outputs.put(year, new File(dir, input.getName() + "-" + year));
+        }
+        FilterBridgesMain.processYears(input.getPath(), outputs, TestNetworks.bridges(), 2);
+        Dataset all = read(input);
+        for (var entry : outputs.entrySet()) {
+            int year = entry.getKey();
+            Dataset dataset = read(entry.getValue());
+            Set<Long> missing = new TreeSet<>();
+            if (year <= TestNetworks.OLD_BRIDGE_YEAR) {
+                missing.add(OLD_BRIDGE_NODE);
+            }
+            if (year <= TestNetworks.NEW_BRIDGE_YEAR) {
+                missing.add(NEW_BRIDGE_NODE);
+            }
+            Set<Long> nodes = new TreeSet<>(all.nodes);
+            nodes.removeAll(missing);
+            assertEquals(nodes, dataset.nodes, "nodes of " + year);
+            // Exactly the ways through a missing node are left out
+            Map<Long,List<Long>> ways = new TreeMap<>(all.ways);
+            ways.values().removeIf(refs -> refs.stream().anyMatch(missing::contains));
+            assertEquals(ways, dataset.ways, "ways of " + year);
+            assertEquals(all.ways.size() - missing.size(), dataset.ways.size());
+        }
+    }
+
+    @Test
+    public void rebuildsOnlyWhenTheRestrictionsChange() throws IOException {
+        File input = new File(dir, "river.osm.pbf");
+        TestNetworks.writeRiver(input);
+        String prefix = new File(dir, "network-").getPath();
+        ArtifactStore store = ArtifactStore.open(new File(dir, "manifest.properties"));
+        Map<Integer,File> files = FilterBridgesMain.processAll(TestNetworks.bridges(), input.getPath(), prefix,
+                ".osm.pbf", store);
+        assertEquals(Set.of(TestNetworks.OLD_BRIDGE_YEAR, TestNetworks.NEW_BRIDGE_YEAR), files.keySet());
+        File oldYear = files.get(TestNetworks.OLD_BRIDGE_YEAR);
+        assertFalse(read(oldYear).nodes.contains(NEW_BRIDGE_NODE));
+
+        // An up-to-date dataset is not written again
+        byte [] bytes = Files.readAllBytes(oldYear.toPath());
+        Files.write(oldYear.toPath(), new byte[0]);
+        FilterBridgesMain.processAll(TestNetworks.bridges(), input.getPath(), prefix, ".osm.pbf", store);
+        assertEquals(0, oldYear.length());
+
+        // Without the new bridge among the restrictions, the dataset of the old one keeps it
+        files = FilterBridgesMain.processAll(TestNetworks.bridges().subList(0, 1), input.getPath(), prefix,
+                ".osm.pbf", store);
+        assertEquals(Set.of(TestNetworks.OLD_BRIDGE_YEAR), files.keySet());
+        Dataset dataset = read(oldYear);
+        assertTrue(dataset.nodes.contains(NEW_BRIDGE_NODE));
+        assertFalse(dataset.nodes.contains(OLD_BRIDGE_NODE));
+        assertNotEquals(bytes.length, oldYear.length());
+    }
+
+    static Dataset read(File file) throws IOException {
+        Dataset result = new Dataset();
+        try (InputStream is = new BufferedInputStream(new FileInputStream(file))) {
+            OsmIterator iterator = new PbfIterator(is, false);
+            while (iterator.hasNext()) {
+                EntityContainer container = iterator.next();
+                OsmEntity entity = container.getEntity();
+                Map<String,String> tags = new TreeMap<>();
+                for (int i=0; i < entity.getNumberOfTags(); i++) {
+                    tags.put(entity.getTag(i).getKey(), entity.getTag(i).getValue());
+                }
+                switch (container.getType()) {
+                    case Node:
+                        result.nodes.add(entity.getId());
+                        break;
+                    case Way:
+                        OsmWay way = (OsmWay) entity;
+                        List<Long> refs = new ArrayList<>();
+                        for (int i=0; i < way.getNumberOfNodes(); i++) {
+                            refs.add(way.getNodeId(i));
+                        }
+                        result.ways.put(way.getId(), refs);
+                        break;
+                    default:
+                        result.relations.add(entity.getId());
+                }
+                result.tags.put(container.getType() + " " + entity.getId(), tags);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns a header block that declares the file sorted by type and id, encoded by hand as the writer does not
+     * declare it.
+     */
+    static byte [] sortedHeader() throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        field(header, 4, "OsmSchema-V0.6".getBytes(StandardCharsets.US_ASCII));
+        field(header, 4, "DenseNodes".getBytes(StandardCharsets.US_ASCII));
+        field(header, 5, "Sort.Type_then_ID".getBytes(StandardCharsets.US_ASCII));
+        ByteArrayOutputStream blob = new ByteArrayOutputStream();
+        field(blob, 1, header.toByteArray());
+        varint(blob, 2, header.size());
+        ByteArrayOutputStream blobHeader = new ByteArrayOutputStream();
+        field(blobHeader, 1, PbfBlock.TYPE_HEADER.getBytes(StandardCharsets.US_ASCII));
+        varint(blobHeader, 3, blob.size());
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        new DataOutputStream(frame).writeInt(blobHeader.size());
+        blobHeader.writeTo(frame);
+        blob.writeTo(frame);
+        return frame.toByteArray();
+    }
+
+    private static void field(ByteArrayOutputStream out, int number, byte [] bytes) throws IOException {
+        writeVarint(out, number << 3 | 2);
+        writeVarint(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static void varint(ByteArrayOutputStream out, int number, long value) {
+        writeVarint(out, number << 3);
+        writeVarint(out, value);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static List<String> names(List<RestrictionEntry> restrictions) {
+        List<String> result = new ArrayList<>();
+        restrictions.forEach(r -> result.add(r.getName()));
+        return result;
+    }
+
+    /**
+     * The ids of the entities of a dataset, the node references of its ways and the tags of all entities.
+     */
+    static final class Dataset {
+        final Set<Long> nodes = new TreeSet<>();
+        final Map<Long,List<Long>> ways = new TreeMap<>();
+        final Set<Long> relations = new TreeSet<>();
+        final Map<String,Map<String,String>> tags = new HashMap<>();
+    }
+
+}
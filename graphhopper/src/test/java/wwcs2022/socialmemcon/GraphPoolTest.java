@@ -0,0 +1,120 @@
+package wwcs2022.socialmemcon;
+
+import com.graphhopper.GraphHopper;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Leases copies of the imported grid network from pools with small limits and checks which graphs stay loaded.
+ */
+public class GraphPoolTest {
+
+    @TempDir
+    static File dir;
+
+    private static File osm;
+
+    @BeforeAll
+    static void importGrid() throws IOException {
+        osm = new File(dir, "grid.osm.pbf");
+        TestNetworks.writeGrid(osm);
+        File graph = new File(dir, "a");
+        TestNetworks.hopper(osm, graph).close();
+        for (String copy : new String[] { "b", "c" }) {
+            File target = new File(dir, copy);
+            assertTrue(target.mkdirs());
+            for (File file : graph.listFiles()) {
+                Files.copy(file.toPath(), new File(target, file.getName()).toPath());
+            }
+        }
+    }
+
+    private static GraphPool<String> pool(int maxResident, long maxBytes) {
+        GraphPool<String> result = new GraphPool<>(maxResident, maxBytes, GraphPool.MMAP);
+        for (String key : new String[] { "a", "b", "c" }) {
+            result.register(key, osm.getPath(), new File(dir, key).getPath(), "car");
+        }
+        return result;
+    }
+
+    @Test
+    public void keepsTheMostRecentlyUsedGraphs() {
+        try (GraphPool<String> pool = pool(2, Long.MAX_VALUE)) {
+            assertTrue(pool.residentKeys().isEmpty());
+            GraphHopper first;
+            try (GraphPool<String>.Lease lease = pool.acquire("a")) {
+                first = lease.getHopper();
+                assertTrue(lease.getHopper().getGraphHopperStorage().getNodes() > 0);
+            }
+            pool.acquire("b").close();
+            // A hit makes a the most recently used graph
+            try (GraphPool<String>.Lease lease = pool.acquire("a")) {
+                assertSame(first, lease.getHopper());
+            }
+            assertEquals(List.of("b", "a"), pool.residentKeys());
+            pool.acquire("c").close();
+            assertEquals(List.of("a", "c"), pool.residentKeys());
+        }
+    }
+
+    @Test
+    public void neverClosesALeasedGraph() {
+        try (GraphPool<String> pool = pool(1, Long.MAX_VALUE)) {
+            GraphPool<String>.Lease a = pool.acquire("a");
+            GraphPool<String>.Lease b = pool.acquire("b");
+            // Both are in use, so the pool holds more than its limit
+            assertEquals(List.of("a", "b"), pool.residentKeys());
+            assertTrue(a.getHopper().getGraphHopperStorage().getNodes() > 0);
+            a.close();
+            assertEquals(List.of("b"), pool.residentKeys());
+            // Closing a lease twice releases it once
+            a.close();
+            b.close();
+            assertEquals(List.of("b"), pool.residentKeys());
+        }
+    }
+
+    @Test
+    public void keepsTheGraphsWithinTheByteLimit() {
+        long bytes = GraphPool.directorySize(new File(dir, "a"));
+        assertTrue(bytes > 0);
+        try (GraphPool<String> pool = pool(3, bytes * 2)) {
+            pool.acquire("a").close();
+            pool.acquire("b").close();
+            pool.acquire("c").close();
+            assertEquals(List.of("b", "c"), pool.residentKeys());
+        }
+    }
+
+    @Test
+    public void keepsLeasedGraphsOpenAfterClosing() {
+        GraphPool<String> pool = pool(2, Long.MAX_VALUE);
+        pool.acquire("a").close();
+        GraphPool<String>.Lease b = pool.acquire("b");
+        pool.close();
+        assertEquals(List.of("b"), pool.residentKeys());
+        assertTrue(b.getHopper().getGraphHopperStorage().getNodes() > 0);
+        assertThrows(IllegalStateException.class, () -> pool.acquire("a"));
+        b.close();
+        assertTrue(pool.residentKeys().isEmpty());
+    }
+
+    @Test
+    public void rejectsUnknownGraphs() {
+        try (GraphPool<String> pool = pool(2, Long.MAX_VALUE)) {
+            assertFalse(pool.contains("d"));
+            assertThrows(IllegalArgumentException.class, () -> pool.acquire("d"));
+            assertTrue(pool.residentKeys().isEmpty());
+        }
+        assertThrows(IllegalArgumentException.class, () -> new GraphPool<String>(0));
+    }
+
+}
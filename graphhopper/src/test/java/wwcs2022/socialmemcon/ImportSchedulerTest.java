@@ -0,0 +1,40 @@
+package wwcs2022.socialmemcon;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ImportSchedulerTest {
+
+    private static final long MB = 1024 * 1024;
+
+    @TempDir
+    File dir;
+
+    @Test
+    public void estimatesImportsFromThePbfAndLoadsFromTheGraph() throws IOException {
+        File osm = file(new File(dir, "map.osm.pbf"), 10 * MB);
+        File cacheDir = new File(dir, "graph");
+        assertEquals(120 * MB, ImportScheduler.estimateFootprint(osm.getPath(), cacheDir.getPath(), "RAM_STORE"));
+        assertEquals(120 * MB, ImportScheduler.estimateFootprint(osm.getPath(), cacheDir.getPath(), "MMAP"));
+
+        cacheDir.mkdirs();
+        file(new File(cacheDir, "nodes"), 30 * MB);
+        file(new File(cacheDir, "edges"), 20 * MB);
+        assertEquals(100 * MB, ImportScheduler.estimateFootprint(osm.getPath(), cacheDir.getPath(), "RAM_STORE"));
+        assertEquals(30 * MB, ImportScheduler.estimateFootprint(osm.getPath(), cacheDir.getPath(), "MMAP"));
+    }
+
+    private static File file(File file, long length) throws IOException {
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.setLength(length);
+        }
+        return file;
+    }
+
+}
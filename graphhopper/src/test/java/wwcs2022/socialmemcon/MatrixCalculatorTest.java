@@ -0,0 +1,63 @@
+package wwcs2022.socialmemcon;
+
+import com.graphhopper.GHRequest;
+import com.graphhopper.GHResponse;
+import com.graphhopper.GraphHopper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Imports a small road grid and checks the matrices of {@link MatrixCalculator} against the distances of
+ * point-to-point routing with {@link GraphHopper#route}.
+ */
+public class MatrixCalculatorTest {
+
+    // The calculator sums the distances of the hierarchy edges as floats
+    private static final double TOLERANCE_M = 0.1;
+
+    @TempDir
+    File dir;
+
+    @Test
+    public void matchesTheDistancesOfRouting() throws IOException {
+        File osm = new File(dir, "grid.osm.pbf");
+        TestNetworks.writeGrid(osm);
+        List<LocationEntry> locations = TestNetworks.locations(9);
+        GraphHopper hopper = TestNetworks.hopper(osm, new File(dir, "graph"));
+        try {
+            for (RoutingMain.Weighting w : RoutingMain.Weighting.values()) {
+                String profile = w.getProfileForVehicle("car");
+                MatrixCalculator calculator = new MatrixCalculator(hopper, profile, 2);
+                check(hopper, profile, calculator, locations.subList(0, 6), locations);
+                // A later matrix reuses the searches and edge distances of the first one
+                check(hopper, profile, calculator, locations, locations.subList(3, 9));
+            }
+        }
+        finally {
+            hopper.close();
+        }
+    }
+
+    private static void check(GraphHopper hopper, String profile, MatrixCalculator calculator,
+                              List<LocationEntry> sources, List<LocationEntry> targets) {
+        double [][] distances = calculator.calcDistances(sources, targets);
+        for (int s=0; s < sources.size(); s++) {
+            for (int t=0; t < targets.size(); t++) {
+                LocationEntry from = sources.get(s);
+                LocationEntry to = targets.get(t);
+                GHResponse response = hopper.route(new GHRequest(from.getLat(), from.getLng(), to.getLat(),
+                        to.getLng()).setProfile(profile));
+                String pair = profile + " from " + from.getName() + " to " + to.getName();
+                assertFalse(response.hasErrors(), pair + ": " + response.getErrors());
+                assertEquals(response.getBest().getDistance(), distances[s][t], TOLERANCE_M, pair);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,77 @@
+package wwcs2022.socialmemcon;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MatrixFileTest {
+
+    @TempDir
+    File dir;
+
+    @Test
+    public void readsBackWhatWasWritten() throws IOException {
+        List<LocationEntry> locations = List.of(
+                new LocationEntry("Budapest", 47.4979, 19.0402),
+                new LocationEntry("Szeged", 46.2530, 20.1414),
+                new LocationEntry("Győr", 47.6875, 17.6504));
+        DistanceMatrix base = new DistanceMatrix(locations);
+        DistanceStack distances = new DistanceStack(locations, List.of(2003, 1990));
+        for (int i=0; i < 3; i++) {
+            for (int j=0; j < 3; j++) {
+                base.set(i, j, i == j ? 0 : 1000.5 * (i + 1) + j);
+                distances.get(1990).set(i, j, i == j ? 0 : 2000.25 * (i + 1) + j);
+                distances.get(2003).set(i, j, i == j ? 0 : 1500.75 * (i + 1) + j);
+            }
+        }
+        // Szeged could not be reached in 1990
+        distances.get(1990).set(0, 1, Double.NaN);
+        distances.get(1990).set(1, 0, Double.NaN);
+
+        File file = new File(dir, "matrices.bin");
+        MatrixFile.write(file, "car_shortest", base, "base-graph", distances, Map.of(1990, "graph-1990"));
+
+        try (MatrixFile read = MatrixFile.open(file)) {
+            assertEquals("car_shortest", read.getProfile());
+            assertEquals(3, read.size());
+            for (int i=0; i < 3; i++) {
+                assertEquals(locations.get(i).getName(), read.getLocations().get(i).getName());
+                assertEquals(locations.get(i).getLat(), read.getLocations().get(i).getLat());
+                assertEquals(locations.get(i).getLng(), read.getLocations().get(i).getLng());
+            }
+            assertEquals(Set.of(1990, 2003), read.getYears());
+            assertEquals("base-graph", read.getFingerprint(MatrixFile.BASE));
+            assertEquals("graph-1990", read.getFingerprint(1990));
+            assertEquals("", read.getFingerprint(2003));
+            for (int i=0; i < 3; i++) {
+                for (int j=0; j < 3; j++) {
+                    assertEquals(base.get(i, j), read.get(MatrixFile.BASE, i, j));
+                    assertEquals(distances.get(1990).get(i, j), read.get(1990, i, j));
+                    assertEquals(distances.get(2003).get(i, j), read.get(2003, i, j));
+                }
+            }
+            assertTrue(Double.isNaN(read.get(1990, "Budapest", "Szeged")));
+            assertEquals(base.get(2, 0), read.get(MatrixFile.BASE, "Győr", "Budapest"));
+            assertTrue(Double.isNaN(read.get(MatrixFile.BASE, "Budapest", "Debrecen")));
+            assertEquals(distances.get(2003).get(1, 2), read.toStack().get(2003).get(1, 2));
+            assertEquals(base.get(0, 2), read.toMatrix(MatrixFile.BASE).get(0, 2));
+            assertThrows(IllegalArgumentException.class, () -> read.get(2010, 0, 1));
+        }
+    }
+
+    @Test
+    public void rejectsOtherFiles() throws IOException {
+        File file = new File(dir, "other.bin");
+        Files.write(file.toPath(), new byte[64]);
+        assertThrows(IOException.class, () -> MatrixFile.open(file));
+    }
+
+}
@@ -0,0 +1,161 @@
+package wwcs2022.socialmemcon;
+
+import de.topobyte.osm4j.core.model.iface.EntityType;
+import de.topobyte.osm4j.core.model.impl.Node;
+import de.topobyte.osm4j.core.model.impl.Relation;
+import de.topobyte.osm4j.core.model.impl.RelationMember;
+import de.topobyte.osm4j.core.model.impl.Tag;
+import de.topobyte.osm4j.core.model.impl.Way;
+import de.topobyte.osm4j.pbf.seq.PbfWriter;
+import gnu.trove.list.array.TLongArrayList;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Reduces the river network with a footway, a building, a tagged service street, a ferry and a few relations added to
+ * it, and checks that the datasets keep exactly what a car can use.
+ */
+public class NetworkReductionTest {
+
+    private static final long FOOTWAY_NODE = 2001;
+    private static final long BUILDING_NODE = 2002;
+    private static final long SIGNALS_NODE = 2010;
+    private static final long FOOTWAY = 30;
+    private static final long BUILDING = 31;
+    private static final long SERVICE = 32;
+    private static final long FERRY = 33;
+    private static final long TURN_RESTRICTION = 40;
+    private static final long FOOTWAY_RESTRICTION = 41;
+    private static final long MULTIPOLYGON = 42;
+
+    @TempDir
+    File dir;
+
+    @Test
+    public void keepsTheRoadsACarCanUse() {
+        NetworkReduction reduction = NetworkReduction.CAR;
+        assertTrue(reduction.keepWay(new String[] { "name", "Main street", "highway", "primary" }));
+        assertTrue(reduction.keepWay(new String[] { "route", "ferry" }));
+        assertFalse(reduction.keepWay(new String[] { "highway", "footway" }));
+        assertFalse(reduction.keepWay(new String[] { "building", "yes" }));
+        assertTrue(reduction.keepTag("maxspeed:forward"));
+        assertFalse(reduction.keepTag("name"));
+        assertFalse(reduction.keepTag("name:en"));
+    }
+
+    @Test
+    public void dropsWhatACarCannotUse() throws IOException {
+        File input = writeInput();
+        Map<Integer,File> outputs = new TreeMap<>();
+        outputs.put(TestNetworks.OLD_BRIDGE_YEAR, new File(dir, "old.osm.pbf"));
+        outputs.put(FilterBridgesMain.CURRENT, new File(dir, "now.osm.pbf"));
+        FilterBridgesMain.processYears(input.getPath(), outputs, TestNetworks.bridges(), 2, NetworkReduction.CAR);
+        FilterBridgesMainTest.Dataset all = FilterBridgesMainTest.read(input);
+
+        FilterBridgesMainTest.Dataset now = FilterBridgesMainTest.read(outputs.get(FilterBridgesMain.CURRENT));
+        Set<Long> nodes = new TreeSet<>(all.nodes);
+        nodes.removeAll(List.of(FOOTWAY_NODE, BUILDING_NODE, BUILDING_NODE + 1, BUILDING_NODE + 2));
+        assertEquals(nodes, now.nodes);
+        Map<Long,List<Long>> ways = new TreeMap<>(all.ways);
+        ways.keySet().removeAll(List.of(FOOTWAY, BUILDING));
+        assertEquals(ways, now.ways);
+        assertEquals(Set.of(TURN_RESTRICTION), now.relations);
+
+        assertEquals(Map.of("highway", "service", "maxspeed:forward", "30", "surface", "asphalt"),
+                now.tags.get("Way " + SERVICE));
+        assertEquals(Map.of("highway", "traffic_signals"), now.tags.get("Node " + SIGNALS_NODE));
+        assertEquals(Map.of("type", "restriction", "restriction", "no_left_turn"),
+                now.tags.get("Relation " + TURN_RESTRICTION));
+        assertEquals(Map.of("route", "ferry", "duration", "00:20"), now.tags.get("Way " + FERRY));
+
+        // The bridges are still filtered from the reduced datasets
+        FilterBridgesMainTest.Dataset old = FilterBridgesMainTest.read(outputs.get(TestNetworks.OLD_BRIDGE_YEAR));
+        Set<Long> missing = Set.of(1000L + TestNetworks.OLD_BRIDGE_ROW, 1000L + TestNetworks.NEW_BRIDGE_ROW);
+        nodes.removeAll(missing);
+        assertEquals(nodes, old.nodes);
+        ways.values().removeIf(refs -> refs.stream().anyMatch(missing::contains));
+        assertEquals(ways, old.ways);
+        assertEquals(Set.of(TURN_RESTRICTION), old.relations);
+    }
+
+    @Test
+    public void rebuildsTheDatasetsForAnotherReduction() throws IOException {
+        File input = writeInput();
+        String prefix = new File(dir, "network-").getPath();
+        ArtifactStore store = ArtifactStore.open(new File(dir, "manifest.properties"));
+        Map<Integer,File> files = FilterBridgesMain.processAll(TestNetworks.bridges(), input.getPath(), prefix,
+                ".osm.pbf", store);
+        File oldYear = files.get(TestNetworks.OLD_BRIDGE_YEAR);
+        assertTrue(FilterBridgesMainTest.read(oldYear).ways.containsKey(FOOTWAY));
+
+        files = FilterBridgesMain.processAll(TestNetworks.bridges(), input.getPath(), prefix, ".osm.pbf", store,
+                NetworkReduction.CAR);
+        assertEquals(Set.of(TestNetworks.OLD_BRIDGE_YEAR, TestNetworks.NEW_BRIDGE_YEAR, FilterBridgesMain.CURRENT),
+                files.keySet());
+        assertEquals(new File(prefix + "now.osm.pbf"), files.get(FilterBridgesMain.CURRENT));
+        assertFalse(FilterBridgesMainTest.read(oldYear).ways.containsKey(FOOTWAY));
+        assertFalse(FilterBridgesMainTest.read(files.get(FilterBridgesMain.CURRENT)).ways.containsKey(FOOTWAY));
+    }
+
+    /**
+     * Writes the river network followed by the entities a car cannot use and a few it can.
+     */
+    private File writeInput() throws IOException {
+        File river = new File(dir, "river-only.osm.pbf");
+        TestNetworks.writeRiver(river);
+        File extras = new File(dir, "extras.osm.pbf");
+        try (OutputStream os = new BufferedOutputStream(new FileOutputStream(extras))) {
+            PbfWriter writer = new PbfWriter(os, false);
+            double lat = TestNetworks.LAT + 0.5 * TestNetworks.STEP_LAT;
+            double lng = TestNetworks.LNG + 0.5 * TestNetworks.STEP_LNG;
+            writer.write(new Node(FOOTWAY_NODE, lng, lat, List.of()));
+            for (int i=0; i < 3; i++) {
+                writer.write(new Node(BUILDING_NODE + i, lng + 0.001 * i, lat + 0.001, i == 0
+                        ? List.of(new Tag("entrance", "main")) : List.of()));
+            }
+            writer.write(new Node(SIGNALS_NODE, lng + 0.002, lat + 0.002, List.of(
+                    new Tag("highway", "traffic_signals"), new Tag("name", "Corner"), new Tag("created_by", "me"))));
+            writer.write(new Way(FOOTWAY, refs(TestNetworks.node(0, 0), FOOTWAY_NODE, TestNetworks.node(1, 1)),
+                    List.of(new Tag("highway", "footway"))));
+            writer.write(new Way(BUILDING, refs(BUILDING_NODE, BUILDING_NODE + 1, BUILDING_NODE + 2, BUILDING_NODE),
+                    List.of(new Tag("building", "yes"))));
+            writer.write(new Way(SERVICE, refs(TestNetworks.node(1, 1), SIGNALS_NODE), List.of(
+                    new Tag("highway", "service"), new Tag("name", "Side street"), new Tag("maxspeed:forward", "30"),
+                    new Tag("surface", "asphalt"))));
+            writer.write(new Way(FERRY, refs(TestNetworks.node(5, 0), TestNetworks.node(5, TestNetworks.GRID - 1)),
+                    List.of(new Tag("route", "ferry"), new Tag("duration", "00:20"), new Tag("name", "Ferry"))));
+            // From the first way along the first row to the street along the river
+            writer.write(new Relation(TURN_RESTRICTION, List.of(
+                    new RelationMember(1, EntityType.Way, "from"),
+                    new RelationMember(TestNetworks.node(0, TestNetworks.RIVER), EntityType.Node, "via"),
+                    new RelationMember(13 + TestNetworks.RIVER, EntityType.Way, "to")), List.of(
+                    new Tag("type", "restriction"), new Tag("restriction", "no_left_turn"),
+                    new Tag("note", "school"))));
+            writer.write(new Relation(FOOTWAY_RESTRICTION, List.of(
+                    new RelationMember(FOOTWAY, EntityType.Way, "from"),
+                    new RelationMember(TestNetworks.node(1, 1), EntityType.Node, "via"),
+                    new RelationMember(SERVICE, EntityType.Way, "to")), List.of(
+                    new Tag("type", "restriction"), new Tag("restriction", "no_right_turn"))));
+            writer.write(new Relation(MULTIPOLYGON, List.of(new RelationMember(BUILDING, EntityType.Way, "outer")),
+                    List.of(new Tag("type", "multipolygon"), new Tag("building", "yes"))));
+            writer.complete();
+        }
+        File input = new File(dir, "river.osm.pbf");
+        try (OutputStream os = new FileOutputStream(input)) {
+            os.write(Files.readAllBytes(river.toPath()));
+            os.write(PbfBlock.dataFrames(Files.readAllBytes(extras.toPath())));
+        }
+        return input;
+    }
+
+    private static TLongArrayList refs(long... ids) {
+        return new TLongArrayList(ids);
+    }
+
+}
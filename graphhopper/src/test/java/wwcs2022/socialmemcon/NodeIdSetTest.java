@@ -0,0 +1,90 @@
+package wwcs2022.socialmemcon;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class NodeIdSetTest {
+
+    @Test
+    public void containsExactlyTheAddedIdsOnHeap() {
+        checkMembership(Integer.MAX_VALUE, false);
+    }
+
+    @Test
+    public void containsExactlyTheAddedIdsOffHeap() {
+        checkMembership(0, true);
+    }
+
+    @Test
+    public void movesOffHeapPastTheThreshold() {
+        checkMembership(1000, true);
+    }
+
+    @Test
+    public void keepsItsCapacityInSegmentsOffHeap() {
+        // About 49,000 ids end up in 2^17 slots in segments of 2^12, the table moves off the heap when it grows last
+        NodeIdSet set = checkMembership(NodeIdSet.builder(20_000, 12), true);
+        assertEquals(32, set.segments());
+        assertEquals(1, checkMembership(NodeIdSet.builder(0), true).segments());
+    }
+
+    private void checkMembership(int offHeapThreshold, boolean offHeap) {
+        checkMembership(NodeIdSet.builder(offHeapThreshold), offHeap);
+    }
+
+    private NodeIdSet checkMembership(NodeIdSet.Builder builder, boolean offHeap) {
+        Random random = new Random(42);
+        Map<Long,Integer> expected = new HashMap<>();
+        for (int i=0; i < 100_000; i++) {
+            // Dense ids with duplicates, like the node ids of an extract
+            long id = 1_000_000_000L + random.nextInt(60_000);
+            int tag = 1990 + random.nextInt(30);
+            builder.add(id, tag);
+            expected.merge(id, tag, Math::max);
+        }
+        NodeIdSet set = builder.build();
+        assertEquals(expected.size(), set.size());
+        assertEquals(offHeap, set.isOffHeap());
+        for (long id=1_000_000_000L - 100; id < 1_000_000_000L + 60_100; id++) {
+            Integer tag = expected.get(id);
+            assertEquals(tag != null, set.contains(id), "membership of " + id);
+            assertEquals(tag == null ? NodeIdSet.ABSENT : tag, set.get(id), "tag of " + id);
+        }
+        return set;
+    }
+
+    @Test
+    public void keepsTheLargestTag() {
+        NodeIdSet set = NodeIdSet.builder().add(7, 2001).add(7, 1995).add(7, 2010).add(8).build();
+        assertEquals(2010, set.get(7));
+        assertEquals(0, set.get(8));
+        assertEquals(2, set.size());
+    }
+
+    @Test
+    public void emptySetContainsNothing() {
+        NodeIdSet set = NodeIdSet.builder().build();
+        assertTrue(set.isEmpty());
+        assertFalse(set.contains(0));
+        assertEquals(NodeIdSet.ABSENT, set.get(-1));
+    }
+
+    @Test
+    public void rejectsTheReservedId() {
+        assertThrows(IllegalArgumentException.class, () -> NodeIdSet.builder().add(Long.MIN_VALUE));
+    }
+
+    @Test
+    public void cannotBeUsedAfterBuild() {
+        NodeIdSet.Builder builder = NodeIdSet.builder().add(1);
+        builder.build();
+        assertThrows(IllegalStateException.class, () -> builder.add(2));
+        assertThrows(IllegalStateException.class, builder::build);
+    }
+
+}
@@ -0,0 +1,162 @@
+package wwcs2022.socialmemcon;
+
+import de.topobyte.osm4j.core.access.OsmIterator;
+import de.topobyte.osm4j.core.model.iface.EntityContainer;
+import de.topobyte.osm4j.core.model.iface.EntityType;
+import de.topobyte.osm4j.core.model.iface.OsmNode;
+import de.topobyte.osm4j.core.model.iface.OsmWay;
+import de.topobyte.osm4j.core.model.impl.Node;
+import de.topobyte.osm4j.core.model.impl.Tag;
+import de.topobyte.osm4j.core.model.impl.Way;
+import de.topobyte.osm4j.pbf.seq.PbfIterator;
+import de.topobyte.osm4j.pbf.seq.PbfWriter;
+import gnu.trove.list.array.TLongArrayList;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Encodes entities with the osm4j writer and checks that {@link PbfBlock} decodes the same entities from the raw
+ * blocks, and that the blocks it splices are read back by osm4j.
+ */
+public class PbfBlockTest {
+
+    // Coordinates are stored in units of 100 nanodegrees
+    private static final double PRECISION = 1e-7;
+
+    private final List<OsmNode> nodes = new ArrayList<>();
+    private final List<OsmWay> ways = new ArrayList<>();
+
+    public PbfBlockTest() {
+        Random random = new Random(42);
+        // Enough entities to span several blocks, with negative coordinates and large ids
+        long id = 5_000_000_000L;
+        for (int i=0; i < 20_000; i++) {
+            id += 1 + random.nextInt(1000);
+            List<Tag> tags = i % 100 == 0 ? List.of(new Tag("barrier", "gate")) : List.of();
+            nodes.add(new Node(id, random.nextDouble() * 360 - 180, random.nextDouble() * 180 - 90, tags));
+        }
+        for (int i=0; i < 3_000; i++) {
+            TLongArrayList refs = new TLongArrayList();
+            int length = 2 + random.nextInt(10);
+            for (int k=0; k < length; k++) {
+                refs.add(nodes.get(random.nextInt(nodes.size())).getId());
+            }
+            List<Tag> tags = i % 3 == 0 ? List.of()
+                    : List.of(new Tag("highway", "residential"), new Tag("name", "Út " + i));
+            ways.add(new Way(100_000L + i * 7L, refs, tags));
+        }
+    }
+
+    private byte [] encode() throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        PbfWriter writer = new PbfWriter(os, false);
+        for (OsmNode node : nodes) {
+            writer.write(node);
+        }
+        for (OsmWay way : ways) {
+            writer.write(way);
+        }
+        writer.complete();
+        return os.toByteArray();
+    }
+
+    private static List<PbfBlock> blocks(byte [] pbf) throws IOException {
+        List<PbfBlock> result = new ArrayList<>();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(pbf));
+        PbfBlock block;
+        while ((block = PbfBlock.read(in)) != null) {
+            result.add(block);
+        }
+        return result;
+    }
+
+    @Test
+    public void decodesTheNodes() throws IOException {
+        List<PbfBlock> blocks = blocks(encode());
+        assertTrue(blocks.get(0).isHeader());
+        assertTrue(blocks.size() > 2, "expected several data blocks");
+        List<double []> decoded = new ArrayList<>();
+        for (PbfBlock block : blocks) {
+            int count = block.forEachNode((id, lat, lon) -> decoded.add(new double[] { id, lat, lon }));
+            if (!block.isData()) {
+                assertEquals(0, count);
+            }
+        }
+        assertEquals(nodes.size(), decoded.size());
+        for (int i=0; i < nodes.size(); i++) {
+            OsmNode node = nodes.get(i);
+            assertEquals(node.getId(), (long) decoded.get(i)[0]);
+            assertEquals(node.getLatitude(), decoded.get(i)[1], PRECISION);
+            assertEquals(node.getLongitude(), decoded.get(i)[2], PRECISION);
+        }
+    }
+
+    @Test
+    public void decodesTheWays() throws IOException {
+        List<PbfBlock> blocks = blocks(encode());
+        List<Long> ids = new ArrayList<>();
+        List<String []> tags = new ArrayList<>();
+        List<long []> refs = new ArrayList<>();
+        long [] wayNodes = { 0 };
+        for (PbfBlock block : blocks) {
+            block.forEachWay((id, wayTags, wayRefs) -> {
+                ids.add(id);
+                tags.add(wayTags);
+                refs.add(wayRefs);
+            });
+            block.forEachWayNode(id -> wayNodes[0]++);
+        }
+        assertEquals(ways.size(), ids.size());
+        long expectedWayNodes = 0;
+        for (int i=0; i < ways.size(); i++) {
+            OsmWay way = ways.get(i);
+            assertEquals(way.getId(), (long) ids.get(i));
+            String [] expectedTags = new String[way.getNumberOfTags() * 2];
+            for (int t=0; t < way.getNumberOfTags(); t++) {
+                expectedTags[2 * t] = way.getTag(t).getKey();
+                expectedTags[2 * t + 1] = way.getTag(t).getValue();
+            }
+            assertArrayEquals(expectedTags, tags.get(i));
+            long [] expectedRefs = new long[way.getNumberOfNodes()];
+            for (int k=0; k < expectedRefs.length; k++) {
+                expectedRefs[k] = way.getNodeId(k);
+            }
+            assertArrayEquals(expectedRefs, refs.get(i));
+            expectedWayNodes += expectedRefs.length;
+        }
+        assertEquals(expectedWayNodes, wayNodes[0]);
+    }
+
+    @Test
+    public void splicedFramesAreReadByOsm4j() throws IOException {
+        byte [] frames = PbfBlock.dataFrames(encode());
+        for (PbfBlock block : blocks(frames)) {
+            assertTrue(block.isData());
+        }
+        List<Long> nodeIds = new ArrayList<>();
+        List<Long> wayIds = new ArrayList<>();
+        OsmIterator iterator = new PbfIterator(new ByteArrayInputStream(frames), false);
+        while (iterator.hasNext()) {
+            EntityContainer container = iterator.next();
+            if (container.getType() == EntityType.Node) {
+                nodeIds.add(container.getEntity().getId());
+            }
+            else if (container.getType() == EntityType.Way) {
+                wayIds.add(container.getEntity().getId());
+            }
+        }
+        assertEquals(nodes.stream().map(OsmNode::getId).collect(Collectors.toList()), nodeIds);
+        assertEquals(ways.stream().map(OsmWay::getId).collect(Collectors.toList()), wayIds);
+    }
+
+}
@@ -0,0 +1,71 @@
+package wwcs2022.socialmemcon;
+
+import org.junit.jupiter.api.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RestrictionIndexTest {
+
+    // A square, a square overlapping its upper right corner, and a triangle whose envelope covers points outside it
+    private static final List<RestrictionEntry> RESTRICTIONS = List.of(
+            new RestrictionEntry("Square;2000;50;47.0,19.0::47.0,19.2::47.2,19.2::47.2,19.0::47.0,19.0"),
+            new RestrictionEntry("Overlap;2010;30;47.1,19.1::47.1,19.3::47.3,19.3::47.3,19.1::47.1,19.1"),
+            new RestrictionEntry("Triangle;1995;50;47.5,19.5::47.5,19.9::47.9,19.5::47.5,19.5"));
+
+    @Test
+    public void returnsTheLatestYearOfThePolygonsContainingAPoint() {
+        RestrictionIndex.Locator locator = new RestrictionIndex(RESTRICTIONS).locator();
+        assertEquals(2000, locator.latestYear(47.05, 19.05));
+        assertEquals(2010, locator.latestYear(47.15, 19.15));
+        assertEquals(2010, locator.latestYear(47.25, 19.25));
+        assertEquals(1995, locator.latestYear(47.55, 19.55));
+        // Inside the envelope of the triangle, but not inside the triangle
+        assertEquals(RestrictionIndex.NO_YEAR, locator.latestYear(47.85, 19.85));
+        assertFalse(locator.contains(47.85, 19.85));
+        // Outside all polygons
+        assertEquals(RestrictionIndex.NO_YEAR, locator.latestYear(46.0, 18.0));
+        assertTrue(locator.contains(47.05, 19.05));
+    }
+
+    @Test
+    public void collectsThePolygonsContainingAPoint() {
+        RestrictionIndex.Locator locator = new RestrictionIndex(RESTRICTIONS).locator();
+        BitSet found = new BitSet();
+        locator.collect(47.15, 19.15, found);
+        assertEquals(BitSet.valueOf(new long[] { 0b011 }), found);
+        found.clear();
+        locator.collect(47.85, 19.85, found);
+        assertTrue(found.isEmpty());
+        // A later query without a set to collect into does not touch the earlier one
+        locator.collect(47.55, 19.55, found);
+        locator.latestYear(47.05, 19.05);
+        assertEquals(BitSet.valueOf(new long[] { 0b100 }), found);
+    }
+
+    @Test
+    public void agreesWithTheGeometries() {
+        RestrictionIndex.Locator locator = new RestrictionIndex(RESTRICTIONS).locator();
+        GeometryFactory factory = new GeometryFactory();
+        Random random = new Random(42);
+        for (int i=0; i < 10_000; i++) {
+            double lat = 46.9 + random.nextDouble() * 1.1;
+            double lng = 18.9 + random.nextDouble() * 1.1;
+            Geometry point = factory.createPoint(new Coordinate(lat, lng));
+            int expected = RestrictionIndex.NO_YEAR;
+            for (RestrictionEntry restriction : RESTRICTIONS) {
+                if (restriction.asFeature().getGeometry().contains(point)) {
+                    expected = Math.max(expected, restriction.getYear());
+                }
+            }
+            assertEquals(expected, locator.latestYear(lat, lng), lat + "," + lng);
+        }
+    }
+
+}
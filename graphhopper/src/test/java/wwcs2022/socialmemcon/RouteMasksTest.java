@@ -0,0 +1,176 @@
+package wwcs2022.socialmemcon;
+
+import com.graphhopper.GraphHopper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks the route masks and {@link RoutingMain#fillDelta}: only the pairs whose base route passes through a blocked
+ * restriction are routed again, the others are copied.
+ */
+public class RouteMasksTest {
+
+    private static final double TOLERANCE_M = 0.5;
+
+    @TempDir
+    File dir;
+
+    private final List<LocationEntry> locations = TestNetworks.locations(4);
+    // The pairs passed to the matrix function, without the pairs of a location with itself
+    private final List<String> routed = new ArrayList<>();
+    private int baseRequests;
+
+    @Test
+    public void storesAMaskPerPair() {
+        RouteMasks masks = new RouteMasks(locations, 70);
+        assertEquals(2, masks.getWords());
+        long [] mask = { 0, 1L << 3, 1L << 5 | 1 };
+        masks.set(0, 1, 1200, mask, 1);
+        masks.set(1, 0, 1300, new long[] { 1L << 2, 0 }, 0);
+        assertEquals(1200, masks.getDistances().get(0, 1));
+        assertEquals(bits(3, 64, 69), masks.get(0, 1));
+        assertEquals(1L << 5 | 1, masks.getWord(0, 1, 1));
+        assertTrue(masks.get(0, 2).isEmpty());
+
+        assertTrue(masks.crosses(0, 1, bits(69).toLongArray()));
+        assertFalse(masks.crosses(0, 1, bits(2, 68).toLongArray()));
+        assertTrue(masks.crosses(1, 0, bits(2).toLongArray()));
+        assertEquals(1, masks.countCrossing(bits(3)));
+        assertEquals(2, masks.countCrossing(bits(2, 3)));
+        assertEquals(0, masks.countCrossing(new BitSet()));
+    }
+
+    @Test
+    public void reroutesOnlyThePairsThroughABlockedRestriction() {
+        RouteMasks masks = baseMasks();
+        DistanceMatrix result = new DistanceMatrix(locations);
+        RoutingMain.fillDelta(result, () -> {
+            baseRequests++;
+            return masks;
+        }, bits(1), null, this::route);
+        assertEquals(1, baseRequests);
+        // Only 0 -> 2 and 2 -> 0 pass through restriction 1
+        assertEquals(List.of("0-2", "2-0"), routed);
+        for (int i=0; i < locations.size(); i++) {
+            for (int j=0; j < locations.size(); j++) {
+                if (i != j) {
+                    boolean crosses = i + j == 2 && i != 1;
+                    assertEquals(crosses ? detour(i, j) : base(i, j), result.get(i, j), "" + i + j);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void requestsTheBaseRoutesOnlyForPairsMissingInTheCache() {
+        RouteMasks masks = baseMasks();
+        DistanceCache cache = DistanceCache.open(dir, "car_shortest", "0123456789abcdef0123456789abcdef");
+        DistanceMatrix first = new DistanceMatrix(locations);
+        RoutingMain.fillDelta(first, () -> {
+            baseRequests++;
+            return masks;
+        }, bits(1), cache, this::route);
+
+        baseRequests = 0;
+        routed.clear();
+        DistanceMatrix second = new DistanceMatrix(locations);
+        RoutingMain.fillDelta(second, () -> {
+            baseRequests++;
+            return masks;
+        }, bits(1), DistanceCache.open(dir, "car_shortest", "0123456789abcdef0123456789abcdef"), this::route);
+        assertEquals(0, baseRequests);
+        assertTrue(routed.isEmpty());
+        for (int i=0; i < locations.size(); i++) {
+            for (int j=0; j < locations.size(); j++) {
+                if (i != j) {
+                    assertEquals(first.get(i, j), second.get(i, j));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void matchesRoutingEveryYearOnTheScenarioGraph() throws IOException {
+        File osm = new File(dir, "river.osm.pbf");
+        TestNetworks.writeRiver(osm);
+        GraphHopper hopper = TestNetworks.hopper(osm, new File(dir, "river"));
+        try {
+            ScenarioGraph graph = new ScenarioGraph(hopper, TestNetworks.bridges());
+            List<LocationEntry> locations = TestNetworks.locations(10);
+            Set<Integer> years = Set.of(TestNetworks.NEW_BRIDGE_YEAR, 2020);
+            RoutingMain.Weighting weighting = RoutingMain.Weighting.SHORTEST;
+            String profile = weighting.getProfileForVehicle("car");
+            DistanceStack stack = RoutingMain.computeScenarioMatrices(locations, graph, years, "car", weighting, 2,
+                    null);
+            for (int year : years) {
+                BitSet blocked = graph.blockedEdges(graph.restrictionsForYear(year));
+                double [][] expected = graph.calcDistances(locations, locations, profile, blocked, 2);
+                for (int s=0; s < locations.size(); s++) {
+                    for (int t=0; t < locations.size(); t++) {
+                        if (s != t) {
+                            assertEquals(expected[s][t], stack.get(year, s, t), TOLERANCE_M, year + ": " + s + "-" + t);
+                        }
+                    }
+                }
+            }
+        }
+        finally {
+            hopper.close();
+        }
+    }
+
+    /**
+     * Returns base routes between four locations in which the routes between 0 and 2 pass through restriction 1 and
+     * the routes from 1 through restriction 0.
+     */
+    private RouteMasks baseMasks() {
+        RouteMasks masks = new RouteMasks(locations, 2);
+        for (int i=0; i < locations.size(); i++) {
+            for (int j=0; j < locations.size(); j++) {
+                if (i != j) {
+                    long mask = (i + j == 2 ? 0b10 : 0) | (i == 1 ? 0b01 : 0);
+                    masks.set(i, j, base(i, j), new long[] { mask }, 0);
+                }
+            }
+        }
+        return masks;
+    }
+
+    private double [][] route(List<LocationEntry> sources, List<LocationEntry> targets) {
+        double [][] result = new double[sources.size()][targets.size()];
+        for (int s=0; s < sources.size(); s++) {
+            for (int t=0; t < targets.size(); t++) {
+                int i = locations.indexOf(sources.get(s));
+                int j = locations.indexOf(targets.get(t));
+                result[s][t] = detour(i, j);
+                if (i != j) {
+                    routed.add(i + "-" + j);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static double base(int from, int to) {
+        return 1000 * from + 100 * to;
+    }
+
+    private static double detour(int from, int to) {
+        return base(from, to) + 5000;
+    }
+
+    private static BitSet bits(int... indices) {
+        BitSet result = new BitSet();
+        for (int i : indices) {
+            result.set(i);
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,127 @@
+package wwcs2022.socialmemcon;
+
+import com.graphhopper.GraphHopper;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Routes the river network with the bridges blocked on the scenario graph, and compares the distances with those of
+ * graphs imported without the bridges.
+ */
+public class ScenarioGraphTest {
+
+    private static final String PROFILE = RoutingMain.Weighting.SHORTEST.getProfileForVehicle("car");
+    private static final double TOLERANCE_M = 0.1;
+
+    @TempDir
+    static File dir;
+
+    private static GraphHopper hopper;
+    private static ScenarioGraph graph;
+    private static final List<LocationEntry> locations = TestNetworks.locations(10);
+
+    @BeforeAll
+    static void importRiver() throws IOException {
+        File osm = new File(dir, "river.osm.pbf");
+        TestNetworks.writeRiver(osm);
+        hopper = TestNetworks.hopper(osm, new File(dir, "river"));
+        graph = new ScenarioGraph(hopper, TestNetworks.bridges());
+    }
+
+    @AfterAll
+    static void close() {
+        hopper.close();
+    }
+
+    @Test
+    public void blocksTheRestrictionsNotBuiltYet() {
+        assertEquals(bits(), graph.restrictionsForYear(2011));
+        assertEquals(bits(1), graph.restrictionsForYear(TestNetworks.NEW_BRIDGE_YEAR));
+        assertEquals(bits(0, 1), graph.restrictionsForYear(TestNetworks.OLD_BRIDGE_YEAR));
+        // Every restriction only flags the edge of its bridge
+        assertEquals(1, graph.blockedEdges(bits(0)).cardinality());
+        assertEquals(1, graph.blockedEdges(bits(1)).cardinality());
+        assertFalse(graph.blockedEdges(bits(0)).intersects(graph.blockedEdges(bits(1))));
+    }
+
+    @Test
+    public void matchesTheGraphsWithoutTheBridges() throws IOException {
+        check(bits(), "all");
+        check(bits(0), "new", TestNetworks.OLD_BRIDGE_ROW);
+        check(bits(1), "old", TestNetworks.NEW_BRIDGE_ROW);
+        check(bits(0, 1), "none", TestNetworks.OLD_BRIDGE_ROW, TestNetworks.NEW_BRIDGE_ROW);
+    }
+
+    private void check(BitSet scenario, String name, int... missingBridges) throws IOException {
+        // Without both bridges GraphHopper would drop one bank from the graph as a small subnetwork, so the banks are
+        // compared with the full network and there is no route across
+        boolean split = missingBridges.length == 2;
+        File osm = new File(dir, name + ".osm.pbf");
+        TestNetworks.writeRiver(osm, split ? new int[0] : missingBridges);
+        GraphHopper reference = TestNetworks.hopper(osm, new File(dir, name));
+        try {
+            double [][] expected = new MatrixCalculator(reference, PROFILE, 1).calcDistances(locations, locations);
+            // The same search object serves all sources, so this also covers the reset between runs
+            double [][] actual = graph.calcDistances(locations, locations, PROFILE, graph.blockedEdges(scenario), 1);
+            for (int s=0; s < locations.size(); s++) {
+                for (int t=0; t < locations.size(); t++) {
+                    String pair = name + " from " + s + " to " + t;
+                    boolean across = TestNetworks.isWest(locations.get(s)) != TestNetworks.isWest(locations.get(t));
+                    if (split && across) {
+                        assertTrue(Double.isNaN(actual[s][t]), pair);
+                    }
+                    else {
+                        assertEquals(expected[s][t], actual[s][t], TOLERANCE_M, pair);
+                    }
+                }
+            }
+        }
+        finally {
+            reference.close();
+        }
+    }
+
+    @Test
+    public void recordsTheRestrictionsOfEveryRoute() {
+        RouteMasks masks = graph.calcRouteMasks(locations, PROFILE, 2);
+        double [][] distances = graph.calcDistances(locations, locations, PROFILE, new BitSet(), 2);
+        double [][] withoutOld = graph.calcDistances(locations, locations, PROFILE, graph.blockedEdges(bits(0)), 2);
+        long [] old = bits(0).toLongArray();
+        int crossing = 0;
+        for (int s=0; s < locations.size(); s++) {
+            for (int t=0; t < locations.size(); t++) {
+                if (s == t) {
+                    continue;
+                }
+                assertEquals(distances[s][t], masks.getDistances().get(s, t), TOLERANCE_M);
+                if (masks.crosses(s, t, old)) {
+                    crossing++;
+                }
+                else {
+                    // A route that does not cross the old bridge keeps its distance without it
+                    assertEquals(distances[s][t], withoutOld[s][t], TOLERANCE_M);
+                }
+            }
+        }
+        assertTrue(crossing > 0);
+        assertEquals(crossing, masks.countCrossing(bits(0)));
+    }
+
+    private static BitSet bits(int... indices) {
+        BitSet result = new BitSet();
+        for (int i : indices) {
+            result.set(i);
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,108 @@
+package wwcs2022.socialmemcon;
+
+import com.graphhopper.GraphHopper;
+import com.graphhopper.util.EdgeIterator;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SnapIndexTest {
+
+    private static final String PROFILE = RoutingMain.Weighting.SHORTEST.getProfileForVehicle("car");
+
+    @TempDir
+    File dir;
+
+    private GraphHopper hopper;
+
+    @BeforeEach
+    public void importGrid() throws IOException {
+        File osm = new File(dir, "grid.osm.pbf");
+        TestNetworks.writeGrid(osm);
+        hopper = TestNetworks.hopper(osm, new File(dir, "grid"));
+    }
+
+    @AfterEach
+    public void close() {
+        hopper.close();
+    }
+
+    @Test
+    public void snapsEveryLocationOnce() {
+        List<LocationEntry> locations = new ArrayList<>(TestNetworks.locations(4));
+        // On a crossing, in the middle of a block off the diagonal road and far outside the grid
+        locations.add(new LocationEntry("crossing", TestNetworks.LAT + 2 * TestNetworks.STEP_LAT,
+                TestNetworks.LNG + 2 * TestNetworks.STEP_LNG));
+        locations.add(new LocationEntry("block", TestNetworks.LAT + 2.5 * TestNetworks.STEP_LAT,
+                TestNetworks.LNG + 3.5 * TestNetworks.STEP_LNG));
+        locations.add(new LocationEntry("away", 10, 10));
+        SnapIndex snaps = SnapIndex.create(hopper, PROFILE, locations, 100);
+
+        assertEquals(locations.size(), snaps.size());
+        assertEquals(0, snaps.getUnsnapped());
+        // Still snapped, but counted
+        assertEquals(2, snaps.getFarSnaps());
+        int baseNodes = hopper.getGraphHopperStorage().getNodes();
+        assertEquals(baseNodes, snaps.getBaseNodes());
+        for (int i=0; i < 4; i++) {
+            // Between two crossings, so on a new virtual node
+            assertTrue(snaps.isSnapped(i));
+            assertTrue(snaps.getNode(i) >= baseNodes);
+            assertTrue(snaps.getSnapDistance(i) < 20, "" + snaps.getSnapDistance(i));
+        }
+        assertTrue(snaps.getNode(4) < baseNodes);
+        assertEquals(0, snaps.getSnapDistance(4), 0.1);
+        // The streets along the columns are closer than those along the rows
+        double lat = Math.toRadians(locations.get(5).getLat());
+        assertEquals(0.5 * TestNetworks.STEP_LNG * 111_200 * Math.cos(lat), snaps.getSnapDistance(5), 2);
+        assertTrue(snaps.isSnapped(6));
+        assertTrue(snaps.getSnapDistance(6) > 1_000_000);
+    }
+
+    @Test
+    public void mapsVirtualEdgesToTheEdgesTheyArePartOf() {
+        List<LocationEntry> locations = TestNetworks.locations(6);
+        SnapIndex snaps = SnapIndex.create(hopper, PROFILE, locations);
+        assertEquals(hopper.getGraphHopperStorage().getEdges(), snaps.getBaseEdges());
+        for (int i=0; i < locations.size(); i++) {
+            EdgeIterator edges = snaps.getQueryGraph().createEdgeExplorer().setBaseNode(snaps.getNode(i));
+            int count = 0;
+            while (edges.next()) {
+                assertTrue(edges.getEdge() >= snaps.getBaseEdges());
+                assertEquals(snaps.getEdge(i), snaps.getOriginalEdge(edges.getEdge()));
+                count++;
+            }
+            assertEquals(2, count);
+        }
+        assertEquals(3, snaps.getOriginalEdge(3));
+    }
+
+    @Test
+    public void looksUpLocationsByName() {
+        List<LocationEntry> locations = TestNetworks.locations(4);
+        List<LocationEntry> targets = List.of(locations.get(3), new LocationEntry("target", TestNetworks.LAT,
+                TestNetworks.LNG + 0.5 * TestNetworks.STEP_LNG));
+        List<LocationEntry> union = SnapIndex.union(locations, targets);
+        assertEquals(5, union.size());
+        assertEquals("target", union.get(4).getName());
+        assertSame(locations, SnapIndex.union(locations, locations));
+
+        SnapIndex snaps = SnapIndex.create(hopper, PROFILE, union);
+        assertTrue(snaps.containsAll(targets));
+        assertEquals(4, snaps.indexOf(targets.get(1)));
+        assertArrayEquals(new int[] { snaps.getNode(3), snaps.getNode(4) }, snaps.nodes(targets));
+        LocationEntry unknown = new LocationEntry("unknown", TestNetworks.LAT, TestNetworks.LNG);
+        assertEquals(-1, snaps.indexOf(unknown));
+        assertFalse(snaps.containsAll(List.of(unknown)));
+        assertThrows(IllegalArgumentException.class, () -> snaps.nodes(List.of(unknown)));
+    }
+
+}
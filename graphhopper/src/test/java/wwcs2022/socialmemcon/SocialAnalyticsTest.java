@@ -0,0 +1,154 @@
+package wwcs2022.socialmemcon;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the analysis on a few hand-made locations whose invitations follow known laws, so the expected aggregates can
+ * be worked out by hand.
+ */
+public class SocialAnalyticsTest {
+
+    private static final double DELTA = 1e-9;
+    // A city without a location, its invitations only add users
+    private static final int ELSEWHERE = 99;
+
+    @TempDir
+    File dir;
+
+    private final List<LocationEntry> locations = List.of(new LocationEntry("Alpha", 47.0, 19.0),
+            new LocationEntry("Beta", 47.0, 20.0), new LocationEntry("Gamma", 46.0, 19.0),
+            new LocationEntry("Delta", 46.0, 20.0));
+    private final List<String> rows = new ArrayList<>();
+
+    @Test
+    public void binsTheConnectionsAndFitsTheGravityModel() throws IOException {
+        // Users 100, 200, 400 and 800, and S = 0.001 n_i n_j / d^2 with the distance in km
+        int [] users = { 100, 200, 400, 800 };
+        double [][] km = {
+                { 0, 1, 2, 4 },
+                { 1, 0, 1, 2 },
+                { 2, 1, 0, 4 },
+                { 4, 2, 4, 0 } };
+        int [] registered = new int[users.length];
+        for (int i=0; i < users.length; i++) {
+            for (int j=i + 1; j < users.length; j++) {
+                int connections = (int) Math.round(0.001 * users[i] * users[j] / (km[i][j] * km[i][j]));
+                invite(2010, i, j, connections);
+                registered[i] += connections;
+            }
+        }
+        for (int i=0; i < users.length; i++) {
+            invite(2010, i, ELSEWHERE, users[i] - registered[i]);
+        }
+        SocialAnalytics.YearResult year = analyse(meters(km), new DistanceStack(locations, Set.of()), 2)
+                .getYears().get(0);
+
+        assertEquals(2010, year.getYear());
+        // Pairs at 1 km, then pairs at 2 and 4 km
+        assertEquals(20 + 80, year.getConnections(0), DELTA);
+        assertEquals(100 * 200 + 200 * 400, year.getPossibleConnections(0), DELTA);
+        assertEquals(10 + 5 + 40 + 20, year.getConnections(1), DELTA);
+        assertEquals(100 * 400 + 100 * 800 + 200 * 800 + 400 * 800, year.getPossibleConnections(1), DELTA);
+        assertEquals(0.001, year.getProbability(0), DELTA);
+
+        assertEquals(1, year.getPopulationExponent(), 1e-6);
+        assertEquals(2, year.getDistanceExponent(), 1e-6);
+        assertEquals(1, year.getGravityR2(), 1e-6);
+        assertTrue(Double.isNaN(year.getIntensityChangeDifference()));
+    }
+
+    @Test
+    public void comparesThePairsWhoseDistanceShrank() throws IOException {
+        // The new bridge halves the distance between Alpha and Beta from 2010
+        double [][] km = {
+                { 0, 5, 10, 20 },
+                { 5, 0, 12, 20 },
+                { 10, 12, 0, 20 },
+                { 20, 20, 20, 0 } };
+        DistanceStack before = new DistanceStack(locations, Set.of(2010));
+        double [][] metersBefore = meters(km);
+        metersBefore[0][1] = metersBefore[1][0] = 10_000;
+        for (int i=0; i < km.length; i++) {
+            for (int j=0; j < km.length; j++) {
+                before.get(2010).set(i, j, metersBefore[i][j]);
+            }
+        }
+        invite(2009, 1, 0, 10);
+        invite(2009, 2, 0, 10);
+        invite(2009, 0, ELSEWHERE, 10);
+        invite(2010, 1, 0, 40);
+        invite(2010, 2, 0, 10);
+        SocialAnalytics.Result result = analyse(meters(km), before, 6);
+        assertEquals(2, result.getYears().size());
+
+        SocialAnalytics.YearResult first = result.getYears().get(0);
+        SocialAnalytics.YearResult second = result.getYears().get(1);
+        // Each year bins the pairs by the distances of its own network
+        assertEquals(0, first.getConnections(0), DELTA);
+        assertEquals(20, first.getConnections(1), DELTA);
+        assertEquals(50, second.getConnections(0), DELTA);
+        assertEquals(0, first.getChangedPairs());
+
+        // Invitations per user pair fall from 10 / (10 * 10) to 40 / (10 * 50) and 10 / (10 * 20)
+        assertEquals(1, second.getChangedPairs());
+        assertEquals(Math.log(0.8) - Math.log(0.5), second.getIntensityChangeDifference(), DELTA);
+        assertEquals(-1, second.getChangeCorrelation(), DELTA);
+
+        String prefix = new File(dir, "analysis-").getPath();
+        result.write(prefix);
+        // Four bins of 6 km up to the 20 km of the farthest pair
+        assertEquals(1 + 2 * 4, Files.readAllLines(new File(prefix + "decay.csv").toPath()).size());
+        assertEquals(1 + 2, Files.readAllLines(new File(prefix + "gravity.csv").toPath()).size());
+        List<String> changes = Files.readAllLines(new File(prefix + "changes.csv").toPath());
+        assertEquals(2, changes.size());
+        assertTrue(changes.get(1).startsWith("2010,1,1,-5.0,"), changes.get(1));
+    }
+
+    private SocialAnalytics.Result analyse(double [][] base, DistanceStack distances, double binKm)
+            throws IOException {
+        File invitations = new File(dir, "invitation_counts.csv");
+        try (PrintWriter out = new PrintWriter(invitations, StandardCharsets.UTF_8)) {
+            out.println("RegYear,CityId,InvitorCityId,w");
+            rows.forEach(out::println);
+        }
+        File cities = new File(dir, "cities.csv");
+        try (PrintWriter out = new PrintWriter(cities, StandardCharsets.UTF_8)) {
+            out.println("CityId,CityName,Latitude,Longitude,PopLog");
+            for (int i=0; i < locations.size(); i++) {
+                LocationEntry location = locations.get(i);
+                out.println(i + "," + location.getName() + "," + location.getLat() + "," + location.getLng() + ",2");
+            }
+            out.println(ELSEWHERE + ",Elsewhere,45.0,18.0,2");
+        }
+        return new SocialAnalytics(InvitationCounts.read(invitations), Cities.read(cities),
+                DistanceMatrix.of(locations, base), distances).analyse(binKm);
+    }
+
+    // The users registered in a city in a year, invited from the other city
+    private void invite(int year, int city, int invitor, int count) {
+        rows.add(year + "," + city + "," + invitor + "," + count);
+    }
+
+    private static double [][] meters(double [][] km) {
+        double [][] result = new double[km.length][km.length];
+        for (int i=0; i < km.length; i++) {
+            for (int j=0; j < km.length; j++) {
+                result[i][j] = i == j ? Double.NaN : km[i][j] * 1000;
+            }
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,183 @@
+package wwcs2022.socialmemcon;
+
+import com.graphhopper.GraphHopper;
+import de.topobyte.osm4j.core.model.impl.Node;
+import de.topobyte.osm4j.core.model.impl.Tag;
+import de.topobyte.osm4j.core.model.impl.Way;
+import de.topobyte.osm4j.pbf.seq.PbfWriter;
+import gnu.trove.list.array.TLongArrayList;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.*;
+
+/**
+ * Small road networks written as PBF for the tests: a square grid of streets, 6 by 6 nodes about 550 m apart near
+ * Budapest. In the river network the grid is cut between the third and fourth column, and only two bridges cross,
+ * each with a restriction polygon around its middle.
+ */
+final class TestNetworks {
+
+    static final int GRID = 6;
+    static final double LAT = 47.50;
+    static final double LNG = 19.00;
+    static final double STEP_LAT = 0.005;
+    static final double STEP_LNG = 0.007;
+    // The river runs between this column and the next one
+    static final int RIVER = 2;
+    // The rows of the bridges and the years they were built
+    static final int OLD_BRIDGE_ROW = 1;
+    static final int NEW_BRIDGE_ROW = 4;
+    static final int OLD_BRIDGE_YEAR = 2000;
+    static final int NEW_BRIDGE_YEAR = 2010;
+
+    private static final long BRIDGE_NODE = 1000;
+    private static final List<Tag> RESIDENTIAL = List.of(new Tag("highway", "residential"));
+
+    private TestNetworks() {
+    }
+
+    /**
+     * Writes the grid with a primary road along the diagonal, so the shortest and the fastest routes differ, and a
+     * one-way street along the first row, so the distances are not symmetric.
+     */
+    static void writeGrid(File file) throws IOException {
+        try (OutputStream os = new BufferedOutputStream(new FileOutputStream(file))) {
+            PbfWriter writer = new PbfWriter(os, false);
+            writeNodes(writer);
+            long way = 1;
+            for (int r=0; r < GRID; r++) {
+                writer.write(new Way(way++, row(r, 0, GRID - 1), r == 0
+                        ? List.of(new Tag("highway", "residential"), new Tag("oneway", "yes"))
+                        : RESIDENTIAL));
+            }
+            for (int c=0; c < GRID; c++) {
+                writer.write(new Way(way++, column(c), RESIDENTIAL));
+            }
+            TLongArrayList diagonal = new TLongArrayList();
+            for (int i=0; i < GRID; i++) {
+                diagonal.add(node(i, i));
+            }
+            writer.write(new Way(way, diagonal, List.of(new Tag("highway", "primary"))));
+            writer.complete();
+        }
+    }
+
+    /**
+     * Writes the river network. Every bridge is a way of its own through a node in the middle of the river. The
+     * bridges in the given rows are left out, like the filtered dataset of a year before they were built.
+     */
+    static void writeRiver(File file, int... missingBridges) throws IOException {
+        Set<Integer> bridges = new TreeSet<>(List.of(OLD_BRIDGE_ROW, NEW_BRIDGE_ROW));
+        Arrays.stream(missingBridges).forEach(bridges::remove);
+        try (OutputStream os = new BufferedOutputStream(new FileOutputStream(file))) {
+            PbfWriter writer = new PbfWriter(os, false);
+            writeNodes(writer);
+            for (int r : bridges) {
+                writer.write(new Node(BRIDGE_NODE + r, bridgeLng(), bridgeLat(r), List.of()));
+            }
+            long way = 1;
+            for (int r=0; r < GRID; r++) {
+                writer.write(new Way(way++, row(r, 0, RIVER), RESIDENTIAL));
+                writer.write(new Way(way++, row(r, RIVER + 1, GRID - 1), RESIDENTIAL));
+            }
+            for (int c=0; c < GRID; c++) {
+                writer.write(new Way(way++, column(c), RESIDENTIAL));
+            }
+            for (int r : bridges) {
+                TLongArrayList refs = new TLongArrayList(new long[] { node(r, RIVER), BRIDGE_NODE + r,
+                        node(r, RIVER + 1) });
+                writer.write(new Way(way++, refs, List.of(new Tag("highway", "residential"),
+                        new Tag("bridge", "yes"))));
+            }
+            writer.complete();
+        }
+    }
+
+    /**
+     * Returns the restrictions of the river network, a square of about 200 m around the middle of each bridge.
+     */
+    static List<RestrictionEntry> bridges() {
+        return List.of(bridge("Old bridge", OLD_BRIDGE_YEAR, OLD_BRIDGE_ROW),
+                bridge("New bridge", NEW_BRIDGE_YEAR, NEW_BRIDGE_ROW));
+    }
+
+    private static RestrictionEntry bridge(String name, int year, int row) {
+        double lat = bridgeLat(row);
+        double lng = bridgeLng();
+        double d = 0.001;
+        return new RestrictionEntry(name + ";" + year + ";50;"
+                + (lat - d) + "," + (lng - d) + "::" + (lat - d) + "," + (lng + d) + "::"
+                + (lat + d) + "," + (lng + d) + "::" + (lat + d) + "," + (lng - d) + "::"
+                + (lat - d) + "," + (lng - d));
+    }
+
+    /**
+     * Returns locations next to the streets along the columns of the grid, between the nodes so they are snapped onto
+     * edges, spread over both banks of the river.
+     */
+    static List<LocationEntry> locations(int count) {
+        List<LocationEntry> result = new ArrayList<>();
+        for (int i=0; i < count; i++) {
+            int column = (i * 5 + 1) % GRID;
+            int row = (i * 2) % (GRID - 1);
+            // Off the street towards the middle, so the last column stays within the bounds of the graph
+            double offset = column <= RIVER ? 0.02 : -0.02;
+            result.add(new LocationEntry("loc" + i, LAT + (row + 0.3 + 0.05 * (i % 3)) * STEP_LAT,
+                    LNG + (column + offset) * STEP_LNG));
+        }
+        return result;
+    }
+
+    /**
+     * Returns whether the location lies west of the river.
+     */
+    static boolean isWest(LocationEntry location) {
+        return location.getLng() < bridgeLng();
+    }
+
+    static GraphHopper hopper(File osm, File cacheDir) {
+        return RoutingMain.createGraphHopperInstance(osm.getPath(), cacheDir.getPath(), "car");
+    }
+
+    static long node(int row, int column) {
+        return 1 + row * GRID + column;
+    }
+
+    // The bridges arch a little, GraphHopper would drop a point in the middle of a straight line
+    private static double bridgeLat(int row) {
+        return LAT + (row + 0.1) * STEP_LAT;
+    }
+
+    private static double bridgeLng() {
+        return LNG + (RIVER + 0.5) * STEP_LNG;
+    }
+
+    private static void writeNodes(PbfWriter writer) throws IOException {
+        for (int r=0; r < GRID; r++) {
+            for (int c=0; c < GRID; c++) {
+                writer.write(new Node(node(r, c), LNG + c * STEP_LNG, LAT + r * STEP_LAT, List.of()));
+            }
+        }
+    }
+
+    private static TLongArrayList row(int row, int from, int to) {
+        TLongArrayList refs = new TLongArrayList();
+        for (int c=from; c <= to; c++) {
+            refs.add(node(row, c));
+        }
+        return refs;
+    }
+
+    private static TLongArrayList column(int column) {
+        TLongArrayList refs = new TLongArrayList();
+        for (int r=0; r < GRID; r++) {
+            refs.add(node(r, column));
+        }
+        return refs;
+    }
+
+}